@@ -47,6 +47,22 @@ public class WallpaperServer {
                 Config.DEFAULT_WALLPAPER_EMB_PATH,
                 Config.DEFAULT_USER_EMB_PATH
         );
+        // 加载离线 ItemCF 模型文件并在后台构建，第一个 itemcf 请求不再等待构建
+        com.wallpaperrecsys.recprocess.ItemCFRecommendation.getInstance().warmUp();
+        com.wallpaperrecsys.recprocess.UserCFRecommendation.getInstance().warmUp();
+        com.wallpaperrecsys.recprocess.ALSTrainer.warmUp();
+        com.wallpaperrecsys.recprocess.UserEmbeddingFoldIn.getInstance().warmUp();
+        com.wallpaperrecsys.recprocess.ScenarioBasedRecommendation.warmUp();
+        // 预热四个时段的召回池，并在每个时段开始前重新预热
+        com.wallpaperrecsys.recprocess.TimeAwareRecommendation.warmUp();
+        // 场景定义热加载后（静态分表与时段召回池已重建）丢掉按旧定义缓存的场景 / 时间推荐会话
+        com.wallpaperrecsys.recprocess.ScenarioDefinitions.addReloadListener(() -> {
+            com.wallpaperrecsys.service.RecSessionCache.getInstance().invalidate("scenario|");
+            com.wallpaperrecsys.service.RecSessionCache.getInstance().invalidate("time|");
+        });
+        // 时间推荐会话存活到时段结束，数据重新加载（时段召回池已重建）后也丢掉
+        WallpaperDataManager.getInstance().addLoadListener(() ->
+                com.wallpaperrecsys.service.RecSessionCache.getInstance().invalidate("time|"));
 
         // 2. 找到 webroot 目录（classpath 下）
         URL webRootLocation = this.getClass().getResource("/webroot/index.html");
@@ -119,6 +135,10 @@ public class WallpaperServer {
                 return;
             }
 
+            // 每个请求一个截止时间，绑定到当前线程后由各推荐流水线的召回 / 排序阶段共用
+            com.wallpaperrecsys.recprocess.pipeline.RequestDeadline deadline =
+                    com.wallpaperrecsys.recprocess.pipeline.RequestDeadline.after(deadlineMillis(req));
+            com.wallpaperrecsys.recprocess.pipeline.RequestDeadline.Scope scope = deadline.bind();
             try {
                 switch (path) {
                     case "/rec/personal":
@@ -127,6 +147,9 @@ public class WallpaperServer {
                     case "/rec/similar":
                         handleSimilarRec(req, resp);
                         break;
+                    case "/rec/similar/batch":
+                        handleSimilarBatchRec(req, resp);
+                        break;
                     case "/search":
                         handleSearch(req, resp);
                         break;
@@ -136,6 +159,9 @@ public class WallpaperServer {
                     case "/rec/time":
                         handleTimeRec(req, resp);
                         break;
+                    case "/metrics":
+                        mapper.writeValue(resp.getWriter(), com.wallpaperrecsys.util.RecMetrics.snapshot());
+                        break;
                     default:
                         resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 }
@@ -143,9 +169,72 @@ public class WallpaperServer {
                 resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
                 mapper.writeValue(resp.getWriter(), "Error: " + e.getMessage());
                 e.printStackTrace();
+            } finally {
+                scope.close();
             }
         }
 
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            resp.setCharacterEncoding("UTF-8");
+            resp.setContentType("application/json;charset=UTF-8");
+
+            if (!"/rate".equals(req.getPathInfo())) {
+                resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            try {
+                handleRate(req, resp);
+            } catch (Exception e) {
+                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                mapper.writeValue(resp.getWriter(), "Error: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Record a rating: updates user / wallpaper statistics, feeds incremental ItemCF, drops the user's cached lists.
+         * 记录一条评分：更新用户与壁纸统计、触发 ItemCF 增量更新，并清掉该用户缓存的推荐会话
+         */
+        private void handleRate(HttpServletRequest req, HttpServletResponse resp) throws Exception {
+            String userIdStr = req.getParameter("userId");
+            String wallpaperIdStr = req.getParameter("wallpaperId");
+            String ratingStr = req.getParameter("rating");
+            if (userIdStr == null || wallpaperIdStr == null || ratingStr == null) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                mapper.writeValue(resp.getWriter(), "Error: userId, wallpaperId and rating are required");
+                return;
+            }
+            int userId = Integer.parseInt(userIdStr);
+            int wallpaperId = Integer.parseInt(wallpaperIdStr);
+            double score = Double.parseDouble(ratingStr);
+            if (score < 0 || score > 5) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                mapper.writeValue(resp.getWriter(), "Error: rating must be between 0 and 5");
+                return;
+            }
+            WallpaperDataManager dm = WallpaperDataManager.getInstance();
+            if (dm.getWallpaperById(wallpaperId) == null) {
+                resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                mapper.writeValue(resp.getWriter(), "Error: unknown wallpaper " + wallpaperId);
+                return;
+            }
+
+            com.wallpaperrecsys.datamanager.User user = dm.addRating(new com.wallpaperrecsys.datamanager.Rating(
+                    userId, wallpaperId, score, System.currentTimeMillis() / 1000));
+            com.wallpaperrecsys.service.RecSessionCache cache = com.wallpaperrecsys.service.RecSessionCache.getInstance();
+            cache.invalidate("personal|" + userId + "|");
+            cache.invalidate("scenario|" + userId + "|");
+            cache.invalidate("time|" + userId + "|");
+
+            java.util.Map<String, Object> body = new java.util.LinkedHashMap<>();
+            body.put("userId", userId);
+            body.put("wallpaperId", wallpaperId);
+            body.put("ratingCount", user.getRatingCount());
+            mapper.writeValue(resp.getWriter(), body);
+        }
+
         private void handlePersonalRec(HttpServletRequest req, HttpServletResponse resp) throws Exception {
             String userIdStr = req.getParameter("userId");
             String sizeStr = req.getParameter("size");
@@ -157,12 +246,18 @@ public class WallpaperServer {
             if (model == null || model.isEmpty()) {
                 model = "emb";
             }
+            if (!com.wallpaperrecsys.recprocess.RecForYouProcess.isKnownModel(model)) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                mapper.writeValue(resp.getWriter(), "Error: unknown model " + model
+                        + ", expected one of " + com.wallpaperrecsys.recprocess.RecForYouProcess.MODELS);
+                return;
+            }
             int page = pageStr != null ? Integer.parseInt(pageStr) : 0;
             if (page < 0) page = 0;
 
-            java.util.List<com.wallpaperrecsys.datamanager.Wallpaper> list =
-                    com.wallpaperrecsys.recprocess.RecForYouProcess.getRecList(userId, Math.min(size * (page + 1), 5000), model);
-            mapper.writeValue(resp.getWriter(), paginate(list, size, page));
+            final String m = model.toLowerCase();
+            writePage(req, resp, "personal|" + userId + "|" + m, page, size,
+                    n -> com.wallpaperrecsys.recprocess.RecForYouProcess.getRecList(userId, n, m));
         }
 
         private void handleSimilarRec(HttpServletRequest req, HttpServletResponse resp) throws Exception {
@@ -184,7 +279,42 @@ public class WallpaperServer {
 
             java.util.List<com.wallpaperrecsys.datamanager.Wallpaper> list =
                     com.wallpaperrecsys.recprocess.SimilarWallpaperProcess.getRecList(wallpaperId, size, model);
-            mapper.writeValue(resp.getWriter(), list);
+            writeResult(resp, list);
+        }
+
+        /**
+         * Similar lists for many wallpapers in one call (grid views): wallpaperIds=1,2,3
+         * 批量相似推荐：一次请求返回每个壁纸的相似列表（{"1": [...], "2": [...]}），召回与打分在各 id 之间共享
+         */
+        private void handleSimilarBatchRec(HttpServletRequest req, HttpServletResponse resp) throws Exception {
+            String idsStr = req.getParameter("wallpaperIds");
+            String sizeStr = req.getParameter("size");
+            String model = req.getParameter("model");
+
+            if (idsStr == null || idsStr.trim().isEmpty()) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                mapper.writeValue(resp.getWriter(), "wallpaperIds is required");
+                return;
+            }
+            java.util.List<Integer> ids = new java.util.ArrayList<>();
+            for (String part : idsStr.split(",")) {
+                if (!part.trim().isEmpty()) {
+                    ids.add(Integer.parseInt(part.trim()));
+                }
+            }
+            if (ids.size() > Config.SIMILAR_BATCH_MAX_IDS) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                mapper.writeValue(resp.getWriter(), "at most " + Config.SIMILAR_BATCH_MAX_IDS + " wallpaperIds per request");
+                return;
+            }
+            int size = sizeStr != null ? Integer.parseInt(sizeStr) : 20;
+            if (model == null || model.isEmpty()) {
+                model = "emb";
+            }
+
+            java.util.Map<Integer, java.util.List<com.wallpaperrecsys.datamanager.Wallpaper>> lists =
+                    com.wallpaperrecsys.recprocess.SimilarWallpaperProcess.getRecLists(ids, size, model);
+            writeResult(resp, lists);
         }
 
         private void handleSearch(HttpServletRequest req, HttpServletResponse resp) throws Exception {
@@ -194,7 +324,7 @@ public class WallpaperServer {
 
             java.util.List<com.wallpaperrecsys.datamanager.Wallpaper> list =
                     com.wallpaperrecsys.service.AISearchService.intelligentSearch(q, size);
-            mapper.writeValue(resp.getWriter(), list);
+            writeResult(resp, list);
         }
 
         private void handleScenarioRec(HttpServletRequest req, HttpServletResponse resp) throws Exception {
@@ -211,10 +341,7 @@ public class WallpaperServer {
             int page = pageStr != null ? Integer.parseInt(pageStr) : 0;
             if (page < 0) page = 0;
 
-            java.util.List<com.wallpaperrecsys.datamanager.Wallpaper> list =
-                    com.wallpaperrecsys.recprocess.ScenarioBasedRecommendation.recommendByScenario(
-                            scene, userId, Math.min(size * (page + 1), 5000));
-            mapper.writeValue(resp.getWriter(), paginate(list, size, page));
+            writeScenarioPage(req, resp, scene.toLowerCase(), userId, page, size);
         }
 
         private void handleTimeRec(HttpServletRequest req, HttpServletResponse resp) throws Exception {
@@ -222,32 +349,89 @@ public class WallpaperServer {
             String sizeStr = req.getParameter("size");
             String pageStr = req.getParameter("page");
 
+            String tz = req.getParameter("tz");
+
             int userId = userIdStr != null ? Integer.parseInt(userIdStr) : 1;
             int size = sizeStr != null ? Integer.parseInt(sizeStr) : 20;
             int page = pageStr != null ? Integer.parseInt(pageStr) : 0;
             if (page < 0) page = 0;
 
-            java.util.List<com.wallpaperrecsys.datamanager.Wallpaper> list =
-                    com.wallpaperrecsys.recprocess.TimeAwareRecommendation.recommendByTime(userId, Math.min(size * (page + 1), 5000));
-            mapper.writeValue(resp.getWriter(), paginate(list, size, page));
+            // 客户端时区：IANA 名称（Asia/Shanghai）或 UTC 偏移（+08:00），不传时用服务器时区
+            java.time.ZoneId zone;
+            try {
+                zone = tz == null || tz.isEmpty() ? java.time.ZoneId.systemDefault() : java.time.ZoneId.of(tz.trim());
+            } catch (java.time.DateTimeException e) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                mapper.writeValue(resp.getWriter(), "Error: unknown time zone " + tz);
+                return;
+            }
+
+            // 时间推荐是客户端当前时间段的场景推荐：召回取预热的时段召回池，个性化结果的会话存活到该时段结束
+            String slot = com.wallpaperrecsys.recprocess.TimeAwareRecommendation.currentTimeSlot(zone);
+            long slotEnd = com.wallpaperrecsys.recprocess.TimeAwareRecommendation
+                    .nextBoundary(java.time.ZonedDateTime.now(zone)).toInstant().toEpochMilli();
+            writePage(req, resp, "time|" + userId + "|" + slot, page, size, slotEnd,
+                    n -> com.wallpaperrecsys.recprocess.TimeAwareRecommendation.recommendByTime(userId, n, zone));
+        }
+
+        private void writeScenarioPage(HttpServletRequest req, HttpServletResponse resp,
+                                       String scene, int userId, int page, int size) throws Exception {
+            writePage(req, resp, "scenario|" + userId + "|" + scene, page, size,
+                    n -> com.wallpaperrecsys.recprocess.ScenarioBasedRecommendation.recommendByScenario(scene, userId, n));
+        }
+
+        /**
+         * Cursor paging over a cached ranked list.
+         * 游标分页：排序结果按 key 缓存在 RecSessionCache 中（先算前几页，往后翻时按长度接长），每页只做切片；
+         * 请求带 cursor 时按游标定位，否则按 page 定位（超出范围回到第 0 页，配合“换一批”循环使用）。
+         * 下一页游标通过 X-Next-Cursor 响应头返回，响应体仍是壁纸数组。
+         */
+        private void writePage(HttpServletRequest req, HttpServletResponse resp, String key, int page, int size,
+                               java.util.function.IntFunction<java.util.List<com.wallpaperrecsys.datamanager.Wallpaper>> loader)
+                throws IOException {
+            writePage(req, resp, key, page, size, 0L, loader);
+        }
+
+        // 同上，会话存活到 expiresAt（毫秒时间戳），<= 0 时按 TTL
+        private void writePage(HttpServletRequest req, HttpServletResponse resp, String key, int page, int size,
+                               long expiresAt,
+                               java.util.function.IntFunction<java.util.List<com.wallpaperrecsys.datamanager.Wallpaper>> loader)
+                throws IOException {
+            com.wallpaperrecsys.service.RecSessionCache.Page result =
+                    com.wallpaperrecsys.service.RecSessionCache.getInstance()
+                            .page(key, req.getParameter("cursor"), page, size, loader, expiresAt);
+            if (result.getNextCursor() != null) {
+                resp.setHeader("X-Next-Cursor", result.getNextCursor());
+            }
+            writeResult(resp, result.getItems());
+        }
+
+        /**
+         * Write the response body with the tier that served it.
+         * 写响应体，并通过 X-Rec-Tier 响应头说明实际服务的档位（full / partial / fallback.*），按档位计数 api.tier.*
+         */
+        private void writeResult(HttpServletResponse resp, Object body) throws IOException {
+            String tier = com.wallpaperrecsys.recprocess.pipeline.RequestDeadline.current().getTier();
+            resp.setHeader("X-Rec-Tier", tier);
+            com.wallpaperrecsys.util.RecMetrics.increment("api.tier." + tier);
+            mapper.writeValue(resp.getWriter(), body);
         }
 
         /**
-         * Simple paging: return page-th chunk of size.
-         * 若 page 超出范围则回到第 0 页，配合“换一批”循环使用。
+         * Request time budget: timeoutMs parameter or Config.REQUEST_DEADLINE_MS, capped by Config.REQUEST_MAX_DEADLINE_MS.
+         * 请求时间预算：优先取 timeoutMs 参数，否则用 Config.REQUEST_DEADLINE_MS，上限 Config.REQUEST_MAX_DEADLINE_MS
          */
-        private java.util.List<com.wallpaperrecsys.datamanager.Wallpaper> paginate(
-                java.util.List<com.wallpaperrecsys.datamanager.Wallpaper> list,
-                int size,
-                int page) {
-            if (list == null) return java.util.Collections.emptyList();
-            if (size <= 0) return java.util.Collections.emptyList();
-            int start = page * size;
-            if (start >= list.size()) {
-                start = 0;
-            }
-            int end = Math.min(start + size, list.size());
-            return list.subList(start, end);
+        private static long deadlineMillis(HttpServletRequest req) {
+            long millis = Config.REQUEST_DEADLINE_MS;
+            String timeoutStr = req.getParameter("timeoutMs");
+            if (timeoutStr != null) {
+                try {
+                    millis = Long.parseLong(timeoutStr.trim());
+                } catch (NumberFormatException e) {
+                    // 非法值按默认预算处理
+                }
+            }
+            return Math.max(1L, Math.min(millis, Config.REQUEST_MAX_DEADLINE_MS));
         }
     }
 }
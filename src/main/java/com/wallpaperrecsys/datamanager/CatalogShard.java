@@ -0,0 +1,71 @@
+package com.wallpaperrecsys.datamanager;
+
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * CatalogShard, one partition of the wallpaper catalog
+ * 壁纸目录分片：每个分片持有自己那部分壁纸、反向索引以及 embedding 矩阵块。
+ *
+ * 说明：
+ * - 所有查询都只返回本分片内的 Top-K，由 ShardedCatalog 负责 scatter-gather 合并。
+ * - 接口只依赖值语义的参数与返回值，后续可以用 RPC 实现把分片放到独立 JVM 中。
+ */
+public interface CatalogShard {
+
+    /**
+     * Reverse index types held by a shard
+     * 分片内维护的反向索引类型
+     */
+    enum Index {
+        TAG, CATEGORY, STYLE, MOOD
+    }
+
+    int getShardId();
+
+    int size();
+
+    void putWallpaper(Wallpaper wallpaper);
+
+    Wallpaper getWallpaper(int wallpaperId);
+
+    void addToIndex(Index index, String key, Wallpaper wallpaper);
+
+    /**
+     * Top-K wallpapers of one index key in this shard, sorted by sortBy
+     * 本分片内某个索引键下按 sortBy 排序的 Top-K
+     */
+    List<Wallpaper> topByIndex(Index index, String key, int k, String sortBy);
+
+    /**
+     * Top-K wallpapers of this shard, sorted by sortBy
+     * 本分片内按 sortBy 排序的 Top-K
+     */
+    List<Wallpaper> top(int k, String sortBy);
+
+    List<Wallpaper> all();
+
+    List<Wallpaper> allWithEmbedding();
+
+    /**
+     * Pack the loaded embeddings into a contiguous normalized float block
+     * 把已加载的 embedding 打包成连续的归一化 float 矩阵块，之后的向量扫描只读这块内存；替换向量后可再次调用
+     */
+    void sealEmbeddings();
+
+    /**
+     * Top-K by dot product between query and normalized item embeddings
+     * 以 query 与归一化 item 向量的点积做 Top-K（query 已归一化时即余弦相似度）
+     * @param query query vector, same dimension as the embedding block
+     * @param k number of results
+     * @param exclude wallpaper ids to skip, may be null
+     */
+    List<ScoredWallpaper> topKByEmbedding(float[] query, int k, IntPredicate exclude);
+
+    /**
+     * Top-K by an arbitrary scorer, keeping only scores strictly above minScore
+     * 按任意打分函数做 Top-K，只保留分数严格大于 minScore 的壁纸
+     */
+    List<ScoredWallpaper> topKByScorer(ToDoubleFunction<Wallpaper> scorer, double minScore, int k);
+}
@@ -0,0 +1,272 @@
+package com.wallpaperrecsys.datamanager;
+
+import java.util.*;
+
+/**
+ * ContentFeatures - fixed-width bitset encoding of wallpapers' tags, categories, style and mood
+ * 壁纸内容特征的定长位图编码：加载时为标签 / 分类 / 风格 / 情绪建立词表，每张壁纸编码为一个 long[]
+ *
+ * 说明：
+ * - 位图按段排列 [标签 | 分类 | 风格 | 情绪]，每段按 64 位对齐；同一次加载的壁纸共用一份词表（schema），宽度相同。
+ * - 标签 / 分类重合数 = 段内 AND 后 Long.bitCount；风格 / 情绪单值，段内 AND 非零即相同。
+ * - 与原先 List.contains 的结果逐位一致：锚点列表里重复出现的值要按次数计入，
+ *   因此另存“重复层”（第 k 层为出现至少 k + 1 次的值），重合数再加上各层与候选位图的交集；列表长度按原样（含重复）保存。
+ * - 词表过大（超过 MAX_WORDS 个 long）时不编码，打分回退到列表比较。
+ * - 场景偏好等“取值集合”可用 encodeQuery 编码成同一词表下的查询位图，与壁纸按位比较。
+ * - 壁纸的标签 / 分类 / 风格 / 情绪被修改时编码作废（Wallpaper 的修改方法会清空），同样回退到列表比较。
+ */
+public final class ContentFeatures {
+
+    // 单张壁纸位图的最大宽度（long 个数），4096 个不同取值
+    static final int MAX_WORDS = 64;
+
+    private final Map<String, Integer> tagBits;
+    private final Map<String, Integer> categoryBits;
+    private final Map<String, Integer> styleBits;
+    private final Map<String, Integer> moodBits;
+    // 各段在 long[] 中的起止位置（以 long 计）
+    private final int categoryStart;
+    private final int styleStart;
+    private final int moodStart;
+    private final int words;
+
+    /**
+     * One wallpaper's encoded features
+     * 一张壁纸的编码结果（不可变）
+     */
+    public static final class Encoded {
+        final ContentFeatures schema;
+        final long[] bits;
+        // 标签 / 分类的重复层（只覆盖对应段），没有重复值时为 null
+        final long[][] tagRepeats;
+        final long[][] categoryRepeats;
+        // 原列表长度（含重复），相似度的分母
+        final int tagCount;
+        final int categoryCount;
+
+        Encoded(ContentFeatures schema, long[] bits, long[][] tagRepeats, long[][] categoryRepeats,
+                int tagCount, int categoryCount) {
+            this.schema = schema;
+            this.bits = bits;
+            this.tagRepeats = tagRepeats;
+            this.categoryRepeats = categoryRepeats;
+            this.tagCount = tagCount;
+            this.categoryCount = categoryCount;
+        }
+
+        /**
+         * Whether the two encodings share a vocabulary and can be compared bitwise
+         * 两个编码来自同一份词表时才能按位比较
+         */
+        public boolean comparableWith(Encoded other) {
+            return other != null && other.schema == schema;
+        }
+
+        /**
+         * Number of this wallpaper's tags (with repeats) present among the other's tags
+         * 本壁纸的标签（按出现次数）有多少个出现在 other 的标签中，等价于逐个 other.getTags().contains
+         */
+        public int tagOverlap(Encoded other) {
+            return overlap(other, 0, schema.categoryStart, tagRepeats);
+        }
+
+        public int categoryOverlap(Encoded other) {
+            return overlap(other, schema.categoryStart, schema.styleStart, categoryRepeats);
+        }
+
+        public boolean sameStyle(Encoded other) {
+            return intersects(other, schema.styleStart, schema.moodStart);
+        }
+
+        public boolean sameMood(Encoded other) {
+            return intersects(other, schema.moodStart, schema.words);
+        }
+
+        public int tagCount() {
+            return tagCount;
+        }
+
+        public int categoryCount() {
+            return categoryCount;
+        }
+
+        private int overlap(Encoded other, int from, int to, long[][] repeats) {
+            long[] a = bits;
+            long[] b = other.bits;
+            int n = 0;
+            for (int w = from; w < to; w++) {
+                n += Long.bitCount(a[w] & b[w]);
+            }
+            if (repeats != null) {
+                for (long[] layer : repeats) {
+                    for (int w = from; w < to; w++) {
+                        n += Long.bitCount(layer[w - from] & b[w]);
+                    }
+                }
+            }
+            return n;
+        }
+
+        private boolean intersects(Encoded other, int from, int to) {
+            for (int w = from; w < to; w++) {
+                if ((bits[w] & other.bits[w]) != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private ContentFeatures(Map<String, Integer> tagBits, Map<String, Integer> categoryBits,
+                            Map<String, Integer> styleBits, Map<String, Integer> moodBits) {
+        this.tagBits = tagBits;
+        this.categoryBits = categoryBits;
+        this.styleBits = styleBits;
+        this.moodBits = moodBits;
+        this.categoryStart = wordsFor(tagBits.size());
+        this.styleStart = categoryStart + wordsFor(categoryBits.size());
+        this.moodStart = styleStart + wordsFor(styleBits.size());
+        this.words = moodStart + wordsFor(moodBits.size());
+    }
+
+    private static int wordsFor(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    /**
+     * Build the vocabulary over all wallpapers and attach each wallpaper's encoding
+     * 加载完成后调用：按全部壁纸建立词表并为每张壁纸写入编码；词表过大时不编码，返回 null
+     */
+    public static ContentFeatures encodeAll(Collection<Wallpaper> wallpapers) {
+        Map<String, Integer> tags = new HashMap<>();
+        Map<String, Integer> categories = new HashMap<>();
+        Map<String, Integer> styles = new HashMap<>();
+        Map<String, Integer> moods = new HashMap<>();
+        for (Wallpaper w : wallpapers) {
+            for (String tag : w.getTags()) {
+                tags.putIfAbsent(tag, tags.size());
+            }
+            for (String category : w.getCategories()) {
+                categories.putIfAbsent(category, categories.size());
+            }
+            if (w.getStyle() != null) {
+                styles.putIfAbsent(w.getStyle(), styles.size());
+            }
+            if (w.getMood() != null) {
+                moods.putIfAbsent(w.getMood(), moods.size());
+            }
+        }
+        ContentFeatures schema = new ContentFeatures(tags, categories, styles, moods);
+        if (schema.words > MAX_WORDS) {
+            System.out.println("Content features not encoded: vocabulary needs " + schema.words
+                    + " words per wallpaper (max " + MAX_WORDS + ").");
+            for (Wallpaper w : wallpapers) {
+                w.setContentFeatures(null);
+            }
+            return null;
+        }
+        for (Wallpaper w : wallpapers) {
+            w.setContentFeatures(schema.encode(w));
+        }
+        System.out.println("Content features encoded: " + tags.size() + " tags, " + categories.size()
+                + " categories, " + styles.size() + " styles, " + moods.size() + " moods, "
+                + schema.words + " words per wallpaper.");
+        return schema;
+    }
+
+    /**
+     * Encode one wallpaper against this vocabulary; null if it uses a value outside it
+     * 按本词表编码一张壁纸；含词表外的取值时返回 null（打分回退到列表比较）
+     */
+    Encoded encode(Wallpaper w) {
+        long[] bits = new long[words];
+        long[][] tagRepeats = encodeList(w.getTags(), tagBits, 0, categoryStart, bits);
+        long[][] categoryRepeats = encodeList(w.getCategories(), categoryBits, categoryStart, styleStart, bits);
+        if (tagRepeats == INVALID || categoryRepeats == INVALID
+                || !encodeValue(w.getStyle(), styleBits, styleStart, bits)
+                || !encodeValue(w.getMood(), moodBits, moodStart, bits)) {
+            return null;
+        }
+        return new Encoded(this, bits, tagRepeats, categoryRepeats, w.getTags().size(), w.getCategories().size());
+    }
+
+    /**
+     * Encode a set of wanted values (e.g. a scenario's preferences) against this vocabulary
+     * 把一组“想要的”取值（例如场景偏好）按本词表编码成查询位图，供 tagOverlap / categoryOverlap / sameStyle / sameMood 比较。
+     * 词表外的取值不会出现在任何壁纸上，直接丢弃；风格 / 情绪段可以有多个位
+     */
+    public Encoded encodeQuery(Collection<String> tags, Collection<String> categories,
+                               Collection<String> styles, Collection<String> moods) {
+        long[] bits = new long[words];
+        setKnown(tags, tagBits, 0, bits);
+        setKnown(categories, categoryBits, categoryStart, bits);
+        setKnown(styles, styleBits, styleStart, bits);
+        setKnown(moods, moodBits, moodStart, bits);
+        return new Encoded(this, bits, null, null, countBits(bits, 0, categoryStart),
+                countBits(bits, categoryStart, styleStart));
+    }
+
+    private static void setKnown(Collection<String> values, Map<String, Integer> vocab, int from, long[] bits) {
+        for (String value : values) {
+            Integer bit = vocab.get(value);
+            if (bit != null) {
+                bits[from + (bit >>> 6)] |= 1L << bit;
+            }
+        }
+    }
+
+    private static int countBits(long[] bits, int from, int to) {
+        int n = 0;
+        for (int w = from; w < to; w++) {
+            n += Long.bitCount(bits[w]);
+        }
+        return n;
+    }
+
+    private static final long[][] INVALID = new long[0][];
+
+    // 把列表写入 [from, to) 段；值出现第 k + 1 次时写入第 k 层重复位图
+    private static long[][] encodeList(List<String> values, Map<String, Integer> vocab, int from, int to, long[] bits) {
+        List<long[]> layers = null;
+        for (String value : values) {
+            Integer bit = vocab.get(value);
+            if (bit == null) {
+                return INVALID;
+            }
+            int w = from + (bit >>> 6);
+            long mask = 1L << bit;
+            if ((bits[w] & mask) == 0) {
+                bits[w] |= mask;
+                continue;
+            }
+            if (layers == null) {
+                layers = new ArrayList<>(1);
+            }
+            int k = 0;
+            while (k < layers.size() && (layers.get(k)[w - from] & mask) != 0) {
+                k++;
+            }
+            if (k == layers.size()) {
+                layers.add(new long[to - from]);
+            }
+            layers.get(k)[w - from] |= mask;
+        }
+        return layers == null ? null : layers.toArray(new long[0][]);
+    }
+
+    private static boolean encodeValue(String value, Map<String, Integer> vocab, int from, long[] bits) {
+        if (value == null) {
+            return true;
+        }
+        Integer bit = vocab.get(value);
+        if (bit == null) {
+            return false;
+        }
+        bits[from + (bit >>> 6)] |= 1L << bit;
+        return true;
+    }
+
+    public int wordsPerWallpaper() {
+        return words;
+    }
+}
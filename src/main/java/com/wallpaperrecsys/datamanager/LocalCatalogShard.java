@@ -0,0 +1,196 @@
+package com.wallpaperrecsys.datamanager;
+
+import com.wallpaperrecsys.model.Embedding;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * LocalCatalogShard, an in-process catalog shard
+ * 进程内目录分片：HashMap 索引 + 连续 float embedding 块
+ */
+public class LocalCatalogShard implements CatalogShard {
+
+    private final int shardId;
+
+    // 按插入顺序保存，保证“默认排序”时的结果稳定
+    private final LinkedHashMap<Integer, Wallpaper> wallpaperMap = new LinkedHashMap<>();
+    private final EnumMap<Index, HashMap<String, List<Wallpaper>>> reverseIndexes = new EnumMap<>(Index.class);
+
+    // embedding 块整体发布：重新打包（例如 ALS 训练后替换向量）时扫描中的请求仍读到一致的旧块
+    private volatile EmbBlock emb = new EmbBlock(0, new Wallpaper[0], new float[0]);
+
+    /**
+     * block[i * dim .. (i+1) * dim) 是 wallpapers[i] 的归一化向量
+     */
+    private static final class EmbBlock {
+        final int dim;
+        final Wallpaper[] wallpapers;
+        final float[] block;
+
+        EmbBlock(int dim, Wallpaper[] wallpapers, float[] block) {
+            this.dim = dim;
+            this.wallpapers = wallpapers;
+            this.block = block;
+        }
+    }
+
+    public LocalCatalogShard(int shardId) {
+        this.shardId = shardId;
+        for (Index index : Index.values()) {
+            reverseIndexes.put(index, new HashMap<>());
+        }
+    }
+
+    @Override
+    public int getShardId() {
+        return shardId;
+    }
+
+    @Override
+    public int size() {
+        return wallpaperMap.size();
+    }
+
+    @Override
+    public void putWallpaper(Wallpaper wallpaper) {
+        wallpaperMap.put(wallpaper.getWallpaperId(), wallpaper);
+    }
+
+    @Override
+    public Wallpaper getWallpaper(int wallpaperId) {
+        return wallpaperMap.get(wallpaperId);
+    }
+
+    @Override
+    public void addToIndex(Index index, String key, Wallpaper wallpaper) {
+        reverseIndexes.get(index).computeIfAbsent(key, k -> new ArrayList<>()).add(wallpaper);
+    }
+
+    @Override
+    public List<Wallpaper> topByIndex(Index index, String key, int k, String sortBy) {
+        List<Wallpaper> wallpapers = reverseIndexes.get(index).get(key);
+        if (wallpapers == null) {
+            return new ArrayList<>();
+        }
+        return ShardedCatalog.sortAndLimit(wallpapers, sortBy, k);
+    }
+
+    @Override
+    public List<Wallpaper> top(int k, String sortBy) {
+        return ShardedCatalog.sortAndLimit(wallpaperMap.values(), sortBy, k);
+    }
+
+    @Override
+    public List<Wallpaper> all() {
+        return new ArrayList<>(wallpaperMap.values());
+    }
+
+    @Override
+    public List<Wallpaper> allWithEmbedding() {
+        List<Wallpaper> result = new ArrayList<>();
+        for (Wallpaper w : wallpaperMap.values()) {
+            if (w.getEmb() != null) {
+                result.add(w);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void sealEmbeddings() {
+        // 以出现最多的维度为准，维度不一致的向量原本也算不出有效相似度
+        Map<Integer, Integer> dimCount = new HashMap<>();
+        for (Wallpaper w : wallpaperMap.values()) {
+            Embedding emb = w.getEmb();
+            if (emb != null && emb.getVector() != null && !emb.getVector().isEmpty()) {
+                dimCount.merge(emb.getVector().size(), 1, Integer::sum);
+            }
+        }
+        int dim = 0;
+        int best = 0;
+        for (Map.Entry<Integer, Integer> e : dimCount.entrySet()) {
+            if (e.getValue() > best) {
+                best = e.getValue();
+                dim = e.getKey();
+            }
+        }
+
+        List<Wallpaper> packed = new ArrayList<>(best);
+        float[] block = new float[best * dim];
+        for (Wallpaper w : wallpaperMap.values()) {
+            Embedding emb = w.getEmb();
+            if (emb == null || emb.getVector() == null || emb.getVector().size() != dim) {
+                continue;
+            }
+            float[] normalized = emb.toNormalizedArray();
+            System.arraycopy(normalized, 0, block, packed.size() * dim, dim);
+            packed.add(w);
+        }
+
+        this.emb = new EmbBlock(dim, packed.toArray(new Wallpaper[0]), block);
+    }
+
+    @Override
+    public List<ScoredWallpaper> topKByEmbedding(float[] query, int k, IntPredicate exclude) {
+        EmbBlock emb = this.emb;
+        float[] block = emb.block;
+        Wallpaper[] wallpapers = emb.wallpapers;
+        int dim = emb.dim;
+        if (query == null || k <= 0 || dim == 0 || query.length != dim) {
+            return new ArrayList<>();
+        }
+
+        PriorityQueue<ScoredWallpaper> heap = new PriorityQueue<>(k + 1, ScoredWallpaper.BY_SCORE_DESC.reversed());
+        for (int i = 0, offset = 0; i < wallpapers.length; i++, offset += dim) {
+            Wallpaper w = wallpapers[i];
+            if (exclude != null && exclude.test(w.getWallpaperId())) {
+                continue;
+            }
+            double dot = 0.0;
+            for (int d = 0; d < dim; d++) {
+                dot += query[d] * block[offset + d];
+            }
+            offerBounded(heap, w, dot, k);
+        }
+        return drain(heap);
+    }
+
+    @Override
+    public List<ScoredWallpaper> topKByScorer(ToDoubleFunction<Wallpaper> scorer, double minScore, int k) {
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        PriorityQueue<ScoredWallpaper> heap = new PriorityQueue<>(k + 1, ScoredWallpaper.BY_SCORE_DESC.reversed());
+        for (Wallpaper w : wallpaperMap.values()) {
+            double score = scorer.applyAsDouble(w);
+            if (score > minScore) {
+                offerBounded(heap, w, score, k);
+            }
+        }
+        return drain(heap);
+    }
+
+    /**
+     * 小顶堆保留 Top-K：堆顶是当前第 K 名，新元素只有比它好才入堆
+     */
+    private static void offerBounded(PriorityQueue<ScoredWallpaper> heap, Wallpaper w, double score, int k) {
+        if (heap.size() < k) {
+            heap.add(new ScoredWallpaper(w, score));
+            return;
+        }
+        ScoredWallpaper worst = heap.peek();
+        if (score > worst.score
+                || (score == worst.score && w.getWallpaperId() < worst.getWallpaperId())) {
+            heap.poll();
+            heap.add(new ScoredWallpaper(w, score));
+        }
+    }
+
+    private static List<ScoredWallpaper> drain(PriorityQueue<ScoredWallpaper> heap) {
+        List<ScoredWallpaper> result = new ArrayList<>(heap);
+        result.sort(ScoredWallpaper.BY_SCORE_DESC);
+        return result;
+    }
+}
@@ -0,0 +1,42 @@
+package com.wallpaperrecsys.datamanager;
+
+import java.util.Comparator;
+
+/**
+ * ScoredWallpaper, a wallpaper together with the score produced by a scan or a ranker
+ * 带分数的壁纸：分片扫描 / 排序阶段的中间结果
+ */
+public class ScoredWallpaper {
+    // 分数降序，同分按 wallpaperId 升序，保证分片合并后的结果稳定
+    public static final Comparator<ScoredWallpaper> BY_SCORE_DESC = (a, b) -> {
+        int c = Double.compare(b.score, a.score);
+        if (c != 0) {
+            return c;
+        }
+        return Integer.compare(a.wallpaper.getWallpaperId(), b.wallpaper.getWallpaperId());
+    };
+
+    final Wallpaper wallpaper;
+    double score;
+
+    public ScoredWallpaper(Wallpaper wallpaper, double score) {
+        this.wallpaper = wallpaper;
+        this.score = score;
+    }
+
+    public Wallpaper getWallpaper() {
+        return wallpaper;
+    }
+
+    public int getWallpaperId() {
+        return wallpaper.getWallpaperId();
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    public void setScore(double score) {
+        this.score = score;
+    }
+}
@@ -0,0 +1,198 @@
+package com.wallpaperrecsys.datamanager;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * SeenItems - compact per-user set of already-seen wallpaper ids
+ * 用户已看壁纸集合的紧凑表示，随评分增量维护，供所有需要排除已看壁纸的接口共用
+ *
+ * 说明：按占用空间选择表示方式，两种都是精确判断
+ * - 有序 int 数组：评分很少的用户（32 bit / 条）
+ * - 稠密位图：评分很多的用户（maxId bit，与条数无关）
+ *
+ * 评分只在加载或单一的评分写入路径（User.addRating，已加锁）上追加。两种表示都是写时复制：
+ * 每次加入都建新数组再通过唯一的 volatile 字段发布，读取方不加锁，看到的总是某个完整的快照。
+ */
+public abstract class SeenItems {
+
+    /**
+     * Whether the id has been seen
+     * 是否看过
+     */
+    public abstract boolean contains(int wallpaperId);
+
+    /**
+     * Number of ids added
+     * 已加入的 id 数
+     */
+    public abstract int size();
+
+    /**
+     * Short name of the representation, used in metrics
+     * 表示方式名称，用于指标
+     */
+    public abstract String kind();
+
+    /**
+     * Add an id; returns false when the current form should be rebuilt
+     * 加入一个 id；换一种表示方式更省空间时返回 false，由调用方重建
+     */
+    abstract boolean add(int wallpaperId);
+
+    /**
+     * Build the most compact form for the given ratings
+     * 为给定的评分列表选择最省空间的表示方式
+     */
+    public static SeenItems build(List<Rating> ratings) {
+        int[] ids = new int[ratings == null ? 0 : ratings.size()];
+        int n = 0;
+        if (ratings != null) {
+            for (Rating r : ratings) {
+                ids[n++] = r.getWallpaperId();
+            }
+        }
+        Arrays.sort(ids, 0, n);
+        // 去重
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || ids[unique - 1] != ids[i]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        return build(ids, unique);
+    }
+
+    private static SeenItems build(int[] sortedIds, int n) {
+        int maxId = n == 0 ? 0 : Math.max(0, sortedIds[n - 1]);
+        long arrayBits = 32L * n;
+        long denseBits = maxId + 1L;
+        // 位图只放非负 id
+        if (denseBits <= arrayBits && sortedIds[0] >= 0) {
+            long[] words = new long[(maxId >>> 6) + 1];
+            for (int i = 0; i < n; i++) {
+                words[sortedIds[i] >>> 6] |= 1L << sortedIds[i];
+            }
+            return new DenseSeenItems(words, n);
+        }
+        return new SortedSeenItems(Arrays.copyOf(sortedIds, n));
+    }
+
+    /**
+     * Seen-item predicate of a user, shared by every endpoint that excludes seen wallpapers
+     * 用户的已看判断，所有需要排除已看壁纸的接口共用
+     */
+    public static IntPredicate filterFor(User user) {
+        if (user == null) {
+            return id -> false;
+        }
+        return user.getSeenItems()::contains;
+    }
+
+    /**
+     * Exact sorted int array
+     * 精确：有序 int 数组 + 二分查找，数组长度即条数
+     */
+    static class SortedSeenItems extends SeenItems {
+        private volatile int[] ids;
+
+        SortedSeenItems(int[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean contains(int wallpaperId) {
+            return Arrays.binarySearch(ids, wallpaperId) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public String kind() {
+            return "sorted";
+        }
+
+        @Override
+        boolean add(int wallpaperId) {
+            int[] current = ids;
+            int n = current.length;
+            int pos = Arrays.binarySearch(current, wallpaperId);
+            if (pos >= 0) {
+                return true;
+            }
+            int maxId = Math.max(wallpaperId, n == 0 ? 0 : current[n - 1]);
+            // 位图更省空间时，交给调用方重建
+            if (maxId + 1L <= 32L * (n + 1)) {
+                return false;
+            }
+            // 写时复制：读取方二分查找时不会看到插入到一半的数组
+            int insert = -pos - 1;
+            int[] next = new int[n + 1];
+            System.arraycopy(current, 0, next, 0, insert);
+            next[insert] = wallpaperId;
+            System.arraycopy(current, insert, next, insert + 1, n - insert);
+            this.ids = next;
+            return true;
+        }
+    }
+
+    /**
+     * Exact dense bitset
+     * 精确：稠密位图，第 id 位表示是否看过；位图与条数放在同一个不可变快照里发布
+     */
+    static class DenseSeenItems extends SeenItems {
+        private volatile Bits bits;
+
+        private static final class Bits {
+            final long[] words;
+            final int size;
+
+            Bits(long[] words, int size) {
+                this.words = words;
+                this.size = size;
+            }
+        }
+
+        DenseSeenItems(long[] words, int size) {
+            this.bits = new Bits(words, size);
+        }
+
+        @Override
+        public boolean contains(int wallpaperId) {
+            long[] w = bits.words;
+            int idx = wallpaperId >>> 6;
+            return wallpaperId >= 0 && idx < w.length && (w[idx] & (1L << wallpaperId)) != 0;
+        }
+
+        @Override
+        public int size() {
+            return bits.size;
+        }
+
+        @Override
+        public String kind() {
+            return "dense";
+        }
+
+        @Override
+        boolean add(int wallpaperId) {
+            if (wallpaperId < 0) {
+                return false;
+            }
+            Bits current = bits;
+            int idx = wallpaperId >>> 6;
+            if (idx < current.words.length && (current.words[idx] & (1L << wallpaperId)) != 0) {
+                return true;
+            }
+            // 写时复制：不改已发布的数组
+            long[] w = Arrays.copyOf(current.words, Math.max(idx + 1, current.words.length));
+            w[idx] |= 1L << wallpaperId;
+            this.bits = new Bits(w, current.size + 1);
+            return true;
+        }
+    }
+}
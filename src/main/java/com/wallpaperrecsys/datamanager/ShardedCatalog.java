@@ -0,0 +1,198 @@
+package com.wallpaperrecsys.datamanager;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * ShardedCatalog - partitions the wallpaper catalog into N shards and scatter-gathers queries
+ * 分片目录：按 wallpaperId 哈希把壁纸分到 N 个分片，全量操作并行下发到各分片后合并 Top-K
+ */
+public class ShardedCatalog {
+
+    private final CatalogShard[] shards;
+    private final ExecutorService executor;
+
+    public ShardedCatalog(int shardCount) {
+        int n = Math.max(1, shardCount);
+        this.shards = new CatalogShard[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new LocalCatalogShard(i);
+        }
+        this.executor = n > 1 ? Executors.newFixedThreadPool(n, daemonThreadFactory("catalog-shard")) : null;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public CatalogShard[] getShards() {
+        return shards;
+    }
+
+    /**
+     * Route a wallpaper id to its shard
+     * 按 id 哈希路由到分片（先做一次位混合，避免连续 id 全部落在相邻分片上）
+     */
+    public CatalogShard shardFor(int wallpaperId) {
+        int h = wallpaperId * 0x9E3779B9;
+        h ^= (h >>> 16);
+        return shards[Math.floorMod(h, shards.length)];
+    }
+
+    public void putWallpaper(Wallpaper wallpaper) {
+        shardFor(wallpaper.getWallpaperId()).putWallpaper(wallpaper);
+    }
+
+    public Wallpaper getWallpaper(int wallpaperId) {
+        return shardFor(wallpaperId).getWallpaper(wallpaperId);
+    }
+
+    public void addToIndex(CatalogShard.Index index, String key, Wallpaper wallpaper) {
+        shardFor(wallpaper.getWallpaperId()).addToIndex(index, key, wallpaper);
+    }
+
+    public int size() {
+        int total = 0;
+        for (CatalogShard shard : shards) {
+            total += shard.size();
+        }
+        return total;
+    }
+
+    public List<Wallpaper> topByIndex(CatalogShard.Index index, String key, int k, String sortBy) {
+        return mergeSorted(scatter(shard -> shard.topByIndex(index, key, k, sortBy)), sortBy, k);
+    }
+
+    public List<Wallpaper> top(int k, String sortBy) {
+        return mergeSorted(scatter(shard -> shard.top(k, sortBy)), sortBy, k);
+    }
+
+    public List<Wallpaper> all() {
+        return mergeSorted(scatter(CatalogShard::all), null, Integer.MAX_VALUE);
+    }
+
+    public List<Wallpaper> allWithEmbedding() {
+        return mergeSorted(scatter(CatalogShard::allWithEmbedding), null, Integer.MAX_VALUE);
+    }
+
+    public void sealEmbeddings() {
+        scatter(shard -> {
+            shard.sealEmbeddings();
+            return Boolean.TRUE;
+        });
+    }
+
+    public List<ScoredWallpaper> topKByEmbedding(float[] query, int k, IntPredicate exclude) {
+        return mergeTopK(scatter(shard -> shard.topKByEmbedding(query, k, exclude)), k);
+    }
+
+    public List<ScoredWallpaper> topKByScorer(ToDoubleFunction<Wallpaper> scorer, double minScore, int k) {
+        return mergeTopK(scatter(shard -> shard.topKByScorer(scorer, minScore, k)), k);
+    }
+
+    /**
+     * Run a query on every shard in parallel and collect per-shard results in shard order
+     * 并行在所有分片上执行查询，按分片顺序收集结果
+     */
+    public <T> List<T> scatter(Function<CatalogShard, T> query) {
+        List<T> results = new ArrayList<>(shards.length);
+        if (executor == null) {
+            for (CatalogShard shard : shards) {
+                results.add(query.apply(shard));
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<>(shards.length);
+        for (int i = 1; i < shards.length; i++) {
+            final CatalogShard shard = shards[i];
+            futures.add(executor.submit(() -> query.apply(shard)));
+        }
+        // 第 0 个分片在调用线程上执行，少一次线程切换
+        results.add(query.apply(shards[0]));
+        for (Future<T> f : futures) {
+            try {
+                results.add(f.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while querying catalog shards", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Catalog shard query failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private static List<ScoredWallpaper> mergeTopK(List<List<ScoredWallpaper>> perShard, int k) {
+        List<ScoredWallpaper> merged = new ArrayList<>();
+        for (List<ScoredWallpaper> part : perShard) {
+            merged.addAll(part);
+        }
+        merged.sort(ScoredWallpaper.BY_SCORE_DESC);
+        if (merged.size() > k) {
+            return new ArrayList<>(merged.subList(0, k));
+        }
+        return merged;
+    }
+
+    private static List<Wallpaper> mergeSorted(List<List<Wallpaper>> perShard, String sortBy, int k) {
+        List<Wallpaper> merged = new ArrayList<>();
+        for (List<Wallpaper> part : perShard) {
+            merged.addAll(part);
+        }
+        return sortAndLimit(merged, sortBy, k);
+    }
+
+    /**
+     * Sort wallpapers by different criteria and keep the first k
+     * 根据不同标准排序并截断；同分按 wallpaperId 升序，保证跨分片合并结果确定
+     */
+    static List<Wallpaper> sortAndLimit(Collection<Wallpaper> wallpapers, String sortBy, int k) {
+        List<Wallpaper> sorted = new ArrayList<>(wallpapers);
+        sorted.sort(comparatorFor(sortBy));
+        if (sorted.size() > k) {
+            return new ArrayList<>(sorted.subList(0, k));
+        }
+        return sorted;
+    }
+
+    static Comparator<Wallpaper> comparatorFor(String sortBy) {
+        Comparator<Wallpaper> byId = Comparator.comparingInt(Wallpaper::getWallpaperId);
+        if (sortBy == null) {
+            return byId;
+        }
+        switch (sortBy.toLowerCase()) {
+            case "rating":
+                return ((Comparator<Wallpaper>) (w1, w2) -> Double.compare(w2.getAverageRating(), w1.getAverageRating()))
+                        .thenComparing(byId);
+            case "download":
+                return ((Comparator<Wallpaper>) (w1, w2) -> Integer.compare(w2.getDownloadCount(), w1.getDownloadCount()))
+                        .thenComparing(byId);
+            case "uploadtime":
+                return ((Comparator<Wallpaper>) (w1, w2) -> {
+                    if (w1.getUploadTime() == null || w2.getUploadTime() == null) {
+                        return 0;
+                    }
+                    return w2.getUploadTime().compareTo(w1.getUploadTime());
+                }).thenComparing(byId);
+            default:
+                return byId;
+        }
+    }
+
+    static java.util.concurrent.ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
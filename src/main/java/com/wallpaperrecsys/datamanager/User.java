@@ -4,9 +4,10 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.wallpaperrecsys.model.Embedding;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * User class, contains attributes for user data
@@ -22,16 +23,24 @@ public class User {
     @JsonSerialize(using = RatingListSerializer.class)
     List<Rating> ratings;
 
-    // embedding向量
+    // embedding向量；新的喜欢会在线增量更新（compareAndSetEmb），读请求随时可能拿到新向量
     @JsonIgnore
-    Embedding emb;
+    volatile Embedding emb;
+
+    private static final AtomicReferenceFieldUpdater<User, Embedding> EMB_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(User.class, Embedding.class, "emb");
 
     // 用户特征
     @JsonIgnore
     Map<String, String> userFeatures;
 
+    // 已看壁纸集合，随 addRating 增量维护
+    @JsonIgnore
+    volatile SeenItems seenItems = SeenItems.build(null);
+
     public User() {
-        this.ratings = new ArrayList<>();
+        // 评分在服务运行中也会追加（/api/rate），读多写少，用写时复制列表保证推荐线程遍历安全
+        this.ratings = new CopyOnWriteArrayList<>();
         this.emb = null;
         this.userFeatures = null;
     }
@@ -49,11 +58,16 @@ public class User {
     }
 
     public void setRatings(List<Rating> ratings) {
-        this.ratings = ratings;
+        this.ratings = new CopyOnWriteArrayList<>(ratings);
+        this.seenItems = SeenItems.build(ratings);
     }
 
-    public void addRating(Rating rating) {
+    public synchronized void addRating(Rating rating) {
         this.ratings.add(rating);
+        if (!this.seenItems.add(rating.getWallpaperId())) {
+            // 当前表示方式不再合适，按完整评分列表重建
+            this.seenItems = SeenItems.build(this.ratings);
+        }
         this.averageRating = (this.averageRating * ratingCount + rating.getScore()) / (ratingCount + 1);
         if (rating.getScore() > highestRating) {
             highestRating = rating.getScore();
@@ -106,6 +120,14 @@ public class User {
         this.emb = emb;
     }
 
+    /**
+     * Replace the embedding only if it is still {@code expect} (lock-free online updates)
+     * 仅当当前向量仍是 expect 时替换，失败说明有并发更新，调用方基于新值重试
+     */
+    public boolean compareAndSetEmb(Embedding expect, Embedding update) {
+        return EMB_UPDATER.compareAndSet(this, expect, update);
+    }
+
     public Map<String, String> getUserFeatures() {
         return userFeatures;
     }
@@ -113,5 +135,10 @@ public class User {
     public void setUserFeatures(Map<String, String> userFeatures) {
         this.userFeatures = userFeatures;
     }
+
+    @JsonIgnore
+    public SeenItems getSeenItems() {
+        return seenItems;
+    }
 }
 
@@ -53,6 +53,10 @@ public class Wallpaper {
     @JsonIgnore
     Map<String, String> wallpaperFeatures;
 
+    // 标签 / 分类 / 风格 / 情绪的位图编码（加载时生成，相关字段被修改时清空）
+    @JsonIgnore
+    volatile ContentFeatures.Encoded contentFeatures;
+
     final int TOP_RATING_SIZE = 10;
 
     @JsonSerialize(using = RatingListSerializer.class)
@@ -132,10 +136,12 @@ public class Wallpaper {
 
     public void addTag(String tag) {
         this.tags.add(tag);
+        this.contentFeatures = null;
     }
 
     public void setTags(List<String> tags) {
         this.tags = tags;
+        this.contentFeatures = null;
     }
 
     public List<String> getCategories() {
@@ -144,10 +150,12 @@ public class Wallpaper {
 
     public void addCategory(String category) {
         this.categories.add(category);
+        this.contentFeatures = null;
     }
 
     public void setCategories(List<String> categories) {
         this.categories = categories;
+        this.contentFeatures = null;
     }
 
     public String getStyle() {
@@ -156,6 +164,7 @@ public class Wallpaper {
 
     public void setStyle(String style) {
         this.style = style;
+        this.contentFeatures = null;
     }
 
     public String getMood() {
@@ -164,6 +173,7 @@ public class Wallpaper {
 
     public void setMood(String mood) {
         this.mood = mood;
+        this.contentFeatures = null;
     }
 
     public String getColorPalette() {
@@ -267,6 +277,15 @@ public class Wallpaper {
         this.wallpaperFeatures = wallpaperFeatures;
     }
 
+    @JsonIgnore
+    public ContentFeatures.Encoded getContentFeatures() {
+        return contentFeatures;
+    }
+
+    void setContentFeatures(ContentFeatures.Encoded contentFeatures) {
+        this.contentFeatures = contentFeatures;
+    }
+
     public List<Rating> getTopRatings() {
         return topRatings;
     }
@@ -2,11 +2,16 @@ package com.wallpaperrecsys.datamanager;
 
 import com.wallpaperrecsys.model.Embedding;
 import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.RecMetrics;
 import com.wallpaperrecsys.util.Utility;
 
 import java.io.File;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.ToDoubleFunction;
 
 /**
  * WallpaperDataManager - manages all wallpaper data loading and access
@@ -16,27 +21,22 @@ public class WallpaperDataManager {
     // 单例实例
     private static volatile WallpaperDataManager instance;
     
-    HashMap<Integer, Wallpaper> wallpaperMap;
+    // 壁纸目录按 id 哈希分片，每个分片持有自己的反向索引与 embedding 块
+    ShardedCatalog catalog;
     // 按外部字符串ID（如 wallhaven 代码）索引壁纸，便于和 embedding 文件对齐
     HashMap<String, Wallpaper> wallpaperExternalIdMap;
-    HashMap<Integer, User> userMap;
-    // 标签反向索引，用于快速查询
-    HashMap<String, List<Wallpaper>> tagReverseIndexMap;
-    // 分类反向索引
-    HashMap<String, List<Wallpaper>> categoryReverseIndexMap;
-    // 风格反向索引
-    HashMap<String, List<Wallpaper>> styleReverseIndexMap;
-    // 情绪反向索引
-    HashMap<String, List<Wallpaper>> moodReverseIndexMap;
+    Map<Integer, User> userMap;
+    // 新增评分的监听者（例如 ItemCF 增量更新）
+    private final List<Consumer<Rating>> ratingListeners = new CopyOnWriteArrayList<>();
+    // 数据（重新）加载完成的监听者（例如重建场景静态分表）
+    private final List<Runnable> loadListeners = new CopyOnWriteArrayList<>();
+    // 最近一次加载建立的内容特征词表（词表过大未编码时为 null）
+    private volatile ContentFeatures contentFeatures;
 
     private WallpaperDataManager() {
-        this.wallpaperMap = new HashMap<>();
+        this.catalog = new ShardedCatalog(Config.CATALOG_SHARD_COUNT);
         this.wallpaperExternalIdMap = new HashMap<>();
-        this.userMap = new HashMap<>();
-        this.tagReverseIndexMap = new HashMap<>();
-        this.categoryReverseIndexMap = new HashMap<>();
-        this.styleReverseIndexMap = new HashMap<>();
-        this.moodReverseIndexMap = new HashMap<>();
+        this.userMap = new ConcurrentHashMap<>();
         instance = this;
     }
 
@@ -58,9 +58,35 @@ public class WallpaperDataManager {
     public void loadData(String wallpaperDataPath, String ratingDataPath, 
                         String wallpaperEmbPath, String userEmbPath) throws Exception {
         loadWallpaperData(wallpaperDataPath);
+        contentFeatures = ContentFeatures.encodeAll(catalog.all());
         loadRatingData(ratingDataPath);
         loadWallpaperEmb(wallpaperEmbPath);
         loadUserEmb(userEmbPath);
+        // embedding 加载完后打包成各分片的连续向量块
+        catalog.sealEmbeddings();
+        System.out.println("Catalog sharded into " + catalog.getShardCount() + " shards.");
+        registerSeenItemsGauges();
+        for (Runnable listener : loadListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Report how users' seen-item sets are represented
+     * 输出用户已看集合的表示方式分布
+     */
+    private void registerSeenItemsGauges() {
+        for (String kind : new String[]{"sorted", "dense"}) {
+            RecMetrics.gauge("seen.users." + kind, () -> {
+                int n = 0;
+                for (User user : userMap.values()) {
+                    if (kind.equals(user.getSeenItems().kind())) {
+                        n++;
+                    }
+                }
+                return n;
+            });
+        }
     }
 
     /**
@@ -133,7 +159,7 @@ public class WallpaperDataManager {
                             }
                         }
 
-                        this.wallpaperMap.put(wallpaper.getWallpaperId(), wallpaper);
+                        this.catalog.putWallpaper(wallpaper);
                         this.wallpaperExternalIdMap.put(externalId, wallpaper);
                     } catch (Exception e) {
                         System.err.println("Error parsing line: " + wallpaperRawData);
@@ -183,7 +209,7 @@ public class WallpaperDataManager {
                         user.addRating(ratingObj);
                         
                         // 添加到壁纸
-                        Wallpaper wallpaper = wallpaperMap.get(wallpaperId);
+                        Wallpaper wallpaper = catalog.getWallpaper(wallpaperId);
                         if (wallpaper != null) {
                             wallpaper.addRating(ratingObj);
                         }
@@ -274,33 +300,21 @@ public class WallpaperDataManager {
         System.out.println("Loading user embedding completed. " + validEmbCount + " user embeddings in total.");
     }
 
-    // 索引管理方法
+    // 索引管理方法：索引写入壁纸所在的分片
     private void addWallpaper2TagIndex(String tag, Wallpaper wallpaper) {
-        if (!this.tagReverseIndexMap.containsKey(tag)) {
-            this.tagReverseIndexMap.put(tag, new ArrayList<>());
-        }
-        this.tagReverseIndexMap.get(tag).add(wallpaper);
+        this.catalog.addToIndex(CatalogShard.Index.TAG, tag, wallpaper);
     }
 
     private void addWallpaper2CategoryIndex(String category, Wallpaper wallpaper) {
-        if (!this.categoryReverseIndexMap.containsKey(category)) {
-            this.categoryReverseIndexMap.put(category, new ArrayList<>());
-        }
-        this.categoryReverseIndexMap.get(category).add(wallpaper);
+        this.catalog.addToIndex(CatalogShard.Index.CATEGORY, category, wallpaper);
     }
 
     private void addWallpaper2StyleIndex(String style, Wallpaper wallpaper) {
-        if (!this.styleReverseIndexMap.containsKey(style)) {
-            this.styleReverseIndexMap.put(style, new ArrayList<>());
-        }
-        this.styleReverseIndexMap.get(style).add(wallpaper);
+        this.catalog.addToIndex(CatalogShard.Index.STYLE, style, wallpaper);
     }
 
     private void addWallpaper2MoodIndex(String mood, Wallpaper wallpaper) {
-        if (!this.moodReverseIndexMap.containsKey(mood)) {
-            this.moodReverseIndexMap.put(mood, new ArrayList<>());
-        }
-        this.moodReverseIndexMap.get(mood).add(wallpaper);
+        this.catalog.addToIndex(CatalogShard.Index.MOOD, mood, wallpaper);
     }
 
     /**
@@ -377,20 +391,23 @@ public class WallpaperDataManager {
 
     // Getter方法
     public Wallpaper getWallpaperById(int wallpaperId) {
-        return wallpaperMap.get(wallpaperId);
+        return catalog.getWallpaper(wallpaperId);
     }
 
     public User getUserById(int userId) {
         return userMap.get(userId);
     }
 
+    public ShardedCatalog getCatalog() {
+        return catalog;
+    }
+
     /**
      * Get wallpapers by tag
      * 根据标签获取壁纸
      */
     public List<Wallpaper> getWallpapersByTag(String tag, int size, String sortBy) {
-        List<Wallpaper> wallpapers = tagReverseIndexMap.getOrDefault(tag, new ArrayList<>());
-        return sortWallpapers(wallpapers, sortBy, size);
+        return catalog.topByIndex(CatalogShard.Index.TAG, tag, size, sortBy);
     }
 
     /**
@@ -398,8 +415,7 @@ public class WallpaperDataManager {
      * 根据分类获取壁纸
      */
     public List<Wallpaper> getWallpapersByCategory(String category, int size, String sortBy) {
-        List<Wallpaper> wallpapers = categoryReverseIndexMap.getOrDefault(category, new ArrayList<>());
-        return sortWallpapers(wallpapers, sortBy, size);
+        return catalog.topByIndex(CatalogShard.Index.CATEGORY, category, size, sortBy);
     }
 
     /**
@@ -407,8 +423,7 @@ public class WallpaperDataManager {
      * 根据风格获取壁纸
      */
     public List<Wallpaper> getWallpapersByStyle(String style, int size, String sortBy) {
-        List<Wallpaper> wallpapers = styleReverseIndexMap.getOrDefault(style, new ArrayList<>());
-        return sortWallpapers(wallpapers, sortBy, size);
+        return catalog.topByIndex(CatalogShard.Index.STYLE, style, size, sortBy);
     }
 
     /**
@@ -416,17 +431,15 @@ public class WallpaperDataManager {
      * 根据情绪获取壁纸
      */
     public List<Wallpaper> getWallpapersByMood(String mood, int size, String sortBy) {
-        List<Wallpaper> wallpapers = moodReverseIndexMap.getOrDefault(mood, new ArrayList<>());
-        return sortWallpapers(wallpapers, sortBy, size);
+        return catalog.topByIndex(CatalogShard.Index.MOOD, mood, size, sortBy);
     }
 
     /**
      * Get all wallpapers with sorting
-     * 获取所有壁纸并排序
+     * 获取所有壁纸并排序（各分片先取 Top-K 再合并）
      */
     public List<Wallpaper> getWallpapers(int size, String sortBy) {
-        List<Wallpaper> allWallpapers = new ArrayList<>(wallpaperMap.values());
-        return sortWallpapers(allWallpapers, sortBy, size);
+        return catalog.top(size, sortBy);
     }
 
     /**
@@ -434,7 +447,7 @@ public class WallpaperDataManager {
      * 获取所有壁纸
      */
     public List<Wallpaper> getAllWallpapers() {
-        return new ArrayList<>(wallpaperMap.values());
+        return catalog.all();
     }
 
     /**
@@ -442,51 +455,91 @@ public class WallpaperDataManager {
      * 获取所有有embedding的壁纸
      */
     public List<Wallpaper> getAllWallpapersWithEmbedding() {
-        return wallpaperMap.values().stream()
-            .filter(w -> w.getEmb() != null)
-            .collect(Collectors.toList());
+        return catalog.allWithEmbedding();
     }
 
     /**
-     * Sort wallpapers by different criteria
-     * 根据不同标准排序壁纸
+     * Top-K wallpapers by cosine similarity to the query embedding, scanned shard by shard in parallel
+     * 与 query embedding 余弦相似度最高的 Top-K，各分片并行扫描后合并
+     * @param exclude wallpaper ids to skip, may be null
      */
-    private List<Wallpaper> sortWallpapers(List<Wallpaper> wallpapers, String sortBy, int size) {
-        List<Wallpaper> sorted;
-        
-        switch (sortBy.toLowerCase()) {
-            case "rating":
-                sorted = wallpapers.stream()
-                    .sorted((w1, w2) -> Double.compare(w2.getAverageRating(), w1.getAverageRating()))
-                    .collect(Collectors.toList());
-                break;
-            case "download":
-                sorted = wallpapers.stream()
-                    .sorted((w1, w2) -> Integer.compare(w2.getDownloadCount(), w1.getDownloadCount()))
-                    .collect(Collectors.toList());
-                break;
-            case "uploadtime":
-                sorted = wallpapers.stream()
-                    .sorted((w1, w2) -> {
-                        if (w1.getUploadTime() == null || w2.getUploadTime() == null) {
-                            return 0;
-                        }
-                        return w2.getUploadTime().compareTo(w1.getUploadTime());
-                    })
-                    .collect(Collectors.toList());
-                break;
-            default:
-                sorted = new ArrayList<>(wallpapers);
-        }
-        
-        if (sorted.size() > size) {
-            return sorted.subList(0, size);
+    public List<ScoredWallpaper> topKByEmbedding(Embedding query, int k, IntPredicate exclude) {
+        if (query == null) {
+            return new ArrayList<>();
         }
-        return sorted;
+        return catalog.topKByEmbedding(query.toNormalizedArray(), k, exclude);
+    }
+
+    /**
+     * Top-K wallpapers by an arbitrary scorer over the full catalog
+     * 用任意打分函数对全量目录做 Top-K，只保留分数大于 minScore 的壁纸
+     */
+    public List<ScoredWallpaper> topKByScorer(ToDoubleFunction<Wallpaper> scorer, double minScore, int k) {
+        return catalog.topKByScorer(scorer, minScore, k);
     }
 
     public List<User> getAllUsers() {
         return new ArrayList<>(userMap.values());
     }
+
+    /**
+     * Replace every wallpaper and user embedding (e.g. with trained ALS factors) and re-pack the catalog
+     * 整体替换壁纸与用户向量（例如 ALS 因子）：不在新表里的置空，保证维度一致；
+     * 先替换壁纸并重新打包目录，再替换用户向量，请求在切换期间最多拿到维度不一致的一对向量而走回退逻辑
+     */
+    public void replaceEmbeddings(Map<Integer, Embedding> userEmb, Map<Integer, Embedding> wallpaperEmb) {
+        for (Wallpaper w : catalog.all()) {
+            w.setEmb(wallpaperEmb.get(w.getWallpaperId()));
+        }
+        catalog.sealEmbeddings();
+        for (User u : userMap.values()) {
+            u.setEmb(userEmb.get(u.getUserId()));
+        }
+        System.out.println("Embeddings replaced: " + wallpaperEmb.size() + " wallpapers, " + userEmb.size() + " users.");
+    }
+
+    /**
+     * Add a rating while serving and notify listeners
+     * 服务运行中新增一条评分：更新用户（不存在时创建）与壁纸统计，然后通知监听者
+     */
+    public User addRating(Rating rating) {
+        User user = userMap.computeIfAbsent(rating.getUserId(), id -> {
+            User created = new User();
+            created.setUserId(id);
+            return created;
+        });
+        user.addRating(rating);
+        Wallpaper wallpaper = catalog.getWallpaper(rating.getWallpaperId());
+        if (wallpaper != null) {
+            synchronized (wallpaper) {
+                wallpaper.addRating(rating);
+            }
+        }
+        RecMetrics.increment("ratings.added");
+        for (Consumer<Rating> listener : ratingListeners) {
+            listener.accept(rating);
+        }
+        return user;
+    }
+
+    public void addRatingListener(Consumer<Rating> listener) {
+        ratingListeners.add(listener);
+    }
+
+    /**
+     * Run a callback after every (re)load of the catalog
+     * 每次 loadData 完成后回调（注册之前的加载不会补发）
+     */
+    public void addLoadListener(Runnable listener) {
+        loadListeners.add(listener);
+    }
+
+    /**
+     * Vocabulary of the current catalog's content-feature bitsets, or null if not encoded
+     * 当前目录的内容特征词表（用于把场景等查询编码成同一套位图），未编码时为 null
+     */
+    public ContentFeatures getContentFeatures() {
+        return contentFeatures;
+    }
 }
 
@@ -1,7 +1,16 @@
 package com.wallpaperrecsys.eval;
 
 import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.recprocess.ALSTrainer;
+import com.wallpaperrecsys.recprocess.HybridModel;
+import com.wallpaperrecsys.recprocess.ItemCFBuilder;
+import com.wallpaperrecsys.recprocess.ItemCFRecommendation;
+import com.wallpaperrecsys.recprocess.LearnedRanker;
+import com.wallpaperrecsys.recprocess.MinHashLSHIndex;
+import com.wallpaperrecsys.recprocess.RankingFeatures;
+import com.wallpaperrecsys.recprocess.SparseSimilarityMatrix;
 import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.RecMetrics;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -12,11 +21,20 @@ import java.util.*;
 
 /**
  * Offline evaluation entry for comparing multiple recommenders.
- * 离线评测入口：对比多种推荐模型（popularity / itemcf / emb），输出 Precision@K / Recall@K / NDCG@K 等指标。
+ * 离线评测入口：对比多种推荐模型（popularity / itemcf / usercf / emb / hybrid / learned），输出 Precision@K / Recall@K / NDCG@K 等指标。
  *
  * 使用示例：
  * - mvn -q -DskipTests package
  * - java -cp target/wallpaper-recommendation-system-1.0-SNAPSHOT-jar-with-dependencies.jar com.wallpaperrecsys.eval.OfflineEvalMain --k=10 --like=4.0
+ * - 加 --fitHybrid 时对 hybrid 模型的三路权重做网格搜索，输出可直接贴进 pipeline.properties 的权重
+ * - 加 --trainRanker 时在训练集内部再按时间切分出标签，训练 learned 模型并写入 Config.LEARNED_RANKER_PATH；
+ *   不加时用已有模型文件（或内置权重）评测 learned。最后输出 hybrid 与 learned 单用户排序耗时的 p50 / p99
+ * - usercf 额外输出 MinHash/LSH 找到的相似用户相对暴力精确 Jaccard 的召回率与查询耗时，
+ *   以及训练集喜欢数不超过 --coldLikes 的少喜欢用户上 itemcf 与 usercf 的对比
+ * - 加 --itemcfBounds 时对比 ItemCF 有界构建（重度用户抽样上限 --itemcfCaps、IUF、共现表内存预算 --itemcfBudgets
+ *   为精确构建峰值的比例、共同喜欢下限 --itemcfMinCo）与精确构建的 Recall@K / NDCG@K 差异、物品对数、峰值内存和耗时，用于选择截断参数
+ * - 加 --als 时只用训练集训练隐式反馈 ALS（--alsRank / --alsIterations / --alsReg / --alsAlpha / --alsThreads，默认取 Config.ALS_*），
+ *   输出每轮耗时与目标函数值，用因子替换向量后按 emb 的口径评测，对比表中增加 als 一行（放在最后，前面的模型仍用原向量）
  */
 public class OfflineEvalMain {
 
@@ -45,14 +63,32 @@ public class OfflineEvalMain {
         // 3) 构建离线模型（仅用训练集）
         PopularityModel popularity = PopularityModel.build(split.trainByUser, a.likeThreshold);
         ItemCFModel itemcf = ItemCFModel.build(split.trainByUser, a.likeThreshold, a.maxNeighbors);
+        UserCFModel usercf = UserCFModel.build(split.trainByUser, a.likeThreshold, a.userNeighbors);
 
         // 4) 评测对比
         List<ModelResult> results = new ArrayList<>();
         results.add(evaluatePopularity(split, popularity, a));
         results.add(evaluateItemCF(split, itemcf, popularity, a));
+        results.add(evaluateUserCF(split, usercf, popularity, a));
         results.add(evaluateEmbedding(split, popularity, a));
+        Map<Integer, HybridSignals> signalCache = new HashMap<>();
+        results.add(evaluateHybrid(split, popularity, itemcf, HybridModel.fromConfig(), "hybrid", signalCache, a));
+        if (a.fitHybrid) {
+            results.add(fitHybrid(split, popularity, itemcf, signalCache, a));
+        }
+        LearnedRanker ranker = a.trainRanker ? trainRanker(split, a) : LearnedRanker.getInstance();
+        results.add(evaluateLearned(split, popularity, itemcf, ranker, signalCache, a));
+        if (a.als) {
+            results.add(evaluateALS(split, popularity, a));
+        }
 
         printTable(results, a);
+        printUserCFIndex(usercf, a);
+        printColdUsers(split, popularity, itemcf, usercf, a);
+        if (a.itemcfBounds) {
+            sweepItemCFBounds(split, popularity, itemcf, a);
+        }
+        printRankLatency(Arrays.asList("hybrid", "learned"));
         writeCsv(results, a);
     }
 
@@ -68,6 +104,23 @@ public class OfflineEvalMain {
         int maxUsers = 0; // 0 表示不限
         int maxNeighbors = 80;
         String reportDir = "reports";
+        boolean fitHybrid = false;
+        int hybridPool = 200;
+        boolean trainRanker = false;
+        int rankerLeaveOut = 5;
+        int rankerEpochs = 500;
+        int userNeighbors = Config.USERCF_NEIGHBORS;
+        int coldLikes = 5;
+        boolean itemcfBounds = false;
+        String itemcfCaps = "200,100,50,20";
+        String itemcfBudgets = "0.5,0.25,0.1";
+        String itemcfMinCo = "2,3";
+        boolean als = false;
+        int alsRank = Config.ALS_RANK;
+        int alsIterations = Config.ALS_ITERATIONS;
+        double alsReg = Config.ALS_REGULARIZATION;
+        double alsAlpha = Config.ALS_ALPHA;
+        int alsThreads = Config.ALS_THREADS;
 
         static Args parse(String[] args) {
             Args a = new Args();
@@ -81,6 +134,27 @@ public class OfflineEvalMain {
                 else if (s.startsWith("--maxUsers=")) a.maxUsers = Integer.parseInt(s.substring("--maxUsers=".length()));
                 else if (s.startsWith("--maxNeighbors=")) a.maxNeighbors = Integer.parseInt(s.substring("--maxNeighbors=".length()));
                 else if (s.startsWith("--reportDir=")) a.reportDir = s.substring("--reportDir=".length());
+                else if (s.equals("--fitHybrid")) a.fitHybrid = true;
+                else if (s.startsWith("--fitHybrid=")) a.fitHybrid = Boolean.parseBoolean(s.substring("--fitHybrid=".length()));
+                else if (s.startsWith("--hybridPool=")) a.hybridPool = Integer.parseInt(s.substring("--hybridPool=".length()));
+                else if (s.equals("--trainRanker")) a.trainRanker = true;
+                else if (s.startsWith("--trainRanker=")) a.trainRanker = Boolean.parseBoolean(s.substring("--trainRanker=".length()));
+                else if (s.startsWith("--rankerLeaveOut=")) a.rankerLeaveOut = Integer.parseInt(s.substring("--rankerLeaveOut=".length()));
+                else if (s.startsWith("--rankerEpochs=")) a.rankerEpochs = Integer.parseInt(s.substring("--rankerEpochs=".length()));
+                else if (s.startsWith("--userNeighbors=")) a.userNeighbors = Integer.parseInt(s.substring("--userNeighbors=".length()));
+                else if (s.startsWith("--coldLikes=")) a.coldLikes = Integer.parseInt(s.substring("--coldLikes=".length()));
+                else if (s.equals("--itemcfBounds")) a.itemcfBounds = true;
+                else if (s.startsWith("--itemcfBounds=")) a.itemcfBounds = Boolean.parseBoolean(s.substring("--itemcfBounds=".length()));
+                else if (s.startsWith("--itemcfCaps=")) a.itemcfCaps = s.substring("--itemcfCaps=".length());
+                else if (s.startsWith("--itemcfBudgets=")) a.itemcfBudgets = s.substring("--itemcfBudgets=".length());
+                else if (s.startsWith("--itemcfMinCo=")) a.itemcfMinCo = s.substring("--itemcfMinCo=".length());
+                else if (s.equals("--als")) a.als = true;
+                else if (s.startsWith("--als=")) a.als = Boolean.parseBoolean(s.substring("--als=".length()));
+                else if (s.startsWith("--alsRank=")) a.alsRank = Integer.parseInt(s.substring("--alsRank=".length()));
+                else if (s.startsWith("--alsIterations=")) a.alsIterations = Integer.parseInt(s.substring("--alsIterations=".length()));
+                else if (s.startsWith("--alsReg=")) a.alsReg = Double.parseDouble(s.substring("--alsReg=".length()));
+                else if (s.startsWith("--alsAlpha=")) a.alsAlpha = Double.parseDouble(s.substring("--alsAlpha=".length()));
+                else if (s.startsWith("--alsThreads=")) a.alsThreads = Math.max(1, Integer.parseInt(s.substring("--alsThreads=".length())));
             }
             return a;
         }
@@ -188,9 +262,13 @@ public class OfflineEvalMain {
 
     static class PopularityModel {
         final List<Integer> rankedItems; // 全局从高到低
+        final Map<Integer, Double> avgRating; // 训练集平均分（hybrid 的流行度信号用）
+        final Map<Integer, Integer> ratingCount; // 训练集评分数（learned 的特征用）
 
-        PopularityModel(List<Integer> rankedItems) {
+        PopularityModel(List<Integer> rankedItems, Map<Integer, Double> avgRating, Map<Integer, Integer> ratingCount) {
             this.rankedItems = rankedItems;
+            this.avgRating = avgRating;
+            this.ratingCount = ratingCount;
         }
 
         static PopularityModel build(Map<Integer, List<RatingRecord>> trainByUser, double likeThreshold) {
@@ -209,9 +287,11 @@ public class OfflineEvalMain {
             }
 
             List<Map.Entry<Integer, Double>> scored = new ArrayList<>();
+            Map<Integer, Double> avgRating = new HashMap<>();
             for (Map.Entry<Integer, Integer> e : ratingCnt.entrySet()) {
                 int item = e.getKey();
                 double avg = ratingSum.get(item) / Math.max(1, e.getValue());
+                avgRating.put(item, avg);
                 double lc = likeCount.getOrDefault(item, 0);
                 // 轻量融合：喜欢数为主，均分为辅
                 double score = lc + 0.1 * avg;
@@ -221,7 +301,7 @@ public class OfflineEvalMain {
 
             List<Integer> ranked = new ArrayList<>();
             for (Map.Entry<Integer, Double> e : scored) ranked.add(e.getKey());
-            return new PopularityModel(ranked);
+            return new PopularityModel(ranked, avgRating, ratingCnt);
         }
 
         List<Integer> recommend(Set<Integer> seen, int k) {
@@ -236,13 +316,18 @@ public class OfflineEvalMain {
     }
 
     static class ItemCFModel {
-        // i -> (j -> sim)
-        final Map<Integer, Map<Integer, Double>> topSim;
+        // 与线上同一种近邻矩阵，打分也用同一个 accumulateRow / preference
+        final SparseSimilarityMatrix similarities;
         final int maxNeighbors;
         final double likeThreshold;
-
-        ItemCFModel(Map<Integer, Map<Integer, Double>> topSim, int maxNeighbors, double likeThreshold) {
-            this.topSim = topSim;
+        // 构建统计（物品对数、剪枝、峰值内存）与构建耗时
+        final ItemCFBuilder.Result built;
+        final long buildNanos;
+
+        ItemCFModel(ItemCFBuilder.Result built, long buildNanos, int maxNeighbors, double likeThreshold) {
+            this.similarities = built.similarities;
+            this.built = built;
+            this.buildNanos = buildNanos;
             this.maxNeighbors = maxNeighbors;
             this.likeThreshold = likeThreshold;
         }
@@ -250,84 +335,100 @@ public class OfflineEvalMain {
         static ItemCFModel build(Map<Integer, List<RatingRecord>> trainByUser,
                                  double likeThreshold,
                                  int maxNeighbors) {
-            Map<Integer, Integer> itemCnt = new HashMap<>();
-            Map<Integer, Map<Integer, Integer>> coCount = new HashMap<>();
+            return build(trainByUser, likeThreshold, maxNeighbors, ItemCFBuilder.Bounds.NONE);
+        }
 
+        static ItemCFModel build(Map<Integer, List<RatingRecord>> trainByUser,
+                                 double likeThreshold,
+                                 int maxNeighbors,
+                                 ItemCFBuilder.Bounds bounds) {
+            // 与线上同一个并行构建器：按用户分片计数共现，有界堆保留 Top-N
+            List<int[]> likedByUser = new ArrayList<>(trainByUser.size());
             for (List<RatingRecord> rs : trainByUser.values()) {
-                List<Integer> liked = new ArrayList<>();
+                int[] liked = new int[rs.size()];
+                int n = 0;
                 for (RatingRecord r : rs) {
-                    if (r.rating >= likeThreshold) liked.add(r.wallpaperId);
-                }
-                if (liked.isEmpty()) continue;
-                Collections.sort(liked);
-
-                // 去重
-                List<Integer> uniq = new ArrayList<>();
-                Integer prev = null;
-                for (Integer x : liked) {
-                    if (prev == null || !prev.equals(x)) uniq.add(x);
-                    prev = x;
-                }
-                for (Integer i : uniq) itemCnt.put(i, itemCnt.getOrDefault(i, 0) + 1);
-
-                int n = uniq.size();
-                if (n < 2) continue;
-                for (int a = 0; a < n; a++) {
-                    int i = uniq.get(a);
-                    Map<Integer, Integer> row = coCount.computeIfAbsent(i, k -> new HashMap<>());
-                    for (int b = a + 1; b < n; b++) {
-                        int j = uniq.get(b);
-                        row.put(j, row.getOrDefault(j, 0) + 1);
-                        Map<Integer, Integer> row2 = coCount.computeIfAbsent(j, k -> new HashMap<>());
-                        row2.put(i, row2.getOrDefault(i, 0) + 1);
-                    }
+                    if (r.rating >= likeThreshold) liked[n++] = r.wallpaperId;
                 }
+                if (n > 0) likedByUser.add(Arrays.copyOf(liked, n));
             }
+            long start = System.nanoTime();
+            ItemCFBuilder.Result result = ItemCFBuilder.build(likedByUser, maxNeighbors, Config.ITEMCF_BUILD_THREADS, bounds);
+            return new ItemCFModel(result, System.nanoTime() - start, maxNeighbors, likeThreshold);
+        }
 
-            Map<Integer, Map<Integer, Double>> topSim = new HashMap<>();
-            for (Map.Entry<Integer, Map<Integer, Integer>> e : coCount.entrySet()) {
-                int i = e.getKey();
-                int cntI = itemCnt.getOrDefault(i, 0);
-                if (cntI <= 0) continue;
-
-                List<Map.Entry<Integer, Double>> sims = new ArrayList<>();
-                for (Map.Entry<Integer, Integer> e2 : e.getValue().entrySet()) {
-                    int j = e2.getKey();
-                    int cntJ = itemCnt.getOrDefault(j, 0);
-                    if (cntJ <= 0) continue;
-                    int co = e2.getValue();
-                    double sim = co / Math.sqrt((double) cntI * (double) cntJ);
-                    sims.add(new AbstractMap.SimpleEntry<>(j, sim));
-                }
-                sims.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
-                int limit = Math.min(maxNeighbors, sims.size());
-                Map<Integer, Double> row = new HashMap<>();
-                for (int idx = 0; idx < limit; idx++) {
-                    row.put(sims.get(idx).getKey(), sims.get(idx).getValue());
-                }
-                topSim.put(i, row);
+        List<Integer> recommend(List<RatingRecord> trainRatings, Set<Integer> seen, int k) {
+            Map<Integer, Double> score = scores(trainRatings, seen);
+
+            List<Map.Entry<Integer, Double>> list = new ArrayList<>(score.entrySet());
+            list.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+            List<Integer> out = new ArrayList<>(k);
+            for (Map.Entry<Integer, Double> e : list) {
+                out.add(e.getKey());
+                if (out.size() >= k) break;
             }
-            return new ItemCFModel(topSim, maxNeighbors, likeThreshold);
+            return out;
         }
 
-        List<Integer> recommend(List<RatingRecord> trainRatings, Set<Integer> seen, int k) {
+        /**
+         * 汇总训练集喜欢物品的近邻得分（sim * 偏好强度），跳过 seen
+         */
+        Map<Integer, Double> scores(List<RatingRecord> trainRatings, Set<Integer> seen) {
             Map<Integer, Double> score = new HashMap<>();
             if (trainRatings != null) {
                 for (RatingRecord r : trainRatings) {
                     if (r.rating < likeThreshold) continue;
-                    Map<Integer, Double> neigh = topSim.get(r.wallpaperId);
-                    if (neigh == null) continue;
-                    double pref = Math.min(Math.max(r.rating / 5.0, 0.0), 1.0);
-                    for (Map.Entry<Integer, Double> e : neigh.entrySet()) {
-                        int cand = e.getKey();
-                        if (seen.contains(cand)) continue;
-                        score.put(cand, score.getOrDefault(cand, 0.0) + e.getValue() * pref);
-                    }
+                    similarities.accumulateRow(r.wallpaperId, ItemCFRecommendation.preference(r.rating), seen::contains, score);
                 }
             }
+            return score;
+        }
+    }
+
+    static class UserCFModel {
+        // 与线上同一个 MinHash/LSH 索引，只用训练集的喜欢构建
+        final MinHashLSHIndex index;
+        final Map<Integer, int[]> likedByUser;
+        final int neighbors;
+        final long buildNanos;
+
+        UserCFModel(MinHashLSHIndex index, Map<Integer, int[]> likedByUser, int neighbors, long buildNanos) {
+            this.index = index;
+            this.likedByUser = likedByUser;
+            this.neighbors = neighbors;
+            this.buildNanos = buildNanos;
+        }
+
+        static UserCFModel build(Map<Integer, List<RatingRecord>> trainByUser, double likeThreshold, int neighbors) {
+            Map<Integer, int[]> likedByUser = new HashMap<>();
+            for (Map.Entry<Integer, List<RatingRecord>> e : trainByUser.entrySet()) {
+                Set<Integer> liked = likedItems(e.getValue(), likeThreshold);
+                if (liked.isEmpty()) continue;
+                int[] ids = new int[liked.size()];
+                int n = 0;
+                for (Integer id : liked) ids[n++] = id;
+                Arrays.sort(ids);
+                likedByUser.put(e.getKey(), ids);
+            }
+            long start = System.nanoTime();
+            MinHashLSHIndex index = MinHashLSHIndex.build(likedByUser, Config.USERCF_BANDS, Config.USERCF_ROWS,
+                    Config.USERCF_BUILD_THREADS);
+            return new UserCFModel(index, likedByUser, neighbors, System.nanoTime() - start);
+        }
 
+        /**
+         * 相似用户喜欢的壁纸按 Jaccard 之和排序，跳过 seen（与线上 UserCFRecommendation.neighborScores 同口径）
+         */
+        List<Integer> recommend(int userId, Set<Integer> seen, int k) {
+            Map<Integer, Double> score = new HashMap<>();
+            for (MinHashLSHIndex.Neighbor n : index.neighbors(userId, neighbors, null)) {
+                for (int id : index.liked(n.userId)) {
+                    if (seen.contains(id)) continue;
+                    score.merge(id, n.similarity, Double::sum);
+                }
+            }
             List<Map.Entry<Integer, Double>> list = new ArrayList<>(score.entrySet());
-            list.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+            list.sort((x, y) -> Double.compare(y.getValue(), x.getValue()));
             List<Integer> out = new ArrayList<>(k);
             for (Map.Entry<Integer, Double> e : list) {
                 out.add(e.getKey());
@@ -335,6 +436,25 @@ public class OfflineEvalMain {
             }
             return out;
         }
+
+        /**
+         * 暴力精确 Jaccard：与全部训练用户两两比较，作为 LSH 相似用户的对照
+         */
+        List<Integer> exactNeighbors(int userId) {
+            int[] self = likedByUser.get(userId);
+            List<Map.Entry<Integer, Double>> all = new ArrayList<>();
+            if (self == null) return new ArrayList<>();
+            for (Map.Entry<Integer, int[]> e : likedByUser.entrySet()) {
+                if (e.getKey() == userId) continue;
+                double sim = MinHashLSHIndex.jaccard(self, e.getValue());
+                if (sim > 0) all.add(new AbstractMap.SimpleEntry<>(e.getKey(), sim));
+            }
+            all.sort((x, y) -> x.getValue().equals(y.getValue())
+                    ? Integer.compare(x.getKey(), y.getKey()) : Double.compare(y.getValue(), x.getValue()));
+            List<Integer> out = new ArrayList<>(neighbors);
+            for (int i = 0; i < all.size() && i < neighbors; i++) out.add(all.get(i).getKey());
+            return out;
+        }
     }
 
     // --------------------------
@@ -433,36 +553,122 @@ public class OfflineEvalMain {
         });
     }
 
+    static ModelResult evaluateUserCF(Split split, UserCFModel model, PopularityModel fallback, Args a) {
+        return evaluate(split, a, "usercf", (userId, train, seen) -> {
+            List<Integer> recs = model.recommend(userId, seen, a.k);
+            // 与 itemcf 相同：相似用户的喜欢不足 K 个时用热门回填
+            if (recs.size() < a.k) {
+                Set<Integer> already = new HashSet<>(recs);
+                for (Integer x : fallback.recommend(seen, a.k)) {
+                    if (already.contains(x)) continue;
+                    recs.add(x);
+                    already.add(x);
+                    if (recs.size() >= a.k) break;
+                }
+            }
+            return recs;
+        });
+    }
+
+    /**
+     * LSH 相似用户相对暴力精确 Jaccard Top-N 的召回率、候选用户数与单次查询耗时
+     */
+    static void printUserCFIndex(UserCFModel model, Args a) {
+        double recall = 0;
+        long candidates = 0;
+        int users = 0;
+        RecMetrics.Timer lsh = RecMetrics.timer("eval.usercf.lsh");
+        RecMetrics.Timer exact = RecMetrics.timer("eval.usercf.exact");
+        for (Integer userId : model.likedByUser.keySet()) {
+            long t0 = System.nanoTime();
+            int[] stats = new int[2];
+            List<MinHashLSHIndex.Neighbor> found = model.index.neighbors(userId, model.neighbors, stats);
+            long t1 = System.nanoTime();
+            List<Integer> truth = model.exactNeighbors(userId);
+            long t2 = System.nanoTime();
+            lsh.record(t1 - t0, stats[0], stats[1]);
+            exact.record(t2 - t1, model.likedByUser.size(), truth.size());
+            candidates += stats[0];
+            if (truth.isEmpty()) continue;
+            Set<Integer> got = new HashSet<>();
+            for (MinHashLSHIndex.Neighbor n : found) got.add(n.userId);
+            int hit = 0;
+            for (Integer u : truth) if (got.contains(u)) hit++;
+            recall += (double) hit / truth.size();
+            users++;
+        }
+        System.out.println(String.format("[usercf] %d users, %d bands x %d rows, build %.1fms; LSH candidates/user %.1f, "
+                        + "neighbour recall vs exact top-%d %.3f; query p50 LSH %.3fms / exact %.3fms",
+                model.likedByUser.size(), model.index.getBands(), model.index.getRows(), model.buildNanos / 1e6,
+                model.likedByUser.isEmpty() ? 0.0 : (double) candidates / model.likedByUser.size(), model.neighbors,
+                users == 0 ? 0.0 : recall / users, lsh.percentileMs(0.50), exact.percentileMs(0.50)));
+        System.out.println();
+    }
+
+    /**
+     * 少喜欢用户（训练集喜欢数不超过 --coldLikes）上 itemcf 与 usercf 的对比
+     */
+    static void printColdUsers(Split split, PopularityModel popularity, ItemCFModel itemcf, UserCFModel usercf, Args a) {
+        List<Integer> cold = new ArrayList<>();
+        for (Integer userId : split.evalUserIds) {
+            if (likedItems(split.trainByUser.get(userId), a.likeThreshold).size() <= a.coldLikes) cold.add(userId);
+        }
+        Split coldSplit = new Split(split.trainByUser, split.testByUser, cold);
+        System.out.println("=== 少喜欢用户（训练集喜欢数 <= " + a.coldLikes + "，" + cold.size() + " 人）===");
+        printRows(Arrays.asList(evaluateItemCF(coldSplit, itemcf, popularity, a),
+                evaluateUserCF(coldSplit, usercf, popularity, a)));
+    }
+
     static ModelResult evaluateEmbedding(Split split, PopularityModel fallback, Args a) {
+        return evaluateEmbedding(split, fallback, a, "emb");
+    }
+
+    /**
+     * 只用训练集训练 ALS，输出每轮耗时与目标函数值；因子替换用户 / 壁纸向量后按 emb 的口径评测
+     */
+    static ModelResult evaluateALS(Split split, PopularityModel fallback, Args a) {
+        Map<Integer, Map<Integer, Double>> ratings = new HashMap<>();
+        for (Map.Entry<Integer, List<RatingRecord>> e : split.trainByUser.entrySet()) {
+            Map<Integer, Double> row = new HashMap<>();
+            // 训练集已按时间排序，同一壁纸以最后一次评分为准
+            for (RatingRecord r : e.getValue()) row.put(r.wallpaperId, r.rating);
+            ratings.put(e.getKey(), row);
+        }
+        ALSTrainer.Params params = new ALSTrainer.Params(a.alsRank, a.alsReg, a.alsAlpha, a.alsIterations,
+                a.alsThreads, a.likeThreshold, 42L);
+        System.out.println("=== ALS（" + params + "）===");
+        ALSTrainer.Result result = ALSTrainer.train(ratings, params, (iteration, nanos, loss) ->
+                System.out.println(String.format("iteration %-3d %8.1f ms  loss %.4f", iteration, nanos / 1e6, loss)));
+        long total = 0;
+        for (long nanos : result.iterationNanos) total += nanos;
+        System.out.println(String.format("%d users x %d wallpapers, %d ratings; %.1f ms/iteration",
+                result.userIds.length, result.itemIds.length, result.observations,
+                result.iterationNanos.length == 0 ? 0.0 : total / 1e6 / result.iterationNanos.length));
+        System.out.println();
+        WallpaperDataManager.getInstance().replaceEmbeddings(result.userEmbeddings(), result.itemEmbeddings());
+        return evaluateEmbedding(split, fallback, a, "als");
+    }
+
+    static ModelResult evaluateEmbedding(Split split, PopularityModel fallback, Args a, String modelName) {
         // 注意：不能直接复用线上 RecForYouProcess.getRecList() 做离线评测。
         // 因为线上逻辑会过滤“用户已评分的所有物品”，在离线场景下会把测试集物品也过滤掉，导致永远命中不了。
         // 这里用离线口径：直接计算 user_emb 与 item_emb 的相似度，只过滤训练集 seen。
-        return evaluate(split, a, "emb", (userId, train, seen) -> {
+        return evaluate(split, a, modelName, (userId, train, seen) -> {
             com.wallpaperrecsys.datamanager.User user = WallpaperDataManager.getInstance().getUserById(userId);
             if (user == null || user.getEmb() == null) {
                 return fallback.recommend(seen, a.k);
             }
 
-            List<com.wallpaperrecsys.datamanager.Wallpaper> all = WallpaperDataManager.getInstance().getAllWallpapersWithEmbedding();
-            Map<Integer, Double> score = new HashMap<>();
-            for (com.wallpaperrecsys.datamanager.Wallpaper w : all) {
-                int wid = w.getWallpaperId();
-                if (seen.contains(wid)) continue;
-                if (w.getEmb() == null) continue;
-                double sim = user.getEmb().calculateSimilarity(w.getEmb());
-                score.put(wid, sim);
-            }
-
-            if (score.isEmpty()) {
+            // 各分片并行扫描 embedding 块，跳过训练集 seen，直接得到 Top-K
+            List<com.wallpaperrecsys.datamanager.ScoredWallpaper> scored =
+                    WallpaperDataManager.getInstance().topKByEmbedding(user.getEmb(), a.k, seen::contains);
+            if (scored.isEmpty()) {
                 return fallback.recommend(seen, a.k);
             }
 
-            List<Map.Entry<Integer, Double>> list = new ArrayList<>(score.entrySet());
-            list.sort((x, y) -> Double.compare(y.getValue(), x.getValue()));
             List<Integer> out = new ArrayList<>(a.k);
-            for (Map.Entry<Integer, Double> e : list) {
-                out.add(e.getKey());
-                if (out.size() >= a.k) break;
+            for (com.wallpaperrecsys.datamanager.ScoredWallpaper sw : scored) {
+                out.add(sw.getWallpaperId());
             }
             // 不足 K 则回填
             if (out.size() < a.k) {
@@ -479,6 +685,245 @@ public class OfflineEvalMain {
         });
     }
 
+    /**
+     * 单个用户的 hybrid 候选池与三路信号（与线上 RecForYouProcess.scoreHybrid 同口径，只用训练集）
+     */
+    static class HybridSignals {
+        final int[] ids;
+        final double[] emb;
+        final double[] itemCF;
+        final double[] popularity;
+
+        HybridSignals(int n) {
+            this.ids = new int[n];
+            this.emb = new double[n];
+            this.itemCF = new double[n];
+            this.popularity = new double[n];
+        }
+    }
+
+    static HybridSignals hybridSignals(int userId, List<RatingRecord> train, Set<Integer> seen,
+                                       PopularityModel popularity, ItemCFModel itemcf, Args a) {
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        com.wallpaperrecsys.datamanager.User user = dm.getUserById(userId);
+        float[] query = user == null || user.getEmb() == null ? null : user.getEmb().normalized();
+
+        // 候选池：embedding 近邻 + ItemCF 近邻 + 热门，各取 hybridPool 个
+        Set<Integer> pool = new LinkedHashSet<>();
+        if (user != null && user.getEmb() != null) {
+            for (com.wallpaperrecsys.datamanager.ScoredWallpaper sw
+                    : dm.topKByEmbedding(user.getEmb(), a.hybridPool, seen::contains)) {
+                pool.add(sw.getWallpaperId());
+            }
+        }
+        Map<Integer, Double> cfScores = itemcf.scores(train, seen);
+        pool.addAll(itemcf.recommend(train, seen, a.hybridPool));
+        pool.addAll(popularity.recommend(seen, a.hybridPool));
+
+        HybridSignals s = new HybridSignals(pool.size());
+        int i = 0;
+        for (Integer id : pool) {
+            com.wallpaperrecsys.datamanager.Wallpaper w = dm.getWallpaperById(id);
+            s.ids[i] = id;
+            s.emb[i] = w == null ? Double.NaN : HybridModel.cosine(query, w.getEmb());
+            s.itemCF[i] = cfScores.getOrDefault(id, 0.0);
+            // 与线上 calculatePopularityScore 同公式，但平均分只用训练集，避免泄漏测试集评分
+            double avg = popularity.avgRating.getOrDefault(id, 0.0);
+            double downloads = w == null ? 0.0 : Math.min(w.getDownloadCount() / 10000.0, 1.0);
+            s.popularity[i] = avg / 5.0 * 0.6 + downloads * 0.4;
+            i++;
+        }
+        return s;
+    }
+
+    static ModelResult evaluateHybrid(Split split, PopularityModel popularity, ItemCFModel itemcf,
+                                      HybridModel model, String name,
+                                      Map<Integer, HybridSignals> signalCache, Args a) {
+        return evaluate(split, a, name, (userId, train, seen) -> {
+            HybridSignals s = signalCache.computeIfAbsent(userId,
+                    id -> hybridSignals(id, train, seen, popularity, itemcf, a));
+            long start = System.nanoTime();
+            double[] scores = new double[s.ids.length];
+            model.combine(s.emb, s.itemCF, s.popularity, scores);
+            List<Integer> out = topK(s.ids, scores, a.k);
+            RecMetrics.record("eval.rank." + name, System.nanoTime() - start, s.ids.length, out.size());
+            return out;
+        });
+    }
+
+    // 按分数降序取前 k 个 id；稳定排序，同分保持候选池顺序
+    static List<Integer> topK(int[] ids, double[] scores, int k) {
+        Integer[] order = new Integer[ids.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (x, y) -> Double.compare(scores[y], scores[x]));
+        List<Integer> out = new ArrayList<>(k);
+        for (int i = 0; i < order.length && out.size() < k; i++) {
+            out.add(ids[order[i]]);
+        }
+        return out;
+    }
+
+    /**
+     * 学习排序特征画像（与线上 RankingFeatures.forUser 同口径，但 ItemCF 得分、喜欢列表、平均分都只用训练集）
+     */
+    static RankingFeatures rankingFeatures(int userId, List<RatingRecord> train, Set<Integer> seen,
+                                           PopularityModel popularity, ItemCFModel itemcf, Args a) {
+        com.wallpaperrecsys.datamanager.User user = WallpaperDataManager.getInstance().getUserById(userId);
+        float[] query = user == null || user.getEmb() == null ? null : user.getEmb().normalized();
+        return RankingFeatures.of(query, itemcf.scores(train, seen), likedItems(train, a.likeThreshold),
+                popularity.avgRating, popularity.ratingCount);
+    }
+
+    /**
+     * learned 模型：候选池与 hybrid 相同，整批特征写入复用矩阵后逐行打分
+     */
+    static ModelResult evaluateLearned(Split split, PopularityModel popularity, ItemCFModel itemcf,
+                                       LearnedRanker ranker, Map<Integer, HybridSignals> signalCache, Args a) {
+        return evaluate(split, a, "learned", (userId, train, seen) -> {
+            HybridSignals s = signalCache.computeIfAbsent(userId,
+                    id -> hybridSignals(id, train, seen, popularity, itemcf, a));
+            RankingFeatures features = rankingFeatures(userId, train, seen, popularity, itemcf, a);
+            long start = System.nanoTime();
+            double[] scores = new double[s.ids.length];
+            scoreLearned(features, ranker, s.ids, scores);
+            List<Integer> out = topK(s.ids, scores, a.k);
+            RecMetrics.record("eval.rank.learned", System.nanoTime() - start, s.ids.length, out.size());
+            return out;
+        });
+    }
+
+    static void scoreLearned(RankingFeatures features, LearnedRanker ranker, int[] ids, double[] scores) {
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        double[] matrix = RankingFeatures.buffer(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            com.wallpaperrecsys.datamanager.Wallpaper w = dm.getWallpaperById(ids[i]);
+            if (w == null) {
+                Arrays.fill(matrix, i * RankingFeatures.COUNT, (i + 1) * RankingFeatures.COUNT, 0.0);
+            } else {
+                features.extractRow(w, matrix, i * RankingFeatures.COUNT);
+            }
+        }
+        ranker.score(matrix, ids.length, scores);
+    }
+
+    /**
+     * 训练 learned 模型。为了不泄漏评测集，在训练集内部再按时间留出每个用户最近 rankerLeaveOut 条作为标签：
+     * 用更早的评分构建 ItemCF / 流行度 / 用户画像，候选池与 hybrid 相同，池中被留出且喜欢的壁纸为正例，其余为负例。
+     */
+    static LearnedRanker trainRanker(Split split, Args a) throws Exception {
+        Split inner = timeSplit(split.trainByUser, a.rankerLeaveOut, a.minTrain);
+        PopularityModel popularity = PopularityModel.build(inner.trainByUser, a.likeThreshold);
+        ItemCFModel itemcf = ItemCFModel.build(inner.trainByUser, a.likeThreshold, a.maxNeighbors);
+
+        double[] matrix = new double[1024 * RankingFeatures.COUNT];
+        double[] labels = new double[1024];
+        int rows = 0;
+        int positives = 0;
+        for (Integer userId : inner.evalUserIds) {
+            List<RatingRecord> train = inner.trainByUser.get(userId);
+            Set<Integer> gt = likedItems(inner.testByUser.get(userId), a.likeThreshold);
+            if (gt.isEmpty()) continue;
+            Set<Integer> seen = seenItems(train);
+            HybridSignals s = hybridSignals(userId, train, seen, popularity, itemcf, a);
+            RankingFeatures features = rankingFeatures(userId, train, seen, popularity, itemcf, a);
+            for (int i = 0; i < s.ids.length; i++) {
+                com.wallpaperrecsys.datamanager.Wallpaper w = WallpaperDataManager.getInstance().getWallpaperById(s.ids[i]);
+                if (w == null) continue;
+                if (rows == labels.length) {
+                    matrix = Arrays.copyOf(matrix, matrix.length * 2);
+                    labels = Arrays.copyOf(labels, labels.length * 2);
+                }
+                features.extractRow(w, matrix, rows * RankingFeatures.COUNT);
+                labels[rows] = gt.contains(s.ids[i]) ? 1.0 : 0.0;
+                positives += (int) labels[rows];
+                rows++;
+            }
+        }
+        System.out.println("[trainRanker] rows=" + rows + " positives=" + positives
+                + " users=" + inner.evalUserIds.size() + " leaveOut=" + a.rankerLeaveOut);
+        if (positives == 0) {
+            System.out.println("[trainRanker] 没有正例，沿用当前模型");
+            return LearnedRanker.getInstance();
+        }
+
+        long start = System.nanoTime();
+        LearnedRanker model = LearnedRanker.train(matrix, labels, rows, a.rankerEpochs, 1.0, 1e-4);
+        System.out.printf("[trainRanker] trained in %.2fs%n", (System.nanoTime() - start) / 1e9);
+        System.out.println(model.toProperties());
+        model.save(Config.LEARNED_RANKER_PATH, "learned ranker, OfflineEvalMain --trainRanker");
+        System.out.println("[trainRanker] 模型已写入: " + Config.LEARNED_RANKER_PATH);
+        return model;
+    }
+
+    static void printRankLatency(List<String> models) {
+        System.out.println("=== 单用户排序耗时（候选池相同，不含候选池与用户画像构建）===");
+        for (String model : models) {
+            RecMetrics.Timer t = RecMetrics.timer("eval.rank." + model);
+            System.out.println(String.format("%-12s p50=%.3fms p99=%.3fms", model, t.percentileMs(0.50), t.percentileMs(0.99)));
+        }
+        System.out.println();
+    }
+
+    /**
+     * ItemCF 有界构建参数对比：每组参数只用训练集重新构建，与精确构建比较 Recall@K / NDCG@K 及构建开销
+     */
+    static void sweepItemCFBounds(Split split, PopularityModel popularity, ItemCFModel exact, Args a) {
+        List<ItemCFBuilder.Bounds> configs = new ArrayList<>();
+        configs.add(new ItemCFBuilder.Bounds(0, true, 0L, 0.0));
+        for (String cap : a.itemcfCaps.split(",")) {
+            configs.add(new ItemCFBuilder.Bounds(Integer.parseInt(cap.trim()), true, 0L, 0.0));
+        }
+        for (String f : a.itemcfBudgets.split(",")) {
+            long budget = (long) (exact.built.peakCoCountBytes * Double.parseDouble(f.trim()));
+            configs.add(new ItemCFBuilder.Bounds(0, false, budget, 0.0));
+        }
+        for (String minCo : a.itemcfMinCo.split(",")) {
+            configs.add(new ItemCFBuilder.Bounds(0, false, 0L, Double.parseDouble(minCo.trim())));
+        }
+
+        ModelResult base = evaluateItemCF(split, exact, popularity, a);
+        System.out.println("=== ItemCF 有界构建对比（K=" + a.k + "，预算按精确构建共现表峰值 "
+                + exact.built.peakCoCountBytes / 1024 + "KB 的比例）===");
+        System.out.println(String.format("%-28s %-10s %-7s %-9s %-9s %-9s %-9s %-9s %-10s %-10s",
+                "bounds", "pairs", "prunes", "cutoff", "peakKB", "buildMs", "R@K", "NDCG@K", "dR@K", "dNDCG@K"));
+        printBoundsRow("exact", exact, base, base);
+        for (ItemCFBuilder.Bounds bounds : configs) {
+            ItemCFModel model = ItemCFModel.build(split.trainByUser, a.likeThreshold, a.maxNeighbors, bounds);
+            printBoundsRow(bounds.toString(), model, evaluateItemCF(split, model, popularity, a), base);
+        }
+        System.out.println();
+    }
+
+    private static void printBoundsRow(String name, ItemCFModel model, ModelResult r, ModelResult base) {
+        System.out.println(String.format("%-28s %-10d %-7d %-9.2f %-9d %-9.1f %-9.4f %-9.4f %+-10.4f %+-10.4f",
+                name, model.built.pairs, model.built.prunes, model.built.pruneThreshold,
+                model.built.peakCoCountBytes / 1024, model.buildNanos / 1e6,
+                r.recall, r.ndcg, r.recall - base.recall, r.ndcg - base.ndcg));
+    }
+
+    /**
+     * 三路权重网格搜索（步长 0.1，和为 1），按 NDCG@K 选最优。
+     * 注意：直接在评测集上选权重，结果偏乐观，只用于给线上权重一个起点。
+     */
+    static ModelResult fitHybrid(Split split, PopularityModel popularity, ItemCFModel itemcf,
+                                 Map<Integer, HybridSignals> signalCache, Args a) {
+        ModelResult best = null;
+        HybridModel bestModel = null;
+        for (int e = 0; e <= 10; e++) {
+            for (int c = 0; e + c <= 10; c++) {
+                HybridModel m = new HybridModel(e / 10.0, c / 10.0, (10 - e - c) / 10.0);
+                ModelResult r = evaluateHybrid(split, popularity, itemcf, m, "hybrid-fit", signalCache, a);
+                if (best == null || r.ndcg > best.ndcg) {
+                    best = r;
+                    bestModel = m;
+                }
+            }
+        }
+        System.out.println("[fitHybrid] best weights by NDCG@" + a.k + ":");
+        System.out.println(bestModel.toProperties());
+        return best;
+    }
+
     interface RecFn {
         List<Integer> recommend(int userId, List<RatingRecord> train, Set<Integer> seen);
     }
@@ -517,6 +962,10 @@ public class OfflineEvalMain {
     static void printTable(List<ModelResult> results, Args a) {
         System.out.println();
         System.out.println("=== 离线评测结果（按用户时间切分，LeaveOut=" + a.leaveOut + ", Like>=" + a.likeThreshold + ", K=" + a.k + "）===");
+        printRows(results);
+    }
+
+    static void printRows(List<ModelResult> results) {
         System.out.println(String.format("%-12s %-8s %-12s %-12s %-12s %-12s",
                 "model", "users", "P@K", "R@K", "NDCG@K", "Hit@K"));
         for (ModelResult r : results) {
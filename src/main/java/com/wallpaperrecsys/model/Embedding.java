@@ -9,6 +9,21 @@ import java.util.List;
 public class Embedding {
     List<Double> vector;
 
+    // toNormalizedArray 的缓存，setVector 时失效
+    private volatile float[] normalized;
+    // 解包后的向量与平方和（calculateSimilarity 用），setVector 时失效
+    private volatile Unboxed unboxed;
+
+    private static final class Unboxed {
+        final double[] values;
+        final double squaredNorm;
+
+        Unboxed(double[] values, double squaredNorm) {
+            this.values = values;
+            this.squaredNorm = squaredNorm;
+        }
+    }
+
     public Embedding() {
     }
 
@@ -22,35 +37,103 @@ public class Embedding {
 
     public void setVector(List<Double> vector) {
         this.vector = vector;
+        this.normalized = null;
+        this.unboxed = null;
     }
 
     /**
      * Calculate cosine similarity with another embedding
-     * 计算与另一个embedding的余弦相似度
+     * 计算与另一个embedding的余弦相似度；两边的向量各自只解包一次（缓存 double 数组与平方和），
+     * 运算顺序与逐个读 List<Double> 相同，结果逐位一致
      */
     public double calculateSimilarity(Embedding other) {
         if (this.vector == null || other == null || other.vector == null) {
             return -1;
         }
-        if (this.vector.size() != other.vector.size()) {
+        Unboxed a = unboxed();
+        Unboxed b = other.unboxed();
+        if (a.values.length != b.values.length) {
             return -1;
         }
 
         double dotProduct = 0.0;
-        double normA = 0.0;
-        double normB = 0.0;
-
-        for (int i = 0; i < this.vector.size(); i++) {
-            dotProduct += this.vector.get(i) * other.vector.get(i);
-            normA += Math.pow(this.vector.get(i), 2);
-            normB += Math.pow(other.vector.get(i), 2);
+        for (int i = 0; i < a.values.length; i++) {
+            dotProduct += a.values[i] * b.values[i];
         }
 
-        if (normA == 0.0 || normB == 0.0) {
+        if (a.squaredNorm == 0.0 || b.squaredNorm == 0.0) {
             return 0.0;
         }
 
-        return dotProduct / (Math.sqrt(normA) * Math.sqrt(normB));
+        return dotProduct / (Math.sqrt(a.squaredNorm) * Math.sqrt(b.squaredNorm));
+    }
+
+    /**
+     * Cosine similarity with an L2-normalized query: the dot product with normalized()
+     * 与已归一化的 query 的余弦相似度（与 normalized() 的点积）；维度不一致或为空时返回 NaN
+     */
+    public double cosine(float[] normalizedQuery) {
+        float[] v = normalized();
+        if (v.length != normalizedQuery.length || v.length == 0) {
+            return Double.NaN;
+        }
+        double dot = 0.0;
+        for (int d = 0; d < v.length; d++) {
+            dot += normalizedQuery[d] * v[d];
+        }
+        return dot;
+    }
+
+    private Unboxed unboxed() {
+        Unboxed u = this.unboxed;
+        if (u == null) {
+            List<Double> v = this.vector;
+            double[] values = new double[v.size()];
+            double squaredNorm = 0.0;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = v.get(i);
+                squaredNorm += Math.pow(values[i], 2);
+            }
+            u = new Unboxed(values, squaredNorm);
+            this.unboxed = u;
+        }
+        return u;
+    }
+
+    /**
+     * Convert to an L2-normalized float array (zero vector stays zero)
+     * 转成 L2 归一化的 float 数组，归一化后点积即余弦相似度（零向量保持为零）
+     */
+    public float[] toNormalizedArray() {
+        if (this.vector == null) {
+            return new float[0];
+        }
+        double norm = 0.0;
+        for (Double v : this.vector) {
+            norm += v * v;
+        }
+        float[] result = new float[this.vector.size()];
+        if (norm == 0.0) {
+            return result;
+        }
+        double inv = 1.0 / Math.sqrt(norm);
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (float) (this.vector.get(i) * inv);
+        }
+        return result;
+    }
+
+    /**
+     * Cached L2-normalized array, shared between callers and must not be modified
+     * 缓存的归一化数组（调用方共享，只读）；打分热路径上用它做点积，避免每次装箱遍历 List<Double>
+     */
+    public float[] normalized() {
+        float[] n = this.normalized;
+        if (n == null) {
+            n = toNormalizedArray();
+            this.normalized = n;
+        }
+        return n;
     }
 }
 
@@ -0,0 +1,459 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.datamanager.Rating;
+import com.wallpaperrecsys.datamanager.User;
+import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.model.Embedding;
+import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Implicit-feedback ALS matrix factorization over the loaded ratings
+ * 隐式反馈 ALS 矩阵分解：用已加载的评分训练用户 / 壁纸因子，作为 emb 模型的用户与壁纸向量
+ *
+ * 说明：
+ * - 每条评分是一次观测：喜欢（>= likeThreshold）p=1，否则 p=0，置信度 c = 1 + alpha；未评分的 (u, i) 为 p=0、c=1。
+ * - 交替求解：固定壁纸因子 Y，每个用户解 (YᵀY + Yᵀ(C_u - I)Y + λI) x_u = Yᵀ C_u p_u，再反过来解壁纸。
+ *   YᵀY 每半轮只算一次，单行代价 O(n_u·k² + k³)，与未评分的 (u, i) 数量无关。
+ * - 同一半轮内各行互不依赖：行按线程分片，Cholesky 分解求解，每个线程复用自己的 k×k 缓冲。
+ * - 目标函数用 Σ_全部 (x_u·y_i)² = Σ_u x_uᵀ(YᵀY)x_u，只遍历观测项即可算出，每轮输出一次用于观察收敛。
+ * - 因子与内容向量（文本 / 图像 embedding）不在同一空间：Config.ALS_MODE 为 auto 时只在没有壁纸内容向量时替换。
+ */
+public class ALSTrainer {
+
+    /**
+     * Training hyper-parameters
+     * 训练参数：因子维度、正则、置信度系数、迭代轮数、线程数
+     */
+    public static class Params {
+        final int rank;
+        final double regularization;
+        final double alpha;
+        final int iterations;
+        final int threads;
+        final double likeThreshold;
+        final long seed;
+
+        public Params(int rank, double regularization, double alpha, int iterations, int threads,
+                      double likeThreshold, long seed) {
+            if (rank <= 0 || iterations < 0 || regularization < 0 || alpha < 0) {
+                throw new IllegalArgumentException("Invalid ALS parameters: rank=" + rank + " iterations=" + iterations
+                        + " lambda=" + regularization + " alpha=" + alpha);
+            }
+            this.rank = rank;
+            this.regularization = regularization;
+            this.alpha = alpha;
+            this.iterations = iterations;
+            this.threads = Math.max(1, threads);
+            this.likeThreshold = likeThreshold;
+            this.seed = seed;
+        }
+
+        public static Params fromConfig() {
+            return new Params(Config.ALS_RANK, Config.ALS_REGULARIZATION, Config.ALS_ALPHA, Config.ALS_ITERATIONS,
+                    Config.ALS_THREADS, LIKE_THRESHOLD, 42L);
+        }
+
+        @Override
+        public String toString() {
+            return "rank=" + rank + " lambda=" + regularization + " alpha=" + alpha + " iterations=" + iterations
+                    + " threads=" + threads;
+        }
+    }
+
+    /**
+     * Trained factors, row-major float[rows * rank]
+     * 训练结果：因子按行连续存放，第 r 行对应 userIds[r] / itemIds[r]
+     */
+    public static class Result {
+        public final int rank;
+        public final int[] userIds;
+        public final int[] itemIds;
+        public final float[] userFactors;
+        public final float[] itemFactors;
+        public final int observations;
+        // 每轮（用户 + 壁纸两个半轮）耗时与之后的目标函数值
+        public final long[] iterationNanos;
+        public final double[] loss;
+
+        Result(int rank, int[] userIds, int[] itemIds, float[] userFactors, float[] itemFactors, int observations,
+               long[] iterationNanos, double[] loss) {
+            this.rank = rank;
+            this.userIds = userIds;
+            this.itemIds = itemIds;
+            this.userFactors = userFactors;
+            this.itemFactors = itemFactors;
+            this.observations = observations;
+            this.iterationNanos = iterationNanos;
+            this.loss = loss;
+        }
+
+        public Map<Integer, Embedding> userEmbeddings() {
+            return embeddings(userIds, userFactors);
+        }
+
+        public Map<Integer, Embedding> itemEmbeddings() {
+            return embeddings(itemIds, itemFactors);
+        }
+
+        private Map<Integer, Embedding> embeddings(int[] ids, float[] factors) {
+            Map<Integer, Embedding> result = new HashMap<>(ids.length * 2);
+            for (int r = 0; r < ids.length; r++) {
+                List<Double> vector = new ArrayList<>(rank);
+                boolean zero = true;
+                for (int d = 0; d < rank; d++) {
+                    float v = factors[r * rank + d];
+                    vector.add((double) v);
+                    zero &= v == 0f;
+                }
+                // 全零因子（例如只有低分评分的物品）没有方向，不作为向量
+                if (!zero) {
+                    result.put(ids[r], new Embedding(vector));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Called after each full iteration
+     * 每轮结束回调：轮次（从 1 开始）、本轮耗时、目标函数值
+     */
+    public interface IterationListener {
+        void onIteration(int iteration, long nanos, double loss);
+    }
+
+    // 与 ItemCF / UserCF 一致的“喜欢”阈值
+    private static final double LIKE_THRESHOLD = 4.0;
+
+    private static volatile boolean startupTrainingStarted;
+
+    /**
+     * Train in the background at startup and replace the catalog's embeddings, according to Config.ALS_MODE
+     * 服务启动时调用：按 Config.ALS_MODE 决定是否在后台训练并替换用户 / 壁纸向量（off / auto / on）
+     */
+    public static void warmUp() {
+        String mode = Config.ALS_MODE == null ? "off" : Config.ALS_MODE.trim().toLowerCase();
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        if ("off".equals(mode) || startupTrainingStarted) {
+            return;
+        }
+        if ("auto".equals(mode) && !dm.getAllWallpapersWithEmbedding().isEmpty()) {
+            System.out.println("ALS training skipped: wallpaper content embeddings are loaded (Config.ALS_MODE=auto)");
+            return;
+        }
+        startupTrainingStarted = true;
+        Thread t = new Thread(() -> {
+            try {
+                trainAndApply(dm, Params.fromConfig());
+            } catch (RuntimeException e) {
+                System.err.println("ALS training failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, "als-train");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Train on the current ratings and write the factors into the catalog
+     * 用当前评分训练，并把因子写入目录作为用户 / 壁纸向量
+     */
+    public static Result trainAndApply(WallpaperDataManager dm, Params params) {
+        long start = System.nanoTime();
+        Result result = train(ratingsByUser(dm.getAllUsers()), params, (iteration, nanos, loss) -> {
+            RecMetrics.record("als.iteration", nanos, iteration, 1);
+            System.out.printf("ALS iteration %d: %.1f ms, loss %.4f%n", iteration, nanos / 1e6, loss);
+        });
+        dm.replaceEmbeddings(result.userEmbeddings(), result.itemEmbeddings());
+        long nanos = System.nanoTime() - start;
+        RecMetrics.record("als.train", nanos, result.observations, result.userIds.length + result.itemIds.length);
+        System.out.println("ALS factors applied: " + result.userIds.length + " users, " + result.itemIds.length
+                + " wallpapers, " + result.observations + " ratings in " + nanos / 1_000_000 + " ms (" + params + ")");
+        return result;
+    }
+
+    /**
+     * userId -> (wallpaperId -> score); a later rating of the same wallpaper replaces an earlier one
+     * 用户评分表：同一壁纸评分多次时以最后一次为准
+     */
+    public static Map<Integer, Map<Integer, Double>> ratingsByUser(List<User> users) {
+        Map<Integer, Map<Integer, Double>> result = new HashMap<>();
+        for (User u : users) {
+            List<Rating> ratings = u.getRatings();
+            if (ratings == null || ratings.isEmpty()) {
+                continue;
+            }
+            Map<Integer, Double> row = new HashMap<>(ratings.size() * 2);
+            for (Rating r : ratings) {
+                row.put(r.getWallpaperId(), r.getScore());
+            }
+            result.put(u.getUserId(), row);
+        }
+        return result;
+    }
+
+    /**
+     * Train factors from each user's ratings
+     * @param ratingsByUser userId -> (wallpaperId -> score)
+     * @param listener optional per-iteration callback
+     */
+    public static Result train(Map<Integer, Map<Integer, Double>> ratingsByUser, Params p, IterationListener listener) {
+        int k = p.rank;
+        // 行列编号：用户按 userId 升序，壁纸按 wallpaperId 升序，结果可复现
+        int[] userIds = new int[ratingsByUser.size()];
+        int nu = 0;
+        TreeSet<Integer> items = new TreeSet<>();
+        for (Map.Entry<Integer, Map<Integer, Double>> e : ratingsByUser.entrySet()) {
+            if (!e.getValue().isEmpty()) {
+                userIds[nu++] = e.getKey();
+                items.addAll(e.getValue().keySet());
+            }
+        }
+        userIds = Arrays.copyOf(userIds, nu);
+        Arrays.sort(userIds);
+        int[] itemIds = new int[items.size()];
+        int ni = 0;
+        for (Integer id : items) {
+            itemIds[ni++] = id;
+        }
+
+        // 用户 -> 壁纸 与 壁纸 -> 用户 两份 CSR，值为偏好 p（0 / 1）
+        int[] userStart = new int[nu + 1];
+        for (int u = 0; u < nu; u++) {
+            userStart[u + 1] = userStart[u] + ratingsByUser.get(userIds[u]).size();
+        }
+        int nnz = userStart[nu];
+        int[] userCols = new int[nnz];
+        byte[] userPref = new byte[nnz];
+        int[] itemStart = new int[ni + 1];
+        for (int u = 0; u < nu; u++) {
+            int pos = userStart[u];
+            for (Map.Entry<Integer, Double> e : ratingsByUser.get(userIds[u]).entrySet()) {
+                int col = Arrays.binarySearch(itemIds, e.getKey());
+                userCols[pos] = col;
+                userPref[pos] = (byte) (e.getValue() >= p.likeThreshold ? 1 : 0);
+                itemStart[col + 1]++;
+                pos++;
+            }
+        }
+        for (int i = 0; i < ni; i++) {
+            itemStart[i + 1] += itemStart[i];
+        }
+        int[] itemCols = new int[nnz];
+        byte[] itemPref = new byte[nnz];
+        int[] fill = Arrays.copyOf(itemStart, ni);
+        for (int u = 0; u < nu; u++) {
+            for (int q = userStart[u]; q < userStart[u + 1]; q++) {
+                int pos = fill[userCols[q]]++;
+                itemCols[pos] = u;
+                itemPref[pos] = userPref[q];
+            }
+        }
+
+        float[] x = new float[nu * k];
+        float[] y = new float[ni * k];
+        Random random = new Random(p.seed);
+        double scale = 0.1 / Math.sqrt(k);
+        for (int v = 0; v < y.length; v++) {
+            y[v] = (float) (random.nextGaussian() * scale);
+        }
+
+        long[] iterationNanos = new long[p.iterations];
+        double[] loss = new double[p.iterations];
+        int t = p.threads;
+        ExecutorService pool = t > 1 ? Executors.newFixedThreadPool(t, r -> {
+            Thread th = new Thread(r, "als-trainer");
+            th.setDaemon(true);
+            return th;
+        }) : null;
+        try {
+            for (int it = 0; it < p.iterations; it++) {
+                long start = System.nanoTime();
+                solve(pool, t, x, nu, userStart, userCols, userPref, y, ni, p);
+                solve(pool, t, y, ni, itemStart, itemCols, itemPref, x, nu, p);
+                iterationNanos[it] = System.nanoTime() - start;
+                loss[it] = loss(pool, t, x, nu, userStart, userCols, userPref, y, ni, p);
+                if (listener != null) {
+                    listener.onIteration(it + 1, iterationNanos[it], loss[it]);
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        return new Result(k, userIds, itemIds, x, y, nnz, iterationNanos, loss);
+    }
+
+    /**
+     * One half iteration: solve every row of {@code target} with {@code fixed} held constant
+     * 半轮：固定另一侧因子，逐行求解 target（行按线程分片，行之间互不依赖）
+     */
+    private static void solve(ExecutorService pool, int t, float[] target, int rows, int[] start, int[] cols,
+                              byte[] pref, float[] fixed, int fixedRows, Params p) {
+        int k = p.rank;
+        double[] gram = gram(pool, t, fixed, fixedRows, k);
+        double confBoost = p.alpha; // c - 1
+        ItemCFBuilder.runAll(pool, t, s -> {
+            double[] a = new double[k * k];
+            double[] b = new double[k];
+            for (int r = s; r < rows; r += t) {
+                System.arraycopy(gram, 0, a, 0, k * k);
+                for (int d = 0; d < k; d++) {
+                    a[d * k + d] += p.regularization;
+                }
+                Arrays.fill(b, 0.0);
+                for (int q = start[r]; q < start[r + 1]; q++) {
+                    int off = cols[q] * k;
+                    // A += (c - 1) y yᵀ（只填下三角），b += c p y
+                    for (int i = 0; i < k; i++) {
+                        double yi = fixed[off + i] * confBoost;
+                        int row = i * k;
+                        for (int j = 0; j <= i; j++) {
+                            a[row + j] += yi * fixed[off + j];
+                        }
+                    }
+                    if (pref[q] != 0) {
+                        double c = 1.0 + confBoost;
+                        for (int i = 0; i < k; i++) {
+                            b[i] += c * fixed[off + i];
+                        }
+                    }
+                }
+                choleskySolve(a, b, k);
+                int out = r * k;
+                for (int d = 0; d < k; d++) {
+                    target[out + d] = (float) b[d];
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * FᵀF (lower triangle filled, upper mirrored), partial sums per shard
+     * 因子的 Gram 矩阵 FᵀF：各分片求部分和后相加
+     */
+    private static double[] gram(ExecutorService pool, int t, float[] f, int rows, int k) {
+        List<double[]> parts = ItemCFBuilder.runAll(pool, t, s -> {
+            double[] g = new double[k * k];
+            for (int r = s; r < rows; r += t) {
+                int off = r * k;
+                for (int i = 0; i < k; i++) {
+                    double fi = f[off + i];
+                    int row = i * k;
+                    for (int j = 0; j <= i; j++) {
+                        g[row + j] += fi * f[off + j];
+                    }
+                }
+            }
+            return g;
+        });
+        double[] g = parts.get(0);
+        for (int s = 1; s < parts.size(); s++) {
+            double[] part = parts.get(s);
+            for (int v = 0; v < g.length; v++) {
+                g[v] += part[v];
+            }
+        }
+        for (int i = 0; i < k; i++) {
+            for (int j = 0; j < i; j++) {
+                g[j * k + i] = g[i * k + j];
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Solve A z = b in place for symmetric positive definite A (lower triangle used); b receives z
+     * Cholesky 分解 A = L Lᵀ（覆盖 A 的下三角），前代 + 回代，结果写回 b
+     */
+    static void choleskySolve(double[] a, double[] b, int k) {
+        for (int j = 0; j < k; j++) {
+            int rowJ = j * k;
+            double d = a[rowJ + j];
+            for (int m = 0; m < j; m++) {
+                d -= a[rowJ + m] * a[rowJ + m];
+            }
+            // λ > 0 时 A 严格正定；λ = 0 且数据退化时给一个极小的对角，避免除零
+            d = Math.sqrt(Math.max(d, 1e-12));
+            a[rowJ + j] = d;
+            for (int i = j + 1; i < k; i++) {
+                int rowI = i * k;
+                double v = a[rowI + j];
+                for (int m = 0; m < j; m++) {
+                    v -= a[rowI + m] * a[rowJ + m];
+                }
+                a[rowI + j] = v / d;
+            }
+        }
+        for (int i = 0; i < k; i++) {
+            int rowI = i * k;
+            double v = b[i];
+            for (int m = 0; m < i; m++) {
+                v -= a[rowI + m] * b[m];
+            }
+            b[i] = v / a[rowI + i];
+        }
+        for (int i = k - 1; i >= 0; i--) {
+            double v = b[i];
+            for (int m = i + 1; m < k; m++) {
+                v -= a[m * k + i] * b[m];
+            }
+            b[i] = v / a[i * k + i];
+        }
+    }
+
+    /**
+     * Σ c (p - x·y)² over all pairs + λ(‖X‖² + ‖Y‖²), using Σ_all (x·y)² = Σ_u xᵀ(YᵀY)x
+     * 完整目标函数：未评分项的贡献用 Gram 矩阵一次算出，只需遍历观测项
+     */
+    private static double loss(ExecutorService pool, int t, float[] x, int nu, int[] userStart, int[] userCols,
+                               byte[] userPref, float[] y, int ni, Params p) {
+        int k = p.rank;
+        double[] gram = gram(pool, t, y, ni, k);
+        List<double[]> parts = ItemCFBuilder.runAll(pool, t, s -> {
+            double sum = 0.0;
+            double norm = 0.0;
+            for (int u = s; u < nu; u += t) {
+                int off = u * k;
+                for (int i = 0; i < k; i++) {
+                    double xi = x[off + i];
+                    norm += xi * xi;
+                    int row = i * k;
+                    double v = 0.0;
+                    for (int j = 0; j < k; j++) {
+                        v += gram[row + j] * x[off + j];
+                    }
+                    sum += xi * v;
+                }
+                for (int q = userStart[u]; q < userStart[u + 1]; q++) {
+                    int yo = userCols[q] * k;
+                    double dot = 0.0;
+                    for (int d = 0; d < k; d++) {
+                        dot += x[off + d] * y[yo + d];
+                    }
+                    double err = userPref[q] - dot;
+                    // 观测项：把上面按 c=1、p=0 计入的 dot² 换成 c (p - dot)²
+                    sum += (1.0 + p.alpha) * err * err - dot * dot;
+                }
+            }
+            return new double[]{sum, norm};
+        });
+        double total = 0.0;
+        double norm = 0.0;
+        for (double[] part : parts) {
+            total += part[0];
+            norm += part[1];
+        }
+        for (float v : y) {
+            norm += (double) v * v;
+        }
+        return total + p.regularization * norm;
+    }
+}
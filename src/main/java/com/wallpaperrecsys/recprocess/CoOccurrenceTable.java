@@ -0,0 +1,145 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.util.IntIntMap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * CoOccurrenceTable - co-like counts of item pairs kept for the incremental ItemCF updater
+ * 物品共现计数表：基础部分是只读 CSR（每个物品一行，近邻 wallpaperId 升序 + 共同喜欢人数，两个方向都存），之后新增的计数记在增量表里
+ *
+ * 说明：
+ * - 基础部分来自全量构建（堆内 int 数组，每个共现物品对两个方向合计 16 字节，另加每个物品 8 字节），
+ *   或直接读模型文件的映射区（ItemCFModelFile.coOccurrence，只有物品表在堆内）。
+ * - 增量表只记基础之后变化过的物品对：物品 -> IntIntMap(近邻 -> 增加的人数)，两个方向都存，随新的喜欢增长，全量重建后清零。
+ * - 非线程安全，只由 ItemCFUpdater 的后台线程使用。
+ */
+final class CoOccurrenceTable {
+
+    // 有共现计数的物品，升序；第 k 个物品的近邻在 [rowStart[k], rowStart[k + 1]) 区间
+    private final int[] itemIds;
+    private final int[] rowStart;
+    private final IntBuffer neighbors;
+    private final IntBuffer counts;
+    // 物品 -> (近邻 -> 基础之后增加的共同喜欢人数)
+    private final Map<Integer, IntIntMap> delta = new HashMap<>();
+
+    /**
+     * Wrap a CSR table without copying
+     * @param itemIds ascending wallpaper ids
+     * @param rowStart item k spans [rowStart[k], rowStart[k + 1]) of neighbors / counts
+     * @param neighbors neighbour wallpaper ids, ascending within each row
+     */
+    CoOccurrenceTable(int[] itemIds, int[] rowStart, IntBuffer neighbors, IntBuffer counts) {
+        if (rowStart.length != itemIds.length + 1 || neighbors.limit() != counts.limit()
+                || rowStart[itemIds.length] != neighbors.limit()) {
+            throw new IllegalArgumentException("Inconsistent co-occurrence table: " + itemIds.length + " items, "
+                    + rowStart.length + " row starts, " + neighbors.limit() + " neighbours, " + counts.limit() + " counts");
+        }
+        this.itemIds = itemIds;
+        this.rowStart = rowStart;
+        this.neighbors = neighbors;
+        this.counts = counts;
+    }
+
+    /**
+     * Add one co-like of items i and j (i != j)
+     * 物品 i、j 的共同喜欢人数加一
+     */
+    void increment(int i, int j) {
+        deltaRow(i).addTo(j, 1);
+        deltaRow(j).addTo(i, 1);
+    }
+
+    /**
+     * Visit every item co-liked with i and the co-like count
+     * 遍历与 i 有共同喜欢的每个物品及共同喜欢人数（基础计数加增量）
+     */
+    void forEachNeighbor(int i, IntIntMap.Visitor visitor) {
+        int r = Arrays.binarySearch(itemIds, i);
+        IntIntMap added = delta.get(i);
+        if (r >= 0) {
+            for (int p = rowStart[r], end = rowStart[r + 1]; p < end; p++) {
+                int j = neighbors.get(p);
+                visitor.accept(j, counts.get(p) + (added == null ? 0 : added.get(j, 0)));
+            }
+        }
+        if (added != null) {
+            // 基础中没有的新物品对
+            added.forEach((j, co) -> {
+                if (r < 0 || search(neighbors, rowStart[r], rowStart[r + 1], j) < 0) {
+                    visitor.accept(j, co);
+                }
+            });
+        }
+    }
+
+    int itemCount() {
+        return itemIds.length;
+    }
+
+    /**
+     * Number of (item, neighbour) entries in the base part, two per pair
+     * 基础部分的条目数（每个物品对两条）
+     */
+    int entryCount() {
+        return rowStart[itemIds.length];
+    }
+
+    /**
+     * Write the base part as ItemCFModelFile's co-occurrence section
+     * 按 ItemCFModelFile 的共现计数段写出基础部分：rowStart、近邻、计数
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        for (int start : rowStart) {
+            out.writeInt(start);
+        }
+        for (int p = 0, n = entryCount(); p < n; p++) {
+            out.writeInt(neighbors.get(p));
+        }
+        for (int p = 0, n = entryCount(); p < n; p++) {
+            out.writeInt(counts.get(p));
+        }
+    }
+
+    /**
+     * Number of pairs in the base part
+     * 基础部分的物品对数
+     */
+    long basePairs() {
+        return rowStart[itemIds.length] / 2;
+    }
+
+    /**
+     * Heap bytes of the base part
+     * 基础部分占用的堆内字节数（不含增量表；读映射区时只有物品表）
+     */
+    long baseHeapBytes() {
+        return 4L * itemIds.length + 4L * rowStart.length + (neighbors.hasArray() ? 8L * entryCount() : 0L);
+    }
+
+    private IntIntMap deltaRow(int item) {
+        return delta.computeIfAbsent(item, k -> new IntIntMap(8));
+    }
+
+    // 在 buf 的 [from, to) 中二分查找 key，找不到返回负数
+    private static int search(IntBuffer buf, int from, int to, int key) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int v = buf.get(mid);
+            if (v < key) {
+                lo = mid + 1;
+            } else if (v > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+}
@@ -0,0 +1,102 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.model.Embedding;
+import com.wallpaperrecsys.recprocess.pipeline.PipelineConfig;
+
+/**
+ * Hybrid ranking model: weighted fusion of embedding, ItemCF and popularity signals
+ * 融合排序模型：embedding 相似度 / ItemCF / 流行度三路信号加权求和
+ *
+ * 说明：
+ * - 三路信号由调用方一次遍历候选写入 double[]，这里只做归一化与加权；线上排序和离线评测共用同一套融合逻辑。
+ * - embedding 与 ItemCF 信号在当前候选集内做 min-max 归一化到 0~1，流行度本身已在 0~1；
+ *   缺失的 embedding 信号（NaN）按 0 处理。
+ * - 权重来自 pipeline.properties（personal.hybrid.weight.*），可用 OfflineEvalMain --fitHybrid 离线网格搜索得到。
+ */
+public class HybridModel {
+
+    public static final String WEIGHT_PREFIX = "personal.hybrid.weight.";
+
+    final double embWeight;
+    final double itemCFWeight;
+    final double popularityWeight;
+
+    public HybridModel(double embWeight, double itemCFWeight, double popularityWeight) {
+        this.embWeight = embWeight;
+        this.itemCFWeight = itemCFWeight;
+        this.popularityWeight = popularityWeight;
+    }
+
+    /**
+     * Weights from pipeline.properties / -D overrides
+     * 从 pipeline.properties（或同名 -D 参数）读取权重
+     */
+    public static HybridModel fromConfig() {
+        return new HybridModel(
+                PipelineConfig.getDouble(WEIGHT_PREFIX + "emb", 0.5),
+                PipelineConfig.getDouble(WEIGHT_PREFIX + "itemcf", 0.3),
+                PipelineConfig.getDouble(WEIGHT_PREFIX + "popularity", 0.2));
+    }
+
+    public double getEmbWeight() {
+        return embWeight;
+    }
+
+    public double getItemCFWeight() {
+        return itemCFWeight;
+    }
+
+    public double getPopularityWeight() {
+        return popularityWeight;
+    }
+
+    /**
+     * Combine the three signal arrays into out
+     * 归一化后加权写入 out；各数组长度相同，下标对应同一个候选
+     */
+    public void combine(double[] emb, double[] itemCF, double[] popularity, double[] out) {
+        double[] embRange = range(emb);
+        double[] cfRange = range(itemCF);
+        for (int i = 0; i < out.length; i++) {
+            out[i] = embWeight * normalize(emb[i], embRange)
+                    + itemCFWeight * normalize(itemCF[i], cfRange)
+                    + popularityWeight * popularity[i];
+        }
+    }
+
+    /**
+     * Cosine similarity between a normalized query and an embedding, NaN when unavailable
+     * 归一化 query 与 embedding 的余弦相似度；任一方缺失或维度不一致时返回 NaN
+     */
+    public static double cosine(float[] query, Embedding emb) {
+        return query == null || emb == null ? Double.NaN : emb.cosine(query);
+    }
+
+    public String toProperties() {
+        return WEIGHT_PREFIX + "emb=" + embWeight + "\n"
+                + WEIGHT_PREFIX + "itemcf=" + itemCFWeight + "\n"
+                + WEIGHT_PREFIX + "popularity=" + popularityWeight;
+    }
+
+    // {min, max}，忽略 NaN
+    private static double[] range(double[] values) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double v : values) {
+            if (Double.isNaN(v)) {
+                continue;
+            }
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        return new double[]{min, max};
+    }
+
+    private static double normalize(double v, double[] range) {
+        if (Double.isNaN(v)) {
+            return 0.0;
+        }
+        double span = range[1] - range[0];
+        return span > 0 ? (v - range[0]) / span : 0.0;
+    }
+}
@@ -0,0 +1,594 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.LongIntMap;
+
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parallel ItemCF similarity builder over primitive co-occurrence maps
+ * 并行构建 ItemCF 物品相似度：sim(i,j) = co(i,j) / sqrt(cnt(i) * cnt(j))，每个物品保留 Top-N 近邻
+ *
+ * 说明：
+ * - 先把所有被喜欢过的 wallpaperId 映射为连续下标；用户按下标轮流分给各线程，
+ *   每个线程把共现计数累加到自己的 LongIntMap（key = i * 物品数 + j，只存 i < j 的一半），最后合并。
+ * - Top-N 近邻用每个物品一个有界小顶堆维护，不对全部相似度排序；堆按物品下标分给各线程，互不加锁。
+ *   合并后的共现表只扫描一遍：槽位区间分给各线程，物品对按两端物品所属的线程分桶（只记槽位号），各线程再处理自己的桶。
+ * - 同分时保留 wallpaperId 较小的近邻，结果与线程数无关。
+ * - 线上 ItemCFRecommendation 和离线评测 OfflineEvalMain 共用。
+ * - 有界模式（Bounds）：重度用户的喜欢抽样到上限、按 IUF 降低其贡献，共现表超过内存预算时按流式阈值剪掉低频物品对。
+ *   结果是近似的（Result.exact 为 false），增量更新不再适用。
+ */
+public class ItemCFBuilder {
+
+    /**
+     * Top-N neighbours and liked-user counts of every liked item
+     * 构建结果：Top-N 近邻相似度矩阵与 i -> 喜欢该物品的用户数
+     */
+    public static class Result {
+        public final SparseSimilarityMatrix similarities;
+        public final Map<Integer, Integer> likedUserCount;
+        public final long pairs;
+        // 是否为精确结果（没有抽样、IUF 或剪枝），只有精确结果的共现计数可用于增量更新
+        public final boolean exact;
+        // 剪枝次数与最终的剪枝阈值（按共同喜欢人数计，IUF 下为加权人数），未剪枝时为 0
+        public final int prunes;
+        public final double pruneThreshold;
+        // 构建过程中共现表占用的最大字节数
+        public final long peakCoCountBytes;
+        private final LongIntMap coCount;
+        private final int[] itemIds;
+
+        Result(SparseSimilarityMatrix similarities, Map<Integer, Integer> likedUserCount,
+               LongIntMap coCount, int[] itemIds, boolean exact, int prunes, double pruneThreshold,
+               long peakCoCountBytes) {
+            this.similarities = similarities;
+            this.likedUserCount = likedUserCount;
+            this.pairs = coCount.size();
+            this.exact = exact;
+            this.prunes = prunes;
+            this.pruneThreshold = pruneThreshold;
+            this.peakCoCountBytes = peakCoCountBytes;
+            this.coCount = coCount;
+            this.itemIds = itemIds;
+        }
+
+        /**
+         * The co-like counts as a CSR table with both directions, for the incremental updater
+         * 把共现计数转成 CSR 邻接表（两个方向都存，行内按 wallpaperId 升序），增量更新据此计数
+         */
+        CoOccurrenceTable coOccurrence() {
+            if (!exact) {
+                throw new IllegalStateException("Co-occurrence counts of a bounded build are approximate");
+            }
+            int m = itemIds.length;
+            int[] rowStart = new int[m + 1];
+            coCount.forEach((key, co) -> {
+                rowStart[(int) (key / m) + 1]++;
+                rowStart[(int) (key % m) + 1]++;
+            });
+            int maxRow = 0;
+            for (int k = 0; k < m; k++) {
+                maxRow = Math.max(maxRow, rowStart[k + 1]);
+                rowStart[k + 1] += rowStart[k];
+            }
+            int[] next = Arrays.copyOf(rowStart, m);
+            int[] neighbors = new int[rowStart[m]];
+            int[] counts = new int[rowStart[m]];
+            coCount.forEach((key, co) -> {
+                int i = (int) (key / m);
+                int j = (int) (key % m);
+                neighbors[next[i]] = j;
+                counts[next[i]++] = co;
+                neighbors[next[j]] = i;
+                counts[next[j]++] = co;
+            });
+            // 行内按下标排序（下标与 wallpaperId 同序），再换成 wallpaperId
+            long[] row = new long[maxRow];
+            for (int k = 0; k < m; k++) {
+                int from = rowStart[k];
+                int len = rowStart[k + 1] - from;
+                for (int p = 0; p < len; p++) {
+                    row[p] = ((long) neighbors[from + p] << 32) | (counts[from + p] & 0xFFFFFFFFL);
+                }
+                Arrays.sort(row, 0, len);
+                for (int p = 0; p < len; p++) {
+                    neighbors[from + p] = itemIds[(int) (row[p] >>> 32)];
+                    counts[from + p] = (int) row[p];
+                }
+            }
+            return new CoOccurrenceTable(itemIds, rowStart, IntBuffer.wrap(neighbors), IntBuffer.wrap(counts));
+        }
+    }
+
+    /**
+     * Limits of the bounded build mode
+     * 有界构建参数
+     *
+     * - maxLikesPerUser：喜欢数超过上限的用户随机抽样到上限（按用户序号固定种子，结果可复现），0 表示不限。
+     * - iuf：用户的贡献按 log(3) / log(1 + 喜欢数) 加权（只喜欢 2 个的用户权重为 1），共现计数改为定点数。
+     * - memoryBudgetBytes：所有共现表合计的字节上限，表满时删掉计数低于阈值的物品对并逐步提高阈值（流式剪枝），0 表示不限。
+     * - minCoCount：共同喜欢人数（IUF 下为加权人数）低于该值的物品对不进入近邻。
+     */
+    public static class Bounds {
+        public static final Bounds NONE = new Bounds(0, false, 0L, 0.0);
+
+        final int maxLikesPerUser;
+        final boolean iuf;
+        final long memoryBudgetBytes;
+        final double minCoCount;
+
+        public Bounds(int maxLikesPerUser, boolean iuf, long memoryBudgetBytes, double minCoCount) {
+            this.maxLikesPerUser = Math.max(0, maxLikesPerUser);
+            this.iuf = iuf;
+            this.memoryBudgetBytes = Math.max(0L, memoryBudgetBytes);
+            this.minCoCount = Math.max(0.0, minCoCount);
+        }
+
+        /**
+         * Bounds from Config, NONE unless Config.ITEMCF_BOUNDED is set
+         * 按 Config 构造；未开启 ITEMCF_BOUNDED 时为 NONE（精确构建）
+         */
+        public static Bounds fromConfig() {
+            if (!Config.ITEMCF_BOUNDED) {
+                return NONE;
+            }
+            return new Bounds(Config.ITEMCF_MAX_LIKES_PER_USER, Config.ITEMCF_IUF,
+                    Config.ITEMCF_MEMORY_BUDGET_MB * 1024L * 1024L, Config.ITEMCF_MIN_CO_COUNT);
+        }
+
+        boolean isExact() {
+            return maxLikesPerUser == 0 && !iuf && memoryBudgetBytes == 0 && minCoCount <= 1.0;
+        }
+
+        @Override
+        public String toString() {
+            if (isExact()) {
+                return "exact";
+            }
+            StringBuilder sb = new StringBuilder();
+            if (maxLikesPerUser > 0) sb.append("cap=").append(maxLikesPerUser).append(' ');
+            if (iuf) sb.append("iuf ");
+            if (memoryBudgetBytes > 0) sb.append("budget=").append(memoryBudgetBytes / 1024).append("KB ");
+            if (minCoCount > 1.0) sb.append("minCo=").append(minCoCount).append(' ');
+            return sb.toString().trim();
+        }
+    }
+
+    // IUF 定点数：权重 1 对应的计数
+    private static final int IUF_UNIT = 1024;
+    // LongIntMap 每个槽位的字节数（long key + int value）
+    private static final int SLOT_BYTES = 12;
+
+    /**
+     * Build from each user's liked wallpaper ids (duplicates and order do not matter)
+     * @param likedByUser one array of liked wallpaper ids per user
+     * @param maxNeighbors neighbours kept per item
+     * @param threads worker threads, 1 builds on the calling thread
+     */
+    public static Result build(List<int[]> likedByUser, int maxNeighbors, int threads) {
+        return build(likedByUser, maxNeighbors, threads, Bounds.NONE);
+    }
+
+    /**
+     * Build with optional sampling, IUF weighting and a memory budget for co-occurrence counts
+     * 有界构建，见 Bounds；Bounds.NONE 与精确构建完全相同
+     */
+    public static Result build(List<int[]> likedByUser, int maxNeighbors, int threads, Bounds bounds) {
+        int[] itemIds = distinctItems(likedByUser);
+        int m = itemIds.length;
+        int t = Math.max(1, threads);
+        int unit = bounds.iuf ? IUF_UNIT : 1;
+
+        // 每个用户的喜欢列表转为去重、升序的物品下标；重度用户抽样，IUF 权重按抽样前的喜欢数计算
+        List<int[]> users = new ArrayList<>(likedByUser.size());
+        List<Integer> weights = new ArrayList<>(likedByUser.size());
+        for (int[] liked : likedByUser) {
+            if (liked != null && liked.length > 0) {
+                int[] idx = toIndices(liked, itemIds);
+                weights.add(bounds.iuf ? iufWeight(idx.length) : 1);
+                if (bounds.maxLikesPerUser > 0 && idx.length > bounds.maxLikesPerUser) {
+                    idx = sample(idx, bounds.maxLikesPerUser, users.size());
+                }
+                users.add(idx);
+            }
+        }
+
+        // 预算一半给各线程的分片，一半给合并结果；单线程时全部给唯一的分片
+        long budget = bounds.memoryBudgetBytes;
+        long shardBudget = t == 1 ? budget : budget / (2L * t);
+        long mergeBudget = t == 1 ? budget : budget / 2;
+
+        ExecutorService pool = t > 1 ? Executors.newFixedThreadPool(t, r -> {
+            Thread th = new Thread(r, "itemcf-builder");
+            th.setDaemon(true);
+            return th;
+        }) : null;
+        try {
+            // 1) 按用户分片并行计数
+            List<Shard> shards = runAll(pool, t, s -> countShard(users, weights, s, t, m, new Pruner(shardBudget, unit)));
+            long peakBytes = 0;
+            int prunes = 0;
+            int threshold = 0;
+            for (Shard shard : shards) {
+                peakBytes += shard.coCount.memoryBytes();
+                prunes += shard.pruner.prunes;
+                threshold = Math.max(threshold, shard.pruner.threshold);
+            }
+
+            // 2) 合并到最大的分片
+            shards.sort((a, b) -> Integer.compare(b.coCount.size(), a.coCount.size()));
+            LongIntMap coCount = shards.get(0).coCount;
+            int[] itemCount = shards.get(0).itemCount;
+            Pruner merger = new Pruner(mergeBudget, unit);
+            merger.threshold = threshold;
+            for (int s = 1; s < shards.size(); s++) {
+                LongIntMap from = shards.get(s).coCount;
+                if (merger.maxEntries > 0) {
+                    from.forEach((key, co) -> {
+                        merger.beforeAdd(coCount);
+                        coCount.addTo(key, co);
+                    });
+                } else {
+                    coCount.addAll(from);
+                }
+                peakBytes = Math.max(peakBytes, coCount.memoryBytes() + from.memoryBytes());
+                int[] other = shards.get(s).itemCount;
+                for (int i = 0; i < m; i++) {
+                    itemCount[i] += other[i];
+                }
+                shards.set(s, null);
+            }
+            prunes += merger.prunes;
+            threshold = Math.max(threshold, merger.threshold);
+            peakBytes = Math.max(peakBytes, coCount.memoryBytes());
+            int minCo = (int) Math.ceil(bounds.minCoCount * unit);
+
+            // 3) 有界堆选 Top-N，物品按下标分给各线程（物品 i 的堆只由线程 i % t 写）
+            NeighborHeap[] heaps = new NeighborHeap[m];
+            if (pool == null) {
+                coCount.forEach((key, co) -> {
+                    if (co >= minCo) {
+                        offerPair(heaps, key, co, m, unit, itemCount, maxNeighbors, 0, 1);
+                    }
+                });
+            } else {
+                // 3a) 槽位区间分给各线程扫描一遍，把物品对的槽位号路由到两端物品所属线程的桶
+                int capacity = coCount.capacity();
+                int span = (capacity + t - 1) / t;
+                List<SlotList[]> routed = runAll(pool, t, scanner -> {
+                    SlotList[] buckets = new SlotList[t];
+                    for (int owner = 0; owner < t; owner++) {
+                        buckets[owner] = new SlotList();
+                    }
+                    int from = Math.min(capacity, scanner * span);
+                    coCount.forEachSlot(from, Math.min(capacity, from + span), (slot, key, co) -> {
+                        if (co < minCo) {
+                            return;
+                        }
+                        int ownerI = (int) (key / m) % t;
+                        int ownerJ = (int) (key % m) % t;
+                        buckets[ownerI].add(slot);
+                        if (ownerJ != ownerI) {
+                            buckets[ownerJ].add(slot);
+                        }
+                    });
+                    return buckets;
+                });
+                // 3b) 各线程按扫描线程顺序处理属于自己的桶，即按槽位顺序，与单线程时的插入顺序相同
+                runAll(pool, t, owner -> {
+                    for (SlotList[] buckets : routed) {
+                        SlotList slots = buckets[owner];
+                        for (int k = 0; k < slots.size; k++) {
+                            int slot = slots.values[k];
+                            offerPair(heaps, coCount.keyAt(slot), coCount.valueAt(slot), m, unit, itemCount,
+                                    maxNeighbors, owner, t);
+                        }
+                        buckets[owner] = null;
+                    }
+                    return null;
+                });
+            }
+
+            SparseSimilarityMatrix.Builder topSim = new SparseSimilarityMatrix.Builder();
+            Map<Integer, Integer> likedUserCount = new HashMap<>();
+            for (int i = 0; i < m; i++) {
+                likedUserCount.put(itemIds[i], itemCount[i]);
+                NeighborHeap heap = heaps[i];
+                if (heap == null) {
+                    continue;
+                }
+                int[] neighbors = new int[heap.size];
+                for (int k = 0; k < heap.size; k++) {
+                    neighbors[k] = itemIds[heap.items[k]];
+                }
+                topSim.addRow(itemIds[i], neighbors, heap.sims, heap.size);
+            }
+            return new Result(topSim.build(), likedUserCount, coCount, itemIds, bounds.isExact(), prunes,
+                    prunes == 0 ? 0.0 : (double) threshold / unit, peakBytes);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static class Shard {
+        final LongIntMap coCount;
+        final int[] itemCount;
+        final Pruner pruner;
+
+        Shard(LongIntMap coCount, int[] itemCount, Pruner pruner) {
+            this.coCount = coCount;
+            this.itemCount = itemCount;
+            this.pruner = pruner;
+        }
+    }
+
+    private static Shard countShard(List<int[]> users, List<Integer> weights, int shard, int shards, int m,
+                                    Pruner pruner) {
+        LongIntMap coCount = new LongIntMap(pruner.maxEntries > 0 ? Math.min(1024, pruner.maxEntries) : 1024);
+        int[] itemCount = new int[m];
+        for (int u = shard; u < users.size(); u += shards) {
+            int[] liked = users.get(u);
+            int w = weights.get(u);
+            for (int a = 0; a < liked.length; a++) {
+                itemCount[liked[a]]++;
+                long base = (long) liked[a] * m;
+                for (int b = a + 1; b < liked.length; b++) {
+                    pruner.beforeAdd(coCount);
+                    coCount.addTo(base + liked[b], w);
+                }
+            }
+        }
+        return new Shard(coCount, itemCount, pruner);
+    }
+
+    /**
+     * Streaming pruning of a co-occurrence map kept within a byte budget
+     * 流式剪枝：表中的项数到上限（再插入就要扩容超出预算）时删掉计数低于阈值的物品对，
+     * 阈值逐步提高直到只剩一半；被删掉的物品对之后重新从 0 开始计数（与 lossy counting 相同的近似）
+     */
+    static class Pruner {
+        final int maxEntries;
+        int threshold;
+        int prunes;
+
+        Pruner(long budgetBytes, int unit) {
+            if (budgetBytes <= 0) {
+                this.maxEntries = 0;
+            } else {
+                // 容量为 2 的幂、装载因子不超过 0.5：预算内最大容量的一半减一
+                long slots = Math.max(4L, Math.min(budgetBytes / SLOT_BYTES, 1L << 30));
+                this.maxEntries = (int) (Long.highestOneBit(slots) / 2 - 1);
+            }
+            this.threshold = unit;
+        }
+
+        void beforeAdd(LongIntMap coCount) {
+            if (maxEntries <= 0 || coCount.size() < maxEntries) {
+                return;
+            }
+            prunes++;
+            while (true) {
+                coCount.removeBelow(threshold);
+                if (coCount.size() <= maxEntries / 2) {
+                    break;
+                }
+                threshold = Math.max(threshold + 1, threshold + threshold / 4);
+            }
+        }
+    }
+
+    // log(3) / log(1 + n) 的定点数：只喜欢 2 个的用户为 IUF_UNIT
+    private static int iufWeight(int likes) {
+        return Math.max(1, (int) Math.round(IUF_UNIT * Math.log(3.0) / Math.log1p(likes)));
+    }
+
+    // 从升序下标中不放回抽取 k 个（部分 Fisher-Yates，种子只取决于用户序号），结果重新排为升序
+    private static int[] sample(int[] idx, int k, int userOrdinal) {
+        int[] copy = idx.clone();
+        Random random = new Random(0x5DEECE66DL ^ userOrdinal);
+        for (int a = 0; a < k; a++) {
+            int b = a + random.nextInt(copy.length - a);
+            int tmp = copy[a];
+            copy[a] = copy[b];
+            copy[b] = tmp;
+        }
+        int[] picked = Arrays.copyOf(copy, k);
+        Arrays.sort(picked);
+        return picked;
+    }
+
+    // 物品对 (i, j) 的相似度放进两端中属于 owner 的堆
+    private static void offerPair(NeighborHeap[] heaps, long key, int co, int m, int unit, int[] itemCount,
+                                  int maxNeighbors, int owner, int owners) {
+        int i = (int) (key / m);
+        int j = (int) (key % m);
+        double sim = (double) co / unit / Math.sqrt((double) itemCount[i] * (double) itemCount[j]);
+        if (i % owners == owner) {
+            offer(heaps, i, j, sim, maxNeighbors);
+        }
+        if (j % owners == owner) {
+            offer(heaps, j, i, sim, maxNeighbors);
+        }
+    }
+
+    /**
+     * Growable list of slot numbers
+     * 槽位号的可增长数组
+     */
+    private static final class SlotList {
+        int[] values = new int[64];
+        int size;
+
+        void add(int slot) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = slot;
+        }
+    }
+
+    private static void offer(NeighborHeap[] heaps, int i, int j, double sim, int capacity) {
+        NeighborHeap heap = heaps[i];
+        if (heap == null) {
+            heap = new NeighborHeap(capacity);
+            heaps[i] = heap;
+        }
+        heap.offer(j, sim);
+    }
+
+    /**
+     * Bounded min-heap of (item index, sim); the root is the weakest neighbour kept
+     * 有界小顶堆，堆顶是当前保留的最弱近邻；同分时下标大的更弱（下标与 wallpaperId 同序）
+     */
+    static class NeighborHeap {
+        final int capacity;
+        int[] items;
+        double[] sims;
+        int size;
+
+        NeighborHeap(int capacity) {
+            // 按需扩容，近邻很少的物品不会占满 capacity
+            this.capacity = capacity;
+            this.items = new int[Math.min(capacity, 8)];
+            this.sims = new double[items.length];
+        }
+
+        void offer(int item, double sim) {
+            if (capacity == 0) {
+                return;
+            }
+            if (size < capacity) {
+                if (size == items.length) {
+                    int grown = Math.min(capacity, items.length * 2);
+                    items = Arrays.copyOf(items, grown);
+                    sims = Arrays.copyOf(sims, grown);
+                }
+                items[size] = item;
+                sims[size] = sim;
+                siftUp(size++);
+            } else if (weaker(items[0], sims[0], item, sim)) {
+                items[0] = item;
+                sims[0] = sim;
+                siftDown(0);
+            }
+        }
+
+        // a 是否比 b 弱
+        private static boolean weaker(int a, double simA, int b, double simB) {
+            return simA < simB || (simA == simB && a > b);
+        }
+
+        private void siftUp(int k) {
+            while (k > 0) {
+                int parent = (k - 1) >>> 1;
+                if (!weaker(items[k], sims[k], items[parent], sims[parent])) {
+                    break;
+                }
+                swap(k, parent);
+                k = parent;
+            }
+        }
+
+        private void siftDown(int k) {
+            while (true) {
+                int left = 2 * k + 1;
+                if (left >= size) {
+                    break;
+                }
+                int weakest = left;
+                int right = left + 1;
+                if (right < size && weaker(items[right], sims[right], items[left], sims[left])) {
+                    weakest = right;
+                }
+                if (!weaker(items[weakest], sims[weakest], items[k], sims[k])) {
+                    break;
+                }
+                swap(k, weakest);
+                k = weakest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int item = items[a];
+            items[a] = items[b];
+            items[b] = item;
+            double sim = sims[a];
+            sims[a] = sims[b];
+            sims[b] = sim;
+        }
+    }
+
+    private static int[] distinctItems(List<int[]> likedByUser) {
+        int total = 0;
+        for (int[] liked : likedByUser) {
+            total += liked == null ? 0 : liked.length;
+        }
+        int[] all = new int[total];
+        int n = 0;
+        for (int[] liked : likedByUser) {
+            if (liked != null) {
+                System.arraycopy(liked, 0, all, n, liked.length);
+                n += liked.length;
+            }
+        }
+        return uniqueSorted(all, n);
+    }
+
+    private static int[] toIndices(int[] liked, int[] itemIds) {
+        int[] idx = new int[liked.length];
+        for (int k = 0; k < liked.length; k++) {
+            idx[k] = Arrays.binarySearch(itemIds, liked[k]);
+        }
+        return uniqueSorted(idx, idx.length);
+    }
+
+    static int[] uniqueSorted(int[] values, int n) {
+        Arrays.sort(values, 0, n);
+        int unique = 0;
+        for (int k = 0; k < n; k++) {
+            if (k == 0 || values[k] != values[k - 1]) {
+                values[unique++] = values[k];
+            }
+        }
+        return Arrays.copyOf(values, unique);
+    }
+
+    interface ShardTask<T> {
+        T run(int shard);
+    }
+
+    // 在线程池上跑 shards 个任务（pool 为 null 时在当前线程依次执行），按分片号顺序返回结果；MinHashLSHIndex 也用它并行构建
+    static <T> List<T> runAll(ExecutorService pool, int shards, ShardTask<T> task) {
+        List<T> results = new ArrayList<>(shards);
+        if (pool == null) {
+            for (int s = 0; s < shards; s++) {
+                results.add(task.run(s));
+            }
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<>(shards);
+        for (int s = 0; s < shards; s++) {
+            int shard = s;
+            futures.add(pool.submit(() -> task.run(shard)));
+        }
+        try {
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Parallel build interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Parallel build failed", e.getCause());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,294 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.util.IntIntMap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * ItemCFModelFile - memory-mapped ItemCF similarity model built offline
+ * 离线构建的 ItemCF 相似度模型文件：CSR 布局（int 近邻 id + float 相似度）加每个物品的喜欢人数与共现计数，启动时内存映射加载
+ *
+ * 文件格式（大端）：
+ * - 头部：magic, version, builtAt(long), ratingCount, maxNeighbors, itemCount, neighborCount, coEntryCount
+ * - itemIds[itemCount]：被喜欢过的 wallpaperId，升序
+ * - likedUserCount[itemCount]：每个物品的喜欢人数
+ * - rowStart[itemCount + 1]：第 k 个物品的近邻在 [rowStart[k], rowStart[k+1]) 区间
+ * - neighbors[neighborCount]：近邻 wallpaperId（每行内升序）
+ * - sims[neighborCount]：对应的相似度（float）
+ * - 精确构建时（coEntryCount >= 0）再写共现计数，供增量更新直接使用：coStart[itemCount + 1]，
+ *   coNeighbors[coEntryCount]（每行内升序，两个方向都存），coCounts[coEntryCount]；有界构建的计数是近似的，coEntryCount 为 -1
+ *
+ * 判定过期：构建时的评分总数与当前不同则文件仍可使用，但在线服务会在后台重新构建。
+ * 近邻、相似度与共现计数在服务期间一直读映射区，不复制到堆。
+ * 由 tools.ItemCFModelBuilder 生成（单文件不超过 2GB）。
+ */
+public class ItemCFModelFile {
+
+    static final int MAGIC = 0x57494346; // "WICF"
+    static final int VERSION = 2;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 * 5;
+
+    private final long builtAt;
+    private final int ratingCount;
+    private final int maxNeighbors;
+    private final int[] itemIds;
+    private final int[] likedUserCount;
+    private final int[] rowStart;
+    private final IntBuffer neighbors;
+    private final FloatBuffer sims;
+    // 共现计数，文件中没有时为 null
+    private final int[] coStart;
+    private final IntBuffer coNeighbors;
+    private final IntBuffer coCounts;
+
+    private ItemCFModelFile(long builtAt, int ratingCount, int maxNeighbors, int[] itemIds, int[] likedUserCount,
+                            int[] rowStart, IntBuffer neighbors, FloatBuffer sims, int[] coStart,
+                            IntBuffer coNeighbors, IntBuffer coCounts) {
+        this.builtAt = builtAt;
+        this.ratingCount = ratingCount;
+        this.maxNeighbors = maxNeighbors;
+        this.itemIds = itemIds;
+        this.likedUserCount = likedUserCount;
+        this.rowStart = rowStart;
+        this.neighbors = neighbors;
+        this.sims = sims;
+        this.coStart = coStart;
+        this.coNeighbors = coNeighbors;
+        this.coCounts = coCounts;
+    }
+
+    /**
+     * Map a model file; the neighbour and similarity arrays stay in the mapped region
+     * 映射模型文件：物品表读入数组，近邻、相似度与共现计数直接读映射区
+     * @throws IOException if the file is missing, truncated or has an unknown format
+     */
+    public static ItemCFModelFile open(String path) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < HEADER_BYTES || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException("Unknown ItemCF model format: " + path);
+            }
+            long builtAt = buf.getLong();
+            int ratingCount = buf.getInt();
+            int maxNeighbors = buf.getInt();
+            int itemCount = buf.getInt();
+            int neighborCount = buf.getInt();
+            int coEntryCount = buf.getInt();
+            long expected = HEADER_BYTES + 4L * (3L * itemCount + 1) + 8L * neighborCount
+                    + (coEntryCount >= 0 ? 4L * (itemCount + 1) + 8L * coEntryCount : 0L);
+            if (itemCount < 0 || neighborCount < 0 || coEntryCount < -1 || channel.size() != expected) {
+                throw new IOException("Truncated ItemCF model file: " + path);
+            }
+            IntBuffer ints = buf.asIntBuffer();
+            int[] itemIds = new int[itemCount];
+            int[] likedUserCount = new int[itemCount];
+            int[] rowStart = new int[itemCount + 1];
+            ints.get(itemIds).get(likedUserCount).get(rowStart);
+
+            int offset = buf.position() + 4 * ints.position();
+            IntBuffer neighbors = section(buf, offset, neighborCount).asIntBuffer();
+            offset += 4 * neighborCount;
+            FloatBuffer sims = section(buf, offset, neighborCount).asFloatBuffer();
+            offset += 4 * neighborCount;
+
+            int[] coStart = null;
+            IntBuffer coNeighbors = null;
+            IntBuffer coCounts = null;
+            if (coEntryCount >= 0) {
+                coStart = new int[itemCount + 1];
+                section(buf, offset, itemCount + 1).asIntBuffer().get(coStart);
+                offset += 4 * (itemCount + 1);
+                coNeighbors = section(buf, offset, coEntryCount).asIntBuffer();
+                offset += 4 * coEntryCount;
+                coCounts = section(buf, offset, coEntryCount).asIntBuffer();
+            }
+            return new ItemCFModelFile(builtAt, ratingCount, maxNeighbors, itemIds, likedUserCount, rowStart,
+                    neighbors, sims, coStart, coNeighbors, coCounts);
+        }
+    }
+
+    // 映射区中从 offset 开始的 count 个 4 字节值
+    private static ByteBuffer section(MappedByteBuffer buf, int offset, int count) {
+        ByteBuffer view = buf.duplicate();
+        view.position(offset).limit(offset + 4 * count);
+        return view.slice();
+    }
+
+    /**
+     * The serving matrix, reading neighbours and similarities from the mapped file
+     * 在线使用的相似度矩阵：去掉空行后直接读映射区，不复制近邻与相似度
+     */
+    public SparseSimilarityMatrix matrix() {
+        int rows = 0;
+        for (int k = 0; k < itemIds.length; k++) {
+            if (rowStart[k + 1] > rowStart[k]) {
+                rows++;
+            }
+        }
+        int[] rowIds = new int[rows];
+        int[] starts = new int[rows + 1];
+        int r = 0;
+        for (int k = 0; k < itemIds.length; k++) {
+            if (rowStart[k + 1] > rowStart[k]) {
+                rowIds[r] = itemIds[k];
+                starts[++r] = rowStart[k + 1];
+            }
+        }
+        return SparseSimilarityMatrix.mapped(rowIds, starts, neighbors.duplicate(), sims.duplicate());
+    }
+
+    /**
+     * Whether the file carries exact co-like counts for the incremental updater
+     * 文件是否带有精确的共现计数（精确构建才有），有则增量更新不需要全量重建
+     */
+    public boolean hasCoOccurrence() {
+        return coStart != null;
+    }
+
+    /**
+     * Co-like counts read from the mapped file
+     * 共现计数表，基础部分直接读映射区
+     */
+    CoOccurrenceTable coOccurrence() {
+        if (coStart == null) {
+            throw new IllegalStateException("ItemCF model file has no co-occurrence counts");
+        }
+        return new CoOccurrenceTable(itemIds, coStart, coNeighbors.duplicate(), coCounts.duplicate());
+    }
+
+    /**
+     * Liked-user counts of all items as a primitive map
+     * 所有物品的喜欢人数（IntIntMap，供增量更新继续累加）
+     */
+    IntIntMap likedUserCounts() {
+        IntIntMap counts = new IntIntMap(itemIds.length);
+        for (int k = 0; k < itemIds.length; k++) {
+            counts.addTo(itemIds[k], likedUserCount[k]);
+        }
+        return counts;
+    }
+
+    public long getBuiltAt() {
+        return builtAt;
+    }
+
+    public int getRatingCount() {
+        return ratingCount;
+    }
+
+    public int getMaxNeighbors() {
+        return maxNeighbors;
+    }
+
+    public int getItemCount() {
+        return itemIds.length;
+    }
+
+    public int getNeighborCount() {
+        return rowStart[itemIds.length];
+    }
+
+    /**
+     * Liked-user count of an item, 0 when it was never liked at build time
+     * 物品的喜欢人数，构建时没人喜欢过则为 0
+     */
+    public int likedUserCount(int wallpaperId) {
+        int k = Arrays.binarySearch(itemIds, wallpaperId);
+        return k < 0 ? 0 : likedUserCount[k];
+    }
+
+    /**
+     * Write a model file atomically (temp file + rename)
+     * 写出模型文件：先写临时文件再原子替换，在线服务读到的总是完整文件
+     * @param ratingCount total ratings the model was built from, used to detect staleness
+     * @return bytes written
+     */
+    public static long write(String path, ItemCFBuilder.Result result, int maxNeighbors,
+                             int ratingCount) throws IOException {
+        int[] itemIds = new int[result.likedUserCount.size()];
+        int n = 0;
+        for (Integer id : result.likedUserCount.keySet()) {
+            itemIds[n++] = id;
+        }
+        Arrays.sort(itemIds);
+        SparseSimilarityMatrix matrix = result.similarities;
+        int neighborCount = matrix.nonZeros();
+        CoOccurrenceTable coCounts = result.exact ? result.coOccurrence() : null;
+        if (coCounts != null && coCounts.itemCount() != itemIds.length) {
+            throw new IllegalStateException("Co-occurrence table has " + coCounts.itemCount() + " items, expected "
+                    + itemIds.length);
+        }
+
+        File target = new File(path);
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            parent.mkdirs();
+        }
+        File tmp = File.createTempFile("itemcf", ".tmp", parent);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(ratingCount);
+            out.writeInt(maxNeighbors);
+            out.writeInt(itemIds.length);
+            out.writeInt(neighborCount);
+            out.writeInt(coCounts == null ? -1 : coCounts.entryCount());
+            for (int id : itemIds) {
+                out.writeInt(id);
+            }
+            for (int id : itemIds) {
+                out.writeInt(result.likedUserCount.get(id));
+            }
+            // 矩阵的行是喜欢过的物品的子集（没有近邻的物品在文件里是空行），列与值按矩阵顺序原样写出
+            int offset = 0;
+            for (int id : itemIds) {
+                out.writeInt(offset);
+                offset += matrix.rowSize(id);
+            }
+            out.writeInt(offset);
+            for (int id : itemIds) {
+                matrix.forEachInRow(id, (j, sim) -> writeInt(out, j));
+            }
+            for (int id : itemIds) {
+                matrix.forEachInRow(id, (j, sim) -> writeInt(out, Float.floatToIntBits(sim)));
+            }
+            if (coCounts != null) {
+                coCounts.writeTo(out);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp.toPath());
+            if (e instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e).getCause();
+            }
+            throw e;
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return target.length();
+    }
+
+    // forEachInRow 的回调不能抛受检异常
+    private static void writeInt(DataOutputStream out, int value) {
+        try {
+            out.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
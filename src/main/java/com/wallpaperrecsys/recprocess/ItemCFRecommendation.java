@@ -4,16 +4,37 @@ import com.wallpaperrecsys.datamanager.Rating;
 import com.wallpaperrecsys.datamanager.User;
 import com.wallpaperrecsys.datamanager.Wallpaper;
 import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.recprocess.pipeline.DeadlineExceededException;
+import com.wallpaperrecsys.recprocess.pipeline.RequestDeadline;
+import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.IntDoubleMap;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.io.File;
+import java.io.IOException;
 
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntPredicate;
 
 /**
  * Item-based Collaborative Filtering (ItemCF) recommender for personalization.
  * 基于物品的协同过滤（ItemCF）个性化推荐：用用户共同喜欢的壁纸构建物品相似度。
  *
  * 说明：
- * - 在线推荐场景下，这里直接用当前加载到内存的 ratings 构建相似度（一次构建，多次复用）。
+ * - 服务启动时 warmUp() 内存映射加载 tools.ItemCFModelBuilder 离线生成的模型文件（Config.ITEMCF_MODEL_PATH），
+ *   近邻表直接读映射区；文件过期（评分总数不同）时在后台线程用当前 ratings 重新构建，没有文件时直接在后台构建。
+ *   文件未过期且带有共现计数时，增量更新直接以文件里的计数为基础，不做全量构建。
+ *   请求线程里同步构建只是兜底（未调用 warmUp 的离线工具、或请求早于后台构建完成且没有截止时间）。
  * - 离线评测会在 eval 包里用训练集单独构建，避免数据泄漏。
+ * - Config.ITEMCF_INCREMENTAL 开启时，构建后新的“喜欢”由 ItemCFUpdater 在后台线程增量更新近邻表；
+ *   近邻表整体以 volatile 引用发布，读者每次调用只取一次引用，看到的总是一致的表。
+ * - 近邻表是 SparseSimilarityMatrix（CSR，int 列 id + float 相似度），与离线评测、模型文件是同一种表示与打分方式。
  */
 public class ItemCFRecommendation {
 
@@ -22,14 +43,20 @@ public class ItemCFRecommendation {
     // 认为“喜欢”的评分阈值（可按数据分布调整）
     private static final double LIKE_THRESHOLD = 4.0;
     // 每个物品保留的近邻数量（控制内存与速度）
-    private static final int MAX_NEIGHBORS = 80;
+    public static final int MAX_NEIGHBORS = 80;
 
     private volatile boolean built = false;
+    // 有截止时间的请求触发的后台构建任务，请求只等待到自己的截止时间
+    private FutureTask<Void> backgroundBuild;
+
+    // 构建开始后新的喜欢才需要进入增量队列（之前的评分会被全量构建直接读到）
+    private volatile boolean buildStarted = false;
 
-    // i -> (j -> sim(i,j))，只保存 Top-N 近邻
-    private final Map<Integer, Map<Integer, Double>> itemTopSim = new HashMap<>();
-    // i -> countLikedUsers
-    private final Map<Integer, Integer> itemLikedUserCount = new HashMap<>();
+    // 第 i 行为 i 的 Top-N 近邻 j 与 sim(i,j)；不可变，增量更新时整体替换
+    private volatile SparseSimilarityMatrix itemTopSim = SparseSimilarityMatrix.EMPTY;
+    // 等待增量更新的喜欢事件；后台线程在全量构建完成后开始消费
+    private final BlockingQueue<ItemCFUpdater.Event> pendingLikes = new LinkedBlockingQueue<>();
+    private ItemCFUpdater updater;
 
     private ItemCFRecommendation() {
     }
@@ -38,7 +65,9 @@ public class ItemCFRecommendation {
         if (instance == null) {
             synchronized (ItemCFRecommendation.class) {
                 if (instance == null) {
-                    instance = new ItemCFRecommendation();
+                    ItemCFRecommendation created = new ItemCFRecommendation();
+                    WallpaperDataManager.getInstance().addRatingListener(created::onRating);
+                    instance = created;
                 }
             }
         }
@@ -57,6 +86,7 @@ public class ItemCFRecommendation {
             return fallbackPopularity(candidateWallpaperId);
         }
 
+        SparseSimilarityMatrix table = itemTopSim;
         double sum = 0.0;
         int used = 0;
 
@@ -64,19 +94,11 @@ public class ItemCFRecommendation {
             if (r.getScore() < LIKE_THRESHOLD) {
                 continue;
             }
-            int likedItemId = r.getWallpaperId();
-            Map<Integer, Double> neighbors = itemTopSim.get(likedItemId);
-            if (neighbors == null) {
-                continue;
-            }
-            Double sim = neighbors.get(candidateWallpaperId);
-            if (sim == null) {
+            double sim = table.get(r.getWallpaperId(), candidateWallpaperId, Double.NaN);
+            if (Double.isNaN(sim)) {
                 continue;
             }
-
-            // 用评分强度做轻量加权（归一化到 0~1）
-            double pref = Math.min(Math.max(r.getScore() / 5.0, 0.0), 1.0);
-            sum += sim * pref;
+            sum += sim * preference(r.getScore());
             used++;
         }
 
@@ -86,8 +108,147 @@ public class ItemCFRecommendation {
         return sum;
     }
 
+    /**
+     * Recall candidates from the neighbours of the user's liked items.
+     * 召回：汇总用户喜欢物品的 Top-N 近邻（sim * 偏好强度），返回得分最高的 budget 个 wallpaperId。
+     */
+    public List<Integer> recall(int userId, int budget, IntPredicate exclude) {
+        if (budget <= 0) {
+            return new ArrayList<>();
+        }
+        return neighborScores(userId, exclude).topKeys(budget);
+    }
+
+    /**
+     * Aggregate sim * preference over the neighbours of the user's liked items, computed once per request.
+     * 汇总用户喜欢物品的近邻得分（sim * 偏好强度），每个请求只算一次；
+     * 某个候选在结果中的值等于 score(userId, candidate) 在有 ItemCF 信号时的返回值，没有信号的候选不在结果中；
+     * 结果是不装箱的 IntDoubleMap，融合 / 学习排序逐候选查找时不分配对象。
+     */
+    public IntDoubleMap neighborScores(int userId, IntPredicate exclude) {
+        User user = WallpaperDataManager.getInstance().getUserById(userId);
+        if (user == null || user.getRatings() == null || user.getRatings().isEmpty()) {
+            return new IntDoubleMap(4);
+        }
+        ensureBuilt();
+
+        SparseSimilarityMatrix table = itemTopSim;
+        IntDoubleMap score = new IntDoubleMap(256);
+        for (Rating r : user.getRatings()) {
+            if (r.getScore() >= LIKE_THRESHOLD) {
+                table.accumulateRow(r.getWallpaperId(), preference(r.getScore()), exclude, score);
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Weight of a liked item's neighbours: the rating normalised to 0~1 (shared with offline evaluation)
+     * 喜欢物品的近邻权重：评分强度归一化到 0~1（离线评测用同一个函数）
+     */
+    public static double preference(double score) {
+        return Math.min(Math.max(score / 5.0, 0.0), 1.0);
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Ensure the model is built, waiting no longer than the request deadline.
+     * 有截止时间时在后台线程构建，只等待到截止时间，来不及则抛出 DeadlineExceededException（构建继续，后续请求直接复用）；
+     * 没有截止时间时与 ensureBuilt() 相同，在当前线程同步构建。
+     */
+    public void ensureBuilt(RequestDeadline deadline) {
+        if (built) {
+            return;
+        }
+        if (!deadline.isBounded()) {
+            ensureBuilt();
+            return;
+        }
+        FutureTask<Void> task = startBackgroundBuild(this::buildIfMissing);
+        try {
+            task.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException("itemcf.build");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("itemcf.build");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("ItemCF build failed", e.getCause());
+        }
+    }
+
+    /**
+     * Load the offline model file and start the background build, called once at server startup.
+     * 服务启动时调用：能加载模型文件则立即可用（开启增量更新时用文件里的共现计数启动 ItemCFUpdater），
+     * 文件过期、或开启增量更新但文件没有共现计数（有界构建）时在后台用当前评分重新构建；
+     * 没有可用文件时直接开始后台构建。都不阻塞调用线程。
+     */
+    public void warmUp() {
+        if (built) {
+            return;
+        }
+        boolean refresh = true;
+        File file = new File(Config.ITEMCF_MODEL_PATH);
+        if (file.isFile()) {
+            long start = System.nanoTime();
+            try {
+                ItemCFModelFile model = ItemCFModelFile.open(file.getPath());
+                List<User> users = WallpaperDataManager.getInstance().getAllUsers();
+                boolean seed = Config.ITEMCF_INCREMENTAL && model.hasCoOccurrence();
+                Map<Integer, int[]> likedByUser = null;
+                if (seed) {
+                    // 先开始接收喜欢事件，再取喜欢快照，最后数评分：快照之后的新评分要么让文件判为过期，要么进入增量队列
+                    buildStarted = true;
+                    likedByUser = likedByUser(users);
+                }
+                int ratingCount = totalRatings(users);
+                boolean stale = model.getRatingCount() != ratingCount;
+                synchronized (this) {
+                    if (!built) {
+                        itemTopSim = model.matrix();
+                        built = true;
+                        if (seed && !stale) {
+                            updater = new ItemCFUpdater(this, pendingLikes, MAX_NEIGHBORS, model.coOccurrence(),
+                                    model.likedUserCounts(), likedByUser);
+                            startUpdater();
+                        }
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                RecMetrics.record("itemcf.model.load", nanos, model.getNeighborCount(), itemTopSim.rowCount());
+                System.out.println("ItemCF model loaded from " + file.getPath() + ": " + model.getItemCount()
+                        + " items, " + model.getNeighborCount() + " neighbours in " + nanos / 1_000_000 + " ms"
+                        + (stale ? " (stale: built from " + model.getRatingCount() + " ratings, now " + ratingCount + ")"
+                        : seed ? ", incremental updates start from the file's co-occurrence counts" : ""));
+                refresh = stale || (Config.ITEMCF_INCREMENTAL && !model.hasCoOccurrence());
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Failed to load ItemCF model from " + file.getPath() + ": " + e.getMessage());
+            }
+        }
+        if (refresh) {
+            startBackgroundBuild(this::rebuild);
+        }
+    }
+
+    // 启动（或复用进行中的）后台构建任务；上一次任务失败且模型仍不可用时重新启动
+    private FutureTask<Void> startBackgroundBuild(Runnable build) {
+        synchronized (ItemCFRecommendation.class) {
+            if (backgroundBuild == null || (backgroundBuild.isDone() && !built)) {
+                backgroundBuild = new FutureTask<>(build, null);
+                Thread t = new Thread(backgroundBuild, "itemcf-build");
+                t.setDaemon(true);
+                t.start();
+            }
+            return backgroundBuild;
+        }
+    }
+
     /**
      * Ensure the similarity model is built once.
+     * 兜底：模型不可用时在当前线程同步构建（计入 itemcf.build.inRequest）
      */
     private void ensureBuilt() {
         if (built) {
@@ -97,14 +258,58 @@ public class ItemCFRecommendation {
             if (built) {
                 return;
             }
-            buildFromLoadedRatings();
-            built = true;
+            RecMetrics.increment("itemcf.build.inRequest");
+            rebuild();
+        }
+    }
+
+    private synchronized void buildIfMissing() {
+        if (!built) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Build from the current ratings and publish, replacing a table loaded from file.
+     * 用当前评分全量构建并发布；已从文件加载时构建期间继续用文件里的表服务
+     */
+    private synchronized void rebuild() {
+        buildStarted = true;
+        buildFromLoadedRatings();
+        built = true;
+        startUpdater();
+    }
+
+    private void startUpdater() {
+        if (updater != null) {
+            Thread t = new Thread(updater, "itemcf-updater");
+            t.setDaemon(true);
+            t.start();
         }
     }
 
+    /**
+     * Queue a new like for the incremental updater
+     * 数据层新增评分时回调：喜欢事件进入增量队列（未开启增量或构建尚未开始时忽略）
+     */
+    void onRating(Rating rating) {
+        if (!Config.ITEMCF_INCREMENTAL || !buildStarted || rating.getScore() < LIKE_THRESHOLD) {
+            return;
+        }
+        pendingLikes.offer(new ItemCFUpdater.Event(rating.getUserId(), rating.getWallpaperId()));
+    }
+
+    SparseSimilarityMatrix neighborTable() {
+        return itemTopSim;
+    }
+
+    void publish(SparseSimilarityMatrix table) {
+        itemTopSim = table;
+    }
+
     /**
      * Build item-item similarity using co-occurrence on "liked" interactions.
-     * 用“喜欢”行为的共现构建物品相似度：sim(i,j)=co(i,j)/sqrt(cnt(i)*cnt(j))
+     * 用“喜欢”行为的共现构建物品相似度：sim(i,j)=co(i,j)/sqrt(cnt(i)*cnt(j))，由 ItemCFBuilder 按用户分片并行计数
      */
     private void buildFromLoadedRatings() {
         List<User> users = WallpaperDataManager.getInstance().getAllUsers();
@@ -112,87 +317,63 @@ public class ItemCFRecommendation {
             return;
         }
 
-        // i -> (j -> coCount)
-        Map<Integer, Map<Integer, Integer>> coCount = new HashMap<>();
+        long start = System.nanoTime();
+        Map<Integer, int[]> likedByUser = likedByUser(users);
+
+        ItemCFBuilder.Bounds bounds = ItemCFBuilder.Bounds.fromConfig();
+        ItemCFBuilder.Result result = ItemCFBuilder.build(new ArrayList<>(likedByUser.values()), MAX_NEIGHBORS,
+                Config.ITEMCF_BUILD_THREADS, bounds);
+        itemTopSim = result.similarities;
+        // 有界构建的共现计数是近似的，不能在其上做增量更新
+        CoOccurrenceTable coCounts = null;
+        if (Config.ITEMCF_INCREMENTAL && result.exact) {
+            coCounts = result.coOccurrence();
+            updater = new ItemCFUpdater(this, pendingLikes, MAX_NEIGHBORS, coCounts,
+                    ItemCFUpdater.likedUserCount(result.likedUserCount), likedByUser);
+        }
+        System.out.println("ItemCF built: " + itemTopSim.rowCount() + " items, " + itemTopSim.nonZeros() + " neighbours ("
+                + itemTopSim.memoryBytes() / 1024 + " KB), " + result.pairs + " co-occurring pairs in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms (" + Config.ITEMCF_BUILD_THREADS + " threads, "
+                + bounds + (result.prunes > 0 ? ", " + result.prunes + " prunes" : "") + ")"
+                + (coCounts != null ? "; incremental co-counts " + coCounts.basePairs() + " pairs ("
+                        + coCounts.baseHeapBytes() / 1024 + " KB)" : ""));
+    }
 
+    /**
+     * Liked wallpaper ids of every user with at least one like (duplicates are removed by ItemCFBuilder)
+     * 每个用户喜欢的 item 列表，userId -> wallpaperId 数组（去重由 ItemCFBuilder 负责）
+     */
+    public static Map<Integer, int[]> likedByUser(List<User> users) {
+        Map<Integer, int[]> likedByUser = new HashMap<>();
         for (User u : users) {
             List<Rating> ratings = u.getRatings();
             if (ratings == null || ratings.isEmpty()) {
                 continue;
             }
-
-            // 该用户喜欢的 item 集合
-            List<Integer> liked = new ArrayList<>();
+            int[] liked = new int[ratings.size()];
+            int n = 0;
             for (Rating r : ratings) {
                 if (r.getScore() >= LIKE_THRESHOLD) {
-                    liked.add(r.getWallpaperId());
+                    liked[n++] = r.getWallpaperId();
                 }
             }
-            if (liked.size() < 2) {
-                // size==1 仍需要更新 itemLikedUserCount
-                for (Integer itemId : liked) {
-                    itemLikedUserCount.put(itemId, itemLikedUserCount.getOrDefault(itemId, 0) + 1);
-                }
-                continue;
-            }
-
-            // 去重避免一个用户对同一物品多次计数
-            Collections.sort(liked);
-            List<Integer> uniqueLiked = new ArrayList<>();
-            Integer prev = null;
-            for (Integer x : liked) {
-                if (prev == null || !prev.equals(x)) {
-                    uniqueLiked.add(x);
-                }
-                prev = x;
-            }
-
-            for (Integer itemId : uniqueLiked) {
-                itemLikedUserCount.put(itemId, itemLikedUserCount.getOrDefault(itemId, 0) + 1);
-            }
-
-            int n = uniqueLiked.size();
-            for (int a = 0; a < n; a++) {
-                int i = uniqueLiked.get(a);
-                Map<Integer, Integer> row = coCount.computeIfAbsent(i, k -> new HashMap<>());
-                for (int b = a + 1; b < n; b++) {
-                    int j = uniqueLiked.get(b);
-                    row.put(j, row.getOrDefault(j, 0) + 1);
-                    // 对称
-                    Map<Integer, Integer> row2 = coCount.computeIfAbsent(j, k -> new HashMap<>());
-                    row2.put(i, row2.getOrDefault(i, 0) + 1);
-                }
+            if (n > 0) {
+                likedByUser.put(u.getUserId(), Arrays.copyOf(liked, n));
             }
         }
+        return likedByUser;
+    }
 
-        // 计算相似度并保留 Top-N
-        for (Map.Entry<Integer, Map<Integer, Integer>> e : coCount.entrySet()) {
-            int i = e.getKey();
-            int cntI = itemLikedUserCount.getOrDefault(i, 0);
-            if (cntI <= 0) {
-                continue;
-            }
-
-            List<Map.Entry<Integer, Double>> sims = new ArrayList<>();
-            for (Map.Entry<Integer, Integer> e2 : e.getValue().entrySet()) {
-                int j = e2.getKey();
-                int cntJ = itemLikedUserCount.getOrDefault(j, 0);
-                if (cntJ <= 0) {
-                    continue;
-                }
-                int co = e2.getValue();
-                double sim = co / Math.sqrt((double) cntI * (double) cntJ);
-                sims.add(new AbstractMap.SimpleEntry<>(j, sim));
-            }
-
-            sims.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
-            Map<Integer, Double> top = new HashMap<>();
-            int limit = Math.min(MAX_NEIGHBORS, sims.size());
-            for (int k = 0; k < limit; k++) {
-                top.put(sims.get(k).getKey(), sims.get(k).getValue());
-            }
-            itemTopSim.put(i, top);
+    /**
+     * Total number of ratings, stored in the model file to detect staleness
+     * 评分总数，写入模型文件用于判断是否过期
+     */
+    public static int totalRatings(List<User> users) {
+        int total = 0;
+        for (User u : users) {
+            total += u.getRatingCount();
         }
+        return total;
     }
 
     private double fallbackPopularity(int wallpaperId) {
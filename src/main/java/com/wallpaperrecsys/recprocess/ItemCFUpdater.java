@@ -0,0 +1,215 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.util.IntIntMap;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Background incremental updater of the ItemCF neighbour table
+ * ItemCF 增量更新：后台线程消费新的“喜欢”，更新共现计数与喜欢人数，只重算受影响物品的 Top-N 近邻
+ *
+ * 说明：
+ * - 全量构建后保留共现计数（CoOccurrenceTable：CSR 基础表 + 之后变化的增量）、喜欢人数（IntIntMap）
+ *   与每个用户已计入的喜欢（升序去重的 int[]）；同一用户对同一物品的重复喜欢（包括全量构建时已经读到的评分）只计一次。
+ * - 常驻内存约为：每个共现物品对 16 字节 + 每个喜欢 4 字节 + 每个用户一个数组，再加启动后变化过的物品对的增量表；
+ *   不需要增量更新时关闭 Config.ITEMCF_INCREMENTAL，这些都不会保留。
+ * - 用户 u 新喜欢物品 i：co(i, j) 对 u 之前喜欢的每个 j 加一，cnt(i) 加一。需要重算的物品为 i 和这些 j；
+ *   当前近邻表里含有 i 的物品与 i 的相似度变小，i 仍在其 Top-N 内时只改这一项，否则整行重算；其他物品的 Top-N 不会变化。
+ * - 一批事件处理完后用 SparseSimilarityMatrix.withRows 替换受影响的行得到新矩阵，再整体发布（volatile 引用替换），
+ *   读者拿到的总是某一时刻的完整矩阵。
+ * - 暂不处理取消喜欢 / 改低评分。
+ * - 指标：itemcf.update.lag（事件入队到新表可见）、itemcf.update.batch（每批耗时，in=事件数，out=重算或修改的行数）、
+ *   itemcf.update.likes / itemcf.update.duplicate 计数，itemcf.update.queue 队列长度。
+ */
+class ItemCFUpdater implements Runnable {
+
+    // 单批最多处理的事件数，避免一次复制矩阵前积压过多
+    private static final int MAX_BATCH = 512;
+
+    /**
+     * A new like waiting to be applied
+     * 待处理的新喜欢
+     */
+    static class Event {
+        final int userId;
+        final int wallpaperId;
+        final long enqueuedNanos;
+
+        Event(int userId, int wallpaperId) {
+            this.userId = userId;
+            this.wallpaperId = wallpaperId;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    private final ItemCFRecommendation owner;
+    private final BlockingQueue<Event> queue;
+    private final int maxNeighbors;
+    private final CoOccurrenceTable coCount;
+    private final IntIntMap likedUserCount;
+    // userId -> 已计入的喜欢，升序去重
+    private final Map<Integer, int[]> likedByUser;
+
+    /**
+     * @param likedByUser liked ids per user as read by the build; the arrays are sorted and deduplicated in place
+     */
+    ItemCFUpdater(ItemCFRecommendation owner, BlockingQueue<Event> queue, int maxNeighbors,
+                  CoOccurrenceTable coCount, IntIntMap likedUserCount, Map<Integer, int[]> likedByUser) {
+        this.owner = owner;
+        this.queue = queue;
+        this.maxNeighbors = maxNeighbors;
+        this.coCount = coCount;
+        this.likedUserCount = likedUserCount;
+        this.likedByUser = likedByUser;
+        for (Map.Entry<Integer, int[]> e : likedByUser.entrySet()) {
+            e.setValue(ItemCFBuilder.uniqueSorted(e.getValue(), e.getValue().length));
+        }
+        RecMetrics.gauge("itemcf.update.queue", queue::size);
+    }
+
+    /**
+     * Liked-user counts of a build result as a primitive map
+     * 把构建结果的喜欢人数转成 IntIntMap
+     */
+    static IntIntMap likedUserCount(Map<Integer, Integer> counts) {
+        IntIntMap map = new IntIntMap(counts.size());
+        for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+            map.addTo(e.getKey(), e.getValue());
+        }
+        return map;
+    }
+
+    @Override
+    public void run() {
+        List<Event> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                try {
+                    apply(batch);
+                } catch (RuntimeException e) {
+                    System.err.println("ItemCF incremental update failed: " + e.getMessage());
+                    e.printStackTrace();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Apply a batch of likes and publish the updated neighbour table
+     * 处理一批喜欢并发布新的近邻表
+     */
+    void apply(List<Event> batch) {
+        long start = System.nanoTime();
+        SparseSimilarityMatrix current = owner.neighborTable();
+        Set<Integer> touched = new HashSet<>();
+        Set<Integer> countChanged = new HashSet<>();
+        int applied = 0;
+        for (Event e : batch) {
+            int[] liked = likedByUser.get(e.userId);
+            int i = e.wallpaperId;
+            int pos = liked == null ? -1 : Arrays.binarySearch(liked, i);
+            if (pos >= 0) {
+                RecMetrics.increment("itemcf.update.duplicate");
+                continue;
+            }
+            applied++;
+            likedUserCount.addTo(i, 1);
+            touched.add(i);
+            countChanged.add(i);
+            if (liked == null) {
+                likedByUser.put(e.userId, new int[] {i});
+                continue;
+            }
+            for (int j : liked) {
+                coCount.increment(i, j);
+                touched.add(j);
+            }
+            // 插入到升序位置
+            int at = -pos - 1;
+            int[] grown = new int[liked.length + 1];
+            System.arraycopy(liked, 0, grown, 0, at);
+            grown[at] = i;
+            System.arraycopy(liked, at, grown, at + 1, liked.length - at);
+            likedByUser.put(e.userId, grown);
+        }
+        // 喜欢人数变化的物品 i：当前近邻表里含有 i 的物品 k，与 i 的相似度变小。
+        // 若 k 的近邻未满，或新相似度仍严格大于 k 其他近邻中的最小值，i 留在 Top-N 中，只改这一项；否则整行重算
+        Map<Integer, Map<Integer, Double>> patched = new HashMap<>();
+        for (Integer i : countChanged) {
+            int cntI = likedUserCount.get(i, 0);
+            coCount.forEachNeighbor(i, (k, co) -> {
+                if (touched.contains(k)) {
+                    return;
+                }
+                Map<Integer, Double> row = patched.get(k);
+                if (row == null) {
+                    if (Double.isNaN(current.get(k, i, Double.NaN))) {
+                        return;
+                    }
+                    row = current.rowAsMap(k);
+                }
+                double sim = co / Math.sqrt((double) cntI * (double) likedUserCount.get(k, 0));
+                if (row.size() < maxNeighbors || sim > minExcluding(row, i)) {
+                    row.put(i, sim);
+                    patched.put(k, row);
+                } else {
+                    patched.remove(k);
+                    touched.add(k);
+                }
+            });
+        }
+
+        if (!touched.isEmpty() || !patched.isEmpty()) {
+            // 空行表示删除
+            Map<Integer, Map<Integer, Double>> replaced = new HashMap<>(patched);
+            for (Integer i : touched) {
+                replaced.put(i, topNeighbors(i));
+            }
+            owner.publish(current.withRows(replaced));
+        }
+
+        long now = System.nanoTime();
+        RecMetrics.record("itemcf.update.batch", now - start, batch.size(), touched.size() + patched.size());
+        RecMetrics.add("itemcf.update.likes", applied);
+        for (Event e : batch) {
+            RecMetrics.record("itemcf.update.lag", now - e.enqueuedNanos, 1, 1);
+        }
+    }
+
+    private static double minExcluding(Map<Integer, Double> row, int excluded) {
+        double min = Double.POSITIVE_INFINITY;
+        for (Map.Entry<Integer, Double> e : row.entrySet()) {
+            if (e.getKey() != excluded) {
+                min = Math.min(min, e.getValue());
+            }
+        }
+        return min;
+    }
+
+    // 与 ItemCFBuilder 相同的相似度与同分规则
+    private Map<Integer, Double> topNeighbors(int i) {
+        int cntI = likedUserCount.get(i, 0);
+        if (cntI <= 0) {
+            return Collections.emptyMap();
+        }
+        ItemCFBuilder.NeighborHeap heap = new ItemCFBuilder.NeighborHeap(maxNeighbors);
+        coCount.forEachNeighbor(i, (j, co) -> {
+            int cntJ = likedUserCount.get(j, 0);
+            if (cntJ > 0) {
+                heap.offer(j, co / Math.sqrt((double) cntI * (double) cntJ));
+            }
+        });
+        Map<Integer, Double> top = new HashMap<>();
+        for (int k = 0; k < heap.size; k++) {
+            top.put(heap.items[k], heap.sims[k]);
+        }
+        return Collections.unmodifiableMap(top);
+    }
+}
@@ -0,0 +1,192 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.util.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Logistic-regression ranker over RankingFeatures, trained offline from ratings
+ * 学习排序模型：RankingFeatures 上的逻辑回归，由 OfflineEvalMain --trainRanker 离线训练
+ *
+ * 说明：
+ * - 模型文件为 properties（bias、weight.{特征名}），路径 Config.LEARNED_RANKER_PATH；文件不存在时使用与 hybrid 默认权重相当的手工权重。
+ * - 线上只需要排序，score 输出 logit（与概率单调），对整个特征矩阵逐行点积，不分配任何对象。
+ * - 训练为全量梯度下降 + L2 正则，正负样本按类别频率加权（正例远少于负例）。
+ */
+public class LearnedRanker {
+
+    private static volatile LearnedRanker instance;
+
+    private final double bias;
+    private final double[] weights;
+
+    public LearnedRanker(double bias, double[] weights) {
+        if (weights.length != RankingFeatures.COUNT) {
+            throw new IllegalArgumentException("Expected " + RankingFeatures.COUNT + " weights, got " + weights.length);
+        }
+        this.bias = bias;
+        this.weights = weights.clone();
+    }
+
+    public static LearnedRanker getInstance() {
+        if (instance == null) {
+            synchronized (LearnedRanker.class) {
+                if (instance == null) {
+                    instance = loadOrDefault(Config.LEARNED_RANKER_PATH);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Re-read the model file after retraining
+     * 重新训练后重新加载模型文件
+     */
+    public static synchronized void reload() {
+        instance = loadOrDefault(Config.LEARNED_RANKER_PATH);
+    }
+
+    private static LearnedRanker loadOrDefault(String path) {
+        File file = new File(path);
+        if (file.isFile()) {
+            try {
+                LearnedRanker model = load(path);
+                System.out.println("Loaded learned ranker from " + path);
+                return model;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Failed to load learned ranker from " + path + ": " + e.getMessage());
+            }
+        }
+        return defaults();
+    }
+
+    /**
+     * Hand-set weights used until a trained model exists
+     * 没有训练好的模型时的手工权重：与 hybrid 默认的 embedding 0.5 / ItemCF 0.3 / 流行度 0.2 相当
+     */
+    public static LearnedRanker defaults() {
+        double[] w = new double[RankingFeatures.COUNT];
+        w[RankingFeatures.EMB] = 0.5;
+        w[RankingFeatures.ITEMCF] = 0.3;
+        w[RankingFeatures.RATING] = 0.12;
+        w[RankingFeatures.DOWNLOADS] = 0.08;
+        return new LearnedRanker(0.0, w);
+    }
+
+    public static LearnedRanker load(String path) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(path)) {
+            props.load(in);
+        }
+        double[] w = new double[RankingFeatures.COUNT];
+        for (int f = 0; f < w.length; f++) {
+            w[f] = Double.parseDouble(props.getProperty("weight." + RankingFeatures.NAMES[f], "0"));
+        }
+        return new LearnedRanker(Double.parseDouble(props.getProperty("bias", "0")), w);
+    }
+
+    public void save(String path, String comment) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("bias", Double.toString(bias));
+        for (int f = 0; f < weights.length; f++) {
+            props.setProperty("weight." + RankingFeatures.NAMES[f], Double.toString(weights[f]));
+        }
+        File parent = new File(path).getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            parent.mkdirs();
+        }
+        try (OutputStream out = new FileOutputStream(path)) {
+            props.store(out, comment);
+        }
+    }
+
+    /**
+     * Score rows of a row-major feature matrix into out (logits)
+     * 为行主序特征矩阵的前 rows 行打分，写入 out[0 .. rows)
+     */
+    public void score(double[] matrix, int rows, double[] out) {
+        for (int r = 0, offset = 0; r < rows; r++, offset += RankingFeatures.COUNT) {
+            out[r] = logit(matrix, offset);
+        }
+    }
+
+    public double logit(double[] matrix, int offset) {
+        double z = bias;
+        for (int f = 0; f < RankingFeatures.COUNT; f++) {
+            z += weights[f] * matrix[offset + f];
+        }
+        return z;
+    }
+
+    /**
+     * Train by full-batch gradient descent on class-balanced log loss with L2
+     * 全量梯度下降训练：类别加权的对数损失 + L2（偏置不正则）
+     * @param matrix row-major features, rows * COUNT
+     * @param labels 1 for positive, 0 for negative
+     */
+    public static LearnedRanker train(double[] matrix, double[] labels, int rows, int epochs,
+                                      double learningRate, double l2) {
+        int positives = 0;
+        for (int r = 0; r < rows; r++) {
+            if (labels[r] > 0.5) {
+                positives++;
+            }
+        }
+        if (positives == 0 || positives == rows) {
+            throw new IllegalArgumentException("Training data needs both positive and negative rows");
+        }
+        // 正负两类的总权重各占一半
+        double posWeight = 0.5 * rows / positives;
+        double negWeight = 0.5 * rows / (rows - positives);
+
+        double[] w = new double[RankingFeatures.COUNT];
+        double b = 0.0;
+        double[] grad = new double[RankingFeatures.COUNT];
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            Arrays.fill(grad, 0.0);
+            double gradBias = 0.0;
+            for (int r = 0, offset = 0; r < rows; r++, offset += RankingFeatures.COUNT) {
+                double z = b;
+                for (int f = 0; f < w.length; f++) {
+                    z += w[f] * matrix[offset + f];
+                }
+                double p = 1.0 / (1.0 + Math.exp(-z));
+                double g = (p - labels[r]) * (labels[r] > 0.5 ? posWeight : negWeight);
+                for (int f = 0; f < w.length; f++) {
+                    grad[f] += g * matrix[offset + f];
+                }
+                gradBias += g;
+            }
+            for (int f = 0; f < w.length; f++) {
+                w[f] -= learningRate * (grad[f] / rows + l2 * w[f]);
+            }
+            b -= learningRate * gradBias / rows;
+        }
+        return new LearnedRanker(b, w);
+    }
+
+    public double getBias() {
+        return bias;
+    }
+
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+    public String toProperties() {
+        StringBuilder sb = new StringBuilder("bias=").append(bias);
+        for (int f = 0; f < weights.length; f++) {
+            sb.append('\n').append("weight.").append(RankingFeatures.NAMES[f]).append('=').append(weights[f]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,292 @@
+package com.wallpaperrecsys.recprocess;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * MinHash signatures with banded LSH tables over users' liked sets
+ * 用户喜欢集合的 MinHash 签名 + 分段 LSH 桶：近似查找 Jaccard 相似的用户，查询不扫描全部用户
+ *
+ * 说明：
+ * - 签名长度 bands * rows；第 k 个哈希为 (a_k * id + b_k) 的高 32 位（乘法移位哈希，种子固定，结果可复现）。
+ * - 签名切成 bands 段，每段 rows 个值组合成桶键；Jaccard 为 s 的两个用户至少有一段完全相同的概率为 1 - (1 - s^rows)^bands。
+ * - 同桶的候选用户再用精确 Jaccard（有序喜欢数组归并）打分，只保留最相似的若干个。
+ * - 新喜欢只会让签名变小：逐个哈希取 min，签名变化的段把用户移到新桶；重复喜欢是幂等的。暂不处理取消喜欢。
+ * - 桶是并发集合，用户条目（签名 + 喜欢数组）整体替换，查询与增量更新可以并发进行；更新之间互斥。
+ */
+public class MinHashLSHIndex {
+
+    private final int bands;
+    private final int rows;
+    private final long[] hashA;
+    private final long[] hashB;
+    // userId -> 签名与有序喜欢数组（不可变，更新时整体替换）
+    private final Map<Integer, Entry> users = new ConcurrentHashMap<>();
+    // 每段一张表：桶键 -> userId 集合
+    private final List<Map<Long, Set<Integer>>> buckets;
+
+    /**
+     * A neighbour found by a query
+     * 查询得到的相似用户
+     */
+    public static class Neighbor {
+        public final int userId;
+        public final double similarity;
+
+        Neighbor(int userId, double similarity) {
+            this.userId = userId;
+            this.similarity = similarity;
+        }
+    }
+
+    private static class Entry {
+        final int[] signature;
+        final int[] liked;
+
+        Entry(int[] signature, int[] liked) {
+            this.signature = signature;
+            this.liked = liked;
+        }
+    }
+
+    public MinHashLSHIndex(int bands, int rows) {
+        if (bands <= 0 || rows <= 0) {
+            throw new IllegalArgumentException("bands and rows must be positive: " + bands + " x " + rows);
+        }
+        this.bands = bands;
+        this.rows = rows;
+        int n = bands * rows;
+        this.hashA = new long[n];
+        this.hashB = new long[n];
+        Random random = new Random(0x4D696E48L);
+        for (int k = 0; k < n; k++) {
+            hashA[k] = random.nextLong() | 1L;
+            hashB[k] = random.nextLong();
+        }
+        this.buckets = new ArrayList<>(bands);
+        for (int b = 0; b < bands; b++) {
+            buckets.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Build an index from each user's liked wallpaper ids, signatures and bands split across threads
+     * 并行构建：先按用户分片计算签名，再按段分片写入桶（每个线程只写自己负责的段）
+     * @param likedByUser userId -> liked wallpaper ids (duplicates and order do not matter)
+     */
+    public static MinHashLSHIndex build(Map<Integer, int[]> likedByUser, int bands, int rows, int threads) {
+        MinHashLSHIndex index = new MinHashLSHIndex(bands, rows);
+        List<Integer> userIds = new ArrayList<>(likedByUser.keySet());
+        int t = Math.max(1, threads);
+        ExecutorService pool = t > 1 ? Executors.newFixedThreadPool(t, r -> {
+            Thread th = new Thread(r, "usercf-builder");
+            th.setDaemon(true);
+            return th;
+        }) : null;
+        try {
+            List<Entry[]> shards = ItemCFBuilder.runAll(pool, t, s -> {
+                Entry[] entries = new Entry[userIds.size()];
+                for (int u = s; u < userIds.size(); u += t) {
+                    int[] liked = sortedUnique(likedByUser.get(userIds.get(u)));
+                    if (liked.length > 0) {
+                        entries[u] = new Entry(index.signature(liked), liked);
+                    }
+                }
+                return entries;
+            });
+            Entry[] entries = new Entry[userIds.size()];
+            for (int u = 0; u < entries.length; u++) {
+                entries[u] = shards.get(u % t)[u];
+                if (entries[u] != null) {
+                    index.users.put(userIds.get(u), entries[u]);
+                }
+            }
+            ItemCFBuilder.runAll(pool, t, s -> {
+                for (int b = s; b < bands; b += t) {
+                    Map<Long, Set<Integer>> table = index.buckets.get(b);
+                    for (int u = 0; u < entries.length; u++) {
+                        if (entries[u] != null) {
+                            table.computeIfAbsent(index.bandKey(entries[u].signature, b), k -> ConcurrentHashMap.newKeySet(4))
+                                    .add(userIds.get(u));
+                        }
+                    }
+                }
+                return null;
+            });
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Record a new like, updating the signature and moving the user between buckets where a band changed
+     * 增量加入一个喜欢：签名逐个取 min，变化的段先加入新桶再移出旧桶
+     * @return false if the like was already indexed
+     */
+    public synchronized boolean addLike(int userId, int wallpaperId) {
+        Entry old = users.get(userId);
+        int[] liked;
+        int[] signature;
+        if (old == null) {
+            liked = new int[]{wallpaperId};
+            signature = signature(liked);
+        } else {
+            int pos = Arrays.binarySearch(old.liked, wallpaperId);
+            if (pos >= 0) {
+                return false;
+            }
+            pos = -pos - 1;
+            liked = new int[old.liked.length + 1];
+            System.arraycopy(old.liked, 0, liked, 0, pos);
+            liked[pos] = wallpaperId;
+            System.arraycopy(old.liked, pos, liked, pos + 1, old.liked.length - pos);
+            signature = old.signature.clone();
+            for (int k = 0; k < signature.length; k++) {
+                signature[k] = Math.min(signature[k], hash(k, wallpaperId));
+            }
+        }
+        for (int b = 0; b < bands; b++) {
+            long key = bandKey(signature, b);
+            Map<Long, Set<Integer>> table = buckets.get(b);
+            if (old != null) {
+                long oldKey = bandKey(old.signature, b);
+                if (oldKey == key) {
+                    continue;
+                }
+                table.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet(4)).add(userId);
+                table.computeIfPresent(oldKey, (k, set) -> {
+                    set.remove(userId);
+                    return set.isEmpty() ? null : set;
+                });
+            } else {
+                table.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet(4)).add(userId);
+            }
+        }
+        users.put(userId, new Entry(signature, liked));
+        return true;
+    }
+
+    /**
+     * Most similar indexed users by exact Jaccard among the LSH candidates
+     * 查询：同桶候选用户按精确 Jaccard 排序，返回前 k 个（不含自己，相似度为 0 的不返回）
+     * @param stats optional int[2] receiving (candidates examined, neighbours returned)
+     */
+    public List<Neighbor> neighbors(int userId, int k, int[] stats) {
+        Entry self = users.get(userId);
+        if (self == null || k <= 0) {
+            return Collections.emptyList();
+        }
+        Set<Integer> candidates = new HashSet<>();
+        for (int b = 0; b < bands; b++) {
+            Set<Integer> bucket = buckets.get(b).get(bandKey(self.signature, b));
+            if (bucket != null) {
+                candidates.addAll(bucket);
+            }
+        }
+        candidates.remove(userId);
+        List<Neighbor> result = new ArrayList<>(candidates.size());
+        for (Integer other : candidates) {
+            Entry e = users.get(other);
+            double sim = e == null ? 0.0 : jaccard(self.liked, e.liked);
+            if (sim > 0) {
+                result.add(new Neighbor(other, sim));
+            }
+        }
+        // 同分按 userId 升序，结果与集合遍历顺序无关
+        result.sort((a, b) -> a.similarity != b.similarity
+                ? Double.compare(b.similarity, a.similarity) : Integer.compare(a.userId, b.userId));
+        if (stats != null) {
+            stats[0] = candidates.size();
+            stats[1] = Math.min(k, result.size());
+        }
+        return result.size() > k ? new ArrayList<>(result.subList(0, k)) : result;
+    }
+
+    /**
+     * Liked wallpaper ids of an indexed user, ascending; empty when unknown
+     * 已索引用户的喜欢列表（升序，不要修改）
+     */
+    public int[] liked(int userId) {
+        Entry e = users.get(userId);
+        return e == null ? new int[0] : e.liked;
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    public int getBands() {
+        return bands;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Exact Jaccard of two ascending id arrays
+     * 两个升序数组的精确 Jaccard
+     */
+    public static double jaccard(int[] a, int[] b) {
+        int i = 0;
+        int j = 0;
+        int common = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                common++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        int union = a.length + b.length - common;
+        return union == 0 ? 0.0 : (double) common / union;
+    }
+
+    private int[] signature(int[] liked) {
+        int[] sig = new int[hashA.length];
+        Arrays.fill(sig, Integer.MAX_VALUE);
+        for (int id : liked) {
+            for (int k = 0; k < sig.length; k++) {
+                sig[k] = Math.min(sig[k], hash(k, id));
+            }
+        }
+        return sig;
+    }
+
+    private int hash(int k, int id) {
+        return (int) ((hashA[k] * id + hashB[k]) >>> 32);
+    }
+
+    private long bandKey(int[] signature, int band) {
+        long h = band;
+        for (int r = band * rows, end = r + rows; r < end; r++) {
+            h = (h + signature[r]) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+        }
+        return h;
+    }
+
+    static int[] sortedUnique(int[] ids) {
+        if (ids == null || ids.length == 0) {
+            return new int[0];
+        }
+        int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int k = 0; k < sorted.length; k++) {
+            if (k == 0 || sorted[k] != sorted[k - 1]) {
+                sorted[n++] = sorted[k];
+            }
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+}
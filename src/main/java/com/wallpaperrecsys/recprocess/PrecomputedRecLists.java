@@ -0,0 +1,290 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.datamanager.User;
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * PrecomputedRecLists - memory-mapped store of batch-computed per-user recommendation lists
+ * 离线批量预计算的个性化推荐列表：内存映射文件 + userId 偏移表
+ *
+ * 文件格式（大端）：
+ * - 头部：magic, version, builtAt(long), catalogSize, topN, modelCount, 每个模型名（short 长度 + UTF-8）, userCount
+ * - 偏移表（按 userId 升序）：userId, ratingCount, 每个模型的 (offset, length, flags)，offset 以 int 为单位、相对数据区起点；
+ *   flags 的 FLAG_COMPLETE 位表示在线计算本身只有这么多结果（任意 size 的请求都可以直接用），否则列表是在 topN 处截断的
+ * - 数据区：连续的 wallpaperId（int）
+ *
+ * 判定过期：构建时的目录大小与当前不同则整个文件不用；用户当前评分数与构建时不同则该用户回退到在线计算。
+ * 请求长度超过截断列表的长度时回退到在线计算；完整列表不受请求长度限制。
+ * 偏移表在加载时读入数组，列表数据按需从映射区读取（单文件不超过 2GB）。
+ */
+public class PrecomputedRecLists {
+
+    static final int MAGIC = 0x5752504C; // "WRPL"
+    static final int VERSION = 2;
+    static final int FLAG_COMPLETE = 1;
+
+    private static volatile PrecomputedRecLists instance;
+
+    private final String path;
+    private final long builtAt;
+    private final int catalogSize;
+    private final int topN;
+    private final Map<String, Integer> modelIndex;
+    private final int[] userIds;
+    private final int[] ratingCounts;
+    // userIndex * modelCount + modelIndex -> offset / length
+    private final int[] offsets;
+    private final int[] lengths;
+    // 同一下标：列表是否完整（未在 topN 处截断）
+    private final BitSet complete;
+    private final MappedByteBuffer data;
+    private final int dataStart;
+
+    private PrecomputedRecLists(String path, long builtAt, int catalogSize, int topN, Map<String, Integer> modelIndex,
+                                int[] userIds, int[] ratingCounts, int[] offsets, int[] lengths, BitSet complete,
+                                MappedByteBuffer data, int dataStart) {
+        this.path = path;
+        this.builtAt = builtAt;
+        this.catalogSize = catalogSize;
+        this.topN = topN;
+        this.modelIndex = modelIndex;
+        this.userIds = userIds;
+        this.ratingCounts = ratingCounts;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.complete = complete;
+        this.data = data;
+        this.dataStart = dataStart;
+    }
+
+    private static PrecomputedRecLists empty() {
+        return new PrecomputedRecLists(null, 0L, -1, 0, Collections.<String, Integer>emptyMap(),
+                new int[0], new int[0], new int[0], new int[0], new BitSet(), null, 0);
+    }
+
+    public static PrecomputedRecLists getInstance() {
+        if (instance == null) {
+            synchronized (PrecomputedRecLists.class) {
+                if (instance == null) {
+                    instance = open(Config.PRECOMPUTED_REC_LIST_PATH);
+                    RecMetrics.gauge("precomputed.hitRate", () -> {
+                        long hit = RecMetrics.count("precomputed.hit");
+                        long total = hit + RecMetrics.count("precomputed.miss") + RecMetrics.count("precomputed.stale");
+                        return total == 0 ? 0.0 : (double) hit / total;
+                    });
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Re-open the file after a new batch build
+     * 批量任务重新生成文件后重新加载
+     */
+    public static synchronized void reload() {
+        instance = open(Config.PRECOMPUTED_REC_LIST_PATH);
+    }
+
+    private static PrecomputedRecLists open(String path) {
+        File file = new File(path);
+        if (!Config.PRECOMPUTED_REC_LIST_ENABLED || !file.isFile()) {
+            return empty();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                System.err.println("Ignoring precomputed rec lists with unknown format: " + path);
+                return empty();
+            }
+            long builtAt = buf.getLong();
+            int catalogSize = buf.getInt();
+            int topN = buf.getInt();
+            int modelCount = buf.getInt();
+            Map<String, Integer> modelIndex = new HashMap<>();
+            for (int m = 0; m < modelCount; m++) {
+                byte[] name = new byte[buf.getShort()];
+                buf.get(name);
+                modelIndex.put(new String(name, StandardCharsets.UTF_8), m);
+            }
+            int userCount = buf.getInt();
+            int[] userIds = new int[userCount];
+            int[] ratingCounts = new int[userCount];
+            int[] offsets = new int[userCount * modelCount];
+            int[] lengths = new int[userCount * modelCount];
+            BitSet complete = new BitSet(userCount * modelCount);
+            for (int u = 0; u < userCount; u++) {
+                userIds[u] = buf.getInt();
+                ratingCounts[u] = buf.getInt();
+                for (int m = 0; m < modelCount; m++) {
+                    offsets[u * modelCount + m] = buf.getInt();
+                    lengths[u * modelCount + m] = buf.getInt();
+                    if ((buf.getInt() & FLAG_COMPLETE) != 0) {
+                        complete.set(u * modelCount + m);
+                    }
+                }
+            }
+            System.out.println("Loaded precomputed rec lists for " + userCount + " users x " + modelCount
+                    + " models from " + path);
+            return new PrecomputedRecLists(path, builtAt, catalogSize, topN, modelIndex,
+                    userIds, ratingCounts, offsets, lengths, complete, buf, buf.position());
+        } catch (IOException e) {
+            System.err.println("Failed to load precomputed rec lists from " + path + ": " + e.getMessage());
+            return empty();
+        }
+    }
+
+    /**
+     * Serve a precomputed list, or null when the user / model is missing or stale
+     * 返回预计算列表；用户或模型不在文件中、数据已过期、或请求长度超出已存列表时返回 null，由调用方在线计算
+     */
+    public List<Wallpaper> get(User user, String model, int size) {
+        return get(user, model, size, false);
+    }
+
+    /**
+     * Same as get, optionally serving stale lists (used as a degraded fallback when a request runs out of time)
+     * allowStale 为 true 时评分数或目录大小变化也照样返回（请求超时降级时使用），记 precomputed.staleServed
+     */
+    public List<Wallpaper> get(User user, String model, int size, boolean allowStale) {
+        if (data == null || user == null || model == null) {
+            RecMetrics.increment("precomputed.miss");
+            return null;
+        }
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        boolean stale = catalogSize != dm.getCatalog().size();
+        Integer m = modelIndex.get(model.toLowerCase());
+        int u = Arrays.binarySearch(userIds, user.getUserId());
+        if (m == null || u < 0) {
+            RecMetrics.increment("precomputed.miss");
+            return null;
+        }
+        stale |= ratingCounts[u] != user.getRatingCount();
+        if (stale && !allowStale) {
+            RecMetrics.increment("precomputed.stale");
+            return null;
+        }
+        int slot = u * modelIndex.size() + m;
+        int length = lengths[slot];
+        // 完整列表就是在线结果本身，可以满足任意 size；截断的列表只能满足不超过其长度的请求；降级时有多少返回多少
+        if (size > length && !complete.get(slot) && !allowStale) {
+            RecMetrics.increment("precomputed.miss");
+            return null;
+        }
+        int n = Math.min(size, length);
+        int base = dataStart + offsets[slot] * 4;
+        List<Wallpaper> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Wallpaper w = dm.getWallpaperById(data.getInt(base + i * 4));
+            if (w != null) {
+                result.add(w);
+            }
+        }
+        RecMetrics.increment(stale ? "precomputed.staleServed" : "precomputed.hit");
+        return result;
+    }
+
+    public boolean isLoaded() {
+        return data != null;
+    }
+
+    public long getBuiltAt() {
+        return builtAt;
+    }
+
+    public int getTopN() {
+        return topN;
+    }
+
+    /**
+     * Lists of one user, one array of wallpaper ids per model
+     * 单个用户的预计算结果
+     */
+    public static class UserLists {
+        final int userId;
+        final int ratingCount;
+        final int[][] lists;
+        // 每个模型的列表是否完整（在线计算本身没有更多结果）
+        final boolean[] complete;
+
+        public UserLists(int userId, int ratingCount, int[][] lists, boolean[] complete) {
+            this.userId = userId;
+            this.ratingCount = ratingCount;
+            this.lists = lists;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * Write a store file atomically (temp file + rename)
+     * 写出预计算文件：先写临时文件再原子替换，在线服务读到的总是完整文件
+     * @return bytes written
+     */
+    public static long write(String path, List<String> models, int topN, int catalogSize,
+                             List<UserLists> users) throws IOException {
+        List<UserLists> sorted = new ArrayList<>(users);
+        sorted.sort(Comparator.comparingInt(u -> u.userId));
+
+        File target = new File(path);
+        File parent = target.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile("reclists", ".tmp", parent);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(catalogSize);
+            out.writeInt(topN);
+            out.writeInt(models.size());
+            for (String model : models) {
+                byte[] name = model.toLowerCase().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+            }
+            out.writeInt(sorted.size());
+            int offset = 0;
+            for (UserLists u : sorted) {
+                out.writeInt(u.userId);
+                out.writeInt(u.ratingCount);
+                for (int m = 0; m < models.size(); m++) {
+                    int length = u.lists[m] == null ? 0 : u.lists[m].length;
+                    out.writeInt(offset);
+                    out.writeInt(length);
+                    out.writeInt(u.lists[m] != null && u.complete[m] ? FLAG_COMPLETE : 0);
+                    offset += length;
+                }
+            }
+            for (UserLists u : sorted) {
+                for (int m = 0; m < models.size(); m++) {
+                    if (u.lists[m] == null) {
+                        continue;
+                    }
+                    for (int id : u.lists[m]) {
+                        out.writeInt(id);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return target.length();
+    }
+}
@@ -0,0 +1,184 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.datamanager.Rating;
+import com.wallpaperrecsys.datamanager.User;
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.util.IntDoubleMap;
+
+import java.util.*;
+
+/**
+ * Per-request feature extractor of the learned ranker
+ * 学习排序模型的特征抽取：每个请求建一次用户侧画像，再把整批候选的特征写入一个复用的 double[] 矩阵（行主序）
+ *
+ * 说明：
+ * - 用户侧的东西（归一化用户向量、ItemCF 近邻得分、喜欢过的标签/分类/风格/情绪）在构造时一次算好；
+ *   extractRow 只做数组读写、字符串集合查找和下标循环，不为单个候选分配任何对象。
+ * - 所有特征都在 0~1 左右，训练和线上打分不需要再做标准化。
+ * - 线上用 forUser(user)；离线评测用 of(...) 传入只由训练集得到的 ItemCF 得分、喜欢列表和平均分，避免泄漏测试集。
+ */
+public class RankingFeatures {
+
+    public static final int EMB = 0;          // 用户向量与壁纸向量的余弦，缺失为 0
+    public static final int HAS_EMB = 1;      // 余弦是否可用
+    public static final int ITEMCF = 2;       // ItemCF 近邻得分 / 本用户最大近邻得分
+    public static final int ITEMCF_HIT = 3;   // 是否出现在 ItemCF 近邻中
+    public static final int RATING = 4;       // 平均分 / 5
+    public static final int DOWNLOADS = 5;    // 下载量 / 10000，截断到 1
+    public static final int RATING_COUNT = 6; // log(1 + 评分数) / log(1 + 100)，截断到 1
+    public static final int TAG = 7;          // 候选标签中属于喜欢标签的比例
+    public static final int CATEGORY = 8;     // 候选分类中属于喜欢分类的比例
+    public static final int STYLE = 9;        // 风格是否在喜欢的风格中
+    public static final int MOOD = 10;        // 情绪是否在喜欢的情绪中
+    public static final int COUNT = 11;
+
+    public static final String[] NAMES = {
+            "emb", "hasEmb", "itemcf", "itemcfHit", "rating", "downloads", "ratingCount",
+            "tag", "category", "style", "mood"
+    };
+
+    // 复用的特征矩阵：每个线程一块，按需扩容
+    private static final ThreadLocal<double[]> BUFFER = ThreadLocal.withInitial(() -> new double[1024 * COUNT]);
+
+    private static final double LIKE_THRESHOLD = 4.0;
+    private static final double LOG_RATING_COUNT_CAP = Math.log1p(100);
+
+    private final float[] query;
+    private final IntDoubleMap itemCF;
+    private final double itemCFMax;
+    private final IntDoubleMap avgRating;
+    private final IntDoubleMap ratingCount;
+    private final Set<String> likedTags = new HashSet<>();
+    private final Set<String> likedCategories = new HashSet<>();
+    private final Set<String> likedStyles = new HashSet<>();
+    private final Set<String> likedMoods = new HashSet<>();
+
+    private RankingFeatures(float[] query, IntDoubleMap itemCFScores, Collection<Integer> likedIds,
+                            Map<Integer, Double> avgRating, Map<Integer, Integer> ratingCount) {
+        this.query = query;
+        this.itemCF = itemCFScores;
+        double[] max = {0.0};
+        itemCFScores.forEach((id, s) -> max[0] = Math.max(max[0], s));
+        this.itemCFMax = max[0];
+        if (avgRating == null) {
+            this.avgRating = null;
+        } else {
+            this.avgRating = new IntDoubleMap(avgRating.size());
+            for (Map.Entry<Integer, Double> e : avgRating.entrySet()) {
+                this.avgRating.put(e.getKey(), e.getValue());
+            }
+        }
+        if (ratingCount == null) {
+            this.ratingCount = null;
+        } else {
+            this.ratingCount = new IntDoubleMap(ratingCount.size());
+            for (Map.Entry<Integer, Integer> e : ratingCount.entrySet()) {
+                this.ratingCount.put(e.getKey(), e.getValue());
+            }
+        }
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        for (Integer id : likedIds) {
+            Wallpaper liked = dm.getWallpaperById(id);
+            if (liked == null) {
+                continue;
+            }
+            if (liked.getTags() != null) {
+                likedTags.addAll(liked.getTags());
+            }
+            if (liked.getCategories() != null) {
+                likedCategories.addAll(liked.getCategories());
+            }
+            if (liked.getStyle() != null) {
+                likedStyles.add(liked.getStyle());
+            }
+            if (liked.getMood() != null) {
+                likedMoods.add(liked.getMood());
+            }
+        }
+    }
+
+    /**
+     * Online profile: user embedding, live ItemCF neighbours and the user's current likes
+     * 线上画像：用户向量、ItemCF 近邻得分、当前喜欢列表；平均分取壁纸上的实时值
+     */
+    public static RankingFeatures forUser(User user) {
+        float[] query = user.getEmb() == null ? null : user.getEmb().normalized();
+        IntDoubleMap cf = ItemCFRecommendation.getInstance().neighborScores(user.getUserId(), null);
+        List<Integer> liked = new ArrayList<>();
+        if (user.getRatings() != null) {
+            for (Rating r : user.getRatings()) {
+                if (r.getScore() >= LIKE_THRESHOLD) {
+                    liked.add(r.getWallpaperId());
+                }
+            }
+        }
+        return new RankingFeatures(query, cf, liked, null, null);
+    }
+
+    /**
+     * Profile from explicit signals (offline training / evaluation)
+     * 由调用方给定的信号构造画像；avgRating / ratingCount 为 null 时取壁纸上的实时平均分 / 评分数
+     */
+    public static RankingFeatures of(float[] query, Map<Integer, Double> itemCFScores, Collection<Integer> likedIds,
+                                     Map<Integer, Double> avgRating, Map<Integer, Integer> ratingCount) {
+        IntDoubleMap cf = new IntDoubleMap(itemCFScores.size());
+        for (Map.Entry<Integer, Double> e : itemCFScores.entrySet()) {
+            cf.put(e.getKey(), e.getValue());
+        }
+        return new RankingFeatures(query, cf, likedIds, avgRating, ratingCount);
+    }
+
+    /**
+     * Reusable feature matrix of the current thread with room for rows candidates
+     * 当前线程复用的特征矩阵，至少能放下 rows 行；内容不清零，extract 会覆盖每一行
+     */
+    public static double[] buffer(int rows) {
+        double[] buf = BUFFER.get();
+        if (buf.length < rows * COUNT) {
+            buf = new double[Math.max(rows, buf.length / COUNT * 2) * COUNT];
+            BUFFER.set(buf);
+        }
+        return buf;
+    }
+
+    /**
+     * Fill one row of the matrix, starting at offset
+     * 把一个候选的特征写入 matrix[offset .. offset + COUNT)
+     */
+    public void extractRow(Wallpaper w, double[] matrix, int offset) {
+        double cos = HybridModel.cosine(query, w.getEmb());
+        boolean hasEmb = !Double.isNaN(cos);
+        matrix[offset + EMB] = hasEmb ? cos : 0.0;
+        matrix[offset + HAS_EMB] = hasEmb ? 1.0 : 0.0;
+
+        double cf = itemCF.get(w.getWallpaperId(), 0.0);
+        matrix[offset + ITEMCF] = itemCFMax > 0 ? cf / itemCFMax : 0.0;
+        matrix[offset + ITEMCF_HIT] = cf > 0 ? 1.0 : 0.0;
+
+        double rating = avgRating == null ? w.getAverageRating() : avgRating.get(w.getWallpaperId(), 0.0);
+        matrix[offset + RATING] = rating / 5.0;
+        matrix[offset + DOWNLOADS] = Math.min(w.getDownloadCount() / 10000.0, 1.0);
+        double count = ratingCount == null ? w.getRatingNumber() : ratingCount.get(w.getWallpaperId(), 0.0);
+        matrix[offset + RATING_COUNT] = Math.min(Math.log1p(count) / LOG_RATING_COUNT_CAP, 1.0);
+
+        matrix[offset + TAG] = overlap(w.getTags(), likedTags);
+        matrix[offset + CATEGORY] = overlap(w.getCategories(), likedCategories);
+        matrix[offset + STYLE] = w.getStyle() != null && likedStyles.contains(w.getStyle()) ? 1.0 : 0.0;
+        matrix[offset + MOOD] = w.getMood() != null && likedMoods.contains(w.getMood()) ? 1.0 : 0.0;
+    }
+
+    // 下标循环，不创建迭代器
+    private static double overlap(List<String> values, Set<String> liked) {
+        if (values == null || values.isEmpty() || liked.isEmpty()) {
+            return 0.0;
+        }
+        int hit = 0;
+        for (int i = 0; i < values.size(); i++) {
+            if (liked.contains(values.get(i))) {
+                hit++;
+            }
+        }
+        return (double) hit / values.size();
+    }
+}
@@ -1,10 +1,20 @@
 package com.wallpaperrecsys.recprocess;
 
+import com.wallpaperrecsys.datamanager.Rating;
+import com.wallpaperrecsys.datamanager.ScoredWallpaper;
+import com.wallpaperrecsys.datamanager.SeenItems;
 import com.wallpaperrecsys.datamanager.WallpaperDataManager;
 import com.wallpaperrecsys.datamanager.User;
 import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.recprocess.pipeline.MmrReRanker;
+import com.wallpaperrecsys.recprocess.pipeline.ParallelScorer;
+import com.wallpaperrecsys.recprocess.pipeline.RecContext;
+import com.wallpaperrecsys.recprocess.pipeline.RecPipeline;
+import com.wallpaperrecsys.util.IntDoubleMap;
+import com.wallpaperrecsys.util.RecMetrics;
 
 import java.util.*;
+import java.util.function.IntPredicate;
 
 /**
  * Recommendation process for personalized wallpaper recommendation
@@ -12,6 +22,59 @@ import java.util.*;
  */
 public class RecForYouProcess {
 
+    private static final String SEEN_ATTR = "seenFilter";
+
+    /**
+     * Ranking models accepted by the personal endpoint
+     * 个性化推荐接口支持的排序模型
+     */
+    public static final List<String> MODELS = Collections.unmodifiableList(
+        Arrays.asList("emb", "itemcf", "usercf", "popularity", "hybrid", "learned"));
+
+    // 喜欢的评分阈值，与 ItemCF 保持一致
+    private static final double LIKE_THRESHOLD = 4.0;
+    // 标签偏好召回最多使用的标签数
+    private static final int TAG_AFFINITY_MAX_TAGS = 5;
+    // hybrid 模型的融合权重（personal.hybrid.weight.*）
+    private static final HybridModel HYBRID = HybridModel.fromConfig();
+
+    // 个性化推荐流水线：embedding / ItemCF / UserCF / 标签偏好 / 热门多路召回（并行、各有配额、位图去重；UserCF 只在 model=usercf 时召回）
+    // -> 已看过滤 -> 模型排序 -> MMR 多样性重排；预算见 pipeline.properties（personal.*）
+    // 请求超时时降级：先用预计算列表（允许过期），没有则用热门列表
+    private static final RecPipeline PIPELINE = RecPipeline.builder("personal")
+        .recall("emb", RecForYouProcess::recallByEmbedding, 200)
+        .recall("itemcf", RecForYouProcess::recallByItemCF, 200)
+        .recall("usercf", RecForYouProcess::recallByUserCF, 200)
+        .recall("tag", RecForYouProcess::recallByTagAffinity, 200)
+        .recall("popularity", (ctx, budget) -> WallpaperDataManager.getInstance().getWallpapers(budget, "rating"), 400)
+        // 过滤：不要把用户已经评分/交互过的壁纸再次推荐给他
+        .filter("seen", (ctx, w) -> {
+            IntPredicate seen = ctx.getAttribute(SEEN_ATTR);
+            return seen == null || !seen.test(w.getWallpaperId());
+        })
+        .rank("model", (ctx, candidates) -> {
+            if (usesItemCF(ctx.getModel())) {
+                // ItemCF 模型首次构建较慢，有截止时间的请求不在锁上阻塞，来不及时整体降级
+                ItemCFRecommendation.getInstance().ensureBuilt(ctx.getDeadline());
+            }
+            if ("usercf".equalsIgnoreCase(ctx.getModel())) {
+                UserCFRecommendation.getInstance().ensureBuilt(ctx.getDeadline());
+            }
+            long start = System.nanoTime();
+            scoreCandidates(ctx.getUser(), candidates, ctx.getModel());
+            // 按模型分别统计排序耗时（含 p50 / p99），便于对比学习排序与手工融合的线上开销；
+            // 未知模型名统一记到 default，指标名不随调用方传入的值增长
+            RecMetrics.record("pipeline.personal.rank.model." + (isKnownModel(ctx.getModel()) ? ctx.getModel().toLowerCase() : "default"),
+                    System.nanoTime() - start, candidates.size(), candidates.size());
+        }, 1000)
+        .reRank("mmr", new MmrReRanker("personal", 0.7), 200)
+        .fallback("precomputed", (ctx, budget) -> {
+            List<Wallpaper> list = PrecomputedRecLists.getInstance().get(ctx.getUser(), ctx.getModel(), budget, true);
+            return list == null ? Collections.<Wallpaper>emptyList() : list;
+        }, 1)
+        .fallback("popular", (ctx, budget) -> WallpaperDataManager.getInstance().getWallpapers(budget, "rating"), 2)
+        .build();
+
     /**
      * Get recommendation wallpaper list for a user
      * 获取用户的推荐壁纸列表
@@ -26,37 +89,127 @@ public class RecForYouProcess {
             return new ArrayList<>();
         }
 
-        // 过滤：不要把用户已经评分/交互过的壁纸再次推荐给他
-        Set<Integer> seenWallpaperIds = new HashSet<>();
-        if (user.getRatings() != null) {
-            for (com.wallpaperrecsys.datamanager.Rating r : user.getRatings()) {
-                seenWallpaperIds.add(r.getWallpaperId());
+        // 优先读离线预计算结果；用户不在文件中或评分已变化时回退到在线计算
+        List<Wallpaper> precomputed = PrecomputedRecLists.getInstance().get(user, model, size);
+        if (precomputed != null) {
+            return precomputed;
+        }
+        return computeRecList(user, size, model);
+    }
+
+    /**
+     * Compute the recommendation list online, bypassing the precomputed store
+     * 在线计算推荐列表（不读预计算文件），离线批量任务也走这里
+     */
+    public static List<Wallpaper> computeRecList(User user, int size, String model) {
+
+        // 已看集合随评分增量维护在 User 上，这里不再每次请求重建
+        RecContext ctx = RecContext.forUser(user, model, size);
+        ctx.setAttribute(SEEN_ATTR, SeenItems.filterFor(user));
+        return PIPELINE.recommend(ctx);
+    }
+
+    /**
+     * Recall: nearest neighbours of the user embedding over the sharded catalog
+     * 召回：用户向量在分片目录上的近邻
+     */
+    static List<Wallpaper> recallByEmbedding(RecContext ctx, int budget) {
+        User user = ctx.getUser();
+        if (user == null || user.getEmb() == null) {
+            return new ArrayList<>();
+        }
+        IntPredicate seen = ctx.getAttribute(SEEN_ATTR);
+        List<ScoredWallpaper> scored = WallpaperDataManager.getInstance().topKByEmbedding(user.getEmb(), budget, seen);
+        List<Wallpaper> result = new ArrayList<>(scored.size());
+        for (ScoredWallpaper sw : scored) {
+            result.add(sw.getWallpaper());
+        }
+        return result;
+    }
+
+    /**
+     * Recall: ItemCF neighbours of the user's liked wallpapers
+     * 召回：用户喜欢壁纸的 ItemCF 近邻
+     */
+    static List<Wallpaper> recallByItemCF(RecContext ctx, int budget) {
+        ItemCFRecommendation.getInstance().ensureBuilt(ctx.getDeadline());
+        IntPredicate seen = ctx.getAttribute(SEEN_ATTR);
+        List<Integer> ids = ItemCFRecommendation.getInstance().recall(ctx.getUserId(), budget, seen);
+        List<Wallpaper> result = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            Wallpaper w = WallpaperDataManager.getInstance().getWallpaperById(id);
+            if (w != null) {
+                result.add(w);
             }
         }
+        return result;
+    }
 
-        final int CANDIDATE_SIZE = 800;
-        // 生成候选集：基于评分或下载量
-        List<Wallpaper> candidates = WallpaperDataManager.getInstance()
-            .getWallpapers(CANDIDATE_SIZE, "rating");
+    /**
+     * Recall: wallpapers liked by users with similar liked sets (MinHash/LSH), only for model=usercf
+     * 召回：喜欢集合相似的用户喜欢的壁纸（只在 model=usercf 时启用）
+     */
+    static List<Wallpaper> recallByUserCF(RecContext ctx, int budget) {
+        if (!"usercf".equalsIgnoreCase(ctx.getModel())) {
+            return new ArrayList<>();
+        }
+        UserCFRecommendation.getInstance().ensureBuilt(ctx.getDeadline());
+        IntPredicate seen = ctx.getAttribute(SEEN_ATTR);
+        List<Integer> ids = UserCFRecommendation.getInstance().recall(ctx.getUserId(), budget, seen);
+        List<Wallpaper> result = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            Wallpaper w = WallpaperDataManager.getInstance().getWallpaperById(id);
+            if (w != null) {
+                result.add(w);
+            }
+        }
+        return result;
+    }
 
-        // 过滤掉已看/已评分
-        if (!seenWallpaperIds.isEmpty()) {
-            List<Wallpaper> filtered = new ArrayList<>(candidates.size());
-            for (Wallpaper w : candidates) {
-                if (!seenWallpaperIds.contains(w.getWallpaperId())) {
-                    filtered.add(w);
-                }
+    /**
+     * Recall: wallpapers carrying the tags the user liked most, quota split by tag affinity
+     * 召回：用户历史喜欢最多的若干标签，按标签偏好权重分配配额
+     */
+    static List<Wallpaper> recallByTagAffinity(RecContext ctx, int budget) {
+        User user = ctx.getUser();
+        if (user == null || user.getRatings() == null || user.getRatings().isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Map<String, Double> tagWeight = new HashMap<>();
+        for (Rating r : user.getRatings()) {
+            if (r.getScore() < LIKE_THRESHOLD) {
+                continue;
+            }
+            Wallpaper liked = WallpaperDataManager.getInstance().getWallpaperById(r.getWallpaperId());
+            if (liked == null) {
+                continue;
             }
-            candidates = filtered;
+            double pref = Math.min(Math.max(r.getScore() / 5.0, 0.0), 1.0);
+            for (String tag : liked.getTags()) {
+                tagWeight.merge(tag, pref, Double::sum);
+            }
+        }
+        if (tagWeight.isEmpty()) {
+            return new ArrayList<>();
         }
 
-        // 排序候选集
-        List<Wallpaper> rankedList = ranker(user, candidates, model);
+        List<Map.Entry<String, Double>> topTags = new ArrayList<>(tagWeight.entrySet());
+        topTags.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+        if (topTags.size() > TAG_AFFINITY_MAX_TAGS) {
+            topTags = topTags.subList(0, TAG_AFFINITY_MAX_TAGS);
+        }
+        double total = 0.0;
+        for (Map.Entry<String, Double> e : topTags) {
+            total += e.getValue();
+        }
 
-        if (rankedList.size() > size) {
-            return rankedList.subList(0, size);
+        List<Wallpaper> result = new ArrayList<>(budget);
+        for (Map.Entry<String, Double> e : topTags) {
+            int quota = (int) Math.ceil(budget * e.getValue() / total);
+            result.addAll(WallpaperDataManager.getInstance().getWallpapersByTag(e.getKey(), quota, "rating"));
         }
-        return rankedList;
+        return result;
     }
 
     /**
@@ -68,49 +221,125 @@ public class RecForYouProcess {
      * @return ranked wallpaper list
      */
     public static List<Wallpaper> ranker(User user, List<Wallpaper> candidates, String model) {
-        HashMap<Wallpaper, Double> candidateScoreMap = new HashMap<>();
+        List<ScoredWallpaper> scored = new ArrayList<>(candidates.size());
+        for (Wallpaper candidate : candidates) {
+            scored.add(new ScoredWallpaper(candidate, 0.0));
+        }
+        scoreCandidates(user, scored, model);
 
+        // 按得分降序排序
+        scored.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+        List<Wallpaper> rankedList = new ArrayList<>(scored.size());
+        for (ScoredWallpaper sw : scored) {
+            rankedList.add(sw.getWallpaper());
+        }
+        return rankedList;
+    }
+
+    /**
+     * Score candidates in place with the given model
+     * 用指定模型原地为候选打分（大候选集由 ParallelScorer 并行打分）
+     */
+    static void scoreCandidates(User user, List<ScoredWallpaper> candidates, String model) {
         switch (model.toLowerCase()) {
             case "emb":
                 // 基于embedding相似度排序
-                for (Wallpaper candidate : candidates) {
+                ParallelScorer.score(candidates, candidate -> {
                     double similarity = calculateEmbSimilarScore(user, candidate);
                     // embedding 不可用时降级到流行度，避免大量 -1 导致推荐质量不稳定
                     if (similarity < 0) {
                         similarity = calculatePopularityScore(candidate) * 0.1;
                     }
-                    candidateScoreMap.put(candidate, similarity);
-                }
+                    return similarity;
+                });
                 break;
             case "popularity":
                 // 基于流行度排序
-                for (Wallpaper candidate : candidates) {
-                    double popularityScore = calculatePopularityScore(candidate);
-                    candidateScoreMap.put(candidate, popularityScore);
-                }
+                ParallelScorer.score(candidates, RecForYouProcess::calculatePopularityScore);
                 break;
             case "itemcf":
                 // ItemCF 模型：由 ItemCFRecommendation 负责打分
-                for (Wallpaper candidate : candidates) {
-                    double cfScore = ItemCFRecommendation.getInstance()
-                            .score(user.getUserId(), candidate.getWallpaperId());
-                    candidateScoreMap.put(candidate, cfScore);
-                }
+                ItemCFRecommendation itemCF = ItemCFRecommendation.getInstance();
+                ParallelScorer.score(candidates, candidate -> itemCF.score(user.getUserId(), candidate.getWallpaperId()));
+                break;
+            case "usercf":
+                // UserCF 模型：相似用户的喜欢每个请求汇总一次，没有信号的候选用平均分兜底
+                IntDoubleMap userCF = UserCFRecommendation.getInstance().neighborScores(user.getUserId(), null);
+                ParallelScorer.score(candidates, candidate -> {
+                    double s = userCF.get(candidate.getWallpaperId(), Double.NaN);
+                    return Double.isNaN(s) ? UserCFRecommendation.fallbackScore(candidate) : s;
+                });
+                break;
+            case "hybrid":
+                // 融合模型：一次遍历同时计算三路信号再加权
+                scoreHybrid(user, candidates);
+                break;
+            case "learned":
+                // 学习排序：整批候选特征写入复用矩阵，再由逻辑回归逐行打分
+                scoreLearned(user, candidates);
                 break;
             default:
                 // 默认排序：按候选集顺序
                 for (int i = 0; i < candidates.size(); i++) {
-                    candidateScoreMap.put(candidates.get(i), (double) (candidates.size() - i));
+                    candidates.get(i).setScore(candidates.size() - i);
                 }
         }
+    }
 
-        // 按得分降序排序
-        List<Wallpaper> rankedList = new ArrayList<>();
-        candidateScoreMap.entrySet().stream()
-            .sorted(Map.Entry.<Wallpaper, Double>comparingByValue(Comparator.reverseOrder()))
-            .forEach(m -> rankedList.add(m.getKey()));
-        
-        return rankedList;
+    /**
+     * Hybrid scoring: embedding / ItemCF / popularity signals computed in one pass into primitive arrays
+     * 融合打分：用户向量与 ItemCF 近邻得分（不装箱的 IntDoubleMap）每个请求只取一次，一次遍历候选把三路信号写入 double[]，再由 HybridModel 加权
+     */
+    static void scoreHybrid(User user, List<ScoredWallpaper> candidates) {
+        int n = candidates.size();
+        double[] emb = new double[n];
+        double[] itemCF = new double[n];
+        double[] popularity = new double[n];
+        float[] query = user.getEmb() == null ? null : user.getEmb().normalized();
+        IntDoubleMap neighborScores = ItemCFRecommendation.getInstance().neighborScores(user.getUserId(), null);
+
+        ParallelScorer.forEach(n, i -> {
+            Wallpaper w = candidates.get(i).getWallpaper();
+            emb[i] = HybridModel.cosine(query, w.getEmb());
+            itemCF[i] = neighborScores.get(w.getWallpaperId(), 0.0);
+            popularity[i] = calculatePopularityScore(w);
+        });
+
+        double[] scores = new double[n];
+        HYBRID.combine(emb, itemCF, popularity, scores);
+        for (int i = 0; i < n; i++) {
+            candidates.get(i).setScore(scores[i]);
+        }
+    }
+
+    /**
+     * Learned ranking: features of the whole batch written into a reusable matrix, then scored row by row
+     * 学习排序：用户侧画像每个请求建一次，候选特征写入当前线程复用的 double[] 矩阵，打分过程不为单个候选分配对象
+     */
+    static void scoreLearned(User user, List<ScoredWallpaper> candidates) {
+        int n = candidates.size();
+        RankingFeatures features = RankingFeatures.forUser(user);
+        double[] matrix = RankingFeatures.buffer(n);
+        ParallelScorer.forEach(n, i -> features.extractRow(candidates.get(i).getWallpaper(), matrix, i * RankingFeatures.COUNT));
+
+        double[] scores = new double[n];
+        LearnedRanker.getInstance().score(matrix, n, scores);
+        for (int i = 0; i < n; i++) {
+            candidates.get(i).setScore(scores[i]);
+        }
+    }
+
+    /**
+     * Whether the model is one of MODELS (case-insensitive)
+     * 是否为支持的排序模型（不区分大小写）
+     */
+    public static boolean isKnownModel(String model) {
+        return model != null && MODELS.contains(model.toLowerCase());
+    }
+
+    private static boolean usesItemCF(String model) {
+        return model != null && ("itemcf".equalsIgnoreCase(model) || "hybrid".equalsIgnoreCase(model)
+                || "learned".equalsIgnoreCase(model));
     }
 
     /**
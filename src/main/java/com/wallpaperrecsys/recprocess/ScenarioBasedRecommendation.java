@@ -3,10 +3,14 @@ package com.wallpaperrecsys.recprocess;
 import com.wallpaperrecsys.datamanager.WallpaperDataManager;
 import com.wallpaperrecsys.datamanager.User;
 import com.wallpaperrecsys.datamanager.Wallpaper;
-import com.wallpaperrecsys.datamanager.Rating;
+import com.wallpaperrecsys.datamanager.ScoredWallpaper;
+import com.wallpaperrecsys.recprocess.pipeline.MmrReRanker;
+import com.wallpaperrecsys.recprocess.pipeline.ParallelScorer;
+import com.wallpaperrecsys.recprocess.pipeline.RecContext;
+import com.wallpaperrecsys.recprocess.pipeline.RecPipeline;
+import com.wallpaperrecsys.util.RecMetrics;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * Scenario-based Recommendation Service
@@ -14,348 +18,222 @@ import java.util.stream.Collectors;
  */
 public class ScenarioBasedRecommendation {
     
-    // 场景配置映射
-    private static final Map<String, ScenarioConfig> SCENARIO_CONFIGS = new HashMap<>();
-    
-    static {
-        // 工作场景
-        SCENARIO_CONFIGS.put("work", new ScenarioConfig(
-            Arrays.asList("minimalist"),                 // 目前数据里可命中的 style 较少，主要靠 tag/category
-            Arrays.asList("calm", "cool"),
-            Arrays.asList("#ffffff", "#cccccc", "#999999"), // 用颜色近似“干净/中性”
-            Arrays.asList("city", "abstract", "nature"),
-            Arrays.asList("极简", "简约", "宁静", "城市", "写实"),
-            0.3, 0.7  // 更注重用户偏好
-        ));
-        
-        // 游戏场景
-        SCENARIO_CONFIGS.put("gaming", new ScenarioConfig(
-            Arrays.asList("anime"),
-            Arrays.asList("energetic", "dark"),
-            Arrays.asList("#000000", "#111111", "#222222"),
-            Arrays.asList("anime", "abstract", "space", "city"),
-            Arrays.asList("动漫", "二次元", "暗黑", "霓虹", "科幻", "太空", "抽象"),
-            0.5, 0.5  // 平衡多样性和用户偏好
-        ));
-        
-        // 阅读场景
-        SCENARIO_CONFIGS.put("reading", new ScenarioConfig(
-            Arrays.asList("minimalist"),
-            Arrays.asList("calm", "warm"),
-            Arrays.asList("#ffffff", "#abbcda", "#999999"),
-            Arrays.asList("nature", "abstract", "city"),
-            Arrays.asList("宁静", "温暖", "风景", "自然", "简约"),
-            0.4, 0.6
-        ));
-        
-        // 睡眠场景
-        SCENARIO_CONFIGS.put("sleep", new ScenarioConfig(
-            Arrays.asList("minimalist"),
-            Arrays.asList("calm", "dark"),
-            Arrays.asList("#000000", "#111111", "#222222"),
-            Arrays.asList("space", "abstract", "nature"),
-            Arrays.asList("暗黑", "深夜", "夜景", "星空", "太空", "宁静"),
-            0.2, 0.8  // 更注重用户偏好
-        ));
-        
-        // 创意场景
-        SCENARIO_CONFIGS.put("creative", new ScenarioConfig(
-            Arrays.asList("anime"),
-            Arrays.asList("energetic"),
-            Arrays.asList("#ff", "#f7", "#a8"), // 颜色包含即可（见匹配逻辑）
-            Arrays.asList("abstract", "city"),
-            Arrays.asList("抽象", "艺术", "设计", "霓虹", "色彩"),
-            0.6, 0.4  // 更注重多样性
-        ));
-        
-        // 早晨场景
-        SCENARIO_CONFIGS.put("morning", new ScenarioConfig(
-            Arrays.asList("minimalist"),
-            Arrays.asList("energetic", "warm"),
-            Arrays.asList("#ffffff", "#abbcda", "#cccccc"),
-            Arrays.asList("nature", "city"),
-            Arrays.asList("清新", "明亮", "风景", "城市"),
-            0.4, 0.6
-        ));
-        
-        // 下午场景
-        SCENARIO_CONFIGS.put("afternoon", new ScenarioConfig(
-            Arrays.asList("minimalist"),
-            Arrays.asList("energetic", "warm"),
-            Arrays.asList("#ffffff", "#999999", "#abbcda"),
-            Arrays.asList("city", "nature"),
-            Arrays.asList("温暖", "城市", "风景"),
-            0.5, 0.5
-        ));
-        
-        // 晚上场景
-        SCENARIO_CONFIGS.put("evening", new ScenarioConfig(
-            Arrays.asList("minimalist"),
-            Arrays.asList("calm", "warm"),
-            Arrays.asList("#111111", "#222222", "#999999"),
-            Arrays.asList("city", "nature"),
-            Arrays.asList("夜景", "城市", "宁静", "温暖"),
-            0.3, 0.7
-        ));
-        
-        // 深夜场景
-        SCENARIO_CONFIGS.put("night", new ScenarioConfig(
-            Arrays.asList("minimalist"),
-            Arrays.asList("calm", "dark", "cool"),
-            Arrays.asList("#000000", "#111111", "#222222"),
-            Arrays.asList("space", "abstract", "city"),
-            Arrays.asList("夜景", "暗黑", "星空", "太空", "城市"),
-            0.2, 0.8
-        ));
+    // 场景推荐流水线：风格 / 情绪 / 分类 / 标签四路召回 -> 热门补充 -> 场景排序 -> MMR 多样性重排；预算见 pipeline.properties（scenario.*）。
+    // 召回与补充和用户无关，时间推荐按时段从 ScenarioRecallPool 复用
+    private static final RecPipeline PIPELINE = RecPipeline.builder("scenario")
+        .recall("style", (ctx, budget) -> pooled(ctx, "style", budget,
+            () -> recallByIndex(configOf(ctx).preferredStyles, budget,
+                (key, n) -> WallpaperDataManager.getInstance().getWallpapersByStyle(key, n, "rating"))), 50)
+        .recall("mood", (ctx, budget) -> pooled(ctx, "mood", budget,
+            () -> recallByIndex(configOf(ctx).preferredMoods, budget,
+                (key, n) -> WallpaperDataManager.getInstance().getWallpapersByMood(key, n, "rating"))), 50)
+        .recall("category", (ctx, budget) -> pooled(ctx, "category", budget,
+            () -> recallByIndex(configOf(ctx).preferredCategories, budget,
+                (key, n) -> WallpaperDataManager.getInstance().getWallpapersByCategory(key, n, "rating"))), 50)
+        // 额外：按“标签”直接召回（与 wallpapers.csv 的 tags 字段一致，命中率更高）
+        .recall("tag", (ctx, budget) -> pooled(ctx, "tag", budget,
+            () -> recallByIndex(configOf(ctx).preferredTags, budget,
+                (key, n) -> WallpaperDataManager.getInstance().getWallpapersByTag(key, n, "rating"))), 80)
+        // 候选不足 size * 2 时用热门补充
+        .backfill("popular", (ctx, budget) -> pooled(ctx, "popular", budget,
+            () -> WallpaperDataManager.getInstance().getWallpapers(budget, "download")), 2)
+        .rank("scenario", (ctx, candidates) -> rankByScenario(candidates, matcherOf(ctx), ctx.getUser()), 2000)
+        // 场景的多样性权重换算为 MMR 的 lambda：diversityWeight 越大越看重多样性
+        .reRank("mmr", new MmrReRanker("scenario", ctx -> 1.0 - configOf(ctx).diversityWeight), 200)
+        // 请求超时时降级为场景静态分最高的壁纸（预先排好），没有预计算表时用热门列表
+        .fallback("static", (ctx, budget) -> scoreTable().top(ctx.getScenario(), budget), 1)
+        .fallback("popular", (ctx, budget) -> WallpaperDataManager.getInstance().getWallpapers(budget, "download"), 1)
+        .build();
+
+    // 编译好的场景 + 场景静态分预计算表；首次使用、数据重新加载或场景定义变化时（重新）构建
+    private static volatile ScenarioScoreTable scoreTable;
+    private static volatile boolean reloadHooked;
+    // 请求上下文中固定本次请求使用的 matcher，请求处理中途场景定义被替换也保持一致
+    private static final String MATCHER = "scenario.matcher";
+    // 时间推荐传入的时段召回池（见 TimeAwareRecommendation），有池时召回结果从池中取
+    private static final String RECALL_POOL = "scenario.recallPool";
+    // 静态分表（及编译好的场景）被替换后的监听者，例如重建时段召回池
+    private static final List<Runnable> tableListeners = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+    /**
+     * Build the static score table at startup; rebuild it on catalog reloads and scenario definition changes
+     * 服务启动时调用：编译场景并构建静态分表，在每次 loadData 之后、场景定义文件变化后重建，并开始监视场景定义文件
+     */
+    public static void warmUp() {
+        hookReload();
+        rebuildScoreTable();
+        ScenarioDefinitions.startWatching();
     }
-    
+
     /**
-     * Recommend wallpapers based on scenario
-     * 基于场景推荐壁纸
+     * Recompile the scenario definitions against the current catalog and rebuild the static score table
+     * 按当前场景定义与壁纸重新编译场景、重建静态分表，构建完成后整体替换，再（在锁外）回调 addTableListener 注册的监听者
      */
-    public static List<Wallpaper> recommendByScenario(
-        String scenario, 
-        int userId, 
-        int size
-    ) {
-        ScenarioConfig config = SCENARIO_CONFIGS.get(scenario.toLowerCase());
-        if (config == null) {
-            return getDefaultRecommendations(userId, size);
+    public static void rebuildScoreTable() {
+        synchronized (ScenarioBasedRecommendation.class) {
+            buildScoreTable();
         }
-        
-        User user = WallpaperDataManager.getInstance().getUserById(userId);
-        HashMap<Integer, Wallpaper> candidateMap = new HashMap<>();
-        
-        // 1. Recall based on scenario config
-        for (String style : config.preferredStyles) {
-            List<Wallpaper> candidates = WallpaperDataManager.getInstance()
-                .getWallpapersByStyle(style, 50, "rating");
-            for (Wallpaper w : candidates) {
-                candidateMap.put(w.getWallpaperId(), w);
-            }
-        }
-        
-        for (String mood : config.preferredMoods) {
-            List<Wallpaper> candidates = WallpaperDataManager.getInstance()
-                .getWallpapersByMood(mood, 50, "rating");
-            for (Wallpaper w : candidates) {
-                candidateMap.put(w.getWallpaperId(), w);
-            }
+        fireTableListeners();
+    }
+
+    /**
+     * Run a callback whenever the compiled scenarios / static score table are replaced
+     * 编译好的场景与静态分表每次被替换后回调（数据重新加载、场景定义变化、首次构建）
+     */
+    static void addTableListener(Runnable listener) {
+        tableListeners.add(listener);
+    }
+
+    private static void fireTableListeners() {
+        for (Runnable listener : tableListeners) {
+            listener.run();
         }
-        
-        for (String category : config.preferredCategories) {
-            List<Wallpaper> candidates = WallpaperDataManager.getInstance()
-                .getWallpapersByCategory(category, 50, "rating");
-            for (Wallpaper w : candidates) {
-                candidateMap.put(w.getWallpaperId(), w);
-            }
+    }
+
+    // 调用方持有类锁
+    private static void buildScoreTable() {
+        long start = System.nanoTime();
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        Collection<Wallpaper> catalog = dm.getAllWallpapers();
+        List<ScenarioMatcher> matchers = new ArrayList<>();
+        for (Map.Entry<String, ScenarioConfig> e : ScenarioDefinitions.current().entrySet()) {
+            matchers.add(ScenarioMatcher.compile(e.getKey(), e.getValue(), dm.getContentFeatures(), catalog));
         }
+        ScenarioScoreTable table = ScenarioScoreTable.build(matchers, catalog);
+        scoreTable = table;
+        long nanos = System.nanoTime() - start;
+        RecMetrics.record("scenario.table.build", nanos, table.wallpaperCount(), table.scenarioCount());
+        System.out.println("Scenario score table built: " + table.scenarioCount() + " scenarios x "
+            + table.wallpaperCount() + " wallpapers in " + nanos / 1_000_000 + " ms");
+    }
 
-        // 额外：按“标签”直接召回（与 wallpapers.csv 的 tags 字段一致，命中率更高）
-        if (config.preferredTags != null) {
-            for (String tag : config.preferredTags) {
-                List<Wallpaper> tagCandidates = WallpaperDataManager.getInstance()
-                        .getWallpapersByTag(tag, 80, "rating");
-                for (Wallpaper w : tagCandidates) {
-                    candidateMap.put(w.getWallpaperId(), w);
+    private static ScenarioScoreTable scoreTable() {
+        ScenarioScoreTable table = scoreTable;
+        if (table == null) {
+            boolean built = false;
+            synchronized (ScenarioBasedRecommendation.class) {
+                if (scoreTable == null) {
+                    hookReload();
+                    buildScoreTable();
+                    built = true;
                 }
+                table = scoreTable;
             }
-        }
-        
-        // 2. If candidate set is too small, supplement with popular wallpapers
-        if (candidateMap.size() < size * 2) {
-            List<Wallpaper> popularWallpapers = WallpaperDataManager.getInstance()
-                .getWallpapers(size * 2, "download");
-            for (Wallpaper w : popularWallpapers) {
-                candidateMap.put(w.getWallpaperId(), w);
+            if (built) {
+                fireTableListeners();
             }
         }
-        
-        // 3. Rank
-        List<Wallpaper> rankedList = rankByScenario(
-            new ArrayList<>(candidateMap.values()),
-            config,
-            user
-        );
-        
-        return rankedList.subList(0, Math.min(size, rankedList.size()));
+        return table;
     }
-    
-    /**
-     * Rank by scenario
-     * 场景化排序
-     */
-    private static List<Wallpaper> rankByScenario(
-        List<Wallpaper> candidates,
-        ScenarioConfig config,
-        User user
-    ) {
-        HashMap<Wallpaper, Double> scoreMap = new HashMap<>();
-        
-        for (Wallpaper w : candidates) {
-            double score = 0.0;
-            
-            // 1. Style match (30%)
-            if (w.getStyle() != null && config.preferredStyles.contains(w.getStyle())) {
-                score += 0.3;
-            }
-            
-            // 2. Mood match (20%)
-            if (w.getMood() != null && config.preferredMoods.contains(w.getMood())) {
-                score += 0.2;
-            }
-            
-            // 3. Color palette match (15%)
-            if (w.getColorPalette() != null && config.preferredColorPalettes != null) {
-                for (String c : config.preferredColorPalettes) {
-                    if (c != null && !c.isEmpty() && w.getColorPalette().contains(c)) {
-                        score += 0.05; // 命中一个颜色加一点，避免过拟合
-                    }
-                }
-            }
-            
-            // 4. Category match (15%)
-            boolean categoryMatch = false;
-            for (String category : config.preferredCategories) {
-                if (w.getCategories().contains(category)) {
-                    categoryMatch = true;
-                    break;
-                }
-            }
-            if (categoryMatch) {
-                score += 0.15;
-            }
 
-            // 4.5 Tag match (20%)
-            if (config.preferredTags != null && w.getTags() != null) {
-                for (String t : w.getTags()) {
-                    if (config.preferredTags.contains(t)) {
-                        score += 0.05;
-                    }
-                }
-            }
-            
-            // 5. User preference (20%)
-            if (user != null) {
-                double userPreferenceScore = calculateUserPreferenceScore(user, w);
-                score += userPreferenceScore * config.userPreferenceWeight;
-            }
-            
-            // 6. Diversity bonus
-            double diversityScore = calculateDiversityScore(w, candidates);
-            score += diversityScore * config.diversityWeight;
-            
-            scoreMap.put(w, score);
+    private static synchronized void hookReload() {
+        if (!reloadHooked) {
+            WallpaperDataManager.getInstance().addLoadListener(ScenarioBasedRecommendation::rebuildScoreTable);
+            ScenarioDefinitions.addReloadListener(ScenarioBasedRecommendation::rebuildScoreTable);
+            reloadHooked = true;
         }
-        
-        return scoreMap.entrySet().stream()
-            .sorted(Map.Entry.<Wallpaper, Double>comparingByValue().reversed())
-            .map(Map.Entry::getKey)
-            .collect(Collectors.toList());
     }
     
     /**
-     * Calculate user preference score
-     * 计算用户偏好分数
+     * Recommend wallpapers based on scenario
+     * 基于场景推荐壁纸
      */
-    private static double calculateUserPreferenceScore(User user, Wallpaper wallpaper) {
-        if (user == null || user.getRatings().isEmpty()) {
-            return 0.0;
-        }
-        
-        double score = 0.0;
-        
-        // Analyze user history preferences
-        Set<String> userPreferredTags = getUserPreferredTags(user);
-        Set<String> userPreferredStyles = getUserPreferredStyles(user);
-        Set<String> userPreferredMoods = getUserPreferredMoods(user);
-        
-        // Tag match
-        for (String tag : wallpaper.getTags()) {
-            if (userPreferredTags.contains(tag)) {
-                score += 0.1;
-            }
-        }
-        
-        // Style match
-        if (wallpaper.getStyle() != null && userPreferredStyles.contains(wallpaper.getStyle())) {
-            score += 0.2;
-        }
-        
-        // Mood match
-        if (wallpaper.getMood() != null && userPreferredMoods.contains(wallpaper.getMood())) {
-            score += 0.1;
+    public static List<Wallpaper> recommendByScenario(
+        String scenario, 
+        int userId, 
+        int size
+    ) {
+        ScenarioMatcher matcher = scoreTable().matcher(scenario.toLowerCase());
+        if (matcher == null) {
+            return getDefaultRecommendations(userId, size);
         }
         
-        // Normalize
-        return Math.min(score, 1.0);
+        User user = WallpaperDataManager.getInstance().getUserById(userId);
+        RecContext ctx = RecContext.forScenario(matcher.getName(), user, size);
+        ctx.setAttribute(MATCHER, matcher);
+        return PIPELINE.recommend(ctx);
     }
-    
+
     /**
-     * Calculate diversity score
-     * 计算多样性分数
+     * New (empty) recall pool for a scenario, or null for an unknown scenario
+     * 为某个场景新建一个空的召回池（绑定当前编译好的 matcher），未定义的场景返回 null
      */
-    private static double calculateDiversityScore(
-        Wallpaper wallpaper,
-        List<Wallpaper> candidates
-    ) {
-        // Simple implementation: reward diversity
-        // In production, calculate based on tag/category/style differences
-        return 0.1;
+    static ScenarioRecallPool newRecallPool(String scenario) {
+        ScenarioMatcher matcher = scoreTable().matcher(scenario.toLowerCase());
+        return matcher == null ? null : new ScenarioRecallPool(matcher);
     }
-    
+
     /**
-     * Get user preferred tags
-     * 获取用户偏好的标签
+     * Scenario recommendation whose user-independent recall comes from a pool
+     * 与 recommendByScenario 相同，但召回 / 补充结果从池中取（第一次使用时填入），只重新计算排序与重排
      */
-    private static Set<String> getUserPreferredTags(User user) {
-        Set<String> preferredTags = new HashSet<>();
-        for (Rating rating : user.getRatings()) {
-            if (rating.getScore() >= 4.0) {
-                Wallpaper wallpaper = WallpaperDataManager.getInstance()
-                    .getWallpaperById(rating.getWallpaperId());
-                if (wallpaper != null) {
-                    preferredTags.addAll(wallpaper.getTags());
-                }
-            }
-        }
-        return preferredTags;
+    static List<Wallpaper> recommendWithPool(ScenarioRecallPool pool, User user, int size) {
+        RecContext ctx = RecContext.forScenario(pool.getMatcher().getName(), user, size);
+        ctx.setAttribute(MATCHER, pool.getMatcher());
+        ctx.setAttribute(RECALL_POOL, pool);
+        return PIPELINE.recommend(ctx);
+    }
+
+    private static ScenarioMatcher matcherOf(RecContext ctx) {
+        ScenarioMatcher matcher = ctx.getAttribute(MATCHER);
+        return matcher != null ? matcher : scoreTable().matcher(ctx.getScenario());
+    }
+    
+    private static ScenarioConfig configOf(RecContext ctx) {
+        return matcherOf(ctx).getConfig();
+    }
+    
+    private static List<Wallpaper> pooled(RecContext ctx, String channel, int budget,
+                                          java.util.function.Supplier<List<Wallpaper>> recall) {
+        ScenarioRecallPool pool = ctx.getAttribute(RECALL_POOL);
+        return pool == null ? recall.get() : pool.get(channel, budget, recall);
     }
     
     /**
-     * Get user preferred styles
-     * 获取用户偏好的风格
+     * 按若干索引键召回，每个键取 budget 个
      */
-    private static Set<String> getUserPreferredStyles(User user) {
-        Set<String> preferredStyles = new HashSet<>();
-        for (Rating rating : user.getRatings()) {
-            if (rating.getScore() >= 4.0) {
-                Wallpaper wallpaper = WallpaperDataManager.getInstance()
-                    .getWallpaperById(rating.getWallpaperId());
-                if (wallpaper != null && wallpaper.getStyle() != null) {
-                    preferredStyles.add(wallpaper.getStyle());
-                }
-            }
+    private static List<Wallpaper> recallByIndex(
+        List<String> keys,
+        int budget,
+        java.util.function.BiFunction<String, Integer, List<Wallpaper>> lookup
+    ) {
+        List<Wallpaper> result = new ArrayList<>();
+        if (keys == null) {
+            return result;
+        }
+        for (String key : keys) {
+            result.addAll(lookup.apply(key, budget));
         }
-        return preferredStyles;
+        return result;
     }
     
     /**
-     * Get user preferred moods
-     * 获取用户偏好的情绪
+     * Rank by scenario
+     * 场景化排序：原地写入每个候选的场景分（大候选集由 ParallelScorer 并行打分）。
+     * 静态部分查预计算表（表中没有时由编译好的 ScenarioMatcher 直接匹配），用户偏好取缓存的 UserProfile，
+     * 每个候选只剩几次原始类型映射查找
      */
-    private static Set<String> getUserPreferredMoods(User user) {
-        Set<String> preferredMoods = new HashSet<>();
-        for (Rating rating : user.getRatings()) {
-            if (rating.getScore() >= 4.0) {
-                Wallpaper wallpaper = WallpaperDataManager.getInstance()
-                    .getWallpaperById(rating.getWallpaperId());
-                if (wallpaper != null && wallpaper.getMood() != null) {
-                    preferredMoods.add(wallpaper.getMood());
-                }
+    private static void rankByScenario(
+        List<ScoredWallpaper> candidates,
+        ScenarioMatcher matcher,
+        User user
+    ) {
+        ScenarioScoreTable table = scoreTable();
+        ScenarioConfig config = matcher.getConfig();
+        UserProfile profile = user == null ? null : UserProfile.of(user);
+        ParallelScorer.score(candidates, w -> {
+            double score = table.staticScore(matcher, w);
+            if (Double.isNaN(score)) {
+                RecMetrics.increment("scenario.table.miss");
+                score = matcher.staticScore(w);
             }
-        }
-        return preferredMoods;
+            // 5. User preference (20%)
+            if (profile != null) {
+                score += profile.preferenceScore(w) * config.userPreferenceWeight;
+            }
+            // 多样性不在单个候选的分数里体现，由 MMR 重排阶段按 diversityWeight 处理
+            return score;
+        });
     }
     
     /**
@@ -4,7 +4,7 @@ import java.util.List;
 
 /**
  * Scenario Configuration Class
- * 场景配置类
+ * 场景配置类：由 ScenarioDefinitions 从场景定义文件（Config.SCENARIO_CONFIG_PATH，JSON）读入，字段名即文件中的键
  */
 public class ScenarioConfig {
     public List<String> preferredStyles;      // 偏好风格
@@ -14,6 +14,10 @@ public class ScenarioConfig {
     public List<String> preferredTags;       // 偏好标签（直接匹配 wallpapers.csv 的 tags 字段）
     public double diversityWeight;           // 多样性权重
     public double userPreferenceWeight;      // 用户偏好权重
+
+    // 供 JSON 反序列化使用
+    private ScenarioConfig() {
+    }
     
     public ScenarioConfig(
         List<String> preferredStyles,
@@ -0,0 +1,299 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * ScenarioDefinitions - scenario configs read from an external JSON file and reloaded on change
+ * 场景定义：从 JSON 文件（Config.SCENARIO_CONFIG_PATH）读入“场景名 -> ScenarioConfig”，文件修改后自动重新加载
+ *
+ * 说明：
+ * - 新增 / 修改场景只需编辑文件；后台线程每 Config.SCENARIO_RELOAD_INTERVAL_MS 检查一次修改时间与大小，变化时重新读入。
+ * - 启动时文件不存在则使用内置的九个场景；文件格式错误或取值非法时保留当前定义继续服务（计数 scenario.config.reloadFailed）。
+ * - 场景名统一转小写；缺省的列表视为空列表。定义整体替换（不可变快照），替换后依次回调 addReloadListener 注册的监听者。
+ */
+public final class ScenarioDefinitions {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static volatile Map<String, ScenarioConfig> current;
+    // 当前定义对应的文件修改时间与大小；使用内置定义时为 -1
+    private static long loadedModified = -1L;
+    private static long loadedLength = -1L;
+    private static final List<Runnable> reloadListeners = new CopyOnWriteArrayList<>();
+    private static Thread watcher;
+
+    private ScenarioDefinitions() {
+    }
+
+    /**
+     * Current scenario definitions (unmodifiable, in file order)
+     * 当前场景定义（不可修改，保持文件中的顺序）；首次调用时读入文件
+     */
+    public static Map<String, ScenarioConfig> current() {
+        Map<String, ScenarioConfig> defs = current;
+        if (defs == null) {
+            synchronized (ScenarioDefinitions.class) {
+                if (current == null) {
+                    load();
+                    RecMetrics.gauge("scenario.config.count", () -> current.size());
+                }
+                defs = current;
+            }
+        }
+        return defs;
+    }
+
+    /**
+     * Re-read the definition file now
+     * 立即重新读取定义文件；成功替换返回 true（并回调监听者），文件未变化或读取失败返回 false
+     */
+    public static boolean reload() {
+        synchronized (ScenarioDefinitions.class) {
+            current();
+            File file = new File(Config.SCENARIO_CONFIG_PATH);
+            long modified = file.isFile() ? file.lastModified() : -1L;
+            long length = file.isFile() ? file.length() : -1L;
+            if (modified == loadedModified && length == loadedLength) {
+                return false;
+            }
+            if (!load()) {
+                return false;
+            }
+        }
+        RecMetrics.increment("scenario.config.reload");
+        for (Runnable listener : reloadListeners) {
+            listener.run();
+        }
+        return true;
+    }
+
+    /**
+     * Run a callback after the definitions are replaced
+     * 场景定义被替换后回调（例如重建场景静态分表、清掉缓存的场景推荐）
+     */
+    public static void addReloadListener(Runnable listener) {
+        reloadListeners.add(listener);
+    }
+
+    /**
+     * Start the background thread that watches the definition file
+     * 启动后台线程定期检查定义文件（只启动一次；间隔不大于 0 时不启动）
+     */
+    public static synchronized void startWatching() {
+        if (watcher != null || Config.SCENARIO_RELOAD_INTERVAL_MS <= 0) {
+            return;
+        }
+        watcher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(Config.SCENARIO_RELOAD_INTERVAL_MS);
+                    reload();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    System.err.println("Scenario definition reload failed: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }, "scenario-config-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // 调用方持有类锁；读取失败时保留当前定义（首次加载失败时用内置定义）
+    private static boolean load() {
+        String path = Config.SCENARIO_CONFIG_PATH;
+        File file = new File(path);
+        if (!file.isFile()) {
+            loadedModified = -1L;
+            loadedLength = -1L;
+            if (current == null) {
+                System.out.println("Scenario definition file not found, using built-in scenarios: " + path);
+                current = defaults();
+                return true;
+            }
+            // 运行中文件被删除：保留当前定义
+            System.err.println("Scenario definition file removed, keeping current scenarios: " + path);
+            return false;
+        }
+        long modified = file.lastModified();
+        long length = file.length();
+        try {
+            Map<String, ScenarioConfig> defs = parse(file);
+            current = defs;
+            System.out.println("Loaded " + defs.size() + " scenarios from " + path + ": " + defs.keySet());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            RecMetrics.increment("scenario.config.reloadFailed");
+            System.err.println("Failed to load scenario definitions from " + path + ": " + e.getMessage()
+                + (current == null ? " (using built-in scenarios)" : " (keeping current scenarios)"));
+            if (current == null) {
+                current = defaults();
+            }
+            return false;
+        } finally {
+            // 同一份错误文件不反复报错，修改后再试
+            loadedModified = modified;
+            loadedLength = length;
+        }
+    }
+
+    /**
+     * Parse and validate a definition file
+     * 解析并校验定义文件：顶层为“场景名 -> 配置”对象，权重须在 [0, 1] 内
+     */
+    static Map<String, ScenarioConfig> parse(File file) throws IOException {
+        Map<String, ScenarioConfig> raw = MAPPER.readValue(file,
+            new TypeReference<LinkedHashMap<String, ScenarioConfig>>() { });
+        if (raw == null || raw.isEmpty()) {
+            throw new IllegalArgumentException("no scenarios defined");
+        }
+        Map<String, ScenarioConfig> defs = new LinkedHashMap<>();
+        for (Map.Entry<String, ScenarioConfig> e : raw.entrySet()) {
+            String name = e.getKey().trim().toLowerCase();
+            ScenarioConfig c = e.getValue();
+            if (name.isEmpty() || c == null) {
+                throw new IllegalArgumentException("empty scenario \"" + e.getKey() + "\"");
+            }
+            if (defs.containsKey(name)) {
+                throw new IllegalArgumentException("duplicate scenario \"" + name + "\"");
+            }
+            checkWeight(name, "diversityWeight", c.diversityWeight);
+            checkWeight(name, "userPreferenceWeight", c.userPreferenceWeight);
+            defs.put(name, new ScenarioConfig(
+                listOrEmpty(c.preferredStyles),
+                listOrEmpty(c.preferredMoods),
+                listOrEmpty(c.preferredColorPalettes),
+                listOrEmpty(c.preferredCategories),
+                listOrEmpty(c.preferredTags),
+                c.diversityWeight, c.userPreferenceWeight));
+        }
+        return Collections.unmodifiableMap(defs);
+    }
+
+    private static void checkWeight(String scenario, String field, double value) {
+        if (!(value >= 0.0 && value <= 1.0)) {
+            throw new IllegalArgumentException(scenario + "." + field + " must be within [0, 1], got " + value);
+        }
+    }
+
+    private static List<String> listOrEmpty(List<String> values) {
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        List<String> copy = new ArrayList<>(values.size());
+        for (String v : values) {
+            if (v != null && !v.isEmpty()) {
+                copy.add(v);
+            }
+        }
+        return Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * Built-in scenarios, used when no definition file exists
+     * 内置场景（与随仓库提供的 data/scenarios.json 相同），定义文件不存在时使用
+     */
+    static Map<String, ScenarioConfig> defaults() {
+        Map<String, ScenarioConfig> defs = new LinkedHashMap<>();
+
+        // 工作场景
+        defs.put("work", new ScenarioConfig(
+            Arrays.asList("minimalist"),                 // 目前数据里可命中的 style 较少，主要靠 tag/category
+            Arrays.asList("calm", "cool"),
+            Arrays.asList("#ffffff", "#cccccc", "#999999"), // 用颜色近似“干净/中性”
+            Arrays.asList("city", "abstract", "nature"),
+            Arrays.asList("极简", "简约", "宁静", "城市", "写实"),
+            0.3, 0.7  // 更注重用户偏好
+        ));
+
+        // 游戏场景
+        defs.put("gaming", new ScenarioConfig(
+            Arrays.asList("anime"),
+            Arrays.asList("energetic", "dark"),
+            Arrays.asList("#000000", "#111111", "#222222"),
+            Arrays.asList("anime", "abstract", "space", "city"),
+            Arrays.asList("动漫", "二次元", "暗黑", "霓虹", "科幻", "太空", "抽象"),
+            0.5, 0.5  // 平衡多样性和用户偏好
+        ));
+
+        // 阅读场景
+        defs.put("reading", new ScenarioConfig(
+            Arrays.asList("minimalist"),
+            Arrays.asList("calm", "warm"),
+            Arrays.asList("#ffffff", "#abbcda", "#999999"),
+            Arrays.asList("nature", "abstract", "city"),
+            Arrays.asList("宁静", "温暖", "风景", "自然", "简约"),
+            0.4, 0.6
+        ));
+
+        // 睡眠场景
+        defs.put("sleep", new ScenarioConfig(
+            Arrays.asList("minimalist"),
+            Arrays.asList("calm", "dark"),
+            Arrays.asList("#000000", "#111111", "#222222"),
+            Arrays.asList("space", "abstract", "nature"),
+            Arrays.asList("暗黑", "深夜", "夜景", "星空", "太空", "宁静"),
+            0.2, 0.8  // 更注重用户偏好
+        ));
+
+        // 创意场景
+        defs.put("creative", new ScenarioConfig(
+            Arrays.asList("anime"),
+            Arrays.asList("energetic"),
+            Arrays.asList("#ff", "#f7", "#a8"), // 颜色包含即可（见匹配逻辑）
+            Arrays.asList("abstract", "city"),
+            Arrays.asList("抽象", "艺术", "设计", "霓虹", "色彩"),
+            0.6, 0.4  // 更注重多样性
+        ));
+
+        // 早晨场景
+        defs.put("morning", new ScenarioConfig(
+            Arrays.asList("minimalist"),
+            Arrays.asList("energetic", "warm"),
+            Arrays.asList("#ffffff", "#abbcda", "#cccccc"),
+            Arrays.asList("nature", "city"),
+            Arrays.asList("清新", "明亮", "风景", "城市"),
+            0.4, 0.6
+        ));
+
+        // 下午场景
+        defs.put("afternoon", new ScenarioConfig(
+            Arrays.asList("minimalist"),
+            Arrays.asList("energetic", "warm"),
+            Arrays.asList("#ffffff", "#999999", "#abbcda"),
+            Arrays.asList("city", "nature"),
+            Arrays.asList("温暖", "城市", "风景"),
+            0.5, 0.5
+        ));
+
+        // 晚上场景
+        defs.put("evening", new ScenarioConfig(
+            Arrays.asList("minimalist"),
+            Arrays.asList("calm", "warm"),
+            Arrays.asList("#111111", "#222222", "#999999"),
+            Arrays.asList("city", "nature"),
+            Arrays.asList("夜景", "城市", "宁静", "温暖"),
+            0.3, 0.7
+        ));
+
+        // 深夜场景
+        defs.put("night", new ScenarioConfig(
+            Arrays.asList("minimalist"),
+            Arrays.asList("calm", "dark", "cool"),
+            Arrays.asList("#000000", "#111111", "#222222"),
+            Arrays.asList("space", "abstract", "city"),
+            Arrays.asList("夜景", "暗黑", "星空", "太空", "城市"),
+            0.2, 0.8
+        ));
+        return Collections.unmodifiableMap(defs);
+    }
+}
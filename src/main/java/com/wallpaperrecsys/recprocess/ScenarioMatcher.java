@@ -0,0 +1,166 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.datamanager.ContentFeatures;
+import com.wallpaperrecsys.datamanager.Wallpaper;
+
+import java.util.*;
+
+/**
+ * ScenarioMatcher - a scenario definition compiled against the current catalog
+ * 编译后的场景：把 ScenarioConfig 的偏好列表编译成与壁纸同一词表的查询位图、颜色命中索引，逐个候选匹配时不分配对象
+ *
+ * 说明：
+ * - 风格 / 情绪 / 分类命中 = 查询位图与壁纸位图对应段相交；标签命中数 = ContentFeatures.Encoded.tagOverlap（按壁纸标签出现次数）。
+ * - 颜色为子串匹配（如 "#ff" 命中 "#ffffff"）：编译时对目录中每种不同的色板字符串算好命中个数，打分时一次哈希查找。
+ * - 壁纸没有编码（词表过大、内容被修改）或来自另一份词表、色板不在索引中时，回退到按集合 / 子串逐项比较，结果相同。
+ * - 各项权重与累加顺序与原先的 List.contains 实现一致，分数逐位相同。
+ */
+public final class ScenarioMatcher {
+
+    static final double STYLE_WEIGHT = 0.3;
+    static final double MOOD_WEIGHT = 0.2;
+    static final double COLOR_WEIGHT = 0.05;
+    static final double CATEGORY_WEIGHT = 0.15;
+    static final double TAG_WEIGHT = 0.05;
+
+    private final String name;
+    private final ScenarioConfig config;
+    // 查询位图（目录未编码时为 null）
+    private final ContentFeatures.Encoded query;
+    // 色板字符串 -> 命中的颜色个数
+    private final Map<String, Integer> paletteHits;
+    // 回退路径用的集合
+    private final Set<String> styles;
+    private final Set<String> moods;
+    private final Set<String> categories;
+    private final Set<String> tags;
+    private final String[] colors;
+
+    private ScenarioMatcher(String name, ScenarioConfig config, ContentFeatures.Encoded query,
+                            Collection<Wallpaper> catalog) {
+        this.name = name;
+        this.config = config;
+        this.query = query;
+        this.styles = new HashSet<>(config.preferredStyles);
+        this.moods = new HashSet<>(config.preferredMoods);
+        this.categories = new HashSet<>(config.preferredCategories);
+        this.tags = new HashSet<>(config.preferredTags);
+        List<String> c = new ArrayList<>();
+        for (String color : config.preferredColorPalettes) {
+            if (color != null && !color.isEmpty()) {
+                c.add(color);
+            }
+        }
+        this.colors = c.toArray(new String[0]);
+        this.paletteHits = new HashMap<>();
+        for (Wallpaper w : catalog) {
+            String palette = w.getColorPalette();
+            if (palette != null && !paletteHits.containsKey(palette)) {
+                paletteHits.put(palette, scanColors(palette));
+            }
+        }
+    }
+
+    /**
+     * Compile a scenario against the catalog's content-feature vocabulary and color palettes
+     * 按目录的内容特征词表与色板编译场景；schema 为 null（目录未编码）时只走回退路径
+     */
+    static ScenarioMatcher compile(String name, ScenarioConfig config, ContentFeatures schema,
+                                   Collection<Wallpaper> catalog) {
+        ContentFeatures.Encoded query = schema == null ? null : schema.encodeQuery(
+            config.preferredTags, config.preferredCategories, config.preferredStyles, config.preferredMoods);
+        return new ScenarioMatcher(name, config, query, catalog);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ScenarioConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Static part of the scenario score: style / mood / color / category / tag matches
+     * 场景分的静态部分（风格 / 情绪 / 颜色 / 分类 / 标签），只取决于壁纸与场景
+     */
+    public double staticScore(Wallpaper w) {
+        ContentFeatures.Encoded features = w.getContentFeatures();
+        if (query == null || features == null || !features.comparableWith(query)) {
+            return scoreBySets(w);
+        }
+        double score = 0.0;
+
+        // 1. Style match (30%)
+        if (features.sameStyle(query)) {
+            score += STYLE_WEIGHT;
+        }
+
+        // 2. Mood match (20%)
+        if (features.sameMood(query)) {
+            score += MOOD_WEIGHT;
+        }
+
+        // 3. Color palette match (15%)
+        score = addColors(score, w.getColorPalette());
+
+        // 4. Category match (15%)
+        if (features.categoryOverlap(query) > 0) {
+            score += CATEGORY_WEIGHT;
+        }
+
+        // 4.5 Tag match (20%)
+        for (int n = features.tagOverlap(query); n > 0; n--) {
+            score += TAG_WEIGHT;
+        }
+        return score;
+    }
+
+    // 回退路径：与编译路径逐项等价
+    double scoreBySets(Wallpaper w) {
+        double score = 0.0;
+        if (w.getStyle() != null && styles.contains(w.getStyle())) {
+            score += STYLE_WEIGHT;
+        }
+        if (w.getMood() != null && moods.contains(w.getMood())) {
+            score += MOOD_WEIGHT;
+        }
+        score = addColors(score, w.getColorPalette());
+        for (String category : w.getCategories()) {
+            if (categories.contains(category)) {
+                score += CATEGORY_WEIGHT;
+                break;
+            }
+        }
+        if (w.getTags() != null) {
+            for (String t : w.getTags()) {
+                if (tags.contains(t)) {
+                    score += TAG_WEIGHT;
+                }
+            }
+        }
+        return score;
+    }
+
+    // 命中一个颜色加一点，避免过拟合；逐个累加以保持与原实现相同的舍入
+    private double addColors(double score, String palette) {
+        if (palette == null) {
+            return score;
+        }
+        Integer hits = paletteHits.get(palette);
+        for (int n = hits != null ? hits : scanColors(palette); n > 0; n--) {
+            score += COLOR_WEIGHT;
+        }
+        return score;
+    }
+
+    private int scanColors(String palette) {
+        int n = 0;
+        for (String c : colors) {
+            if (palette.contains(c)) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
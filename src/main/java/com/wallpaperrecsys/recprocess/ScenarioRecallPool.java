@@ -0,0 +1,54 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * ScenarioRecallPool - memoized, user-independent recall lists of one scenario
+ * 场景召回池：某个场景的各路召回 / 补充结果与用户无关，按 “通道|预算” 记下后在一段时间内（例如一个时段）复用
+ *
+ * 说明：
+ * - 池与创建时编译好的 ScenarioMatcher 绑定，使用池的请求也用这个 matcher，场景定义热更新后由持有方换新池。
+ * - 列表只读；召回按评分 / 下载量排序，池存在期间新评分带来的顺序变化要等换池后才体现。
+ * - 不同预算的键数有上限（MAX_KEYS），超出后直接召回、不再记忆。
+ * - 指标：scenario.pool.hit / scenario.pool.miss。
+ */
+final class ScenarioRecallPool {
+
+    private static final int MAX_KEYS = 64;
+
+    private final ScenarioMatcher matcher;
+    private final Map<String, List<Wallpaper>> lists = new ConcurrentHashMap<>();
+
+    ScenarioRecallPool(ScenarioMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    ScenarioMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * Recall result of a channel with this budget, computed on first use
+     * 某通道在该预算下的召回结果，第一次使用时计算并记下
+     */
+    List<Wallpaper> get(String channel, int budget, Supplier<List<Wallpaper>> recall) {
+        String key = channel + "|" + budget;
+        List<Wallpaper> list = lists.get(key);
+        if (list != null) {
+            RecMetrics.increment("scenario.pool.hit");
+            return list;
+        }
+        RecMetrics.increment("scenario.pool.miss");
+        list = Collections.unmodifiableList(new ArrayList<>(recall.get()));
+        if (lists.size() < MAX_KEYS) {
+            List<Wallpaper> prev = lists.putIfAbsent(key, list);
+            return prev != null ? prev : list;
+        }
+        return list;
+    }
+}
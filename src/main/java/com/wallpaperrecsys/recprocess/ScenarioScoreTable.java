@@ -0,0 +1,139 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.recprocess.pipeline.ParallelScorer;
+
+import java.util.*;
+
+/**
+ * ScenarioScoreTable - precomputed (scenario x wallpaper) static scenario scores
+ * 场景静态分预计算表：风格 / 情绪 / 颜色 / 分类 / 标签部分只取决于壁纸与场景，加载时为每个场景 x 壁纸算好
+ *
+ * 说明：
+ * - 分数按 wallpaperId 存在每个场景一行的 double[] 里（id 稠密），请求时查表即可，只剩用户偏好项需要在线计算。
+ * - 每个场景另存按静态分降序（同分按 id 升序）排好的 wallpaperId 列表，供超时降级等场合直接取前 N 个。
+ * - 表同时是当前一组编译好的场景（ScenarioMatcher）的快照：请求按场景名取 matcher，查表时按 matcher 对象核对，
+ *   场景定义被替换、或壁纸不在表中时，调用方回退到 matcher 直接计算。
+ * - 构建在 ParallelScorer 的线程池上按 (场景, 壁纸) 并行；数据重新加载或场景定义变化时整体重建后替换。
+ */
+public final class ScenarioScoreTable {
+
+    private final Map<String, Integer> scenarioIndex;
+    private final ScenarioMatcher[] matchers;
+    // [场景][wallpaperId]，不在表中为 NaN
+    private final double[][] scores;
+    // [场景] -> 按静态分降序的 wallpaperId
+    private final int[][] sortedIds;
+    private final Map<Integer, Wallpaper> wallpapers;
+
+    private ScenarioScoreTable(Map<String, Integer> scenarioIndex, ScenarioMatcher[] matchers, double[][] scores,
+                               int[][] sortedIds, Map<Integer, Wallpaper> wallpapers) {
+        this.scenarioIndex = scenarioIndex;
+        this.matchers = matchers;
+        this.scores = scores;
+        this.sortedIds = sortedIds;
+        this.wallpapers = wallpapers;
+    }
+
+    /**
+     * Compute the table for every scenario and wallpaper, in parallel
+     * 为所有场景 x 壁纸计算静态分（并行），并为每个场景排序
+     */
+    static ScenarioScoreTable build(Collection<ScenarioMatcher> scenarios, Collection<Wallpaper> catalog) {
+        Map<String, Integer> scenarioIndex = new HashMap<>();
+        ScenarioMatcher[] matchers = new ScenarioMatcher[scenarios.size()];
+        for (ScenarioMatcher m : scenarios) {
+            matchers[scenarioIndex.size()] = m;
+            scenarioIndex.put(m.getName(), scenarioIndex.size());
+        }
+        Wallpaper[] all = catalog.toArray(new Wallpaper[0]);
+        Map<Integer, Wallpaper> byId = new HashMap<>(all.length * 2);
+        int maxId = -1;
+        for (Wallpaper w : all) {
+            if (w.getWallpaperId() >= 0) {
+                maxId = Math.max(maxId, w.getWallpaperId());
+                byId.put(w.getWallpaperId(), w);
+            }
+        }
+        double[][] scores = new double[matchers.length][maxId + 1];
+        for (double[] row : scores) {
+            Arrays.fill(row, Double.NaN);
+        }
+        int n = all.length;
+        ParallelScorer.forEach(matchers.length * n, k -> {
+            Wallpaper w = all[k % n];
+            if (w.getWallpaperId() >= 0) {
+                scores[k / n][w.getWallpaperId()] = matchers[k / n].staticScore(w);
+            }
+        });
+
+        int[][] sortedIds = new int[matchers.length][];
+        for (int s = 0; s < matchers.length; s++) {
+            double[] row = scores[s];
+            Integer[] ids = new Integer[byId.size()];
+            int i = 0;
+            for (int id = 0; id < row.length; id++) {
+                if (!Double.isNaN(row[id])) {
+                    ids[i++] = id;
+                }
+            }
+            Arrays.sort(ids, (a, b) -> row[a] != row[b] ? Double.compare(row[b], row[a]) : Integer.compare(a, b));
+            sortedIds[s] = new int[ids.length];
+            for (i = 0; i < ids.length; i++) {
+                sortedIds[s][i] = ids[i];
+            }
+        }
+        return new ScenarioScoreTable(scenarioIndex, matchers, scores, sortedIds, byId);
+    }
+
+    /**
+     * Compiled scenario of this snapshot, or null for an unknown scenario
+     * 本快照中某个场景编译后的 matcher，未定义的场景返回 null
+     */
+    ScenarioMatcher matcher(String scenario) {
+        Integer s = scenarioIndex.get(scenario);
+        return s == null ? null : matchers[s];
+    }
+
+    /**
+     * Precomputed static score, or NaN when the table does not cover this matcher / wallpaper
+     * 查表得到静态分；matcher 不是构建时的那一份或壁纸不在表中时返回 NaN
+     */
+    double staticScore(ScenarioMatcher matcher, Wallpaper w) {
+        Integer s = scenarioIndex.get(matcher.getName());
+        if (s == null || matchers[s] != matcher) {
+            return Double.NaN;
+        }
+        int id = w.getWallpaperId();
+        double[] row = scores[s];
+        return id >= 0 && id < row.length ? row[id] : Double.NaN;
+    }
+
+    /**
+     * Top-n wallpapers of a scenario by static score
+     * 某个场景静态分最高的 n 个壁纸（预先排好，只做切片）；未知场景返回空列表
+     */
+    public List<Wallpaper> top(String scenario, int n) {
+        Integer s = scenarioIndex.get(scenario);
+        if (s == null) {
+            return new ArrayList<>();
+        }
+        int[] ids = sortedIds[s];
+        List<Wallpaper> result = new ArrayList<>(Math.min(n, ids.length));
+        for (int i = 0; i < ids.length && result.size() < n; i++) {
+            Wallpaper w = wallpapers.get(ids[i]);
+            if (w != null) {
+                result.add(w);
+            }
+        }
+        return result;
+    }
+
+    public int scenarioCount() {
+        return matchers.length;
+    }
+
+    public int wallpaperCount() {
+        return wallpapers.size();
+    }
+}
@@ -1,9 +1,15 @@
 package com.wallpaperrecsys.recprocess;
 
+import com.wallpaperrecsys.datamanager.ContentFeatures;
+import com.wallpaperrecsys.datamanager.ScoredWallpaper;
 import com.wallpaperrecsys.datamanager.WallpaperDataManager;
 import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.recprocess.pipeline.ParallelScorer;
+import com.wallpaperrecsys.recprocess.pipeline.RecContext;
+import com.wallpaperrecsys.recprocess.pipeline.RecPipeline;
 
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -12,6 +18,18 @@ import java.util.stream.Collectors;
  */
 public class SimilarWallpaperProcess {
 
+    // 相似推荐流水线：标签 / 分类 / 风格三路召回 -> 去掉自身 -> 相似度排序；预算见 pipeline.properties（similar.*）
+    private static final RecPipeline PIPELINE = RecPipeline.builder("similar")
+        .recall("tag", SimilarWallpaperProcess::recallByTags, 100)
+        .recall("category", SimilarWallpaperProcess::recallByCategories, 100)
+        .recall("style", SimilarWallpaperProcess::recallByStyle, 50)
+        .filter("self", (ctx, w) -> w.getWallpaperId() != ctx.getAnchor().getWallpaperId())
+        .rank("model", (ctx, candidates) -> scoreCandidates(ctx.getAnchor(), candidates, ctx.getModel()), 2000)
+        .batchRank(SimilarWallpaperProcess::scoreBatch)
+        // 请求超时时降级为同分类的热门壁纸（索引查询，不打分）
+        .fallback("category", SimilarWallpaperProcess::recallByCategories, 1)
+        .build();
+
     /**
      * Get similar wallpaper list
      * 获取相似壁纸列表
@@ -25,14 +43,51 @@ public class SimilarWallpaperProcess {
         if (null == wallpaper) {
             return new ArrayList<>();
         }
-        
-        List<Wallpaper> candidates = candidateGenerator(wallpaper);
-        List<Wallpaper> rankedList = ranker(wallpaper, candidates, model);
+        return PIPELINE.recommend(RecContext.forWallpaper(wallpaper, model, size));
+    }
+
+    // 批量请求内共享的索引召回结果，key 为 通道|取值|预算
+    private static final String RECALL_MEMO = "similar.recallMemo";
 
-        if (rankedList.size() > size) {
-            return rankedList.subList(0, size);
+    /**
+     * Get similar wallpaper lists for many wallpapers at once
+     * 批量获取相似壁纸：所有锚点共用一份索引召回结果（同一标签 / 分类 / 风格只查一次），
+     * 候选并集一次打分（每个候选的向量只解包一次）；每个列表与单独调用 getRecList 相同。
+     * 重复的 id 只计算一次，不存在的 id 返回空列表
+     * @return wallpaper id -> similar wallpapers, in request order
+     */
+    public static Map<Integer, List<Wallpaper>> getRecLists(List<Integer> wallpaperIds, int size, String model) {
+        Map<Integer, List<Wallpaper>> result = new LinkedHashMap<>();
+        Map<String, List<Wallpaper>> memo = new java.util.concurrent.ConcurrentHashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        List<RecContext> contexts = new ArrayList<>();
+        for (Integer id : wallpaperIds) {
+            if (result.containsKey(id)) {
+                continue;
+            }
+            result.put(id, new ArrayList<>());
+            Wallpaper wallpaper = WallpaperDataManager.getInstance().getWallpaperById(id);
+            if (wallpaper != null) {
+                RecContext ctx = RecContext.forWallpaper(wallpaper, model, size);
+                ctx.setAttribute(RECALL_MEMO, memo);
+                ids.add(id);
+                contexts.add(ctx);
+            }
         }
-        return rankedList;
+        List<List<Wallpaper>> lists = PIPELINE.recommendBatch(contexts);
+        for (int i = 0; i < ids.size(); i++) {
+            result.put(ids.get(i), lists.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Index lookup, shared across a batch request when the context carries a memo
+     * 索引查询；批量请求时从共享结果中取，单个请求直接查询
+     */
+    private static List<Wallpaper> lookup(RecContext ctx, String key, Supplier<List<Wallpaper>> loader) {
+        Map<String, List<Wallpaper>> memo = ctx.getAttribute(RECALL_MEMO);
+        return memo == null ? loader.get() : memo.computeIfAbsent(key, k -> loader.get());
     }
 
     /**
@@ -42,33 +97,16 @@ public class SimilarWallpaperProcess {
      * @return wallpaper candidates
      */
     public static List<Wallpaper> candidateGenerator(Wallpaper wallpaper) {
+        RecContext ctx = RecContext.forWallpaper(wallpaper, null, 0);
         HashMap<Integer, Wallpaper> candidateMap = new HashMap<>();
-        
-        // 1. 基于标签召回
-        for (String tag : wallpaper.getTags()) {
-            List<Wallpaper> tagCandidates = WallpaperDataManager.getInstance()
-                .getWallpapersByTag(tag, 100, "rating");
-            for (Wallpaper candidate : tagCandidates) {
-                candidateMap.put(candidate.getWallpaperId(), candidate);
-            }
+        for (Wallpaper candidate : recallByTags(ctx, 100)) {
+            candidateMap.put(candidate.getWallpaperId(), candidate);
         }
-        
-        // 2. 基于分类召回
-        for (String category : wallpaper.getCategories()) {
-            List<Wallpaper> categoryCandidates = WallpaperDataManager.getInstance()
-                .getWallpapersByCategory(category, 100, "rating");
-            for (Wallpaper candidate : categoryCandidates) {
-                candidateMap.put(candidate.getWallpaperId(), candidate);
-            }
+        for (Wallpaper candidate : recallByCategories(ctx, 100)) {
+            candidateMap.put(candidate.getWallpaperId(), candidate);
         }
-        
-        // 3. 基于风格召回
-        if (wallpaper.getStyle() != null && !wallpaper.getStyle().isEmpty()) {
-            List<Wallpaper> styleCandidates = WallpaperDataManager.getInstance()
-                .getWallpapersByStyle(wallpaper.getStyle(), 50, "rating");
-            for (Wallpaper candidate : styleCandidates) {
-                candidateMap.put(candidate.getWallpaperId(), candidate);
-            }
+        for (Wallpaper candidate : recallByStyle(ctx, 50)) {
+            candidateMap.put(candidate.getWallpaperId(), candidate);
         }
         
         // 移除自身
@@ -76,6 +114,42 @@ public class SimilarWallpaperProcess {
         return new ArrayList<>(candidateMap.values());
     }
 
+    /**
+     * 基于标签召回：每个标签取 budget 个
+     */
+    static List<Wallpaper> recallByTags(RecContext ctx, int budget) {
+        List<Wallpaper> result = new ArrayList<>();
+        for (String tag : ctx.getAnchor().getTags()) {
+            result.addAll(lookup(ctx, "tag|" + tag + "|" + budget,
+                () -> WallpaperDataManager.getInstance().getWallpapersByTag(tag, budget, "rating")));
+        }
+        return result;
+    }
+
+    /**
+     * 基于分类召回：每个分类取 budget 个
+     */
+    static List<Wallpaper> recallByCategories(RecContext ctx, int budget) {
+        List<Wallpaper> result = new ArrayList<>();
+        for (String category : ctx.getAnchor().getCategories()) {
+            result.addAll(lookup(ctx, "category|" + category + "|" + budget,
+                () -> WallpaperDataManager.getInstance().getWallpapersByCategory(category, budget, "rating")));
+        }
+        return result;
+    }
+
+    /**
+     * 基于风格召回
+     */
+    static List<Wallpaper> recallByStyle(RecContext ctx, int budget) {
+        Wallpaper wallpaper = ctx.getAnchor();
+        if (wallpaper.getStyle() == null || wallpaper.getStyle().isEmpty()) {
+            return new ArrayList<>();
+        }
+        return lookup(ctx, "style|" + wallpaper.getStyle() + "|" + budget,
+            () -> WallpaperDataManager.getInstance().getWallpapersByStyle(wallpaper.getStyle(), budget, "rating"));
+    }
+
     /**
      * Multiple-retrieval candidate generation method
      * 多路召回候选生成方法
@@ -135,28 +209,15 @@ public class SimilarWallpaperProcess {
             return null;
         }
 
-        List<Wallpaper> allCandidates = WallpaperDataManager.getInstance()
-            .getAllWallpapersWithEmbedding();
-        
-        HashMap<Wallpaper, Double> wallpaperScoreMap = new HashMap<>();
-        for (Wallpaper candidate : allCandidates) {
-            if (candidate.getWallpaperId() == wallpaper.getWallpaperId()) {
-                continue; // 跳过自身
-            }
-            double similarity = calculateEmbSimilarScore(wallpaper, candidate);
-            wallpaperScoreMap.put(candidate, similarity);
-        }
-
-        List<Map.Entry<Wallpaper, Double>> wallpaperScoreList = 
-            new ArrayList<>(wallpaperScoreMap.entrySet());
-        wallpaperScoreList.sort(Map.Entry.comparingByValue(Comparator.reverseOrder()));
+        // 各分片并行扫描各自的 embedding 块，合并 Top-K（跳过自身）
+        List<ScoredWallpaper> scored = WallpaperDataManager.getInstance()
+            .topKByEmbedding(wallpaper.getEmb(), size, id -> id == wallpaper.getWallpaperId());
 
-        List<Wallpaper> candidates = new ArrayList<>();
-        for (Map.Entry<Wallpaper, Double> entry : wallpaperScoreList) {
-            candidates.add(entry.getKey());
+        List<Wallpaper> candidates = new ArrayList<>(scored.size());
+        for (ScoredWallpaper sw : scored) {
+            candidates.add(sw.getWallpaper());
         }
-
-        return candidates.subList(0, Math.min(candidates.size(), size));
+        return candidates;
     }
 
     /**
@@ -164,37 +225,124 @@ public class SimilarWallpaperProcess {
      * 对候选集排序
      */
     public static List<Wallpaper> ranker(Wallpaper wallpaper, List<Wallpaper> candidates, String model) {
-        HashMap<Wallpaper, Double> candidateScoreMap = new HashMap<>();
-        
+        List<ScoredWallpaper> scored = new ArrayList<>(candidates.size());
         for (Wallpaper candidate : candidates) {
-            double similarity;
-            switch (model.toLowerCase()) {
-                case "emb":
-                    similarity = calculateEmbSimilarScore(wallpaper, candidate);
-                    break;
-                default:
-                    similarity = calculateSimilarScore(wallpaper, candidate);
-            }
-            candidateScoreMap.put(candidate, similarity);
+            scored.add(new ScoredWallpaper(candidate, 0.0));
         }
+        scoreCandidates(wallpaper, scored, model);
         
-        List<Wallpaper> rankedList = new ArrayList<>();
-        candidateScoreMap.entrySet().stream()
-            .sorted(Map.Entry.<Wallpaper, Double>comparingByValue(Comparator.reverseOrder()))
-            .forEach(m -> rankedList.add(m.getKey()));
-        
+        scored.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+        List<Wallpaper> rankedList = new ArrayList<>(scored.size());
+        for (ScoredWallpaper sw : scored) {
+            rankedList.add(sw.getWallpaper());
+        }
         return rankedList;
     }
 
+    /**
+     * Score candidates in place against the anchor wallpaper
+     * 以锚点壁纸为参照原地为候选打分
+     */
+    static void scoreCandidates(Wallpaper wallpaper, List<ScoredWallpaper> candidates, String model) {
+        boolean emb = "emb".equalsIgnoreCase(model);
+        ParallelScorer.score(candidates, candidate -> emb
+            ? calculateEmbSimilarScore(wallpaper, candidate)
+            : calculateSimilarScore(wallpaper, candidate));
+    }
+
+    /**
+     * Score the candidates of several requests in one pass over their union
+     * 批量打分：候选按 id 归并，每个候选只取一次（emb 模型下解包的向量与平方和缓存在 Embedding 中，只算一次），
+     * 再对引用它的每个锚点打分；分数与 scoreCandidates 逐位一致（同样的累加顺序）
+     */
+    static void scoreBatch(List<RecContext> contexts, List<List<ScoredWallpaper>> candidates) {
+        int n = contexts.size();
+        int total = 0;
+        for (List<ScoredWallpaper> list : candidates) {
+            total += list.size();
+        }
+        // 展开成 (请求, 位置) 序列，同一候选的所有出现归到一个槽位
+        int[] listOf = new int[total];
+        int[] posOf = new int[total];
+        int[] slotOf = new int[total];
+        int[] refCount = new int[total];
+        Wallpaper[] unique = new Wallpaper[total];
+        Map<Integer, Integer> slots = new HashMap<>(total * 2);
+        int slotCount = 0;
+        int k = 0;
+        for (int r = 0; r < n; r++) {
+            List<ScoredWallpaper> list = candidates.get(r);
+            for (int p = 0; p < list.size(); p++, k++) {
+                Wallpaper w = list.get(p).getWallpaper();
+                Integer slot = slots.get(w.getWallpaperId());
+                if (slot == null) {
+                    slot = slotCount;
+                    slots.put(w.getWallpaperId(), slotCount);
+                    unique[slotCount++] = w;
+                }
+                listOf[k] = r;
+                posOf[k] = p;
+                slotOf[k] = slot;
+                refCount[slot]++;
+            }
+        }
+        int[] refStart = new int[slotCount + 1];
+        for (int s = 0; s < slotCount; s++) {
+            refStart[s + 1] = refStart[s] + refCount[s];
+        }
+        int[] refs = new int[total];
+        int[] fill = Arrays.copyOf(refStart, slotCount);
+        for (k = 0; k < total; k++) {
+            refs[fill[slotOf[k]]++] = k;
+        }
+
+        Wallpaper[] anchors = new Wallpaper[n];
+        boolean[] emb = new boolean[n];
+        for (int r = 0; r < n; r++) {
+            anchors[r] = contexts.get(r).getAnchor();
+            emb[r] = "emb".equalsIgnoreCase(contexts.get(r).getModel());
+        }
+
+        double[] scores = new double[total];
+        ParallelScorer.forEach(slotCount, s -> {
+            Wallpaper candidate = unique[s];
+            for (int q = refStart[s]; q < refStart[s + 1]; q++) {
+                int ref = refs[q];
+                int r = listOf[ref];
+                scores[ref] = emb[r] ? calculateEmbSimilarScore(anchors[r], candidate)
+                    : calculateSimilarScore(anchors[r], candidate);
+            }
+        });
+        for (k = 0; k < total; k++) {
+            candidates.get(listOf[k]).get(posOf[k]).setScore(scores[k]);
+        }
+    }
+
     /**
      * Calculate similarity score
-     * 计算相似度分数
+     * 计算相似度分数：标签 / 分类重合与风格 / 情绪是否相同优先用加载时的位图编码（ContentFeatures），
+     * 没有编码（词表过大或字段被修改）时逐个比较列表，两条路径结果完全一致
      */
     public static double calculateSimilarScore(Wallpaper wallpaper, Wallpaper candidate) {
-        double score = 0.0;
-        double totalWeight = 0.0;
-        
-        // 1. 标签相似度 (30%)
+        ContentFeatures.Encoded a = wallpaper.getContentFeatures();
+        ContentFeatures.Encoded b = candidate.getContentFeatures();
+        if (a != null && a.comparableWith(b)) {
+            double tagSimilarity = a.tagCount() == 0 ? 0.0 :
+                (double) a.tagOverlap(b) / Math.max(a.tagCount(), b.tagCount());
+            double categorySimilarity = a.categoryCount() == 0 ? 0.0 :
+                (double) a.categoryOverlap(b) / Math.max(a.categoryCount(), b.categoryCount());
+            return combineSimilarScore(tagSimilarity, categorySimilarity,
+                a.sameStyle(b) ? 1.0 : 0.0, a.sameMood(b) ? 1.0 : 0.0, candidate);
+        }
+        return calculateSimilarScoreByLists(wallpaper, candidate);
+    }
+
+    /**
+     * Similarity score computed from the tag / category lists and style / mood strings
+     * 按列表与字符串比较计算相似度（没有位图编码时使用；tools.SimilarScoreBenchmark 以它为基准核对位图路径）
+     */
+    public static double calculateSimilarScoreByLists(Wallpaper wallpaper, Wallpaper candidate) {
+        // 1. 标签相似度
         int sameTagCount = 0;
         for (String tag : wallpaper.getTags()) {
             if (candidate.getTags().contains(tag)) {
@@ -203,10 +351,8 @@ public class SimilarWallpaperProcess {
         }
         double tagSimilarity = wallpaper.getTags().isEmpty() ? 0.0 :
             (double) sameTagCount / Math.max(wallpaper.getTags().size(), candidate.getTags().size());
-        score += tagSimilarity * 0.3;
-        totalWeight += 0.3;
         
-        // 2. 分类相似度 (20%)
+        // 2. 分类相似度
         int sameCategoryCount = 0;
         for (String category : wallpaper.getCategories()) {
             if (candidate.getCategories().contains(category)) {
@@ -215,22 +361,39 @@ public class SimilarWallpaperProcess {
         }
         double categorySimilarity = wallpaper.getCategories().isEmpty() ? 0.0 :
             (double) sameCategoryCount / Math.max(wallpaper.getCategories().size(), candidate.getCategories().size());
-        score += categorySimilarity * 0.2;
-        totalWeight += 0.2;
         
-        // 3. 风格相似度 (20%)
+        // 3. 风格相似度
         double styleSimilarity = 0.0;
         if (wallpaper.getStyle() != null && candidate.getStyle() != null) {
             styleSimilarity = wallpaper.getStyle().equals(candidate.getStyle()) ? 1.0 : 0.0;
         }
-        score += styleSimilarity * 0.2;
-        totalWeight += 0.2;
         
-        // 4. 情绪相似度 (10%)
+        // 4. 情绪相似度
         double moodSimilarity = 0.0;
         if (wallpaper.getMood() != null && candidate.getMood() != null) {
             moodSimilarity = wallpaper.getMood().equals(candidate.getMood()) ? 1.0 : 0.0;
         }
+        return combineSimilarScore(tagSimilarity, categorySimilarity, styleSimilarity, moodSimilarity, candidate);
+    }
+
+    private static double combineSimilarScore(double tagSimilarity, double categorySimilarity,
+                                              double styleSimilarity, double moodSimilarity, Wallpaper candidate) {
+        double score = 0.0;
+        double totalWeight = 0.0;
+
+        // 1. 标签相似度 (30%)
+        score += tagSimilarity * 0.3;
+        totalWeight += 0.3;
+
+        // 2. 分类相似度 (20%)
+        score += categorySimilarity * 0.2;
+        totalWeight += 0.2;
+
+        // 3. 风格相似度 (20%)
+        score += styleSimilarity * 0.2;
+        totalWeight += 0.2;
+
+        // 4. 情绪相似度 (10%)
         score += moodSimilarity * 0.1;
         totalWeight += 0.1;
         
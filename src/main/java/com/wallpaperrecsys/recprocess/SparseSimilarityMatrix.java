@@ -0,0 +1,394 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.util.IntDoubleMap;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * SparseSimilarityMatrix - immutable item-item similarities in CSR layout
+ * 物品相似度稀疏矩阵（CSR，不可变）：行按 wallpaperId 升序，每行的列 id 升序存 int[]、相似度存 float[]
+ *
+ * 说明：
+ * - 每个近邻 8 字节（int 列 id + float 相似度），另加每行 12 字节的行 id 与行起止位置。
+ * - 列与值可以在堆内数组，也可以直接是模型文件的内存映射区（ItemCFModelFile.matrix），后者不占堆；
+ *   withRows 替换的行写入堆内数组，未替换的行仍读映射区。
+ * - 查找行：wallpaperId 稠密（最大 id 不超过行数的 4 倍）时用 id -> 行号的直接索引，否则对行 id 二分；行内对列 id 二分。
+ * - 线上 ItemCFRecommendation、离线评测 OfflineEvalMain 与模型文件 ItemCFModelFile 使用同一种表示，
+ *   打分也都走 accumulateRow / get，离线评测的就是线上服务的模型。
+ * - 增量更新用 withRows 替换若干行得到新矩阵，旧矩阵对正在读取的请求保持不变。
+ */
+public final class SparseSimilarityMatrix {
+
+    public static final SparseSimilarityMatrix EMPTY =
+            new SparseSimilarityMatrix(new int[0], new int[1], new int[0], new float[0]);
+
+    private final int[] rowIds;
+    // 第 r 行在位置 [rowStart[r], rowEnd[r])；位置小于 mappedSize 的读映射区，其余读堆内数组（下标减去 mappedSize）
+    private final int[] rowStart;
+    private final int[] rowEnd;
+    private final IntBuffer mappedCols;
+    private final FloatBuffer mappedVals;
+    private final int mappedSize;
+    private final int[] cols;
+    private final float[] vals;
+    private final int nnz;
+    // 稠密 id 时的直接索引：rowOf[id] 为行号，-1 表示没有该行；稀疏时为 null，改用二分
+    private final int[] rowOf;
+
+    /**
+     * Wrap CSR arrays without copying
+     * @param rowIds ascending wallpaper ids of the non-empty rows
+     * @param rowStart row r spans [rowStart[r], rowStart[r + 1]) of cols / vals
+     * @param cols neighbour wallpaper ids, ascending within each row
+     */
+    SparseSimilarityMatrix(int[] rowIds, int[] rowStart, int[] cols, float[] vals) {
+        if (rowStart.length != rowIds.length + 1 || cols.length != vals.length
+                || rowStart[rowIds.length] != cols.length) {
+            throw new IllegalArgumentException("Inconsistent CSR arrays: " + rowIds.length + " rows, "
+                    + rowStart.length + " row starts, " + cols.length + " cols, " + vals.length + " values");
+        }
+        this.rowIds = rowIds;
+        this.rowStart = Arrays.copyOf(rowStart, rowIds.length);
+        this.rowEnd = Arrays.copyOfRange(rowStart, 1, rowIds.length + 1);
+        this.mappedCols = null;
+        this.mappedVals = null;
+        this.mappedSize = 0;
+        this.cols = cols;
+        this.vals = vals;
+        this.nnz = cols.length;
+        this.rowOf = denseIndex(rowIds);
+    }
+
+    private SparseSimilarityMatrix(int[] rowIds, int[] rowStart, int[] rowEnd, IntBuffer mappedCols,
+                                   FloatBuffer mappedVals, int[] cols, float[] vals, int nnz) {
+        this.rowIds = rowIds;
+        this.rowStart = rowStart;
+        this.rowEnd = rowEnd;
+        this.mappedCols = mappedCols;
+        this.mappedVals = mappedVals;
+        this.mappedSize = mappedCols == null ? 0 : mappedCols.limit();
+        this.cols = cols;
+        this.vals = vals;
+        this.nnz = nnz;
+        this.rowOf = denseIndex(rowIds);
+    }
+
+    /**
+     * Serve CSR rows straight from (memory-mapped) buffers without copying
+     * 直接以缓冲区（模型文件的映射区）为列与值，不复制
+     * @param rowStart row r spans [rowStart[r], rowStart[r + 1]) of cols / vals
+     */
+    static SparseSimilarityMatrix mapped(int[] rowIds, int[] rowStart, IntBuffer cols, FloatBuffer vals) {
+        if (rowStart.length != rowIds.length + 1 || cols.limit() != vals.limit()
+                || rowStart[rowIds.length] != cols.limit()) {
+            throw new IllegalArgumentException("Inconsistent CSR buffers: " + rowIds.length + " rows, "
+                    + rowStart.length + " row starts, " + cols.limit() + " cols, " + vals.limit() + " values");
+        }
+        return new SparseSimilarityMatrix(rowIds, Arrays.copyOf(rowStart, rowIds.length),
+                Arrays.copyOfRange(rowStart, 1, rowIds.length + 1), cols, vals, new int[0], new float[0],
+                cols.limit());
+    }
+
+    private static int[] denseIndex(int[] rowIds) {
+        if (rowIds.length == 0 || rowIds[0] < 0 || rowIds[rowIds.length - 1] >= 4L * rowIds.length + 1024) {
+            return null;
+        }
+        int[] index = new int[rowIds[rowIds.length - 1] + 1];
+        Arrays.fill(index, -1);
+        for (int r = 0; r < rowIds.length; r++) {
+            index[rowIds[r]] = r;
+        }
+        return index;
+    }
+
+    private int row(int itemId) {
+        if (rowOf != null) {
+            return itemId >= 0 && itemId < rowOf.length ? rowOf[itemId] : -1;
+        }
+        return Arrays.binarySearch(rowIds, itemId);
+    }
+
+    private int col(int p) {
+        return p < mappedSize ? mappedCols.get(p) : cols[p - mappedSize];
+    }
+
+    private float val(int p) {
+        return p < mappedSize ? mappedVals.get(p) : vals[p - mappedSize];
+    }
+
+    // 行内按列 id 二分，找不到返回负数
+    private int find(int r, int neighborId) {
+        int lo = rowStart[r];
+        int hi = rowEnd[r] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = col(mid);
+            if (c < neighborId) {
+                lo = mid + 1;
+            } else if (c > neighborId) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Build from rows given as (neighbour id, similarity) arrays in any order
+     * 按行构建：每行的近邻顺序任意，这里排序；空行不保存
+     */
+    public static final class Builder {
+        private final TreeMap<Integer, Row> rows = new TreeMap<>();
+        private int nnz;
+
+        private static final class Row {
+            final int[] cols;
+            final float[] vals;
+
+            Row(int[] cols, float[] vals) {
+                this.cols = cols;
+                this.vals = vals;
+            }
+        }
+
+        public Builder addRow(int itemId, int[] neighbors, double[] sims, int count) {
+            if (count == 0) {
+                return this;
+            }
+            Integer[] order = new Integer[count];
+            for (int k = 0; k < count; k++) {
+                order[k] = k;
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(neighbors[a], neighbors[b]));
+            int[] c = new int[count];
+            float[] v = new float[count];
+            for (int k = 0; k < count; k++) {
+                c[k] = neighbors[order[k]];
+                v[k] = (float) sims[order[k]];
+            }
+            Row old = rows.put(itemId, new Row(c, v));
+            nnz += count - (old == null ? 0 : old.cols.length);
+            return this;
+        }
+
+        public Builder addRow(int itemId, Map<Integer, Double> row) {
+            int[] ids = new int[row.size()];
+            double[] sims = new double[row.size()];
+            int k = 0;
+            for (Map.Entry<Integer, Double> e : row.entrySet()) {
+                ids[k] = e.getKey();
+                sims[k++] = e.getValue();
+            }
+            return addRow(itemId, ids, sims, k);
+        }
+
+        public SparseSimilarityMatrix build() {
+            int[] rowIds = new int[rows.size()];
+            int[] rowStart = new int[rows.size() + 1];
+            int[] cols = new int[nnz];
+            float[] vals = new float[nnz];
+            int r = 0;
+            int pos = 0;
+            for (Map.Entry<Integer, Row> e : rows.entrySet()) {
+                Row row = e.getValue();
+                rowIds[r] = e.getKey();
+                System.arraycopy(row.cols, 0, cols, pos, row.cols.length);
+                System.arraycopy(row.vals, 0, vals, pos, row.vals.length);
+                pos += row.cols.length;
+                rowStart[++r] = pos;
+            }
+            return new SparseSimilarityMatrix(rowIds, rowStart, cols, vals);
+        }
+    }
+
+    /**
+     * Visitor of one row's entries
+     * 行内近邻的遍历回调
+     */
+    public interface EntryVisitor {
+        void accept(int neighborId, float similarity);
+    }
+
+    /**
+     * sim(i, j), or {@code missing} when j is not among i's neighbours
+     * 查找 sim(i, j)：行 id 二分 + 行内列 id 二分，不在近邻中时返回 missing
+     */
+    public double get(int itemId, int neighborId, double missing) {
+        int r = row(itemId);
+        if (r < 0) {
+            return missing;
+        }
+        int p = find(r, neighborId);
+        return p < 0 ? missing : val(p);
+    }
+
+    /**
+     * Add weight * sim(i, j) into {@code scores} for every neighbour j of i not excluded
+     * 把第 i 行的每个近邻 j 的 weight * sim(i, j) 累加进 scores（跳过 exclude 命中的 j）；ItemCF 的召回与打分都用它
+     * @return false when i has no row
+     */
+    public boolean accumulateRow(int itemId, double weight, IntPredicate exclude, Map<Integer, Double> scores) {
+        int r = row(itemId);
+        if (r < 0) {
+            return false;
+        }
+        for (int p = rowStart[r], end = rowEnd[r]; p < end; p++) {
+            int j = col(p);
+            if (exclude != null && exclude.test(j)) {
+                continue;
+            }
+            scores.merge(j, val(p) * weight, Double::sum);
+        }
+        return true;
+    }
+
+    /**
+     * Same as above, accumulating into a primitive map
+     * 同上，累加进不装箱的 IntDoubleMap（不存在的 j 从 0 开始，结果与 Map 版逐位相同）；逐候选查找的打分路径用它
+     * @return false when i has no row
+     */
+    public boolean accumulateRow(int itemId, double weight, IntPredicate exclude, IntDoubleMap scores) {
+        int r = row(itemId);
+        if (r < 0) {
+            return false;
+        }
+        for (int p = rowStart[r], end = rowEnd[r]; p < end; p++) {
+            int j = col(p);
+            if (exclude != null && exclude.test(j)) {
+                continue;
+            }
+            scores.addTo(j, val(p) * weight);
+        }
+        return true;
+    }
+
+    public void forEachInRow(int itemId, EntryVisitor visitor) {
+        int r = row(itemId);
+        if (r < 0) {
+            return;
+        }
+        for (int p = rowStart[r], end = rowEnd[r]; p < end; p++) {
+            visitor.accept(col(p), val(p));
+        }
+    }
+
+    public boolean hasRow(int itemId) {
+        return row(itemId) >= 0;
+    }
+
+    public int rowSize(int itemId) {
+        int r = row(itemId);
+        return r < 0 ? 0 : rowEnd[r] - rowStart[r];
+    }
+
+    /**
+     * A row as a mutable map (for patching in the incremental updater)
+     * 把一行复制成可修改的 Map，供增量更新修改后再用 withRows 写回；没有该行时返回 null
+     */
+    Map<Integer, Double> rowAsMap(int itemId) {
+        int r = row(itemId);
+        if (r < 0) {
+            return null;
+        }
+        Map<Integer, Double> row = new HashMap<>((rowEnd[r] - rowStart[r]) * 2);
+        for (int p = rowStart[r], end = rowEnd[r]; p < end; p++) {
+            row.put(col(p), (double) val(p));
+        }
+        return row;
+    }
+
+    /**
+     * A new matrix with the given rows replaced; an empty map removes the row
+     * 替换若干行得到新矩阵（空 Map 表示删除该行），当前矩阵不变；
+     * 新行与堆内未替换的行复制进新的堆内数组，映射区里未替换的行不复制
+     */
+    public SparseSimilarityMatrix withRows(Map<Integer, Map<Integer, Double>> replaced) {
+        if (replaced.isEmpty()) {
+            return this;
+        }
+        Builder changed = new Builder();
+        int[] rep = new int[replaced.size()];
+        int n = 0;
+        for (Map.Entry<Integer, Map<Integer, Double>> e : replaced.entrySet()) {
+            changed.addRow(e.getKey(), e.getValue());
+            rep[n++] = e.getKey();
+        }
+        Arrays.sort(rep);
+        SparseSimilarityMatrix delta = changed.build();
+
+        // 合并两组有序行 id：被替换的行取 delta（可能为空行，即删除），其余取当前矩阵
+        int maxRows = rowIds.length + delta.rowIds.length;
+        int[] newIds = new int[maxRows];
+        int[] newStart = new int[maxRows];
+        int[] newEnd = new int[maxRows];
+        int[] newCols = new int[cols.length + delta.cols.length];
+        float[] newVals = new float[newCols.length];
+        int a = 0;
+        int b = 0;
+        int r = 0;
+        int pos = 0;
+        int total = 0;
+        while (a < rowIds.length || b < rep.length) {
+            int id;
+            if (b < rep.length && (a >= rowIds.length || rep[b] <= rowIds[a])) {
+                id = rep[b++];
+                if (a < rowIds.length && rowIds[a] == id) {
+                    a++;
+                }
+                int fromRow = Arrays.binarySearch(delta.rowIds, id);
+                if (fromRow < 0) {
+                    continue;
+                }
+                int start = delta.rowStart[fromRow];
+                int len = delta.rowEnd[fromRow] - start;
+                System.arraycopy(delta.cols, start, newCols, pos, len);
+                System.arraycopy(delta.vals, start, newVals, pos, len);
+                newStart[r] = mappedSize + pos;
+                pos += len;
+                newEnd[r] = mappedSize + pos;
+            } else {
+                id = rowIds[a];
+                int start = rowStart[a];
+                int len = rowEnd[a] - start;
+                if (start < mappedSize) {
+                    // 映射区里的行原样引用
+                    newStart[r] = start;
+                    newEnd[r] = start + len;
+                } else {
+                    System.arraycopy(cols, start - mappedSize, newCols, pos, len);
+                    System.arraycopy(vals, start - mappedSize, newVals, pos, len);
+                    newStart[r] = mappedSize + pos;
+                    pos += len;
+                    newEnd[r] = mappedSize + pos;
+                }
+                a++;
+            }
+            total += newEnd[r] - newStart[r];
+            newIds[r++] = id;
+        }
+        return new SparseSimilarityMatrix(Arrays.copyOf(newIds, r), Arrays.copyOf(newStart, r),
+                Arrays.copyOf(newEnd, r), mappedCols, mappedVals, Arrays.copyOf(newCols, pos),
+                Arrays.copyOf(newVals, pos), total);
+    }
+
+    public int rowCount() {
+        return rowIds.length;
+    }
+
+    public int nonZeros() {
+        return nnz;
+    }
+
+    /**
+     * Approximate heap footprint of the arrays
+     * 堆内数组占用的字节数（近似，不含对象头与映射区）
+     */
+    public long memoryBytes() {
+        return 4L * rowIds.length + 4L * rowStart.length + 4L * rowEnd.length + 4L * cols.length + 4L * vals.length
+                + (rowOf == null ? 0L : 4L * rowOf.length);
+    }
+}
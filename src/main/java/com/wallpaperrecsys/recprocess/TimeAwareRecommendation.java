@@ -1,38 +1,207 @@
 package com.wallpaperrecsys.recprocess;
 
+import com.wallpaperrecsys.datamanager.User;
 import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.RecMetrics;
 
-import java.time.LocalDateTime;
-import java.util.List;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
 
 /**
  * Time-aware Recommendation
  * 时间感知推荐
+ *
+ * 说明：
+ * - 时段（morning 6-12 / afternoon 12-18 / evening 18-22 / night 22-6）按客户端时区计算，不传时区时用服务器时区；时段名即场景名。
+ * - 召回与用户无关：每个时段一个 ScenarioRecallPool。后台调度线程在服务器时区每个时段开始前 Config.TIME_PREWARM_LEAD_MS
+ *   重建该时段的池并用一次匿名请求填满；场景静态分表重建（数据重新加载、场景定义变化）后四个时段全部重建。
+ * - 这里不缓存个性化结果：/api/rec/time 把完整结果放在 RecSessionCache 的 time|用户|时段 会话里，存活到客户端时区的时段结束（nextBoundary），
+ *   用户有新评分、场景定义或数据重新加载时由服务端使会话失效。
+ * - 指标：time.prewarm 为一次预热耗时。
  */
 public class TimeAwareRecommendation {
 
+    static final String[] SLOTS = {"morning", "afternoon", "evening", "night"};
+    // 各时段的起始小时，与 SLOTS 对应
+    private static final int[] SLOT_START_HOURS = {6, 12, 18, 22};
+
+    // 时段 -> 召回池；替换时整体换新 map
+    private static volatile Map<String, ScenarioRecallPool> pools;
+    private static Thread scheduler;
+    private static boolean hooked;
+
+    /**
+     * Prewarm every slot now and keep the upcoming slot warm before each boundary
+     * 服务启动时调用：立即预热四个时段的召回池，场景静态分表重建后重新预热，并启动时段边界前的预热调度线程
+     */
+    public static void warmUp() {
+        hookTableRebuild();
+        prewarmAll();
+        startScheduler();
+    }
+
+    private static synchronized void hookTableRebuild() {
+        if (!hooked) {
+            ScenarioBasedRecommendation.addTableListener(TimeAwareRecommendation::prewarmAll);
+            hooked = true;
+        }
+    }
+
     /**
      * Recommend wallpapers based on current time
-     * 根据当前时间推荐壁纸
+     * 根据当前时间推荐壁纸（服务器时区）
      */
     public static List<Wallpaper> recommendByTime(int userId, int size) {
-        int hour = LocalDateTime.now().getHour();
-        String timeSlot;
+        return recommendByTime(userId, size, ZoneId.systemDefault());
+    }
 
+    /**
+     * Recommend wallpapers for the current time slot in the client's time zone
+     * 按客户端时区的当前时段推荐：召回取该时段的预热池，只做个性化排序
+     */
+    public static List<Wallpaper> recommendByTime(int userId, int size, ZoneId zone) {
+        String slot = currentTimeSlot(zone);
+        ScenarioRecallPool pool = pools().get(slot);
+        if (pool == null) {
+            // 场景定义里没有这个时段：按普通场景推荐处理（未知场景返回默认推荐）
+            return ScenarioBasedRecommendation.recommendByScenario(slot, userId, size);
+        }
+
+        User user = WallpaperDataManager.getInstance().getUserById(userId);
+        return ScenarioBasedRecommendation.recommendWithPool(pool, user, size);
+    }
+
+    /**
+     * Time slot of the current hour, used as the scenario name
+     * 当前小时对应的时间段（同时也是场景名），服务器时区
+     */
+    public static String currentTimeSlot() {
+        return currentTimeSlot(ZoneId.systemDefault());
+    }
+
+    /**
+     * Time slot of the current hour in the given time zone
+     * 指定时区当前小时对应的时间段
+     */
+    public static String currentTimeSlot(ZoneId zone) {
+        return SLOTS[slotIndex(ZonedDateTime.now(zone).getHour())];
+    }
+
+    private static int slotIndex(int hour) {
         if (hour >= 6 && hour < 12) {
-            timeSlot = "morning";  // 早晨：明亮、清新
+            return 0;  // 早晨：明亮、清新
         } else if (hour >= 12 && hour < 18) {
-            timeSlot = "afternoon"; // 下午：活力、温暖
+            return 1;  // 下午：活力、温暖
         } else if (hour >= 18 && hour < 22) {
-            timeSlot = "evening";   // 晚上：柔和、暗色
+            return 2;  // 晚上：柔和、暗色
         } else {
-            timeSlot = "night";     // 深夜：暗色、柔和
+            return 3;  // 深夜：暗色、柔和
         }
+    }
 
-        // Reuse scenario recommendation logic
-        return ScenarioBasedRecommendation.recommendByScenario(
-            timeSlot, userId, size
-        );
+    /**
+     * Start of the next time slot after the given time, in the same zone
+     * 给定时刻之后的下一个时段起点（同一时区），即当前时段的结束
+     */
+    public static ZonedDateTime nextBoundary(ZonedDateTime t) {
+        for (int hour : SLOT_START_HOURS) {
+            ZonedDateTime boundary = t.toLocalDate().atTime(hour, 0).atZone(t.getZone());
+            if (boundary.isAfter(t)) {
+                return boundary;
+            }
+        }
+        return t.toLocalDate().plusDays(1).atTime(SLOT_START_HOURS[0], 0).atZone(t.getZone());
+    }
+
+    private static Map<String, ScenarioRecallPool> pools() {
+        Map<String, ScenarioRecallPool> current = pools;
+        if (current == null) {
+            synchronized (TimeAwareRecommendation.class) {
+                if (pools == null) {
+                    hookTableRebuild();
+                    prewarmAll();
+                }
+                current = pools;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Rebuild and fill the recall pools of all slots
+     * 重建并填满四个时段的召回池
+     */
+    static synchronized void prewarmAll() {
+        long start = System.nanoTime();
+        Map<String, ScenarioRecallPool> fresh = new HashMap<>();
+        for (String slot : SLOTS) {
+            ScenarioRecallPool pool = fill(slot);
+            if (pool != null) {
+                fresh.put(slot, pool);
+            }
+        }
+        pools = fresh;
+        RecMetrics.record("time.prewarm", System.nanoTime() - start, SLOTS.length, fresh.size());
     }
-}
 
+    /**
+     * Rebuild and fill the recall pool of one slot
+     * 重建并填满一个时段的召回池
+     */
+    static synchronized void prewarm(String slot) {
+        long start = System.nanoTime();
+        Map<String, ScenarioRecallPool> fresh = new HashMap<>(pools());
+        ScenarioRecallPool pool = fill(slot);
+        if (pool != null) {
+            fresh.put(slot, pool);
+        } else {
+            fresh.remove(slot);
+        }
+        pools = fresh;
+        RecMetrics.record("time.prewarm", System.nanoTime() - start, 1, pool == null ? 0 : 1);
+    }
+
+    // 新建时段召回池，并用一次匿名请求（按会话第一次计算的结果数）填满，顺带预热排序 / 重排的代码路径
+    private static ScenarioRecallPool fill(String slot) {
+        ScenarioRecallPool pool = ScenarioBasedRecommendation.newRecallPool(slot);
+        if (pool != null) {
+            ScenarioBasedRecommendation.recommendWithPool(pool, null, Config.REC_SESSION_INITIAL_RESULTS);
+        }
+        return pool;
+    }
+
+    // 服务器时区每个时段开始前 TIME_PREWARM_LEAD_MS 预热该时段
+    private static synchronized void startScheduler() {
+        if (scheduler != null || !Config.TIME_PREWARM_ENABLED) {
+            return;
+        }
+        scheduler = new Thread(() -> {
+            while (true) {
+                try {
+                    ZonedDateTime boundary = nextBoundary(ZonedDateTime.now());
+                    long wait = boundary.toInstant().toEpochMilli() - Config.TIME_PREWARM_LEAD_MS
+                        - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                    try {
+                        prewarm(SLOTS[slotIndex(boundary.getHour())]);
+                    } catch (RuntimeException e) {
+                        System.err.println("Time slot prewarm failed: " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                    // 等过了边界再算下一个
+                    long untilBoundary = boundary.toInstant().toEpochMilli() - System.currentTimeMillis();
+                    Thread.sleep(Math.max(0L, untilBoundary) + 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "time-slot-prewarm");
+        scheduler.setDaemon(true);
+        scheduler.start();
+    }
+}
@@ -0,0 +1,193 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.datamanager.Rating;
+import com.wallpaperrecsys.datamanager.User;
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.recprocess.pipeline.DeadlineExceededException;
+import com.wallpaperrecsys.recprocess.pipeline.RequestDeadline;
+import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.IntDoubleMap;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntPredicate;
+
+/**
+ * User-based Collaborative Filtering (UserCF) recommender over a MinHash/LSH user index.
+ * 基于用户的协同过滤（UserCF）：用 MinHash/LSH 找喜欢集合相似的用户，汇总他们喜欢的壁纸。
+ *
+ * 说明：
+ * - 相似用户：MinHashLSHIndex 同桶候选中精确 Jaccard 最高的 Config.USERCF_NEIGHBORS 个，不需要两两计算全部用户。
+ * - 候选得分：sum(相似用户的 Jaccard)，只统计相似用户喜欢（评分 >= 4）的壁纸；对喜欢很少、ItemCF 近邻稀疏的用户更有用。
+ * - 索引在服务启动时后台构建（warmUp），新的喜欢通过数据层的评分回调增量更新签名；构建期间到达的喜欢先排队，构建完成后补上。
+ */
+public class UserCFRecommendation {
+
+    private static volatile UserCFRecommendation instance;
+
+    // 认为“喜欢”的评分阈值，与 ItemCF 保持一致
+    private static final double LIKE_THRESHOLD = 4.0;
+
+    private volatile MinHashLSHIndex index;
+    private FutureTask<Void> backgroundBuild;
+    // 索引发布前到达的喜欢；addLike 幂等，重复补上没有影响
+    private final Queue<int[]> pendingLikes = new ConcurrentLinkedQueue<>();
+
+    private UserCFRecommendation() {
+    }
+
+    public static UserCFRecommendation getInstance() {
+        if (instance == null) {
+            synchronized (UserCFRecommendation.class) {
+                if (instance == null) {
+                    UserCFRecommendation created = new UserCFRecommendation();
+                    WallpaperDataManager.getInstance().addRatingListener(created::onRating);
+                    instance = created;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Start building the index in the background, called once at server startup.
+     * 服务启动时调用，后台构建索引，不阻塞调用线程
+     */
+    public void warmUp() {
+        if (index == null) {
+            startBackgroundBuild();
+        }
+    }
+
+    public boolean isBuilt() {
+        return index != null;
+    }
+
+    /**
+     * Ensure the index is built, waiting no longer than the request deadline.
+     * 与 ItemCFRecommendation.ensureBuilt(deadline) 相同：有截止时间时只等待到截止时间，来不及则抛出 DeadlineExceededException
+     */
+    public void ensureBuilt(RequestDeadline deadline) {
+        if (index != null) {
+            return;
+        }
+        if (!deadline.isBounded()) {
+            buildIfMissing();
+            return;
+        }
+        try {
+            startBackgroundBuild().get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException("usercf.build");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("usercf.build");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("UserCF build failed", e.getCause());
+        }
+    }
+
+    private FutureTask<Void> startBackgroundBuild() {
+        synchronized (UserCFRecommendation.class) {
+            if (backgroundBuild == null || (backgroundBuild.isDone() && index == null)) {
+                backgroundBuild = new FutureTask<>(this::buildIfMissing, null);
+                Thread t = new Thread(backgroundBuild, "usercf-build");
+                t.setDaemon(true);
+                t.start();
+            }
+            return backgroundBuild;
+        }
+    }
+
+    private synchronized void buildIfMissing() {
+        if (index != null) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<User> users = WallpaperDataManager.getInstance().getAllUsers();
+        MinHashLSHIndex built = MinHashLSHIndex.build(ItemCFRecommendation.likedByUser(users),
+                Config.USERCF_BANDS, Config.USERCF_ROWS, Config.USERCF_BUILD_THREADS);
+        index = built;
+        drainPending();
+        long nanos = System.nanoTime() - start;
+        RecMetrics.record("usercf.build", nanos, users.size(), built.size());
+        System.out.println("UserCF index built: " + built.size() + " users, " + Config.USERCF_BANDS + " bands x "
+                + Config.USERCF_ROWS + " rows in " + nanos / 1_000_000 + " ms (" + Config.USERCF_BUILD_THREADS + " threads)");
+    }
+
+    /**
+     * Apply a new like to the index (queued until the index is published)
+     * 数据层新增评分时回调：先入队，索引已发布则立即补上
+     */
+    void onRating(Rating rating) {
+        if (rating.getScore() < LIKE_THRESHOLD) {
+            return;
+        }
+        pendingLikes.offer(new int[]{rating.getUserId(), rating.getWallpaperId()});
+        drainPending();
+    }
+
+    private void drainPending() {
+        MinHashLSHIndex idx = index;
+        if (idx == null) {
+            return;
+        }
+        int[] like;
+        while ((like = pendingLikes.poll()) != null) {
+            if (idx.addLike(like[0], like[1])) {
+                RecMetrics.increment("usercf.update.likes");
+            }
+        }
+    }
+
+    /**
+     * Aggregate neighbour similarity over the wallpapers each neighbour liked, computed once per request.
+     * 汇总相似用户喜欢的壁纸：候选得分为喜欢它的相似用户的 Jaccard 之和；没有信号的候选不在结果中（不装箱的 IntDoubleMap）
+     */
+    public IntDoubleMap neighborScores(int userId, IntPredicate exclude) {
+        MinHashLSHIndex idx = index;
+        if (idx == null) {
+            return new IntDoubleMap(4);
+        }
+        long start = System.nanoTime();
+        int[] stats = new int[2];
+        List<MinHashLSHIndex.Neighbor> neighbors = idx.neighbors(userId, Config.USERCF_NEIGHBORS, stats);
+        IntDoubleMap score = new IntDoubleMap(256);
+        for (MinHashLSHIndex.Neighbor n : neighbors) {
+            for (int id : idx.liked(n.userId)) {
+                if (exclude != null && exclude.test(id)) {
+                    continue;
+                }
+                score.addTo(id, n.similarity);
+            }
+        }
+        // in=LSH 候选用户数，out=相似用户数
+        RecMetrics.record("usercf.query", System.nanoTime() - start, stats[0], stats[1]);
+        return score;
+    }
+
+    /**
+     * Recall candidates liked by similar users.
+     * 召回：相似用户喜欢的壁纸中得分最高的 budget 个 wallpaperId
+     */
+    public List<Integer> recall(int userId, int budget, IntPredicate exclude) {
+        if (budget <= 0) {
+            return new ArrayList<>();
+        }
+        return neighborScores(userId, exclude).topKeys(budget);
+    }
+
+    /**
+     * Score used when no similar user liked the candidate
+     * 没有相似用户喜欢该候选时的兜底分（与 ItemCF 相同的小权重平均分）
+     */
+    static double fallbackScore(Wallpaper w) {
+        return w == null ? 0.0 : (w.getAverageRating() / 5.0) * 0.05;
+    }
+}
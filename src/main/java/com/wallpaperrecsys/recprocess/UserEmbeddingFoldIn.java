@@ -0,0 +1,220 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.datamanager.Rating;
+import com.wallpaperrecsys.datamanager.User;
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.model.Embedding;
+import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.util.*;
+
+/**
+ * Online fold-in of user embeddings from new likes
+ * 用户向量在线折叠（fold-in）：每个新的喜欢把壁纸向量并入用户向量，emb 模型下一次请求就能反映
+ *
+ * 说明：
+ * - 用户向量为喜欢壁纸（归一化）向量的衰减加权平均：sum = decay * sum + w * v，weight = decay * weight + w，
+ *   向量 = sum / weight；w 为评分强度（与 ItemCF 相同的 preference），decay 为 Config.EMB_FOLDIN_DECAY。
+ *   这也是 user_embeddings.csv 的合成方式（高分壁纸向量的均值），ALS 因子下是近似。
+ * - 单次更新 O(d)：sum 与 weight 放在 FoldedEmbedding 里，本身就是用户的 Embedding；
+ *   更新时读当前向量、算出新向量，再用 User.compareAndSetEmb 发布，失败则基于新值重试，不加锁、不丢更新。
+ * - 当前向量不是 FoldedEmbedding（来自文件或 ALS，或被 ALS 整体替换）时，以它为起点，权重按之前的喜欢数计
+ *   （不超过衰减下的稳态权重 1 / (1 - decay)）；用户没有向量时用之前的全部喜欢补算一次（只发生一次，O(n·d)）。
+ * - 评分回调在 addRating 的调用线程里同步执行，/api/rate 返回前新向量已经可见。
+ * - 指标：emb.foldin.update（单次更新耗时，in=维度）、emb.foldin.likes / seeded / skipped / casRetry 计数。
+ */
+public class UserEmbeddingFoldIn {
+
+    private static volatile UserEmbeddingFoldIn instance;
+
+    // 认为“喜欢”的评分阈值，与 ItemCF / UserCF 一致
+    private static final double LIKE_THRESHOLD = 4.0;
+
+    /**
+     * A user embedding that carries its own fold-in state
+     * 带折叠状态的用户向量：sum 为加权和，weight 为权重和；不可变，每次更新生成新对象
+     */
+    static final class FoldedEmbedding extends Embedding {
+        final float[] sum;
+        final double weight;
+
+        FoldedEmbedding(float[] sum, double weight) {
+            super(mean(sum, weight));
+            this.sum = sum;
+            this.weight = weight;
+        }
+
+        private static List<Double> mean(float[] sum, double weight) {
+            List<Double> vector = new ArrayList<>(sum.length);
+            double inv = weight > 0 ? 1.0 / weight : 0.0;
+            for (float v : sum) {
+                vector.add(v * inv);
+            }
+            return vector;
+        }
+    }
+
+    private UserEmbeddingFoldIn() {
+    }
+
+    public static UserEmbeddingFoldIn getInstance() {
+        if (instance == null) {
+            synchronized (UserEmbeddingFoldIn.class) {
+                if (instance == null) {
+                    UserEmbeddingFoldIn created = new UserEmbeddingFoldIn();
+                    WallpaperDataManager.getInstance().addRatingListener(created::onRating);
+                    instance = created;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Give every user that has likes but no embedding one folded from those likes, in the background
+     * 服务启动时调用：后台为有喜欢但没有向量的用户补算一次（没有 user_embeddings.csv 行的用户也能走 emb）
+     */
+    public void warmUp() {
+        if (!Config.EMB_FOLDIN_ENABLED) {
+            return;
+        }
+        Thread t = new Thread(() -> {
+            long start = System.nanoTime();
+            int seeded = 0;
+            for (User user : WallpaperDataManager.getInstance().getAllUsers()) {
+                Embedding current = user.getEmb();
+                if (current == null) {
+                    FoldedEmbedding folded = foldLikes(user, Integer.MAX_VALUE, null);
+                    if (folded != null && user.compareAndSetEmb(null, folded)) {
+                        seeded++;
+                    }
+                }
+            }
+            RecMetrics.add("emb.foldin.seeded", seeded);
+            System.out.println("User embeddings folded in from likes: " + seeded + " users in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }, "emb-foldin-seed");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Fold a new like into the user's embedding
+     * 数据层新增评分时回调：喜欢的壁纸有向量时并入用户向量
+     */
+    void onRating(Rating rating) {
+        if (!Config.EMB_FOLDIN_ENABLED || rating.getScore() < LIKE_THRESHOLD) {
+            return;
+        }
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        User user = dm.getUserById(rating.getUserId());
+        float[] v = itemVector(dm.getWallpaperById(rating.getWallpaperId()));
+        if (user == null || v == null) {
+            RecMetrics.increment("emb.foldin.skipped");
+            return;
+        }
+        long start = System.nanoTime();
+        double w = ItemCFRecommendation.preference(rating.getScore());
+        while (true) {
+            Embedding current = user.getEmb();
+            FoldedEmbedding next;
+            if (current instanceof FoldedEmbedding && ((FoldedEmbedding) current).sum.length == v.length) {
+                next = fold((FoldedEmbedding) current, v, w);
+            } else {
+                // 以文件 / ALS 向量为起点；没有可用向量时用之前的喜欢补算。新的这条评分已在列表末尾，不重复计入
+                int priorLikes = likeCount(user) - 1;
+                FoldedEmbedding seed = seed(current, v.length, priorLikes);
+                if (seed == null) {
+                    seed = foldLikes(user, priorLikes, v.length);
+                }
+                next = seed == null ? fold(new FoldedEmbedding(new float[v.length], 0.0), v, w) : fold(seed, v, w);
+                RecMetrics.increment("emb.foldin.seeded");
+            }
+            if (user.compareAndSetEmb(current, next)) {
+                break;
+            }
+            RecMetrics.increment("emb.foldin.casRetry");
+        }
+        RecMetrics.record("emb.foldin.update", System.nanoTime() - start, v.length, 1);
+        RecMetrics.increment("emb.foldin.likes");
+    }
+
+    private static FoldedEmbedding fold(FoldedEmbedding current, float[] v, double w) {
+        double decay = Config.EMB_FOLDIN_DECAY;
+        float[] sum = new float[v.length];
+        for (int d = 0; d < sum.length; d++) {
+            sum[d] = (float) (decay * current.sum[d] + w * v[d]);
+        }
+        return new FoldedEmbedding(sum, decay * current.weight + w);
+    }
+
+    /**
+     * Start from an existing (file / ALS) vector, weighted as the likes it summarises
+     * 以已有向量为起点：方向取其归一化向量，权重按之前的喜欢数，上限为衰减下的稳态权重
+     */
+    private static FoldedEmbedding seed(Embedding current, int dim, int priorLikes) {
+        if (current == null) {
+            return null;
+        }
+        float[] n = current.normalized();
+        if (n.length != dim) {
+            return null;
+        }
+        double decay = Config.EMB_FOLDIN_DECAY;
+        double cap = decay < 1.0 ? 1.0 / (1.0 - decay) : Double.MAX_VALUE;
+        double weight = Math.max(1.0, Math.min(priorLikes, cap));
+        float[] sum = new float[dim];
+        for (int d = 0; d < dim; d++) {
+            sum[d] = (float) (n[d] * weight);
+        }
+        return new FoldedEmbedding(sum, weight);
+    }
+
+    /**
+     * Fold the first {@code limit} likes of a user in rating order
+     * 按评分顺序折叠用户的前 limit 个喜欢；dim 为 null 时取第一个可用壁纸向量的维度，没有可用喜欢时返回 null
+     */
+    private static FoldedEmbedding foldLikes(User user, int limit, Integer dim) {
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        FoldedEmbedding folded = null;
+        int seen = 0;
+        for (Rating r : user.getRatings()) {
+            if (r.getScore() < LIKE_THRESHOLD) {
+                continue;
+            }
+            if (seen++ >= limit) {
+                break;
+            }
+            float[] v = itemVector(dm.getWallpaperById(r.getWallpaperId()));
+            if (v == null || (dim != null && v.length != dim)) {
+                continue;
+            }
+            if (folded == null) {
+                dim = v.length;
+                folded = new FoldedEmbedding(new float[v.length], 0.0);
+            }
+            folded = fold(folded, v, ItemCFRecommendation.preference(r.getScore()));
+        }
+        return folded;
+    }
+
+    private static float[] itemVector(Wallpaper w) {
+        if (w == null || w.getEmb() == null) {
+            return null;
+        }
+        float[] v = w.getEmb().normalized();
+        return v.length == 0 ? null : v;
+    }
+
+    private static int likeCount(User user) {
+        int n = 0;
+        for (Rating r : user.getRatings()) {
+            if (r.getScore() >= LIKE_THRESHOLD) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
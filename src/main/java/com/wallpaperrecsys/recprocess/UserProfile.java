@@ -0,0 +1,227 @@
+package com.wallpaperrecsys.recprocess;
+
+import com.wallpaperrecsys.datamanager.Rating;
+import com.wallpaperrecsys.datamanager.User;
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.IntDoubleMap;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UserProfile - cached per-user tag / style / mood affinities
+ * 用户偏好画像：喜欢过的壁纸（>= 4 分）的标签 / 风格 / 情绪亲和度，id -> 权重的原始类型映射
+ *
+ * 说明：
+ * - 权重为带有该取值的喜欢壁纸的评分之和；字符串先映射成 int id（全局字典，只增不减），打分时不装箱。
+ * - 画像不可变，按用户缓存在有界 LRU 中（Config.USER_PROFILE_CACHE_SIZE）。
+ * - 用户评分列表只追加：画像记下构建时看到的评分条数，取用时发现有新评分就只折叠新增的那几条，得到新画像替换进缓存
+ *   （写时复制，旧画像对正在使用它的请求保持不变）；评分列表被整体替换或数据重新加载时重建。
+ * - 指标：profile.hit / profile.build / profile.catchUp / profile.evicted 计数，profile.cached 缓存条数。
+ */
+public final class UserProfile {
+
+    private static final double LIKE_THRESHOLD = 4.0;
+
+    // 标签 / 风格 / 情绪字符串 -> int id
+    private static final Map<String, Integer> IDS = new ConcurrentHashMap<>();
+
+    private static final Map<Integer, UserProfile> CACHE = new LinkedHashMap<Integer, UserProfile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, UserProfile> eldest) {
+            if (size() > Config.USER_PROFILE_CACHE_SIZE) {
+                RecMetrics.increment("profile.evicted");
+                return true;
+            }
+            return false;
+        }
+    };
+
+    static {
+        RecMetrics.gauge("profile.cached", () -> {
+            synchronized (CACHE) {
+                return CACHE.size();
+            }
+        });
+        WallpaperDataManager.getInstance().addLoadListener(UserProfile::invalidateAll);
+    }
+
+    // 构建时的评分列表与已折叠的条数，用于判断是否需要追加或重建
+    private final List<Rating> source;
+    private final int ratingsSeen;
+    private final int likes;
+    private final IntDoubleMap tags;
+    private final IntDoubleMap styles;
+    private final IntDoubleMap moods;
+
+    private UserProfile(List<Rating> source, int ratingsSeen, int likes,
+                        IntDoubleMap tags, IntDoubleMap styles, IntDoubleMap moods) {
+        this.source = source;
+        this.ratingsSeen = ratingsSeen;
+        this.likes = likes;
+        this.tags = tags;
+        this.styles = styles;
+        this.moods = moods;
+    }
+
+    /**
+     * The user's current profile, from the cache when it is up to date
+     * 取用户当前画像：缓存命中且没有新评分时直接返回，有新评分时增量追加，否则完整构建
+     */
+    public static UserProfile of(User user) {
+        List<Rating> ratings = user.getRatings();
+        UserProfile cached;
+        synchronized (CACHE) {
+            cached = CACHE.get(user.getUserId());
+        }
+        UserProfile profile;
+        if (cached != null && cached.source == ratings && cached.ratingsSeen == ratings.size()) {
+            RecMetrics.increment("profile.hit");
+            return cached;
+        } else if (cached != null && cached.source == ratings && cached.ratingsSeen < ratings.size()) {
+            profile = cached.append(ratings);
+            RecMetrics.increment("profile.catchUp");
+        } else {
+            profile = new UserProfile(ratings, 0, 0, new IntDoubleMap(16), new IntDoubleMap(4), new IntDoubleMap(4))
+                    .append(ratings);
+            RecMetrics.increment("profile.build");
+        }
+        synchronized (CACHE) {
+            UserProfile current = CACHE.get(user.getUserId());
+            // 并发构建时保留看到评分更多的那份
+            if (current == null || current.source != ratings || current.ratingsSeen < profile.ratingsSeen) {
+                CACHE.put(user.getUserId(), profile);
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Drop every cached profile (e.g. after the catalog is reloaded)
+     * 清空全部缓存的画像（例如数据重新加载之后）
+     */
+    public static void invalidateAll() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    // 折叠 ratings[ratingsSeen, size)：有喜欢时复制三张表后累加，没有喜欢时只前移条数
+    private UserProfile append(List<Rating> ratings) {
+        // CopyOnWriteArrayList 的快照，遍历期间新增的评分留给下一次
+        Object[] snapshot = ratings.toArray();
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        IntDoubleMap t = null;
+        IntDoubleMap s = null;
+        IntDoubleMap m = null;
+        int n = likes;
+        for (int i = ratingsSeen; i < snapshot.length; i++) {
+            Rating r = (Rating) snapshot[i];
+            if (r.getScore() < LIKE_THRESHOLD) {
+                continue;
+            }
+            Wallpaper w = dm.getWallpaperById(r.getWallpaperId());
+            if (w == null) {
+                continue;
+            }
+            if (t == null) {
+                t = tags.copy();
+                s = styles.copy();
+                m = moods.copy();
+            }
+            n++;
+            // 同一壁纸的重复标签只计一次，与“喜欢过的标签集合”一致
+            Set<String> distinct = new HashSet<>(w.getTags());
+            for (String tag : distinct) {
+                t.addTo(id(tag), r.getScore());
+            }
+            if (w.getStyle() != null) {
+                s.addTo(id(w.getStyle()), r.getScore());
+            }
+            if (w.getMood() != null) {
+                m.addTo(id(w.getMood()), r.getScore());
+            }
+        }
+        return t == null
+                ? new UserProfile(ratings, snapshot.length, likes, tags, styles, moods)
+                : new UserProfile(ratings, snapshot.length, n, t, s, m);
+    }
+
+    private static int id(String value) {
+        Integer id = IDS.get(value);
+        if (id == null) {
+            synchronized (IDS) {
+                id = IDS.get(value);
+                if (id == null) {
+                    id = IDS.size();
+                    IDS.put(value, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    // 只查不分配：没见过的取值必然不在任何画像里
+    private static int lookup(String value) {
+        Integer id = IDS.get(value);
+        return id == null ? -1 : id;
+    }
+
+    public double tagAffinity(String tag) {
+        int id = lookup(tag);
+        return id < 0 ? 0.0 : tags.get(id, 0.0);
+    }
+
+    public double styleAffinity(String style) {
+        int id = style == null ? -1 : lookup(style);
+        return id < 0 ? 0.0 : styles.get(id, 0.0);
+    }
+
+    public double moodAffinity(String mood) {
+        int id = mood == null ? -1 : lookup(mood);
+        return id < 0 ? 0.0 : moods.get(id, 0.0);
+    }
+
+    /**
+     * Number of likes folded into the profile
+     * 画像包含的喜欢数
+     */
+    public int likeCount() {
+        return likes;
+    }
+
+    /**
+     * Preference score used by scenario ranking
+     * 场景排序的用户偏好分：候选的每个（喜欢过的）标签 +0.1，风格命中 +0.2，情绪命中 +0.1，上限 1
+     */
+    public double preferenceScore(Wallpaper wallpaper) {
+        if (likes == 0) {
+            return 0.0;
+        }
+
+        double score = 0.0;
+
+        // Tag match
+        for (String tag : wallpaper.getTags()) {
+            if (tagAffinity(tag) > 0) {
+                score += 0.1;
+            }
+        }
+
+        // Style match
+        if (styleAffinity(wallpaper.getStyle()) > 0) {
+            score += 0.2;
+        }
+
+        // Mood match
+        if (moodAffinity(wallpaper.getMood()) > 0) {
+            score += 0.1;
+        }
+
+        // Normalize
+        return Math.min(score, 1.0);
+    }
+}
@@ -0,0 +1,15 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+import com.wallpaperrecsys.datamanager.ScoredWallpaper;
+
+import java.util.List;
+
+/**
+ * Batch ranker: score the candidates of several requests in one pass
+ * 批量排序阶段：一次为多个请求的候选原地打分（例如候选并集上每个候选只取一次特征），
+ * 结果必须与对每个请求单独调用 Ranker 相同
+ */
+@FunctionalInterface
+public interface BatchRanker {
+    void scoreAll(List<RecContext> contexts, List<List<ScoredWallpaper>> candidates);
+}
@@ -0,0 +1,21 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+/**
+ * Thrown by a stage that cannot finish within the request deadline
+ * 阶段无法在请求截止时间内完成时抛出，由 RecPipeline 捕获后降级
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String stage;
+
+    public DeadlineExceededException(String stage) {
+        super("Deadline exceeded in " + stage);
+        this.stage = stage;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+}
@@ -0,0 +1,12 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+import com.wallpaperrecsys.datamanager.Wallpaper;
+
+/**
+ * Filter stage: decide whether a recalled candidate may continue to ranking
+ * 过滤阶段：判断召回的候选能否进入排序（已看过滤、自身过滤等）
+ */
+@FunctionalInterface
+public interface Filter {
+    boolean accept(RecContext ctx, Wallpaper candidate);
+}
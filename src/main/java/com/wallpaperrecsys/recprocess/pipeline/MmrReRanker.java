@@ -0,0 +1,128 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+import com.wallpaperrecsys.datamanager.ScoredWallpaper;
+import com.wallpaperrecsys.model.Embedding;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * MmrReRanker - Maximal Marginal Relevance diversity re-ranker
+ * MMR 多样性重排：每一步选 lambda * 相关性 - (1 - lambda) * 与已选壁纸的最大相似度 最大的候选
+ *
+ * 说明：
+ * - 相关性为排序分在窗口内 min-max 归一化到 0~1；相似度为归一化 embedding 的点积（余弦），没有 embedding 的候选视为与任何壁纸都不相似。
+ * - 每个候选维护“与已选集合的最大相似度”，每选出一个只和新选中的那个比一次，总代价 O(k * n * dim)，不生成两两相似度矩阵。
+ * - 只排出前 k = min(size, 窗口) 个，其余候选保持原顺序接在后面；超过时间预算时剩余位置也按原顺序补齐，记 {metric}.truncated。
+ * - lambda >= 1 时不做任何处理。配置：{pipeline}.rerank.mmr.budget（窗口）、.lambda、.budgetMs。
+ */
+public class MmrReRanker implements ReRanker {
+
+    private final String metricName;
+    private final ToDoubleFunction<RecContext> lambda;
+    private final long budgetNanos;
+
+    /**
+     * lambda from {pipeline}.rerank.mmr.lambda
+     * lambda 取自 {pipeline}.rerank.mmr.lambda
+     */
+    public MmrReRanker(String pipeline, double defaultLambda) {
+        this(pipeline, constant(PipelineConfig.getDouble(pipeline + ".rerank.mmr.lambda", defaultLambda)));
+    }
+
+    /**
+     * lambda computed per request, e.g. from the scenario's diversity weight
+     * 每个请求单独计算 lambda（例如由场景的多样性权重换算）
+     */
+    public MmrReRanker(String pipeline, ToDoubleFunction<RecContext> lambda) {
+        this.metricName = "pipeline." + pipeline + ".rerank.mmr";
+        this.lambda = lambda;
+        this.budgetNanos = PipelineConfig.getInt(pipeline + ".rerank.mmr.budgetMs", 20) * 1_000_000L;
+    }
+
+    private static ToDoubleFunction<RecContext> constant(double value) {
+        return ctx -> value;
+    }
+
+    @Override
+    public List<ScoredWallpaper> rerank(RecContext ctx, List<ScoredWallpaper> ranked) {
+        return diversify(ranked, ctx.getSize(), lambda.applyAsDouble(ctx));
+    }
+
+    /**
+     * Reorder the first k positions of a score-desc list by MMR
+     * 对按分数降序的列表用 MMR 排出前 k 个位置
+     */
+    public List<ScoredWallpaper> diversify(List<ScoredWallpaper> ranked, int k, double lambda) {
+        int n = ranked.size();
+        k = Math.min(k, n);
+        if (k <= 1 || lambda >= 1.0) {
+            return ranked;
+        }
+        long deadline = System.nanoTime() + budgetNanos;
+
+        float[][] vectors = new float[n][];
+        double[] relevance = new double[n];
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            ScoredWallpaper sw = ranked.get(i);
+            Embedding emb = sw.getWallpaper().getEmb();
+            vectors[i] = emb == null ? null : emb.normalized();
+            relevance[i] = sw.getScore();
+            min = Math.min(min, relevance[i]);
+            max = Math.max(max, relevance[i]);
+        }
+        double span = max - min;
+        for (int i = 0; i < n; i++) {
+            relevance[i] = span > 0 ? (relevance[i] - min) / span : 1.0;
+        }
+
+        // 与已选集合的最大相似度；负相似度按 0 处理，不会因为“反向相似”得到额外加分
+        double[] maxSim = new double[n];
+        boolean[] picked = new boolean[n];
+        List<ScoredWallpaper> result = new ArrayList<>(n);
+        int last = -1;
+        for (int step = 0; step < k; step++) {
+            if (step > 0 && System.nanoTime() > deadline) {
+                RecMetrics.increment(metricName + ".truncated");
+                break;
+            }
+            float[] lastVec = last < 0 ? null : vectors[last];
+            int best = -1;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < n; j++) {
+                if (picked[j]) {
+                    continue;
+                }
+                float[] v = vectors[j];
+                if (lastVec != null && v != null && v.length == lastVec.length) {
+                    double dot = 0.0;
+                    for (int d = 0; d < v.length; d++) {
+                        dot += lastVec[d] * v[d];
+                    }
+                    if (dot > maxSim[j]) {
+                        maxSim[j] = dot;
+                    }
+                }
+                double mmr = lambda * relevance[j] - (1.0 - lambda) * maxSim[j];
+                // 严格大于：同分取原顺序靠前的
+                if (mmr > bestScore) {
+                    bestScore = mmr;
+                    best = j;
+                }
+            }
+            picked[best] = true;
+            result.add(ranked.get(best));
+            last = best;
+        }
+        for (int j = 0; j < n; j++) {
+            if (!picked[j]) {
+                result.add(ranked.get(j));
+            }
+        }
+        return result;
+    }
+}
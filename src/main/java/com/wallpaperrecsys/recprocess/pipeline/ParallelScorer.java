@@ -0,0 +1,239 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+import com.wallpaperrecsys.datamanager.ScoredWallpaper;
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.function.IntConsumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * ParallelScorer - fork-join scoring and top-K selection for large candidate pools
+ * 大候选集的 fork-join 并行打分与 Top-K 选择
+ *
+ * 说明：
+ * - 候选数达到 Config.PARALLEL_SCORING_THRESHOLD 时，把候选区间切分到专用 ForkJoinPool 上打分，
+ *   分数先写入 double[]，全部完成后再一次性写回，打分函数读到的候选列表在此期间不变。
+ * - 单个请求最多切成 parallelism * 2 段；同时只允许 SCORING_MAX_CONCURRENT_REQUESTS 个请求使用线程池，
+ *   拿不到许可的请求直接在调用线程上串行打分，避免高并发下一个请求占满线程池。
+ * - 打分函数必须是线程安全的（只读共享数据）。
+ */
+public class ParallelScorer {
+
+    private static final ForkJoinPool POOL = Config.SCORING_PARALLELISM > 1
+            ? new ForkJoinPool(Config.SCORING_PARALLELISM, pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("rec-scoring-" + t.getPoolIndex());
+                t.setDaemon(true);
+                return t;
+            }, null, false)
+            : null;
+    private static final Semaphore PERMITS = new Semaphore(Math.max(1, Config.SCORING_MAX_CONCURRENT_REQUESTS));
+
+    // 叶子任务的最小区间长度，太小时切分开销大于收益
+    private static final int MIN_CHUNK = 64;
+
+    private ParallelScorer() {
+    }
+
+    /**
+     * Score candidates in place, in parallel once the pool is large enough
+     * 原地为候选打分；候选数达到阈值且拿到许可时并行执行
+     */
+    public static void score(List<ScoredWallpaper> candidates, ToDoubleFunction<Wallpaper> scorer) {
+        int n = candidates.size();
+        double[] scores = new double[n];
+        forEach(n, i -> scores[i] = scorer.applyAsDouble(candidates.get(i).getWallpaper()));
+        for (int i = 0; i < n; i++) {
+            candidates.get(i).setScore(scores[i]);
+        }
+    }
+
+    /**
+     * Run body(i) for every i in [0, n), in parallel under the same threshold and guard as score
+     * 对 [0, n) 的每个下标执行 body，阈值与并发保护同 score；body 只能写自己下标对应的位置
+     */
+    public static void forEach(int n, IntConsumer body) {
+        if (tryAcquire(n)) {
+            try {
+                POOL.invoke(new RangeTask(body, 0, n, chunkSize(n)));
+            } finally {
+                PERMITS.release();
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                body.accept(i);
+            }
+        }
+    }
+
+    /**
+     * Indices of the k highest scores, ordered by score desc then index asc (same order as a stable sort)
+     * 分数最高的 k 个下标，按分数降序、同分按下标升序（与稳定排序后截断的结果一致）；
+     * 大数组时每段各自维护一个有界小顶堆，最后合并
+     */
+    public static int[] topK(double[] scores, int k) {
+        int n = scores.length;
+        int limit = Math.max(0, Math.min(k, n));
+        PriorityQueue<Integer> heap;
+        if (tryAcquire(n)) {
+            try {
+                heap = POOL.invoke(new TopKTask(scores, limit, 0, n, chunkSize(n)));
+            } finally {
+                PERMITS.release();
+            }
+        } else {
+            heap = topKRange(scores, limit, 0, n);
+        }
+        int[] result = new int[heap.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = heap.poll();
+        }
+        return result;
+    }
+
+    /**
+     * Keep the top k of already scored candidates, in stable score-desc order
+     * 从已打分的候选中取前 k 个，顺序与稳定降序排序后截断一致
+     */
+    public static List<ScoredWallpaper> selectTopK(List<ScoredWallpaper> scored, int k) {
+        double[] scores = new double[scored.size()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = scored.get(i).getScore();
+        }
+        int[] top = topK(scores, k);
+        List<ScoredWallpaper> result = new ArrayList<>(top.length);
+        for (int index : top) {
+            result.add(scored.get(index));
+        }
+        return result;
+    }
+
+    /**
+     * 是否走并行：未达阈值、没有线程池或拿不到许可时返回 false，由调用方串行执行；返回 true 时调用方负责释放许可
+     */
+    private static boolean tryAcquire(int n) {
+        if (POOL == null || n < Config.PARALLEL_SCORING_THRESHOLD) {
+            return false;
+        }
+        if (!PERMITS.tryAcquire()) {
+            RecMetrics.increment("scoring.serial.busy");
+            return false;
+        }
+        RecMetrics.increment("scoring.parallel");
+        return true;
+    }
+
+    private static int chunkSize(int n) {
+        return Math.max(MIN_CHUNK, n / (Config.SCORING_PARALLELISM * 2) + 1);
+    }
+
+    // 堆顶是当前 Top-K 中“最差”的：分数更低，或同分时下标更大
+    private static PriorityQueue<Integer> newHeap(double[] scores, int k) {
+        return new PriorityQueue<>(k + 1, (a, b) -> {
+            int c = Double.compare(scores[a], scores[b]);
+            return c != 0 ? c : Integer.compare(b, a);
+        });
+    }
+
+    private static void offer(PriorityQueue<Integer> heap, double[] scores, int index, int k) {
+        if (k <= 0) {
+            return;
+        }
+        if (heap.size() < k) {
+            heap.add(index);
+            return;
+        }
+        int worst = heap.peek();
+        int c = Double.compare(scores[index], scores[worst]);
+        if (c > 0 || (c == 0 && index < worst)) {
+            heap.poll();
+            heap.add(index);
+        }
+    }
+
+    private static PriorityQueue<Integer> topKRange(double[] scores, int k, int from, int to) {
+        PriorityQueue<Integer> heap = newHeap(scores, k);
+        for (int i = from; i < to; i++) {
+            offer(heap, scores, i, k);
+        }
+        return heap;
+    }
+
+    /**
+     * 区间任务：叶子区间内顺序执行 body
+     */
+    static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final IntConsumer body;
+        final int from;
+        final int to;
+        final int chunk;
+
+        RangeTask(IntConsumer body, int from, int to, int chunk) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                for (int i = from; i < to; i++) {
+                    body.accept(i);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(body, from, mid, chunk), new RangeTask(body, mid, to, chunk));
+        }
+    }
+
+    /**
+     * 区间 Top-K 任务：每段一个有界堆，返回时两两合并
+     */
+    static class TopKTask extends RecursiveTask<PriorityQueue<Integer>> {
+        private static final long serialVersionUID = 1L;
+
+        final double[] scores;
+        final int k;
+        final int from;
+        final int to;
+        final int chunk;
+
+        TopKTask(double[] scores, int k, int from, int to, int chunk) {
+            this.scores = scores;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected PriorityQueue<Integer> compute() {
+            if (to - from <= chunk) {
+                return topKRange(scores, k, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            TopKTask left = new TopKTask(scores, k, from, mid, chunk);
+            TopKTask right = new TopKTask(scores, k, mid, to, chunk);
+            left.fork();
+            PriorityQueue<Integer> merged = right.compute();
+            for (Integer index : left.join()) {
+                offer(merged, scores, index, k);
+            }
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Pipeline budget configuration
+ * 流水线预算配置：默认值来自 classpath 下的 pipeline.properties，可用同名 -D 系统属性覆盖，
+ * 调整召回 / 排序的候选规模不需要改代码。
+ *
+ * key 约定：{pipeline}.{stage}.budget，例如 personal.recall.rating.budget=800
+ */
+public class PipelineConfig {
+
+    private static final String RESOURCE = "/pipeline.properties";
+    private static final Properties PROPS = load();
+
+    private static Properties load() {
+        Properties props = new Properties();
+        try (InputStream in = PipelineConfig.class.getResourceAsStream(RESOURCE)) {
+            if (in != null) {
+                props.load(in);
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to load " + RESOURCE + ": " + e.getMessage());
+        }
+        return props;
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(key, PROPS.getProperty(key));
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String value = System.getProperty(key, PROPS.getProperty(key));
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static String getString(String key, String defaultValue) {
+        return System.getProperty(key, PROPS.getProperty(key, defaultValue));
+    }
+}
@@ -0,0 +1,14 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+import com.wallpaperrecsys.datamanager.ScoredWallpaper;
+
+import java.util.List;
+
+/**
+ * Ranker stage: assign a score to every candidate in place
+ * 排序阶段：原地为每个候选写入分数，由 RecPipeline 负责按分数排序与截断
+ */
+@FunctionalInterface
+public interface Ranker {
+    void score(RecContext ctx, List<ScoredWallpaper> candidates);
+}
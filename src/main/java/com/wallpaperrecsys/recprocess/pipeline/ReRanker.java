@@ -0,0 +1,16 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+import com.wallpaperrecsys.datamanager.ScoredWallpaper;
+
+import java.util.List;
+
+/**
+ * Re-rank stage: reorder the head of the ranked list (diversity, business rules ...)
+ * 重排阶段：对排序结果的头部重新排列（多样性、业务规则等）
+ * @param ranked ranked candidates, at most the configured window
+ * @return reordered candidates
+ */
+@FunctionalInterface
+public interface ReRanker {
+    List<ScoredWallpaper> rerank(RecContext ctx, List<ScoredWallpaper> ranked);
+}
@@ -0,0 +1,82 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+import com.wallpaperrecsys.datamanager.User;
+import com.wallpaperrecsys.datamanager.Wallpaper;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Request context passed through every pipeline stage
+ * 推荐请求上下文：在各个阶段之间传递用户、锚点壁纸、场景、模型与返回数量
+ */
+public class RecContext {
+    final User user;
+    final Wallpaper anchor;
+    final String scenario;
+    final String model;
+    final int size;
+
+    // 阶段之间共享的附加数据（例如召回阶段预取、排序阶段复用的结构）；召回通道并行执行，需线程安全
+    final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+    // 创建时捕获当前线程绑定的请求截止时间，召回线程池中的阶段也通过它判断是否超时
+    final RequestDeadline deadline = RequestDeadline.current();
+
+    public RecContext(User user, Wallpaper anchor, String scenario, String model, int size) {
+        this.user = user;
+        this.anchor = anchor;
+        this.scenario = scenario;
+        this.model = model;
+        this.size = size;
+    }
+
+    public static RecContext forUser(User user, String model, int size) {
+        return new RecContext(user, null, null, model, size);
+    }
+
+    public static RecContext forWallpaper(Wallpaper anchor, String model, int size) {
+        return new RecContext(null, anchor, null, model, size);
+    }
+
+    public static RecContext forScenario(String scenario, User user, int size) {
+        return new RecContext(user, null, scenario, null, size);
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public int getUserId() {
+        return user == null ? -1 : user.getUserId();
+    }
+
+    public Wallpaper getAnchor() {
+        return anchor;
+    }
+
+    public String getScenario() {
+        return scenario;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public RequestDeadline getDeadline() {
+        return deadline;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T getAttribute(String key) {
+        return (T) attributes.get(key);
+    }
+
+    public void setAttribute(String key, Object value) {
+        attributes.put(key, value);
+    }
+}
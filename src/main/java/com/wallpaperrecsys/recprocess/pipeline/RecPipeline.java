@@ -0,0 +1,513 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+import com.wallpaperrecsys.datamanager.ScoredWallpaper;
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RecPipeline - composable recall / filter / rank / re-rank pipeline
+ * 可组合的多阶段推荐流水线：多路召回（并行）-> 过滤 -> 排序 -> 重排 -> 截断
+ *
+ * 说明：
+ * - 每个阶段都有自己的候选预算，默认值写在构建代码里，可被 pipeline.properties / -D 覆盖
+ *   （key 为 {pipeline}.{recall|rank|rerank}.{stage}.budget，召回补充通道为 {pipeline}.backfill.{stage}.factor）。
+ * - 每个阶段的耗时与进出数量记录在 RecMetrics 中，名字为 pipeline.{pipeline}.{stage}。
+ * - 请求截止时间（RecContext.getDeadline）贯穿各阶段：并行召回通道超时被跳过（档位 partial），
+ *   召回结束或排序前已超时、或某个阶段抛出 DeadlineExceededException 时，整个请求改用 fallback 通道
+ *   （预先算好的便宜结果，按注册顺序取第一个非空的，档位 fallback.{stage}）；每次执行按档位计数 pipeline.{pipeline}.tier.{tier}。
+ * - runBatch 一次处理多个请求：召回 / 过滤逐个请求执行，排序阶段配置了 BatchRanker 时所有请求的候选一起打分，
+ *   之后的 Top-K / 重排 / 截断仍逐个请求执行，每个请求的结果与单独调用 run 相同。
+ */
+public class RecPipeline {
+
+    private static final AtomicInteger RECALL_THREAD_SEQ = new AtomicInteger();
+    private static final ExecutorService RECALL_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2), r -> {
+                Thread t = new Thread(r, "rec-recall-" + RECALL_THREAD_SEQ.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * A configured stage: implementation plus its candidate budget
+     * 已配置的阶段：实现 + 候选预算
+     */
+    static class Stage<T> {
+        final String name;
+        final T impl;
+        final int budget;
+
+        Stage(String name, T impl, int budget) {
+            this.name = name;
+            this.impl = impl;
+            this.budget = budget;
+        }
+    }
+
+    final String name;
+    final List<Stage<Recall>> recalls;
+    final Stage<Recall> backfill;
+    final List<Stage<Filter>> filters;
+    final Stage<Ranker> ranker;
+    final BatchRanker batchRanker;
+    final List<Stage<ReRanker>> reRankers;
+    final List<Stage<Recall>> fallbacks;
+
+    private RecPipeline(Builder b) {
+        this.name = b.name;
+        this.recalls = Collections.unmodifiableList(new ArrayList<>(b.recalls));
+        this.backfill = b.backfill;
+        this.filters = Collections.unmodifiableList(new ArrayList<>(b.filters));
+        this.ranker = b.ranker;
+        this.batchRanker = b.batchRanker;
+        this.reRankers = Collections.unmodifiableList(new ArrayList<>(b.reRankers));
+        this.fallbacks = Collections.unmodifiableList(new ArrayList<>(b.fallbacks));
+    }
+
+    public static Builder builder(String name) {
+        return new Builder(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Run the pipeline and return the top ctx.size wallpapers
+     * 执行流水线，返回前 ctx.size 个壁纸
+     */
+    public List<Wallpaper> recommend(RecContext ctx) {
+        List<ScoredWallpaper> scored = run(ctx);
+        List<Wallpaper> result = new ArrayList<>(scored.size());
+        for (ScoredWallpaper sw : scored) {
+            result.add(sw.getWallpaper());
+        }
+        return result;
+    }
+
+    /**
+     * Run the pipeline and return the top ctx.size scored wallpapers
+     * 执行流水线，返回前 ctx.size 个带分数的壁纸
+     */
+    public List<ScoredWallpaper> run(RecContext ctx) {
+        long start = System.nanoTime();
+        RequestDeadline deadline = ctx.getDeadline();
+        // 召回数与过滤后的候选数，用于阶段指标
+        int[] recalled = new int[2];
+        List<ScoredWallpaper> ranked;
+        try {
+            ranked = runStages(ctx, recalled);
+        } catch (DeadlineExceededException e) {
+            RecMetrics.increment(metricName("timeout." + e.getStage()));
+            ranked = runFallbacks(ctx, e);
+        }
+
+        // 6. 截断
+        if (ranked.size() > ctx.getSize()) {
+            ranked = new ArrayList<>(ranked.subList(0, Math.max(0, ctx.getSize())));
+        }
+        RecMetrics.increment(metricName("tier." + deadline.getTier()));
+        RecMetrics.record(metricName("total"), System.nanoTime() - start, recalled[0], ranked.size());
+        return ranked;
+    }
+
+    /**
+     * Run the pipeline for several requests, ranking all their candidates in one batch
+     * 批量执行：返回与 contexts 一一对应的前 size 个壁纸
+     */
+    public List<List<Wallpaper>> recommendBatch(List<RecContext> contexts) {
+        List<List<ScoredWallpaper>> scored = runBatch(contexts);
+        List<List<Wallpaper>> result = new ArrayList<>(scored.size());
+        for (List<ScoredWallpaper> list : scored) {
+            List<Wallpaper> wallpapers = new ArrayList<>(list.size());
+            for (ScoredWallpaper sw : list) {
+                wallpapers.add(sw.getWallpaper());
+            }
+            result.add(wallpapers);
+        }
+        return result;
+    }
+
+    /**
+     * Run the pipeline for several requests; each result equals what run would return for that request
+     * 批量执行：逐个请求召回 / 过滤，排序阶段一次处理全部请求的候选，再逐个请求取 Top-K / 重排 / 截断。
+     * 超时的请求各自走 fallback；耗时记为 pipeline.{pipeline}.batch（in = 请求数，out = 返回总数）
+     */
+    public List<List<ScoredWallpaper>> runBatch(List<RecContext> contexts) {
+        long start = System.nanoTime();
+        int n = contexts.size();
+        List<List<ScoredWallpaper>> ranked = new ArrayList<>(n);
+        int[] recalled = new int[2];
+        boolean[] done = new boolean[n];
+        List<RecContext> toRank = new ArrayList<>(n);
+        List<List<ScoredWallpaper>> toRankLists = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            RecContext ctx = contexts.get(i);
+            List<ScoredWallpaper> list;
+            try {
+                list = prepareStages(ctx, recalled);
+                toRank.add(ctx);
+                toRankLists.add(list);
+            } catch (DeadlineExceededException e) {
+                RecMetrics.increment(metricName("timeout." + e.getStage()));
+                list = runFallbacks(ctx, e);
+                done[i] = true;
+            }
+            ranked.add(list);
+        }
+
+        if (ranker != null && !toRank.isEmpty()) {
+            long t0 = System.nanoTime();
+            int in = 0;
+            for (List<ScoredWallpaper> list : toRankLists) {
+                in += list.size();
+            }
+            try {
+                if (batchRanker != null) {
+                    batchRanker.scoreAll(toRank, toRankLists);
+                } else {
+                    for (int i = 0; i < toRank.size(); i++) {
+                        ranker.impl.score(toRank.get(i), toRankLists.get(i));
+                    }
+                }
+            } catch (DeadlineExceededException e) {
+                // 排序阶段超时：尚未完成的请求全部走 fallback
+                RecMetrics.increment(metricName("timeout." + e.getStage()));
+                for (int i = 0; i < n; i++) {
+                    if (!done[i]) {
+                        ranked.set(i, runFallbacks(contexts.get(i), e));
+                        done[i] = true;
+                    }
+                }
+            }
+            RecMetrics.record(metricName("rank." + ranker.name + ".batch"), System.nanoTime() - t0, toRank.size(), in);
+        }
+
+        int out = 0;
+        for (int i = 0; i < n; i++) {
+            RecContext ctx = contexts.get(i);
+            List<ScoredWallpaper> list = ranked.get(i);
+            if (!done[i]) {
+                list = reRank(ctx, order(ctx, list));
+            }
+            if (list.size() > ctx.getSize()) {
+                list = new ArrayList<>(list.subList(0, Math.max(0, ctx.getSize())));
+            }
+            ranked.set(i, list);
+            out += list.size();
+            RecMetrics.increment(metricName("tier." + ctx.getDeadline().getTier()));
+        }
+        RecMetrics.record(metricName("batch"), System.nanoTime() - start, n, out);
+        return ranked;
+    }
+
+    private List<ScoredWallpaper> runStages(RecContext ctx, int[] recalled) {
+        List<ScoredWallpaper> ranked = prepareStages(ctx, recalled);
+        if (ranker != null) {
+            long t0 = System.nanoTime();
+            ranker.impl.score(ctx, ranked);
+            ranked = order(ctx, ranked);
+            RecMetrics.record(metricName("rank." + ranker.name), System.nanoTime() - t0, recalled[1], ranked.size());
+        }
+        return reRank(ctx, ranked);
+    }
+
+    /**
+     * Recall, backfill, filter and cut to the rank budget (stages 1-3)
+     * 第 1-3 步：召回、补充、过滤，截到排序预算，分数尚未写入；recalled 返回召回数与过滤后的候选数
+     */
+    private List<ScoredWallpaper> prepareStages(RecContext ctx, int[] recalled) {
+        RequestDeadline deadline = ctx.getDeadline();
+
+        // 1. 多路召回（并行），按通道注册顺序用位图去重合并
+        BitSet seenIds = new BitSet();
+        List<Wallpaper> candidates = recallAll(ctx, seenIds);
+        deadline.check("recall");
+
+        // 2. 召回不足时补充（例如热门兜底）
+        if (backfill != null && candidates.size() < ctx.getSize() * backfill.budget) {
+            List<Wallpaper> extra = runRecall(backfill, ctx, ctx.getSize() * backfill.budget, "backfill.");
+            int unique = dedupInto(extra, seenIds, candidates);
+            RecMetrics.add(metricName("backfill." + backfill.name + ".unique"), unique);
+        }
+        recalled[0] = candidates.size();
+
+        // 3. 过滤
+        candidates = applyFilters(ctx, candidates);
+        deadline.check("rank");
+
+        // 4. 排序：只把预算内的候选送进排序
+        List<ScoredWallpaper> ranked = new ArrayList<>(Math.min(candidates.size(), rankBudget()));
+        for (Wallpaper w : candidates) {
+            if (ranked.size() >= rankBudget()) {
+                break;
+            }
+            ranked.add(new ScoredWallpaper(w, 0.0));
+        }
+        recalled[1] = candidates.size();
+        return ranked;
+    }
+
+    /**
+     * Order scored candidates (end of stage 4)
+     * 第 4 步的后半：分数写入后按分数取 Top-K 或稳定排序
+     */
+    private List<ScoredWallpaper> order(RecContext ctx, List<ScoredWallpaper> ranked) {
+        if (ranker == null) {
+            return ranked;
+        }
+        if (reRankers.isEmpty() && ctx.getSize() < ranked.size()) {
+            // 没有重排时只需要前 size 个：分段有界堆选 Top-K，顺序与稳定排序后截断一致
+            return ParallelScorer.selectTopK(ranked, Math.max(0, ctx.getSize()));
+        }
+        // 稳定排序：同分保持召回顺序
+        ranked.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+        return ranked;
+    }
+
+    private List<ScoredWallpaper> reRank(RecContext ctx, List<ScoredWallpaper> ranked) {
+        RequestDeadline deadline = ctx.getDeadline();
+        // 5. 重排：只处理头部窗口；已超时则跳过剩余重排，直接返回排序结果
+        for (Stage<ReRanker> r : reRankers) {
+            if (deadline.isExpired()) {
+                RecMetrics.increment(metricName("rerank." + r.name + ".skipped"));
+                deadline.degrade(RequestDeadline.TIER_PARTIAL);
+                break;
+            }
+            long t0 = System.nanoTime();
+            int window = Math.min(r.budget, ranked.size());
+            List<ScoredWallpaper> head = r.impl.rerank(ctx, new ArrayList<>(ranked.subList(0, window)));
+            List<ScoredWallpaper> merged = new ArrayList<>(ranked.size());
+            merged.addAll(head);
+            merged.addAll(ranked.subList(window, ranked.size()));
+            ranked = merged;
+            RecMetrics.record(metricName("rerank." + r.name), System.nanoTime() - t0, window, head.size());
+        }
+        return ranked;
+    }
+
+    private List<Wallpaper> applyFilters(RecContext ctx, List<Wallpaper> candidates) {
+        for (Stage<Filter> f : filters) {
+            long t0 = System.nanoTime();
+            int in = candidates.size();
+            List<Wallpaper> kept = new ArrayList<>(in);
+            for (Wallpaper w : candidates) {
+                if (f.impl.accept(ctx, w)) {
+                    kept.add(w);
+                }
+            }
+            candidates = kept;
+            RecMetrics.record(metricName("filter." + f.name), System.nanoTime() - t0, in, kept.size());
+        }
+        return candidates;
+    }
+
+    /**
+     * Degraded path: first non-empty fallback channel, filtered but not ranked
+     * 降级路径：按注册顺序取第一个非空的 fallback 通道结果，只过滤不排序；没有配置 fallback 时原样抛出
+     */
+    private List<ScoredWallpaper> runFallbacks(RecContext ctx, DeadlineExceededException cause) {
+        if (fallbacks.isEmpty()) {
+            throw cause;
+        }
+        int budget = Math.max(1, ctx.getSize());
+        for (Stage<Recall> fb : fallbacks) {
+            List<Wallpaper> unique = new ArrayList<>();
+            dedupInto(runRecall(fb, ctx, budget * fb.budget, "fallback."), new BitSet(), unique);
+            List<Wallpaper> list = applyFilters(ctx, unique);
+            if (list.isEmpty()) {
+                continue;
+            }
+            ctx.getDeadline().degrade(RequestDeadline.TIER_FALLBACK_PREFIX + fb.name);
+            List<ScoredWallpaper> result = new ArrayList<>(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                result.add(new ScoredWallpaper(list.get(i), list.size() - i));
+            }
+            return result;
+        }
+        ctx.getDeadline().degrade(RequestDeadline.TIER_FALLBACK_PREFIX + "empty");
+        return new ArrayList<>();
+    }
+
+    private int rankBudget() {
+        return ranker == null ? Integer.MAX_VALUE : ranker.budget;
+    }
+
+    /**
+     * Run all recall channels and merge them in registration order
+     * 执行所有召回通道并按注册顺序合并；每个通道“独占贡献”的数量记为 recall.{stage}.unique，用于观察召回覆盖。
+     * 有截止时间时只等待到截止时间，超时的通道被取消并记 recall.{stage}.timeout
+     */
+    private List<Wallpaper> recallAll(RecContext ctx, BitSet seenIds) {
+        List<List<Wallpaper>> results = new ArrayList<>(recalls.size());
+        RequestDeadline deadline = ctx.getDeadline();
+        if (recalls.size() <= 1 && !deadline.isBounded()) {
+            for (Stage<Recall> r : recalls) {
+                results.add(runRecall(r, ctx, r.budget, "recall."));
+            }
+        } else {
+            // 没有截止时间时第一路召回在调用线程上执行；有截止时间时所有通道都提交到线程池，调用线程只等到截止时间
+            int local = deadline.isBounded() ? 0 : 1;
+            List<Future<List<Wallpaper>>> futures = new ArrayList<>(recalls.size());
+            for (int i = local; i < recalls.size(); i++) {
+                final Stage<Recall> r = recalls.get(i);
+                futures.add(RECALL_EXECUTOR.submit(() -> runRecall(r, ctx, r.budget, "recall.")));
+            }
+            if (local == 1) {
+                results.add(runRecall(recalls.get(0), ctx, recalls.get(0).budget, "recall."));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Future<List<Wallpaper>> f = futures.get(i);
+                Stage<Recall> r = recalls.get(i + local);
+                try {
+                    results.add(deadline.isBounded()
+                            ? f.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS) : f.get());
+                } catch (TimeoutException e) {
+                    f.cancel(true);
+                    results.add(recallTimedOut(r, deadline));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for recall", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof DeadlineExceededException) {
+                        // 通道自己判断来不及（例如模型尚未构建完成），按超时处理
+                        results.add(recallTimedOut(r, deadline));
+                        continue;
+                    }
+                    throw new IllegalStateException("Recall channel failed in pipeline " + name, e.getCause());
+                }
+            }
+        }
+
+        List<Wallpaper> candidates = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            int unique = dedupInto(results.get(i), seenIds, candidates);
+            RecMetrics.add(metricName("recall." + recalls.get(i).name + ".unique"), unique);
+        }
+        return candidates;
+    }
+
+    private List<Wallpaper> recallTimedOut(Stage<Recall> r, RequestDeadline deadline) {
+        RecMetrics.increment(metricName("recall." + r.name + ".timeout"));
+        deadline.degrade(RequestDeadline.TIER_PARTIAL);
+        return Collections.emptyList();
+    }
+
+    /**
+     * 用 wallpaperId 位图去重，返回新加入的数量
+     */
+    private static int dedupInto(List<Wallpaper> part, BitSet seenIds, List<Wallpaper> out) {
+        int added = 0;
+        for (Wallpaper w : part) {
+            int id = w.getWallpaperId();
+            if (id >= 0 && seenIds.get(id)) {
+                continue;
+            }
+            if (id >= 0) {
+                seenIds.set(id);
+            }
+            out.add(w);
+            added++;
+        }
+        return added;
+    }
+
+    private List<Wallpaper> runRecall(Stage<Recall> r, RecContext ctx, int budget, String prefix) {
+        long t0 = System.nanoTime();
+        List<Wallpaper> out = r.impl.recall(ctx, budget);
+        if (out == null) {
+            out = Collections.emptyList();
+        }
+        RecMetrics.record(metricName(prefix + r.name), System.nanoTime() - t0, budget, out.size());
+        return out;
+    }
+
+    private String metricName(String stage) {
+        return "pipeline." + name + "." + stage;
+    }
+
+    /**
+     * Builder of a pipeline configuration
+     * 流水线配置构建器：每个阶段给出默认预算，实际预算先查 PipelineConfig
+     */
+    public static class Builder {
+        private final String name;
+        private final List<Stage<Recall>> recalls = new ArrayList<>();
+        private Stage<Recall> backfill;
+        private final List<Stage<Filter>> filters = new ArrayList<>();
+        private Stage<Ranker> ranker;
+        private BatchRanker batchRanker;
+        private final List<Stage<ReRanker>> reRankers = new ArrayList<>();
+        private final List<Stage<Recall>> fallbacks = new ArrayList<>();
+
+        Builder(String name) {
+            this.name = name;
+        }
+
+        public Builder recall(String stage, Recall recall, int defaultBudget) {
+            recalls.add(new Stage<>(stage, recall, budget("recall." + stage, defaultBudget)));
+            return this;
+        }
+
+        /**
+         * Recall that only runs when the merged candidates are fewer than size * factor
+         * 补充召回：合并后的候选少于 size * factor 时才执行，预算为 size * factor
+         */
+        public Builder backfill(String stage, Recall recall, int defaultFactor) {
+            backfill = new Stage<>(stage, recall,
+                    PipelineConfig.getInt(name + ".backfill." + stage + ".factor", defaultFactor));
+            return this;
+        }
+
+        public Builder filter(String stage, Filter filter) {
+            filters.add(new Stage<>(stage, filter, 0));
+            return this;
+        }
+
+        public Builder rank(String stage, Ranker ranker, int defaultBudget) {
+            this.ranker = new Stage<>(stage, ranker, budget("rank." + stage, defaultBudget));
+            return this;
+        }
+
+        /**
+         * Optional batch form of the rank stage used by runBatch; must score exactly like the ranker
+         * 排序阶段的批量实现（可选，供 runBatch 使用），打分结果必须与 rank 注册的 Ranker 一致
+         */
+        public Builder batchRank(BatchRanker batchRanker) {
+            this.batchRanker = batchRanker;
+            return this;
+        }
+
+        public Builder reRank(String stage, ReRanker reRanker, int defaultWindow) {
+            reRankers.add(new Stage<>(stage, reRanker, budget("rerank." + stage, defaultWindow)));
+            return this;
+        }
+
+        /**
+         * Cheap precomputed result served when the request runs out of time, budget size * factor
+         * 请求超时时使用的便宜结果（例如热门列表），可注册多个，按顺序取第一个非空的；预算为 size * factor
+         */
+        public Builder fallback(String stage, Recall recall, int defaultFactor) {
+            fallbacks.add(new Stage<>(stage, recall,
+                    PipelineConfig.getInt(name + ".fallback." + stage + ".factor", defaultFactor)));
+            return this;
+        }
+
+        public RecPipeline build() {
+            return new RecPipeline(this);
+        }
+
+        private int budget(String stage, int defaultBudget) {
+            return PipelineConfig.getInt(name + "." + stage + ".budget", defaultBudget);
+        }
+    }
+}
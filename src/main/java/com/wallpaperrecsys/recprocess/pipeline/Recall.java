@@ -0,0 +1,14 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+import com.wallpaperrecsys.datamanager.Wallpaper;
+
+import java.util.List;
+
+/**
+ * Recall stage: produce up to budget candidates for a request
+ * 召回阶段：为一次请求产出不超过 budget 的候选（budget 的具体口径由各召回通道自行解释，例如“每个标签取多少”）
+ */
+@FunctionalInterface
+public interface Recall {
+    List<Wallpaper> recall(RecContext ctx, int budget);
+}
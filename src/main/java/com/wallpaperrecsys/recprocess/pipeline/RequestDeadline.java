@@ -0,0 +1,144 @@
+package com.wallpaperrecsys.recprocess.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * RequestDeadline - per-request time bound and the tier that actually served the request
+ * 单个请求的截止时间 + 实际服务的降级档位
+ *
+ * 说明：
+ * - HTTP 层为每个请求创建一个截止时间，用 call() 绑定到当前线程；RecContext 创建时捕获当前线程的截止时间，
+ *   召回线程池等其他线程通过 RecContext 拿到同一个对象。
+ * - 档位只会变差不会变好：full（完整流水线）< partial（部分阶段超时被跳过）< fallback.*（整体降级到预先算好的便宜结果）。
+ * - 没有绑定截止时间的线程（后台预取、离线任务）得到的是不限时的新对象，行为与之前一致。
+ */
+public class RequestDeadline {
+
+    public static final String TIER_FULL = "full";
+    public static final String TIER_PARTIAL = "partial";
+    public static final String TIER_FALLBACK_PREFIX = "fallback.";
+
+    private static final ThreadLocal<RequestDeadline> CURRENT = new ThreadLocal<>();
+
+    private final long deadlineNanos;
+    private final boolean bounded;
+    private volatile String tier = TIER_FULL;
+
+    private RequestDeadline(long deadlineNanos, boolean bounded) {
+        this.deadlineNanos = deadlineNanos;
+        this.bounded = bounded;
+    }
+
+    public static RequestDeadline after(long millis) {
+        return new RequestDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), true);
+    }
+
+    public static RequestDeadline unbounded() {
+        return new RequestDeadline(0L, false);
+    }
+
+    /**
+     * Deadline bound to the current thread, or a fresh unbounded one
+     * 当前线程绑定的截止时间；没有绑定时返回新的不限时对象
+     */
+    public static RequestDeadline current() {
+        RequestDeadline d = CURRENT.get();
+        return d != null ? d : unbounded();
+    }
+
+    /**
+     * Bind this deadline to the current thread until the returned scope is closed
+     * 把本截止时间绑定到当前线程，关闭返回的 Scope 时恢复原来的绑定（在 finally 中关闭）
+     */
+    public Scope bind() {
+        RequestDeadline previous = CURRENT.get();
+        CURRENT.set(this);
+        return new Scope(previous);
+    }
+
+    /**
+     * Run body with this deadline bound to the current thread
+     * 在当前线程绑定本截止时间后执行 body
+     */
+    public <T> T call(Supplier<T> body) {
+        Scope scope = bind();
+        try {
+            return body.get();
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * Binding of a deadline to the current thread
+     * 截止时间在当前线程上的一次绑定
+     */
+    public static class Scope implements AutoCloseable {
+        private final RequestDeadline previous;
+
+        Scope(RequestDeadline previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    /**
+     * Nanoseconds left, Long.MAX_VALUE when unbounded, never negative
+     * 剩余纳秒数；不限时返回 Long.MAX_VALUE
+     */
+    public long remainingNanos() {
+        return bounded ? Math.max(0L, deadlineNanos - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    public boolean isExpired() {
+        return bounded && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    /**
+     * Throw DeadlineExceededException when expired
+     * 已超时则抛出 DeadlineExceededException
+     */
+    public void check(String stage) {
+        if (isExpired()) {
+            throw new DeadlineExceededException(stage);
+        }
+    }
+
+    /**
+     * Record a degradation; keeps the worst tier seen so far
+     * 记录一次降级，只保留最差的档位
+     */
+    public synchronized void degrade(String newTier) {
+        if (rank(newTier) > rank(tier)) {
+            tier = newTier;
+        }
+    }
+
+    public String getTier() {
+        return tier;
+    }
+
+    public boolean isDegraded() {
+        return !TIER_FULL.equals(tier);
+    }
+
+    private static int rank(String tier) {
+        if (tier == null || TIER_FULL.equals(tier)) {
+            return 0;
+        }
+        return TIER_PARTIAL.equals(tier) ? 1 : 2;
+    }
+}
@@ -1,9 +1,15 @@
 package com.wallpaperrecsys.service;
 
+import com.wallpaperrecsys.datamanager.ScoredWallpaper;
 import com.wallpaperrecsys.datamanager.WallpaperDataManager;
 import com.wallpaperrecsys.datamanager.Wallpaper;
 import com.wallpaperrecsys.model.Embedding;
+import com.wallpaperrecsys.recprocess.pipeline.DeadlineExceededException;
+import com.wallpaperrecsys.recprocess.pipeline.MmrReRanker;
+import com.wallpaperrecsys.recprocess.pipeline.PipelineConfig;
+import com.wallpaperrecsys.recprocess.pipeline.RequestDeadline;
 import com.wallpaperrecsys.service.TextEmbeddingService;
+import com.wallpaperrecsys.util.RecMetrics;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -14,6 +20,11 @@ import java.util.stream.Collectors;
  */
 public class AISearchService {
     
+    // 向量搜索结果的多样性重排：先取 search.rerank.mmr.budget 个近邻，再用 MMR 排出前 size 个
+    private static final int MMR_WINDOW = PipelineConfig.getInt("search.rerank.mmr.budget", 200);
+    private static final double MMR_LAMBDA = PipelineConfig.getDouble("search.rerank.mmr.lambda", 0.8);
+    private static final MmrReRanker MMR = new MmrReRanker("search", MMR_LAMBDA);
+    
     /**
      * Search wallpapers by keyword
      * 基于关键词搜索壁纸
@@ -26,32 +37,17 @@ public class AISearchService {
             return new ArrayList<>();
         }
         
-        // 1. Get keyword embedding
-        Embedding keywordEmb = TextEmbeddingService.getEmbedding(keyword.trim());
+        // 1. Get keyword embedding (bounded by the request deadline)
+        Embedding keywordEmb = embeddingWithinDeadline(keyword);
         if (keywordEmb == null) {
             // Fallback to text matching if embedding service unavailable
             return fallbackSearch(keyword, size);
         }
         
-        // 2. Get all wallpapers with embedding
-        List<Wallpaper> allWallpapers = WallpaperDataManager.getInstance()
-            .getAllWallpapersWithEmbedding();
-        
-        // 3. Calculate similarity
-        HashMap<Wallpaper, Double> similarityMap = new HashMap<>();
-        for (Wallpaper wallpaper : allWallpapers) {
-            if (wallpaper.getEmb() != null) {
-                double similarity = keywordEmb.calculateSimilarity(wallpaper.getEmb());
-                similarityMap.put(wallpaper, similarity);
-            }
-        }
-        
-        // 4. Sort and return Top N
-        return similarityMap.entrySet().stream()
-            .sorted(Map.Entry.<Wallpaper, Double>comparingByValue().reversed())
-            .limit(size)
-            .map(Map.Entry::getKey)
-            .collect(Collectors.toList());
+        // 2. Scan every catalog shard's embedding block in parallel and merge Top N
+        List<ScoredWallpaper> scored = WallpaperDataManager.getInstance()
+            .topKByEmbedding(keywordEmb, Math.max(size, MMR_WINDOW), null);
+        return toWallpapers(diversify(scored, size));
     }
     
     /**
@@ -66,7 +62,7 @@ public class AISearchService {
         // Get embeddings for each keyword
         List<Embedding> keywordEmbs = new ArrayList<>();
         for (String keyword : keywords) {
-            Embedding emb = TextEmbeddingService.getEmbedding(keyword.trim());
+            Embedding emb = embeddingWithinDeadline(keyword);
             if (emb != null) {
                 keywordEmbs.add(emb);
             }
@@ -76,35 +72,24 @@ public class AISearchService {
             return fallbackSearch(keywords.get(0), size);
         }
         
-        List<Wallpaper> allWallpapers = WallpaperDataManager.getInstance()
-            .getAllWallpapersWithEmbedding();
-        
-        HashMap<Wallpaper, Double> scoreMap = new HashMap<>();
-        
-        for (Wallpaper wallpaper : allWallpapers) {
-            if (wallpaper.getEmb() == null) continue;
-            
-            // Calculate average similarity with all keywords
-            double totalSimilarity = 0.0;
-            int validKeywords = 0;
-            
-            for (Embedding keywordEmb : keywordEmbs) {
-                double sim = keywordEmb.calculateSimilarity(wallpaper.getEmb());
-                totalSimilarity += sim;
-                validKeywords++;
+        // 归一化后各关键词相似度的平均值 = 平均查询向量与壁纸向量的点积，只需扫描一遍目录
+        float[] meanQuery = null;
+        for (Embedding keywordEmb : keywordEmbs) {
+            float[] q = keywordEmb.toNormalizedArray();
+            if (meanQuery == null) {
+                meanQuery = new float[q.length];
             }
-            
-            if (validKeywords > 0) {
-                double avgSimilarity = totalSimilarity / validKeywords;
-                scoreMap.put(wallpaper, avgSimilarity);
+            if (q.length != meanQuery.length) {
+                continue;
+            }
+            for (int i = 0; i < q.length; i++) {
+                meanQuery[i] += q[i] / keywordEmbs.size();
             }
         }
         
-        return scoreMap.entrySet().stream()
-            .sorted(Map.Entry.<Wallpaper, Double>comparingByValue().reversed())
-            .limit(size)
-            .map(Map.Entry::getKey)
-            .collect(Collectors.toList());
+        List<ScoredWallpaper> scored = WallpaperDataManager.getInstance()
+            .getCatalog().topKByEmbedding(meanQuery, Math.max(size, MMR_WINDOW), null);
+        return toWallpapers(diversify(scored, size));
     }
     
     /**
@@ -147,12 +132,20 @@ public class AISearchService {
             return new ArrayList<>();
         }
 
-        List<Wallpaper> allWallpapers = WallpaperDataManager.getInstance().getAllWallpapers();
-        HashMap<Wallpaper, Integer> matchScoreMap = new HashMap<>();
+        String keywordLower = normalizeKeyword(keyword);
         
+        // 文本匹配也按分片并行扫描，只保留有命中的壁纸
+        List<ScoredWallpaper> scored = WallpaperDataManager.getInstance()
+            .topKByScorer(wallpaper -> textMatchScore(wallpaper, keywordLower), 0, size);
+        return toWallpapers(scored);
+    }
+    
+    /**
+     * Map English keywords to the Chinese tags used in the catalog
+     * 简单的中英文同义词映射，方便英文关键词命中中文标签/类别
+     */
+    private static String normalizeKeyword(String keyword) {
         String keywordLower = keyword.toLowerCase();
-
-        // 简单的中英文同义词映射，方便英文关键词命中中文标签/类别
         if (keywordLower.contains("anime") || keywordLower.contains("cartoon")) {
             keywordLower = "动漫";
         } else if (keywordLower.contains("nature") || keywordLower.contains("landscape")) {
@@ -166,40 +159,72 @@ public class AISearchService {
         } else if (keywordLower.contains("night")) {
             keywordLower = "夜景";
         }
+        return keywordLower;
+    }
+    
+    /**
+     * Text match score of one wallpaper
+     * 单张壁纸的文本匹配分
+     */
+    private static int textMatchScore(Wallpaper wallpaper, String keywordLower) {
+        int score = 0;
         
-        for (Wallpaper wallpaper : allWallpapers) {
-            int score = 0;
-            
-            // Title match
-            if (wallpaper.getTitle() != null && 
-                wallpaper.getTitle().toLowerCase().contains(keywordLower)) {
-                score += 10;
-            }
-            
-            // Tag match
-            for (String tag : wallpaper.getTags()) {
-                if (tag.toLowerCase().contains(keywordLower)) {
-                    score += 5;
-                }
-            }
-            
-            // Category match
-            for (String category : wallpaper.getCategories()) {
-                if (category.toLowerCase().contains(keywordLower)) {
-                    score += 3;
-                }
-            }
-            
-            if (score > 0) {
-                matchScoreMap.put(wallpaper, score);
+        // Title match
+        if (wallpaper.getTitle() != null && 
+            wallpaper.getTitle().toLowerCase().contains(keywordLower)) {
+            score += 10;
+        }
+        
+        // Tag match
+        for (String tag : wallpaper.getTags()) {
+            if (tag.toLowerCase().contains(keywordLower)) {
+                score += 5;
             }
         }
         
-        return matchScoreMap.entrySet().stream()
-            .sorted(Map.Entry.<Wallpaper, Integer>comparingByValue().reversed())
-            .limit(size)
-            .map(Map.Entry::getKey)
-            .collect(Collectors.toList());
+        // Category match
+        for (String category : wallpaper.getCategories()) {
+            if (category.toLowerCase().contains(keywordLower)) {
+                score += 3;
+            }
+        }
+        return score;
+    }
+    
+    /**
+     * Keyword embedding bounded by the current request deadline, null on timeout
+     * 在请求截止时间内获取关键词向量；超时返回 null 并把请求标记为降级到文本匹配（fallback.text）
+     */
+    private static Embedding embeddingWithinDeadline(String keyword) {
+        RequestDeadline deadline = RequestDeadline.current();
+        try {
+            return TextEmbeddingService.getEmbedding(keyword.trim(), deadline);
+        } catch (DeadlineExceededException e) {
+            deadline.degrade(RequestDeadline.TIER_FALLBACK_PREFIX + "text");
+            return null;
+        }
+    }
+    
+    /**
+     * MMR re-rank of similarity-ordered results, truncated to size
+     * 对按相似度排好的结果做 MMR 重排并截断到 size
+     */
+    private static List<ScoredWallpaper> diversify(List<ScoredWallpaper> scored, int size) {
+        long t0 = System.nanoTime();
+        List<ScoredWallpaper> reranked = MMR.diversify(scored, size, MMR_LAMBDA);
+        if (reranked.size() > size) {
+            reranked = reranked.subList(0, Math.max(0, size));
+        }
+        RecMetrics.record("pipeline.search.rerank.mmr", System.nanoTime() - t0, scored.size(), reranked.size());
+        return reranked;
+    }
+    
+    private static List<Wallpaper> toWallpapers(List<ScoredWallpaper> scored) {
+        List<Wallpaper> result = new ArrayList<>(scored.size());
+        for (ScoredWallpaper sw : scored) {
+            result.add(sw.getWallpaper());
+        }
+        return result;
     }
     
     /**
@@ -0,0 +1,482 @@
+package com.wallpaperrecsys.service;
+
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.recprocess.pipeline.RequestDeadline;
+import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.RecMetrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+/**
+ * Recommendation session cache with cursor-based paging
+ * 推荐结果会话缓存 + 游标分页
+ *
+ * 说明：
+ * - 同一个 (endpoint, user, model/scene) 的排序结果缓存在有界、按 TTL 过期的会话中，之后每次“换一批”只是 O(page size) 的切片。
+ * - 第一次只算够前几页的长度（Config.REC_SESSION_INITIAL_RESULTS，不够覆盖请求的偏移量时按 4 倍放大），
+ *   快读到末尾时后台按 4 倍长度重算，把新出现的结果接在原列表后面，直到 Config.REC_SESSION_MAX_RESULTS 或结果不再变长；
+ *   接长的会话与原会话前缀完全相同，游标读到末尾时直接在接长的会话里按原偏移量继续读。
+ * - 同一个 key 同时未命中时只计算一次，其他请求等待这次的结果（session.joined）；同一会话的接长也只算一次。
+ * - 游标是不透明字符串（会话 id + 偏移量）。会话内容不可变，游标始终读取它开始时的那份列表（或其接长），不会重复或跳过；
+ *   会话被淘汰或过期时改读该 key 当前的会话（没有则重新计算），按游标偏移量定位。
+ * - 完整的列表读完后回到开头：下一页将回到开头、会话即将过期或会话是降级结果时，后台异步算出一份新会话登记到该 key 下，
+ *   旧游标读完当前列表后回到开头时转到新会话，用户点击时不需要在请求线程上重新计算。
+ * - 会话记录计算结果时的降级档位，命中时把档位带回当前请求；后台计算不限时，总是完整结果。
+ * - 调用方可以给会话指定过期时刻（例如时间推荐到该时段结束），此时不按 TTL 过期，也不因存活时长提前预取。
+ */
+public class RecSessionCache {
+
+    private static volatile RecSessionCache instance;
+
+    /**
+     * One cached ranked list
+     * 一份缓存的排序结果
+     */
+    static class Session {
+        final String id;
+        final String key;
+        // 按长度计算排序结果
+        final IntFunction<List<Wallpaper>> loader;
+        final List<Wallpaper> items;
+        // 计算时请求的长度；结果比它短或已到上限时列表是完整的，不再接长
+        final int requested;
+        final boolean complete;
+        // 过期时刻：默认创建时 + TTL，调用方指定时为该时刻；接长的会话沿用原会话的过期时刻
+        final long expiresAt;
+        final boolean fixedExpiry;
+        // 计算这份结果时的降级档位（RequestDeadline.getTier）
+        final String tier;
+        // 已经在后台计算接替它的会话
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+        // 接长后的会话（计算中或已完成）
+        final AtomicReference<CompletableFuture<Session>> extension = new AtomicReference<>();
+
+        Session(String key, IntFunction<List<Wallpaper>> loader, List<Wallpaper> items, String tier,
+                int requested, boolean complete, long expiresAt, boolean fixedExpiry) {
+            this.id = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+            this.key = key;
+            this.loader = loader;
+            this.items = items == null ? Collections.<Wallpaper>emptyList() : items;
+            this.tier = tier;
+            this.requested = requested;
+            this.complete = complete;
+            this.expiresAt = expiresAt;
+            this.fixedExpiry = fixedExpiry;
+        }
+    }
+
+    /**
+     * One page plus the cursor of the next page
+     * 一页结果 + 下一页游标
+     */
+    public static class Page {
+        final List<Wallpaper> items;
+        final String nextCursor;
+
+        Page(List<Wallpaper> items, String nextCursor) {
+            this.items = items;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<Wallpaper> getItems() {
+            return items;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final int initialResults;
+    private final int maxResults;
+    // access-order LinkedHashMap：超过容量时淘汰最久未访问的会话
+    private final LinkedHashMap<String, Session> sessionsById;
+    private final Map<String, String> sessionIdByKey = new HashMap<>();
+    // key -> 正在进行的未命中计算
+    private final ConcurrentHashMap<String, CompletableFuture<Session>> loading = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService prefetchExecutor;
+
+    private RecSessionCache(int maxEntries, long ttlMillis, int initialResults, int maxResults) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.maxResults = Math.max(1, maxResults);
+        this.initialResults = Math.max(1, Math.min(initialResults, this.maxResults));
+        this.sessionsById = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                if (size() > RecSessionCache.this.maxEntries) {
+                    sessionIdByKey.remove(eldest.getValue().key, eldest.getKey());
+                    RecMetrics.increment("session.evicted");
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.prefetchExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rec-session-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+        // 定期清理过期会话，避免只靠容量淘汰
+        this.prefetchExecutor.scheduleWithFixedDelay(this::sweepExpired, 60, 60, TimeUnit.SECONDS);
+    }
+
+    public static RecSessionCache getInstance() {
+        if (instance == null) {
+            synchronized (RecSessionCache.class) {
+                if (instance == null) {
+                    instance = new RecSessionCache(Config.REC_SESSION_MAX_ENTRIES,
+                            Config.REC_SESSION_TTL_SECONDS * 1000L,
+                            Config.REC_SESSION_INITIAL_RESULTS, Config.REC_SESSION_MAX_RESULTS);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Get one page of a cached ranked list
+     * 取一页结果：有游标时按游标定位，否则按 page * size 定位（兼容旧的 page 参数）
+     * @param key session key, e.g. personal|userId|model
+     * @param cursor opaque cursor returned by a previous page, may be null
+     * @param page page index, used only when cursor is null
+     * @param size page size
+     * @param loader computes the ranked list of the given length on a miss or an extension
+     */
+    public Page page(String key, String cursor, int page, int size, IntFunction<List<Wallpaper>> loader) {
+        return page(key, cursor, page, size, loader, 0L);
+    }
+
+    /**
+     * Get one page of a ranked list whose session stays valid until a fixed time
+     * 同上，但新会话存活到 expiresAt（毫秒时间戳）而不是 TTL，例如时间推荐到该时段结束；<= 0 时按 TTL
+     */
+    public Page page(String key, String cursor, int page, int size, IntFunction<List<Wallpaper>> loader,
+                     long expiresAt) {
+        if (size <= 0) {
+            return new Page(Collections.<Wallpaper>emptyList(), null);
+        }
+
+        Session session = null;
+        int offset = Math.max(0, page) * size;
+        if (cursor != null && !cursor.isEmpty()) {
+            String[] decoded = decodeCursor(cursor);
+            if (decoded != null) {
+                offset = Integer.parseInt(decoded[1]);
+                Session s = getValid(decoded[0]);
+                if (s != null && s.key.equals(key)) {
+                    session = s;
+                }
+            }
+        }
+        if (session == null) {
+            session = current(key);
+        }
+
+        boolean hit = session != null;
+        if (!hit) {
+            RecMetrics.increment("session.miss");
+            session = loadOnce(key, loader, lengthFor((long) offset + size), expiresAt);
+        }
+
+        // 读到列表末尾：列表还不完整时先接长（后台已在接长时等它），按原偏移量继续读
+        while (offset >= session.items.size() && !session.complete) {
+            session = extend(session);
+        }
+        // 完整的列表读完后回到第 0 页，配合“换一批”循环使用；该 key 已有更新的会话时从新会话开头读
+        if (offset >= session.items.size()) {
+            offset = 0;
+            Session latest = hit ? current(key) : null;
+            if (latest != null && latest != session) {
+                RecMetrics.increment("session.handover");
+                session = latest;
+            }
+        }
+        if (hit) {
+            RecMetrics.increment("session.hit");
+            RequestDeadline.current().degrade(session.tier);
+        }
+        List<Wallpaper> items = session.items;
+        int end = Math.min(offset + size, items.size());
+        List<Wallpaper> pageItems = new ArrayList<>(items.subList(offset, end));
+        int nextOffset = end;
+
+        maybePrefetch(session, nextOffset, size);
+        return new Page(pageItems, encodeCursor(session.id, nextOffset));
+    }
+
+    /**
+     * Drop every session of a key prefix, e.g. after a user rates something
+     * 使某个前缀下的会话失效（例如用户产生新评分后）
+     */
+    public synchronized void invalidate(String keyPrefix) {
+        Iterator<Map.Entry<String, Session>> it = sessionsById.entrySet().iterator();
+        while (it.hasNext()) {
+            Session s = it.next().getValue();
+            if (s.key.startsWith(keyPrefix)) {
+                sessionIdByKey.remove(s.key, s.id);
+                it.remove();
+            }
+        }
+    }
+
+    // 覆盖 needed 条结果的计算长度：从 initialResults 起按 4 倍放大，不超过 maxResults
+    private int lengthFor(long needed) {
+        long length = initialResults;
+        while (length < needed && length < maxResults) {
+            length *= 4;
+        }
+        return (int) Math.min(length, maxResults);
+    }
+
+    // 同一 key 同时未命中时只有第一个请求计算，其余等待它的结果
+    private Session loadOnce(String key, IntFunction<List<Wallpaper>> loader, int length, long expiresAt) {
+        CompletableFuture<Session> mine = new CompletableFuture<>();
+        CompletableFuture<Session> running = loading.putIfAbsent(key, mine);
+        if (running != null) {
+            RecMetrics.increment("session.joined");
+            Session s = await(running);
+            RequestDeadline.current().degrade(s.tier);
+            return s;
+        }
+        Session session = null;
+        try {
+            // 拿到计算权之前别的请求可能刚登记完
+            session = current(key);
+            if (session == null) {
+                session = load(key, loader, length, expiresAt);
+            } else {
+                RequestDeadline.current().degrade(session.tier);
+            }
+            return session;
+        } finally {
+            loading.remove(key, mine);
+            if (session != null) {
+                mine.complete(session);
+            } else {
+                mine.completeExceptionally(new IllegalStateException("Session load failed for " + key));
+            }
+        }
+    }
+
+    private Session load(String key, IntFunction<List<Wallpaper>> loader, int length, long expiresAt) {
+        List<Wallpaper> items = loader.apply(length);
+        boolean fixedExpiry = expiresAt > 0;
+        Session session = new Session(key, loader, items, RequestDeadline.current().getTier(), length,
+                isComplete(items, length),
+                fixedExpiry ? expiresAt : System.currentTimeMillis() + ttlMillis, fixedExpiry);
+        register(session);
+        return session;
+    }
+
+    /**
+     * 接长后的会话：已有或正在计算（例如后台预取）时等它，否则由当前线程计算；失败时允许下次再试
+     */
+    private Session extend(Session base) {
+        CompletableFuture<Session> mine = new CompletableFuture<>();
+        if (!base.extension.compareAndSet(null, mine)) {
+            return await(base.extension.get());
+        }
+        Session next = null;
+        try {
+            next = computeExtension(base);
+            return next;
+        } finally {
+            if (next != null) {
+                mine.complete(next);
+            } else {
+                base.extension.compareAndSet(mine, null);
+                mine.completeExceptionally(new IllegalStateException("Session extension failed for " + base.key));
+            }
+        }
+    }
+
+    // 按更长的长度重算，把原列表里没有的结果依次接在后面；原列表的前缀不变
+    private Session computeExtension(Session base) {
+        long t0 = System.nanoTime();
+        int length = (int) Math.min((long) base.requested * 4, maxResults);
+        List<Wallpaper> fresh = base.loader.apply(length);
+        if (fresh == null) {
+            fresh = Collections.emptyList();
+        }
+        List<Wallpaper> items = new ArrayList<>(Math.max(length, base.items.size()));
+        Set<Integer> ids = new HashSet<>();
+        for (Wallpaper w : base.items) {
+            items.add(w);
+            ids.add(w.getWallpaperId());
+        }
+        for (Wallpaper w : fresh) {
+            if (items.size() >= length) {
+                break;
+            }
+            if (ids.add(w.getWallpaperId())) {
+                items.add(w);
+            }
+        }
+        // 没有接上新结果时也视为完整，避免反复接长
+        boolean complete = isComplete(fresh, length) || items.size() == base.items.size();
+        Session next = new Session(base.key, base.loader, Collections.unmodifiableList(items),
+                RequestDeadline.current().getTier(), length, complete, base.expiresAt, base.fixedExpiry);
+        synchronized (this) {
+            // 原会话已失效（新评分）或被淘汰时不再登记，只交给正在读它的请求
+            if (sessionsById.containsKey(base.id)) {
+                sessionsById.put(next.id, next);
+                if (base.id.equals(sessionIdByKey.get(base.key))) {
+                    sessionIdByKey.put(base.key, next.id);
+                }
+            }
+        }
+        RecMetrics.record("session.extend", System.nanoTime() - t0, base.items.size(), items.size());
+        return next;
+    }
+
+    private boolean isComplete(List<Wallpaper> items, int length) {
+        return items == null || items.size() < length || length >= maxResults;
+    }
+
+    private static Session await(CompletableFuture<Session> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // 登记为该 key 的当前会话；被接替的旧会话留在缓存里供已发出的游标读完，随过期 / 容量淘汰
+    private synchronized void register(Session session) {
+        sessionIdByKey.put(session.key, session.id);
+        sessionsById.put(session.id, session);
+    }
+
+    private Session current(String key) {
+        String id;
+        synchronized (this) {
+            id = sessionIdByKey.get(key);
+        }
+        return id == null ? null : getValid(id);
+    }
+
+    private Session getValid(String id) {
+        synchronized (this) {
+            Session s = sessionsById.get(id);
+            if (s == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() > s.expiresAt) {
+                sessionsById.remove(id);
+                sessionIdByKey.remove(s.key, id);
+                RecMetrics.increment("session.expired");
+                return null;
+            }
+            return s;
+        }
+    }
+
+    /**
+     * 列表还不完整且快读到末尾（剩余不到两页）时，后台接长；
+     * 完整的列表下一页会回绕到开头、会话已过 TTL 的 80%，或会话是降级结果时，后台计算一份新会话接替它；
+     * 指定了过期时刻的会话不按存活时长预取，接替它的新会话沿用同一过期时刻
+     */
+    private void maybePrefetch(Session session, int nextOffset, int size) {
+        if (!session.complete && nextOffset + 2L * size > session.items.size() && session.extension.get() == null) {
+            RecMetrics.increment("session.prefetch.extend");
+            prefetchExecutor.execute(() -> {
+                try {
+                    extend(session);
+                } catch (RuntimeException e) {
+                    System.err.println("Session extension failed for " + session.key + ": " + e.getMessage());
+                }
+            });
+        }
+
+        boolean wrapsNext = session.complete && nextOffset >= session.items.size();
+        boolean expiringSoon = !session.fixedExpiry && session.expiresAt - System.currentTimeMillis() < ttlMillis / 5;
+        boolean degraded = !RequestDeadline.TIER_FULL.equals(session.tier);
+        if (!wrapsNext && !expiringSoon && !degraded) {
+            return;
+        }
+        synchronized (this) {
+            // 已被接替的旧会话不再预取
+            if (!session.id.equals(sessionIdByKey.get(session.key))) {
+                return;
+            }
+        }
+        if (!session.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        RecMetrics.increment("session.prefetch");
+        prefetchExecutor.execute(() -> {
+            long t0 = System.nanoTime();
+            int produced = 0;
+            try {
+                List<Wallpaper> fresh = session.loader.apply(session.requested);
+                if (fresh != null) {
+                    // 后台线程没有截止时间，总是完整流水线的结果；读完当前列表的游标回到开头时转过来
+                    Session next = new Session(session.key, session.loader, fresh, RequestDeadline.TIER_FULL,
+                            session.requested, isComplete(fresh, session.requested),
+                            session.fixedExpiry ? session.expiresAt : System.currentTimeMillis() + ttlMillis,
+                            session.fixedExpiry);
+                    synchronized (this) {
+                        // 期间该 key 已失效（新评分）或被别的会话接替时丢弃
+                        if (session.id.equals(sessionIdByKey.get(session.key))) {
+                            register(next);
+                            produced = next.items.size();
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // 失败时允许下一次翻页再试
+                session.refreshing.set(false);
+                System.err.println("Session prefetch failed for " + session.key + ": " + e.getMessage());
+            } finally {
+                RecMetrics.record("session.prefetch", System.nanoTime() - t0, 0, produced);
+            }
+        });
+    }
+
+    private synchronized void sweepExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Session>> it = sessionsById.entrySet().iterator();
+        while (it.hasNext()) {
+            Session s = it.next().getValue();
+            if (now > s.expiresAt) {
+                sessionIdByKey.remove(s.key, s.id);
+                it.remove();
+                RecMetrics.increment("session.expired");
+            }
+        }
+    }
+
+    private static String encodeCursor(String sessionId, int offset) {
+        String raw = sessionId + ":" + offset;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String[] decodeCursor(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = raw.split(":");
+            if (parts.length != 2 || Integer.parseInt(parts[1]) < 0) {
+                return null;
+            }
+            return parts;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -1,12 +1,22 @@
 package com.wallpaperrecsys.service;
 
 import com.wallpaperrecsys.model.Embedding;
+import com.wallpaperrecsys.recprocess.pipeline.DeadlineExceededException;
+import com.wallpaperrecsys.recprocess.pipeline.RequestDeadline;
 import com.wallpaperrecsys.util.Config;
+import com.wallpaperrecsys.util.RecMetrics;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Text Embedding Service
@@ -15,9 +25,24 @@ import java.util.Map;
  */
 public class TextEmbeddingService {
     
-    // Simple cache for embeddings
-    private static final Map<String, Embedding> embeddingCache = new HashMap<>();
+    // Simple cache for embeddings（请求线程与 text-embedding 线程并发读写）
+    private static final Map<String, Embedding> embeddingCache = new ConcurrentHashMap<>();
     private static final int MAX_CACHE_SIZE = 1000;
+    // 有截止时间的请求在这里调用向量服务，调用线程只等待到截止时间；
+    // 线程数与排队都有上限：向量服务变慢时超时的调用仍占着线程，占满后新请求直接降级而不是继续加线程
+    private static final ThreadPoolExecutor EMBEDDING_EXECUTOR = new ThreadPoolExecutor(
+        Config.EMBEDDING_MAX_THREADS, Config.EMBEDDING_MAX_THREADS, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(Config.EMBEDDING_MAX_QUEUED), r -> {
+            Thread t = new Thread(r, "text-embedding");
+            t.setDaemon(true);
+            return t;
+        });
+
+    static {
+        EMBEDDING_EXECUTOR.allowCoreThreadTimeOut(true);
+        RecMetrics.gauge("embedding.pool.active", EMBEDDING_EXECUTOR::getActiveCount);
+        RecMetrics.gauge("embedding.pool.queued", () -> EMBEDDING_EXECUTOR.getQueue().size());
+    }
     
     /**
      * Get embedding for text
@@ -33,8 +58,9 @@ public class TextEmbeddingService {
         String trimmedText = text.trim();
         
         // Check cache
-        if (embeddingCache.containsKey(trimmedText)) {
-            return embeddingCache.get(trimmedText);
+        Embedding cached = embeddingCache.get(trimmedText);
+        if (cached != null) {
+            return cached;
         }
         
         // Get embedding (simplified implementation)
@@ -49,6 +75,36 @@ public class TextEmbeddingService {
         return embedding;
     }
     
+    /**
+     * Get embedding for text, waiting no longer than the request deadline
+     * 获取文本向量，最多等待到请求截止时间；超时或调用线程池已满时抛出 DeadlineExceededException，由调用方降级到文本匹配
+     */
+    public static Embedding getEmbedding(String text, RequestDeadline deadline) {
+        if (!deadline.isBounded()) {
+            return getEmbedding(text);
+        }
+        Future<Embedding> future;
+        try {
+            future = EMBEDDING_EXECUTOR.submit(() -> getEmbedding(text));
+        } catch (RejectedExecutionException e) {
+            RecMetrics.increment("embedding.rejected");
+            throw new DeadlineExceededException("embedding");
+        }
+        try {
+            return future.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            RecMetrics.increment("embedding.timeout");
+            throw new DeadlineExceededException("embedding");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("embedding");
+        } catch (ExecutionException e) {
+            System.err.println("Embedding service failed: " + e.getCause());
+            return null;
+        }
+    }
+    
     /**
      * Get embedding from service (placeholder implementation)
      * 从服务获取Embedding（占位实现）
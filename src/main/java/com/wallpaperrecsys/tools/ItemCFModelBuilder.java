@@ -0,0 +1,55 @@
+package com.wallpaperrecsys.tools;
+
+import com.wallpaperrecsys.datamanager.User;
+import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.recprocess.ItemCFBuilder;
+import com.wallpaperrecsys.recprocess.ItemCFModelFile;
+import com.wallpaperrecsys.recprocess.ItemCFRecommendation;
+import com.wallpaperrecsys.util.Config;
+
+import java.util.*;
+
+/**
+ * Offline job building the ItemCF similarity model file
+ * 离线构建 ItemCF 相似度模型：用全部评分计算 Top-N 近邻，写入 ItemCFModelFile（CSR + 喜欢人数，精确构建时附共现计数）
+ *
+ * 使用示例：
+ * - java -cp target/wallpaper-recommendation-system-1.0-SNAPSHOT-jar-with-dependencies.jar com.wallpaperrecsys.tools.ItemCFModelBuilder --threads=8
+ * - 可选参数：--out=文件路径
+ * - 在线服务下次启动时加载；评分总数与构建时不同的文件仍会先用于服务，同时在后台重新构建；
+ *   未过期且带共现计数的文件直接作为增量更新的起点，不再全量构建
+ */
+public class ItemCFModelBuilder {
+
+    public static void main(String[] args) throws Exception {
+        String out = Config.ITEMCF_MODEL_PATH;
+        int threads = Config.ITEMCF_BUILD_THREADS;
+        for (String s : args) {
+            if (s.startsWith("--out=")) out = s.substring("--out=".length());
+            else if (s.startsWith("--threads=")) threads = Math.max(1, Integer.parseInt(s.substring("--threads=".length())));
+        }
+
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        dm.loadData(
+                Config.DEFAULT_WALLPAPER_DATA_PATH,
+                Config.DEFAULT_RATING_DATA_PATH,
+                Config.DEFAULT_WALLPAPER_EMB_PATH,
+                Config.DEFAULT_USER_EMB_PATH
+        );
+        List<User> users = dm.getAllUsers();
+        int ratingCount = ItemCFRecommendation.totalRatings(users);
+        Map<Integer, int[]> likedByUser = ItemCFRecommendation.likedByUser(users);
+
+        ItemCFBuilder.Bounds bounds = ItemCFBuilder.Bounds.fromConfig();
+
+        long t0 = System.nanoTime();
+        ItemCFBuilder.Result result = ItemCFBuilder.build(new ArrayList<>(likedByUser.values()),
+                ItemCFRecommendation.MAX_NEIGHBORS, threads, bounds);
+        long buildNanos = System.nanoTime() - t0;
+        long bytes = ItemCFModelFile.write(out, result, ItemCFRecommendation.MAX_NEIGHBORS, ratingCount);
+
+        System.out.printf("Built ItemCF model from %d ratings: %d items, %d co-occurring pairs in %.2fs (%d threads, %s)%n",
+                ratingCount, result.similarities.rowCount(), result.pairs, buildNanos / 1e9, threads, bounds);
+        System.out.printf("Wrote %s (%d bytes) in %.2fs total%n", out, bytes, (System.nanoTime() - t0) / 1e9);
+    }
+}
@@ -0,0 +1,112 @@
+package com.wallpaperrecsys.tools;
+
+import com.wallpaperrecsys.datamanager.User;
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.recprocess.PrecomputedRecLists;
+import com.wallpaperrecsys.recprocess.RecForYouProcess;
+import com.wallpaperrecsys.util.Config;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Offline batch job precomputing per-user recommendation lists
+ * 离线批量预计算：为每个用户、每个模型计算 Top-N 推荐列表，写入 PrecomputedRecLists 内存映射文件
+ *
+ * 使用示例：
+ * - java -cp target/wallpaper-recommendation-system-1.0-SNAPSHOT-jar-with-dependencies.jar com.wallpaperrecsys.tools.RecListPrecomputer --topN=1000 --threads=8
+ * - 可选参数：--out=文件路径 --models=emb,itemcf,usercf,popularity,hybrid,learned
+ * - 在线服务重启（或调用 PrecomputedRecLists.reload()）后生效
+ */
+public class RecListPrecomputer {
+
+    private static final List<String> DEFAULT_MODELS = RecForYouProcess.MODELS;
+
+    public static void main(String[] args) throws Exception {
+        Args a = Args.parse(args);
+        String out = a.out;
+        int topN = a.topN;
+        int threads = a.threads;
+        List<String> models = a.models;
+
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        dm.loadData(
+                Config.DEFAULT_WALLPAPER_DATA_PATH,
+                Config.DEFAULT_RATING_DATA_PATH,
+                Config.DEFAULT_WALLPAPER_EMB_PATH,
+                Config.DEFAULT_USER_EMB_PATH
+        );
+        List<User> users = dm.getAllUsers();
+        System.out.println("Precomputing top-" + topN + " lists for " + users.size() + " users x " + models
+                + " with " + threads + " threads");
+
+        long t0 = System.nanoTime();
+        List<PrecomputedRecLists.UserLists> results = new ArrayList<>(users.size());
+        if (!users.isEmpty()) {
+            // 第一个用户在主线程上计算，顺带完成 ItemCF 等模型的懒加载
+            results.add(compute(users.get(0), models, topN));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<PrecomputedRecLists.UserLists>> futures = new ArrayList<>(users.size());
+            for (int i = 1; i < users.size(); i++) {
+                User user = users.get(i);
+                futures.add(pool.submit(() -> compute(user, models, topN)));
+            }
+            for (Future<PrecomputedRecLists.UserLists> f : futures) {
+                results.add(f.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        long computeNanos = System.nanoTime() - t0;
+
+        long bytes = PrecomputedRecLists.write(out, models, topN, dm.getCatalog().size(), results);
+        long totalNanos = System.nanoTime() - t0;
+
+        double computeSec = computeNanos / 1e9;
+        int lists = users.size() * models.size();
+        System.out.printf("Computed %d lists in %.2fs (%.1f users/s, %.1f lists/s)%n",
+                lists, computeSec, users.size() / computeSec, lists / computeSec);
+        System.out.printf("Wrote %s (%d bytes) in %.2fs total%n", out, bytes, totalNanos / 1e9);
+    }
+
+    static class Args {
+        String out = Config.PRECOMPUTED_REC_LIST_PATH;
+        int topN = Config.PRECOMPUTE_TOP_N;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        List<String> models = DEFAULT_MODELS;
+
+        static Args parse(String[] args) {
+            Args a = new Args();
+            for (String s : args) {
+                if (s.startsWith("--out=")) a.out = s.substring("--out=".length());
+                else if (s.startsWith("--topN=")) a.topN = Integer.parseInt(s.substring("--topN=".length()));
+                else if (s.startsWith("--threads=")) a.threads = Math.max(1, Integer.parseInt(s.substring("--threads=".length())));
+                else if (s.startsWith("--models=")) a.models = Arrays.asList(s.substring("--models=".length()).split(","));
+            }
+            return a;
+        }
+    }
+
+    private static PrecomputedRecLists.UserLists compute(User user, List<String> models, int topN) {
+        // 先记下评分数再计算：计算期间有新评分时，在线读取会判为过期并回退到在线计算
+        int ratingCount = user.getRatingCount();
+        int[][] lists = new int[models.size()][];
+        boolean[] complete = new boolean[models.size()];
+        for (int m = 0; m < models.size(); m++) {
+            // 多要一个：在线结果不超过 topN 说明列表完整（受排序预算等限制，更大的 size 也不会有更多结果）
+            List<Wallpaper> recs = RecForYouProcess.computeRecList(user, topN + 1, models.get(m));
+            complete[m] = recs.size() <= topN;
+            int[] ids = new int[Math.min(topN, recs.size())];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = recs.get(i).getWallpaperId();
+            }
+            lists[m] = ids;
+        }
+        return new PrecomputedRecLists.UserLists(user.getUserId(), ratingCount, lists, complete);
+    }
+}
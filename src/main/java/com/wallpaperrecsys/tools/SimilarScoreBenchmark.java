@@ -0,0 +1,107 @@
+package com.wallpaperrecsys.tools;
+
+import com.wallpaperrecsys.datamanager.Wallpaper;
+import com.wallpaperrecsys.datamanager.WallpaperDataManager;
+import com.wallpaperrecsys.recprocess.SimilarWallpaperProcess;
+import com.wallpaperrecsys.util.Config;
+
+import java.util.*;
+
+/**
+ * Benchmark and equivalence check of the similar-wallpaper content score
+ * 相似壁纸内容打分的基准与一致性检查：位图编码路径（ContentFeatures）对比逐个比较列表的路径
+ *
+ * 使用示例：
+ * - java -cp target/wallpaper-recommendation-system-1.0-SNAPSHOT-jar-with-dependencies.jar com.wallpaperrecsys.tools.SimilarScoreBenchmark
+ * - 可选参数：--pairs=每轮计时的物品对数 --rounds=计时轮数 --check=一致性检查的物品对上限
+ * - 一致性检查：目录不超过上限时检查全部有序物品对，否则随机抽样；两条路径的分数须逐位相同，否则以状态码 1 退出
+ * - 计时：两条路径交替跑同一组随机物品对，前几轮为 JIT 预热，看后几轮的 ns/pair
+ */
+public class SimilarScoreBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pairs = 20_000_000;
+        int rounds = 6;
+        long check = 25_000_000L;
+        for (String s : args) {
+            if (s.startsWith("--pairs=")) pairs = Integer.parseInt(s.substring("--pairs=".length()));
+            else if (s.startsWith("--rounds=")) rounds = Integer.parseInt(s.substring("--rounds=".length()));
+            else if (s.startsWith("--check=")) check = Long.parseLong(s.substring("--check=".length()));
+        }
+
+        WallpaperDataManager dm = WallpaperDataManager.getInstance();
+        dm.loadData(
+                Config.DEFAULT_WALLPAPER_DATA_PATH,
+                Config.DEFAULT_RATING_DATA_PATH,
+                Config.DEFAULT_WALLPAPER_EMB_PATH,
+                Config.DEFAULT_USER_EMB_PATH
+        );
+        Wallpaper[] all = dm.getAllWallpapers().toArray(new Wallpaper[0]);
+        if (all.length == 0) {
+            System.err.println("No wallpapers loaded");
+            System.exit(1);
+        }
+        int encoded = 0;
+        for (Wallpaper w : all) {
+            if (w.getContentFeatures() != null) {
+                encoded++;
+            }
+        }
+        System.out.println("Wallpapers: " + all.length + ", encoded: " + encoded);
+
+        // 1. 一致性：分数逐位相同
+        long checked = 0;
+        long different = 0;
+        if ((long) all.length * all.length <= check) {
+            for (Wallpaper x : all) {
+                for (Wallpaper y : all) {
+                    checked++;
+                    if (!sameBits(x, y)) {
+                        different++;
+                    }
+                }
+            }
+        } else {
+            Random random = new Random(1);
+            for (; checked < check; checked++) {
+                if (!sameBits(all[random.nextInt(all.length)], all[random.nextInt(all.length)])) {
+                    different++;
+                }
+            }
+        }
+        System.out.println("Checked " + checked + " pairs, " + different + " with different scores");
+
+        // 2. 计时：同一组随机物品对，两条路径交替
+        Random random = new Random(1);
+        int[] xs = new int[1 << 16];
+        int[] ys = new int[1 << 16];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = random.nextInt(all.length);
+            ys[i] = random.nextInt(all.length);
+        }
+        int mask = xs.length - 1;
+        for (int round = 0; round < rounds; round++) {
+            double byLists = 0.0;
+            double byBits = 0.0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < pairs; i++) {
+                byLists += SimilarWallpaperProcess.calculateSimilarScoreByLists(all[xs[i & mask]], all[ys[i & mask]]);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < pairs; i++) {
+                byBits += SimilarWallpaperProcess.calculateSimilarScore(all[xs[i & mask]], all[ys[i & mask]]);
+            }
+            long t2 = System.nanoTime();
+            System.out.printf("Round %d: lists %.1f ns/pair, bitsets %.1f ns/pair (sums equal: %s)%n",
+                    round, (t1 - t0) / (double) pairs, (t2 - t1) / (double) pairs, byLists == byBits);
+        }
+        if (different > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean sameBits(Wallpaper x, Wallpaper y) {
+        return Double.doubleToLongBits(SimilarWallpaperProcess.calculateSimilarScoreByLists(x, y))
+                == Double.doubleToLongBits(SimilarWallpaperProcess.calculateSimilarScore(x, y));
+    }
+}
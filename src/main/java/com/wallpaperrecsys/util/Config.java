@@ -23,11 +23,93 @@ public class Config {
     // Embedding服务配置
     public static String EMBEDDING_SERVICE_URL = "http://localhost:5000/api/embedding";
     public static String EMBEDDING_SOURCE = "python_service"; // python_service 或 local_model
+    // 有截止时间的请求调用向量服务的线程数与排队上限；都占满时不再等待，直接降级到文本匹配
+    public static int EMBEDDING_MAX_THREADS = 4;
+    public static int EMBEDDING_MAX_QUEUED = 16;
     
     // 默认数据路径
     public static String DEFAULT_WALLPAPER_DATA_PATH = "data/wallpapers.csv";
     public static String DEFAULT_RATING_DATA_PATH = "data/ratings.csv";
     public static String DEFAULT_WALLPAPER_EMB_PATH = "data/wallpaper_embeddings.csv";
     public static String DEFAULT_USER_EMB_PATH = "data/user_embeddings.csv";
+
+    // 壁纸目录分片数：每个分片独立持有索引与 embedding 块，全量扫描按分片并行
+    public static int CATALOG_SHARD_COUNT = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    // 推荐结果会话缓存：最多缓存的会话数、会话存活时间（秒）、第一次计算的结果长度（前几页）、接长后的最大结果长度
+    public static int REC_SESSION_MAX_ENTRIES = 10000;
+    public static int REC_SESSION_TTL_SECONDS = 600;
+    public static int REC_SESSION_INITIAL_RESULTS = 100;
+    public static int REC_SESSION_MAX_RESULTS = 5000;
+
+    // 排序阶段并行打分：候选数达到阈值时在专用 ForkJoinPool 上打分；同时使用线程池的请求数上限，超出的请求串行打分
+    public static int SCORING_PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+    public static int PARALLEL_SCORING_THRESHOLD = 512;
+    public static int SCORING_MAX_CONCURRENT_REQUESTS = Math.max(1, SCORING_PARALLELISM / 2);
+
+    // 离线预计算的个性化推荐列表（tools.RecListPrecomputer 生成）：文件不存在时全部在线计算；每个列表保存的长度
+    public static boolean PRECOMPUTED_REC_LIST_ENABLED = true;
+    public static String PRECOMPUTED_REC_LIST_PATH = "data/precomputed_reclists.bin";
+    public static int PRECOMPUTE_TOP_N = 1000;
+
+    // 单个 HTTP 请求的默认时间预算（毫秒，可用 timeoutMs 参数覆盖）及其上限；超时的阶段降级到预先算好的便宜结果
+    public static long REQUEST_DEADLINE_MS = 300;
+    public static long REQUEST_MAX_DEADLINE_MS = 5000;
+
+    // 批量相似推荐 /api/rec/similar/batch 单次最多的壁纸 id 数
+    public static int SIMILAR_BATCH_MAX_IDS = 100;
+
+    // 用户偏好画像（场景 / 时间推荐的用户偏好项）缓存的用户数，超出时淘汰最久未使用的
+    public static int USER_PROFILE_CACHE_SIZE = 50000;
+
+    // 场景定义文件（JSON：场景名 -> 偏好风格 / 情绪 / 色调 / 分类 / 标签与权重），文件不存在时使用内置场景；
+    // 每 SCENARIO_RELOAD_INTERVAL_MS 检查一次文件变化并热加载，<= 0 时不监视
+    public static String SCENARIO_CONFIG_PATH = "data/scenarios.json";
+    public static long SCENARIO_RELOAD_INTERVAL_MS = 5000;
+
+    // 时间推荐：服务器时区每个时段开始前 TIME_PREWARM_LEAD_MS 预热该时段的召回池；
+    // 个性化结果只在推荐会话缓存里（REC_SESSION_MAX_ENTRIES 条会话），存活到时段结束
+    public static boolean TIME_PREWARM_ENABLED = true;
+    public static long TIME_PREWARM_LEAD_MS = 60_000;
+
+    // model=learned 的排序模型文件（OfflineEvalMain --trainRanker 生成）；文件不存在时使用内置的手工权重
+    public static String LEARNED_RANKER_PATH = "data/learned_ranker.properties";
+
+    // ItemCF 相似度构建的线程数（按用户分片并行计数共现）
+    public static int ITEMCF_BUILD_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // 构建后新的“喜欢”是否在后台增量更新 ItemCF 近邻表；需要常驻共现计数与每个用户的喜欢，
+    // 约每个共现物品对 16 字节 + 每个喜欢 4 字节（见 ItemCFUpdater），内存紧张时关闭
+    public static boolean ITEMCF_INCREMENTAL = true;
+    // 离线构建的 ItemCF 模型文件（tools.ItemCFModelBuilder 生成），服务启动时加载；文件不存在时在后台构建
+    public static String ITEMCF_MODEL_PATH = "data/itemcf_model.bin";
+    // 有界构建（重度用户多、物品多时控制耗时与内存）：喜欢数超过上限的用户抽样，IUF 降低重度用户的贡献，
+    // 共现表合计超过内存预算时流式剪掉低频物品对，(加权)共同喜欢人数低于下限的物品对不进入近邻；开启后不做增量更新
+    public static boolean ITEMCF_BOUNDED = false;
+    public static int ITEMCF_MAX_LIKES_PER_USER = 500;
+    public static boolean ITEMCF_IUF = true;
+    public static int ITEMCF_MEMORY_BUDGET_MB = 256;
+    public static double ITEMCF_MIN_CO_COUNT = 0.0;
+
+    // UserCF（model=usercf）：MinHash 签名分 USERCF_BANDS 段、每段 USERCF_ROWS 个哈希做 LSH 分桶
+    // （Jaccard 约 (1/bands)^(1/rows) 以上的用户大概率同桶），每个用户取最相似的 USERCF_NEIGHBORS 个
+    public static int USERCF_BANDS = 50;
+    public static int USERCF_ROWS = 2;
+    public static int USERCF_NEIGHBORS = 50;
+    public static int USERCF_BUILD_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // 隐式反馈 ALS：启动时用已加载评分训练用户 / 壁纸因子并替换 emb 模型的向量。
+    // off 不训练；auto 只在没有壁纸内容向量时训练（因子与文本 / 图像向量不在同一空间，替换后 AI 搜索只能走文本匹配）；on 总是训练
+    public static String ALS_MODE = "auto";
+    public static int ALS_RANK = 32;
+    public static double ALS_REGULARIZATION = 0.1;
+    // 置信度 c = 1 + ALS_ALPHA（有评分的观测），未评分为 1
+    public static double ALS_ALPHA = 10.0;
+    public static int ALS_ITERATIONS = 10;
+    public static int ALS_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // 用户向量在线折叠：每个新的喜欢（>= 4 分）把壁纸向量并入用户向量，emb 模型下一次请求即生效。
+    // 旧喜欢的权重每次乘以 EMB_FOLDIN_DECAY（0.95 约 14 个喜欢后减半）
+    public static boolean EMB_FOLDIN_ENABLED = true;
+    public static double EMB_FOLDIN_DECAY = 0.95;
 }
 
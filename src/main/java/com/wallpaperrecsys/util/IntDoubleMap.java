@@ -0,0 +1,155 @@
+package com.wallpaperrecsys.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open-addressing int -> double map without boxing
+ * 开放寻址（线性探测）的 int -> double 映射，读写都不装箱、不分配对象
+ *
+ * 说明：
+ * - 不支持删除；容量按 2 的幂增长，装载因子不超过 0.5。
+ * - 非线程安全：写完之后可以被多个线程并发读取。
+ */
+public class IntDoubleMap {
+
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private double[] values;
+    private int size;
+    private int mask;
+
+    /**
+     * Visitor of all entries
+     * 遍历回调
+     */
+    public interface Visitor {
+        void accept(int key, double value);
+    }
+
+    public IntDoubleMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new double[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Value of key, or defaultValue when absent
+     * 取 key 对应的值，不存在时返回 defaultValue
+     */
+    public double get(int key, double defaultValue) {
+        int i = slot(key, mask);
+        while (true) {
+            int k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == FREE) {
+                return defaultValue;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public void put(int key, double value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Unsupported key: " + key);
+        }
+        if ((size + 1) * 2 > keys.length) {
+            int[] oldKeys = keys;
+            double[] oldValues = values;
+            allocate(keys.length * 2);
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != FREE) {
+                    put(oldKeys[j], oldValues[j]);
+                }
+            }
+        }
+        int i = slot(key, mask);
+        while (keys[i] != FREE && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == FREE) {
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    /**
+     * Add delta to the value of key (absent counts as 0)
+     * 累加：key 不存在时视为 0
+     */
+    public void addTo(int key, double delta) {
+        put(key, get(key, 0.0) + delta);
+    }
+
+    /**
+     * An independent copy (for copy-on-write updates of maps shared with readers)
+     * 复制一份，写时复制：改副本后整体替换，正在读旧表的线程不受影响
+     */
+    public IntDoubleMap copy() {
+        IntDoubleMap c = new IntDoubleMap(4);
+        c.keys = keys.clone();
+        c.values = values.clone();
+        c.size = size;
+        c.mask = mask;
+        return c;
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                visitor.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Keys of the k largest values, ties broken by the smaller key
+     * 值最大的 k 个 key，按值降序（值相同时 key 小的在前），用于召回截断
+     */
+    public List<Integer> topKeys(int k) {
+        int[] ks = new int[size];
+        double[] vs = new double[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                ks[n] = keys[i];
+                vs[n] = values[i];
+                n++;
+            }
+        }
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int c = Double.compare(vs[b], vs[a]);
+            return c != 0 ? c : Integer.compare(ks[a], ks[b]);
+        });
+        List<Integer> result = new ArrayList<>(Math.min(Math.max(k, 0), n));
+        for (int i = 0; i < n && result.size() < k; i++) {
+            result.add(ks[order[i]]);
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+}
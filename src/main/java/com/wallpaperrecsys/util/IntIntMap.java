@@ -0,0 +1,130 @@
+package com.wallpaperrecsys.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing int -> int map without boxing, for counting
+ * 开放寻址（线性探测）的 int -> int 映射，主要用于计数（addTo），读写都不装箱
+ *
+ * 说明：
+ * - key 不能为负数（-1 用作空槽标记）；不支持删除；容量按 2 的幂增长，装载因子不超过 0.5。
+ * - 非线程安全。
+ */
+public class IntIntMap {
+
+    private static final int FREE = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    /**
+     * Visitor of all entries
+     * 遍历回调
+     */
+    public interface Visitor {
+        void accept(int key, int value);
+    }
+
+    public IntIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Add delta to the value of key (absent keys start at 0)
+     * 把 key 的值加上 delta（不存在时从 0 开始）
+     */
+    public void addTo(int key, int delta) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key: " + key);
+        }
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int i = slot(key, mask);
+        while (true) {
+            int k = keys[i];
+            if (k == key) {
+                values[i] += delta;
+                return;
+            }
+            if (k == FREE) {
+                keys[i] = key;
+                values[i] = delta;
+                size++;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public int get(int key, int defaultValue) {
+        int i = slot(key, mask);
+        while (true) {
+            int k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == FREE) {
+                return defaultValue;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Add every entry of other into this map
+     * 把 other 的每个计数累加进来
+     */
+    public void addAll(IntIntMap other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != FREE) {
+                addTo(other.keys[i], other.values[i]);
+            }
+        }
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                visitor.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != FREE) {
+                int i = slot(oldKeys[j], mask);
+                while (keys[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+                size++;
+            }
+        }
+    }
+}
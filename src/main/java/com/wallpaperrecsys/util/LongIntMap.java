@@ -0,0 +1,215 @@
+package com.wallpaperrecsys.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing long -> int map without boxing, for counting
+ * 开放寻址（线性探测）的 long -> int 映射，主要用于计数（addTo），读写都不装箱
+ *
+ * 说明：
+ * - key 不能为负数（-1 用作空槽标记）；只支持按值批量删除（removeBelow）；容量按 2 的幂增长，装载因子不超过 0.5。
+ * - 非线程安全：并发构建时每个线程各用一个，最后合并。
+ */
+public class LongIntMap {
+
+    private static final long FREE = -1L;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    /**
+     * Visitor of all entries
+     * 遍历回调
+     */
+    public interface Visitor {
+        void accept(long key, int value);
+    }
+
+    /**
+     * Visitor of entries together with their slot
+     * 带槽位号的遍历回调，用于按槽位区间分给多个线程
+     */
+    public interface SlotVisitor {
+        void accept(int slot, long key, int value);
+    }
+
+    public LongIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Add delta to the value of key (absent keys start at 0)
+     * 把 key 的值加上 delta（不存在时从 0 开始）
+     */
+    public void addTo(long key, int delta) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key: " + key);
+        }
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int i = slot(key, mask);
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                values[i] += delta;
+                return;
+            }
+            if (k == FREE) {
+                keys[i] = key;
+                values[i] = delta;
+                size++;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public int get(long key, int defaultValue) {
+        int i = slot(key, mask);
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == FREE) {
+                return defaultValue;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Add every entry of other into this map
+     * 把 other 的每个计数累加进来
+     */
+    public void addAll(LongIntMap other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != FREE) {
+                addTo(other.keys[i], other.values[i]);
+            }
+        }
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                visitor.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Visit the entries stored in slots [fromSlot, toSlot)
+     * 遍历槽位区间 [fromSlot, toSlot) 内的项；只读时多个线程可以各扫一段
+     */
+    public void forEachSlot(int fromSlot, int toSlot, SlotVisitor visitor) {
+        for (int i = fromSlot; i < toSlot; i++) {
+            if (keys[i] != FREE) {
+                visitor.accept(i, keys[i], values[i]);
+            }
+        }
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public int valueAt(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * Number of slots
+     * 槽位数（容量）
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Bytes held by the key and value arrays
+     * 键值数组占用的字节数（容量 * 12）
+     */
+    public long memoryBytes() {
+        return keys.length * 12L;
+    }
+
+    /**
+     * Remove every entry whose value is below min, in place without reallocating
+     * 删除值小于 min 的所有项：原地清空后整理探测序列，不分配新数组
+     * @return entries removed
+     */
+    public int removeBelow(int min) {
+        int removed = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE && values[i] < min) {
+                keys[i] = FREE;
+                removed++;
+            }
+        }
+        if (removed == 0) {
+            return 0;
+        }
+        size -= removed;
+        // 从一个空槽开始绕一圈，把每一项移到它探测序列上的第一个空槽（装载因子不超过 0.5，一定有空槽）
+        int start = 0;
+        while (keys[start] != FREE) {
+            start++;
+        }
+        for (int n = 1; n <= keys.length; n++) {
+            int i = (start + n) & mask;
+            long key = keys[i];
+            if (key == FREE) {
+                continue;
+            }
+            int j = slot(key, mask);
+            while (j != i && keys[j] != FREE) {
+                j = (j + 1) & mask;
+            }
+            if (j != i) {
+                keys[j] = key;
+                values[j] = values[i];
+                keys[i] = FREE;
+            }
+        }
+        return removed;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != FREE) {
+                int i = slot(oldKeys[j], mask);
+                while (keys[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+                size++;
+            }
+        }
+    }
+}
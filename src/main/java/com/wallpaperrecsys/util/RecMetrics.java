@@ -0,0 +1,160 @@
+package com.wallpaperrecsys.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Process-wide timing and counter registry
+ * 进程内的耗时 / 计数指标注册表，通过 /api/metrics 输出
+ */
+public class RecMetrics {
+
+    private static final Map<String, Timer> TIMERS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, DoubleSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    /**
+     * Timing and item-count statistics of one stage
+     * 单个阶段的耗时与进出数量统计
+     */
+    public static class Timer {
+        // 耗时直方图：按微秒取对数分桶，每个 2 的幂再分 4 个子桶，分位数误差不超过 25%
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = 256;
+
+        final LongAdder calls = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final LongAdder itemsIn = new LongAdder();
+        final LongAdder itemsOut = new LongAdder();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        public void record(long nanos, int in, int out) {
+            calls.increment();
+            totalNanos.add(nanos);
+            itemsIn.add(in);
+            itemsOut.add(out);
+            histogram.incrementAndGet(bucket(nanos));
+            long prev;
+            while (nanos > (prev = maxNanos.get())) {
+                if (maxNanos.compareAndSet(prev, nanos)) {
+                    break;
+                }
+            }
+        }
+
+        Map<String, Object> snapshot() {
+            long n = calls.sum();
+            Map<String, Object> m = new TreeMap<>();
+            m.put("calls", n);
+            m.put("avgMs", n == 0 ? 0.0 : totalNanos.sum() / 1e6 / n);
+            m.put("maxMs", maxNanos.get() / 1e6);
+            m.put("p50Ms", percentileMs(0.50));
+            m.put("p99Ms", percentileMs(0.99));
+            m.put("avgIn", n == 0 ? 0.0 : (double) itemsIn.sum() / n);
+            m.put("avgOut", n == 0 ? 0.0 : (double) itemsOut.sum() / n);
+            return m;
+        }
+
+        /**
+         * Approximate percentile (upper bound of the bucket holding it), in milliseconds
+         * 近似分位数（所在分桶的上界），单位毫秒
+         */
+        public double percentileMs(double q) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += histogram.get(i);
+            }
+            if (total == 0) {
+                return 0.0;
+            }
+            long target = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= target) {
+                    return Math.min(upperBoundMicros(i) / 1e3, maxNanos.get() / 1e6);
+                }
+            }
+            return maxNanos.get() / 1e6;
+        }
+
+        // 小于 4 微秒各占一个桶；之后每个 [2^m, 2^(m+1)) 区间等分为 4 个子桶
+        static int bucket(long nanos) {
+            long us = Math.max(0L, nanos / 1000);
+            if (us < SUB_BUCKETS) {
+                return (int) us;
+            }
+            int msb = 63 - Long.numberOfLeadingZeros(us);
+            int sub = (int) ((us >>> (msb - 2)) & (SUB_BUCKETS - 1));
+            return Math.min(BUCKETS - 1, (msb - 1) * SUB_BUCKETS + sub);
+        }
+
+        static long upperBoundMicros(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket + 1;
+            }
+            int msb = bucket / SUB_BUCKETS + 1;
+            int sub = bucket % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + sub + 1) << (msb - 2);
+        }
+    }
+
+    public static Timer timer(String name) {
+        return TIMERS.computeIfAbsent(name, k -> new Timer());
+    }
+
+    public static void record(String name, long nanos, int in, int out) {
+        timer(name).record(nanos, in, out);
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long delta) {
+        COUNTERS.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public static long count(String name) {
+        LongAdder adder = COUNTERS.get(name);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * Register a value computed at snapshot time
+     * 注册一个在输出快照时才计算的指标（例如各种已看集合的用户数、估计假阳性率）
+     */
+    public static void gauge(String name, DoubleSupplier supplier) {
+        GAUGES.put(name, supplier);
+    }
+
+    /**
+     * Snapshot of all metrics, sorted by name
+     * 所有指标的快照（按名字排序，便于直接序列化为 JSON）
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> timers = new TreeMap<>();
+        for (Map.Entry<String, Timer> e : TIMERS.entrySet()) {
+            timers.put(e.getKey(), e.getValue().snapshot());
+        }
+        Map<String, Object> counters = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : COUNTERS.entrySet()) {
+            counters.put(e.getKey(), e.getValue().sum());
+        }
+        Map<String, Object> gauges = new TreeMap<>();
+        for (Map.Entry<String, DoubleSupplier> e : GAUGES.entrySet()) {
+            gauges.put(e.getKey(), e.getValue().getAsDouble());
+        }
+        Map<String, Object> result = new TreeMap<>();
+        result.put("timers", timers);
+        result.put("counters", counters);
+        result.put("gauges", gauges);
+        return result;
+    }
+}
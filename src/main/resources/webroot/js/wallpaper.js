@@ -153,8 +153,8 @@ function setSelectedModel(model) {
     var sel = document.getElementById('model-select');
     if (!sel) return;
     var v = model || 'emb';
-    // 仅允许这三个值，避免脏数据
-    if (v !== 'emb' && v !== 'itemcf' && v !== 'popularity') {
+    // 仅允许这几个值，避免脏数据
+    if (v !== 'emb' && v !== 'itemcf' && v !== 'usercf' && v !== 'popularity' && v !== 'hybrid' && v !== 'learned') {
         v = 'emb';
     }
     sel.value = v;
@@ -180,9 +180,18 @@ function modelSubtitle(model) {
     if (model === 'itemcf') {
         return '基于协同过滤（ItemCF）：用“相似用户共同喜欢的壁纸”来做个性化推荐。';
     }
+    if (model === 'usercf') {
+        return '基于用户协同过滤（UserCF）：找到和你喜欢过的壁纸最相似的用户，推荐他们喜欢的壁纸。';
+    }
     if (model === 'popularity') {
         return '基于流行度：综合平均评分等统计特征，推荐更“热门/口碑更好”的壁纸。';
     }
+    if (model === 'hybrid') {
+        return '融合模型：同时参考向量相似度、协同过滤与流行度，加权得到综合排序。';
+    }
+    if (model === 'learned') {
+        return '学习排序：用历史评分离线训练的模型，综合向量、协同过滤、口碑与标签偏好等特征打分。';
+    }
     return '基于 Embedding：用用户向量与壁纸向量相似度，为你推荐可能喜欢的壁纸。';
 }
 
@@ -253,6 +262,16 @@ function loadScenario(scene, label) {
     });
 }
 
+// 浏览器当前的 UTC 偏移（如 +08:00），时间推荐按客户端所在时区的时段返回
+function timeZoneParam() {
+    var minutes = -new Date().getTimezoneOffset();
+    var sign = minutes < 0 ? '-' : '+';
+    var abs = Math.abs(minutes);
+    var hh = ('0' + Math.floor(abs / 60)).slice(-2);
+    var mm = ('0' + (abs % 60)).slice(-2);
+    return '&tz=' + encodeURIComponent(sign + hh + ':' + mm);
+}
+
 function loadTime() {
     var page = getBatchPage();
     setActiveCategory('cat-all');
@@ -260,10 +279,10 @@ function loadTime() {
         type: 'time',
         scene: null,
         title: '时间感知推荐',
-        subtitle: '根据当前时间段（早/午/晚/深夜）推荐壁纸。'
+        subtitle: '根据你所在时区的当前时间段（早/午/晚/深夜）推荐壁纸。'
     });
     renderSkeleton(18);
-    fetchJson(baseUrl + 'api/rec/time?userId=1&size=30&page=' + page, function (list) {
+    fetchJson(baseUrl + 'api/rec/time?userId=1&size=30&page=' + page + timeZoneParam(), function (list) {
         renderGrid(currentView.title, currentView.subtitle, list);
     });
 }
@@ -284,7 +303,7 @@ function refreshBatch() {
     if (currentView.type === 'time') {
         var page2 = getBatchPage();
         renderSkeleton(18);
-        fetchJson(baseUrl + 'api/rec/time?userId=1&size=30&page=' + page2, function (list) {
+        fetchJson(baseUrl + 'api/rec/time?userId=1&size=30&page=' + page2 + timeZoneParam(), function (list) {
             renderGrid(currentView.title, currentView.subtitle, list);
         });
         return;